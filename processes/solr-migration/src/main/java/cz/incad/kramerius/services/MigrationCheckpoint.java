@@ -0,0 +1,110 @@
+package cz.incad.kramerius.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks migrated source pages. Pages are migrated out of order; the cursor mark following the last page
+ * of the longest migrated prefix is stored in the checkpoint file, interrupted migration continues from it.
+ */
+public class MigrationCheckpoint {
+
+    public static final Logger LOGGER = Logger.getLogger(MigrationCheckpoint.class.getName());
+
+    private final File file;
+
+    private final Map<Long, String> tokens = new HashMap<>();
+    private final Set<Long> migrated = new HashSet<>();
+    private long registered = 0;
+    private long prefix = 0;
+
+    /**
+     * @param file Checkpoint file or null
+     */
+    public MigrationCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return stored cursor mark or null if the migration starts from the beginning
+     */
+    public String load() {
+        if (file != null && file.isFile()) {
+            try {
+                String token = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+                return token.isEmpty() ? null : token;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "cannot read checkpoint " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers next source page
+     * @param token Cursor mark following the page
+     * @return sequence number of the page
+     */
+    public synchronized long register(String token) {
+        tokens.put(registered, token);
+        return registered++;
+    }
+
+    /**
+     * Marks the page migrated; stores the checkpoint if the migrated prefix grows
+     */
+    public synchronized void migrated(long sequence) {
+        migrated.add(sequence);
+        String token = null;
+        while (migrated.remove(prefix)) {
+            token = tokens.remove(prefix);
+            prefix++;
+        }
+        if (token != null) {
+            store(token);
+        }
+    }
+
+    /**
+     * @return true if all registered pages are migrated
+     */
+    public synchronized boolean isFinished() {
+        return prefix == registered;
+    }
+
+    /**
+     * Deletes the checkpoint file (migration is finished)
+     */
+    public void clear() {
+        if (file != null && file.exists() && !file.delete()) {
+            LOGGER.warning("cannot delete checkpoint " + file.getAbsolutePath());
+        }
+    }
+
+    private void store(String token) {
+        if (file == null) {
+            return;
+        }
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                Files.write(tmp.toPath(), token.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot store checkpoint " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+}
@@ -42,6 +42,10 @@ public class MigrationUtils {
 
     private static final String EXECUTOR_WAIT_TIMEOUT =".migration.executortimeout";
 
+    private static final String SOLR_MIGRATION_QUEUE_KEY = ".migration.queue";
+    private static final String SOLR_MIGRATION_SEND_BATCHSIZE_KEY = ".migration.solr.sendbatchsize";
+    private static final String SOLR_MIGRATION_CHECKPOINT_KEY = ".migration.checkpoint";
+
     private static final String SOLR_MIGRATION_BUIDLD_COMPOSITE = ".migration.build.composite";
 
 
@@ -51,6 +55,7 @@ public class MigrationUtils {
     public static final int DEFAULT_NUMBER_OF_ROWS = 100;
     public static final int DEFAULT_NUMBER_OF_THREADS = 2;
     public static final int DEFAULT_BATCHSIZE = 10;
+    public static final int DEFAULT_SEND_BATCHSIZE = 100;
     public static final int START = 0;
 
     public static final Logger LOGGER = Logger.getLogger(MigrationUtils.class.getName());
@@ -73,6 +78,7 @@ public class MigrationUtils {
                 InputStream entityInputStream = resp.getEntityInputStream();
                 IOUtils.copyStreams(entityInputStream, bos);
                 LOGGER.log(Level.SEVERE, "status "+resp.getStatus() +" error message "+new String(bos.toByteArray(), "UTF-8"));
+                throw new MigrateSolrIndexException("Exiting with status:"+resp.getStatus());
             }
         } catch (UniformInterfaceException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -166,6 +172,35 @@ public class MigrationUtils {
     }
 
 
+    /**
+     * Returns number of source pages waiting for workers; the source iteration blocks when the queue is full
+     *
+     * @return
+     * @throws MigrateSolrIndexException
+     */
+    public static int configuredQueueSize() throws MigrateSolrIndexException {
+        return Math.max(1, KConfiguration.getInstance().getConfiguration().getInt(SOLR_MIGRATION_QUEUE_KEY, 2 * configuredNumberOfThreads()));
+    }
+
+    /**
+     * Returns max number of documents sent to destination in one update request
+     *
+     * @return
+     */
+    public static int configuredSendBatchSize() {
+        return Math.max(1, KConfiguration.getInstance().getConfiguration().getInt(SOLR_MIGRATION_SEND_BATCHSIZE_KEY, DEFAULT_SEND_BATCHSIZE));
+    }
+
+    /**
+     * Returns file with the last migrated cursor mark or null if migration cannot be resumed
+     *
+     * @return
+     */
+    public static File configuredCheckpoint() {
+        String checkpoint = KConfiguration.getInstance().getConfiguration().getString(SOLR_MIGRATION_CHECKPOINT_KEY);
+        return StringUtils.isAnyString(checkpoint) ? new File(checkpoint) : null;
+    }
+
     public static boolean configuredBuildCompositeId() throws MigrateSolrIndexException {
         return KConfiguration.getInstance().getConfiguration().getBoolean(SOLR_MIGRATION_BUIDLD_COMPOSITE, false);
     }
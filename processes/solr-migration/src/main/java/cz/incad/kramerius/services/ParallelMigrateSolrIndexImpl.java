@@ -6,97 +6,143 @@ import cz.incad.kramerius.service.MigrateSolrIndexException;
 import cz.incad.kramerius.utils.IterationUtils;
 
 import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
 
-import java.util.ArrayList;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Pipelined migration. The source iteration enqueues pages of pids (at most <code>.migration.queue</code> pages
+ * wait), <code>.migration.threads</code> workers fetch documents of the pages as they arrive and {@link SolrSender}
+ * sends their batches to the destination. With cursor iteration, the cursor mark of migrated pages is stored
+ * in <code>.migration.checkpoint</code> file and the next run continues from it.
+ */
 public class ParallelMigrateSolrIndexImpl implements MigrateSolrIndex{
 
 
     public static final Logger LOGGER = Logger.getLogger(ParallelMigrateSolrIndexImpl.class.getName());
-    
+
     private Client client;
-    //private ExecutorService service;
-    private CyclicBarrier cyclicBarrier;
 
     public ParallelMigrateSolrIndexImpl() throws MigrateSolrIndexException {
         super();
         this.client = Client.create();
-        //this.service = Executors.newFixedThreadPool(MigrationUtils.configuredNumberOfThreads());
-    }
-
-    private void startWorkers(List<SolrWorker> worksWhasHasToBeDone) throws BrokenBarrierException, InterruptedException {
-        CyclicBarrier barrier = new CyclicBarrier(worksWhasHasToBeDone.size()+1);
-        worksWhasHasToBeDone.stream().forEach(th->{
-            th.setBarrier(barrier);
-            new Thread(th).start();
-        });
-        barrier.await();
     }
 
     @Override
     public void migrate() throws MigrateSolrIndexException {
-        final List<SolrWorker>  worksWhatHasToBeDone = new ArrayList<>();
         final String masterQuery = "*:*";
         long start = System.currentTimeMillis();
-        try {
-            if (MigrationUtils.configuredUseCursor()) {
-                IterationUtils.cursorIteration(client, MigrationUtils.configuredSourceServer(), masterQuery, (Element element, String t) -> {
-                    addNewWorkToWorkers(worksWhatHasToBeDone, element);
-                }, () -> {
-                    finishRestWorkers(worksWhatHasToBeDone);
-                });
-            } else if (MigrationUtils.configuredPagination()) {
-                IterationUtils.queryPaginationIteration(this.client,MigrationUtils.configuredSourceServer(),masterQuery, (element, t) ->{
-                    addNewWorkToWorkers(worksWhatHasToBeDone, element);
-                }, ()-> {
-                    finishRestWorkers(worksWhatHasToBeDone);
+        int threads = Math.max(1, MigrationUtils.configuredNumberOfThreads());
+        int queueSize = MigrationUtils.configuredQueueSize();
+        boolean useCursor = MigrationUtils.configuredUseCursor();
 
-                });
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
 
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "solr-migration-worker-" + counter.incrementAndGet());
+            }
+        });
+        // running pages and pages waiting for a worker
+        Semaphore pages = new Semaphore(threads + queueSize);
+        int sendBatchSize = MigrationUtils.configuredSendBatchSize();
+        // batches for two update requests per worker
+        int batchesPerRequest = Math.max(1, sendBatchSize / MigrationUtils.configuredBatchSize());
+        SolrSender sender = new SolrSender(this.client, sendBatchSize, 2 * threads * batchesPerRequest);
+        MigrationCheckpoint checkpoint = new MigrationCheckpoint(useCursor ? MigrationUtils.configuredCheckpoint() : null);
+        sender.start();
+        boolean complete;
+        try {
+            IterationUtils.IterationCallback callback = (Element element, String t) -> {
+                addNewWork(workers, pages, sender, checkpoint, element, t);
+            };
+            if (useCursor) {
+                String cursorMark = checkpoint.load();
+                if (cursorMark != null) {
+                    LOGGER.info("Resuming migration from cursor mark " + cursorMark);
+                }
+                cursorIteration(MigrationUtils.configuredSourceServer(), masterQuery, cursorMark, callback);
+            } else if (MigrationUtils.configuredPagination()) {
+                IterationUtils.queryPaginationIteration(this.client,MigrationUtils.configuredSourceServer(),masterQuery, callback, ()-> {});
             } else {
-                IterationUtils.queryFilterIteration(this.client,MigrationUtils.configuredSourceServer(),masterQuery, (element, t) ->{
-                    addNewWorkToWorkers(worksWhatHasToBeDone, element);
-                }, ()-> {
-                    finishRestWorkers(worksWhatHasToBeDone);
-
-                });
-                //this.migrateUseQueryFilter(MigrationUtils.configuredSourceServer(),"*:*");
+                IterationUtils.queryFilterIteration(this.client,MigrationUtils.configuredSourceServer(),masterQuery, callback, ()-> {});
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            sender.finish();
+            complete = checkpoint.isFinished() && sender.getFailed() == 0;
+            if (complete) {
+                checkpoint.clear();
             }
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
             throw new MigrateSolrIndexException(e);
         } finally {
+                workers.shutdownNow();
+                try {
+                    sender.finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
                 long stop = System.currentTimeMillis();
                 LOGGER.info("Finished  in "+(stop - start)+" ms");
                 MigrationUtils.commit(this.client, MigrationUtils.confiugredDestinationServer());
         }
+        if (!complete) {
+            // documents migrated so far are committed, next run continues from the checkpoint
+            throw new MigrateSolrIndexException("Not all documents have been migrated (failed updates: " + sender.getFailed() + ")");
+        }
     }
 
-    private void addNewWorkToWorkers(List<SolrWorker> worksWhatHasToBeDone, Element element) {
-        try {
-            worksWhatHasToBeDone.add(new SolrWorker(client, IterationUtils.findAllPids(element)));
-            if (worksWhatHasToBeDone.size() >= MigrationUtils.configuredNumberOfThreads()) {
-                startWorkers(worksWhatHasToBeDone);
-                worksWhatHasToBeDone.clear();
-            }
-        } catch (MigrateSolrIndexException | BrokenBarrierException | InterruptedException e) {
-            LOGGER.log(Level.SEVERE,e.getMessage(),e);
-        }
+    /**
+     * Cursor iteration starting from the given cursor mark (null for the beginning)
+     */
+    private void cursorIteration(String address, String masterQuery, String cursorMark, IterationUtils.IterationCallback callback) throws ParserConfigurationException, SAXException, IOException {
+        String queryCursorMark = null;
+        do {
+            Element element = IterationUtils.pidsCursorQuery(IterationUtils.DEFAULT_FIELDS_PROVIDER, IterationUtils.Endpoint.select, client, address, masterQuery, cursorMark);
+            cursorMark = IterationUtils.findCursorMark(element);
+            queryCursorMark = IterationUtils.findQueryCursorMark(element);
+            callback.call(element, cursorMark);
+        } while((cursorMark != null && queryCursorMark != null) && !cursorMark.equals(queryCursorMark));
     }
 
-    private void finishRestWorkers(List<SolrWorker> worksWhatHasToBeDone) {
+    /**
+     * Hands the page over to workers; waits while the queue of pages is full
+     */
+    private void addNewWork(ExecutorService workers, Semaphore pages, SolrSender sender, MigrationCheckpoint checkpoint, Element element, String token) throws InterruptedIOException {
+        List<String> pids = IterationUtils.findAllPids(element);
+        long sequence = checkpoint.register(token);
+        if (pids.isEmpty()) {
+            checkpoint.migrated(sequence);
+            return;
+        }
         try {
-            if (!worksWhatHasToBeDone.isEmpty()) {
-                startWorkers(worksWhatHasToBeDone);
-            }
-        } catch (BrokenBarrierException | InterruptedException e) {
-            LOGGER.log(Level.SEVERE,e.getMessage(),e);
+            pages.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
         }
+        SolrWorker worker = new SolrWorker(client, pids, sender, () -> checkpoint.migrated(sequence));
+        workers.execute(() -> {
+            try {
+                worker.run();
+            } finally {
+                pages.release();
+            }
+        });
     }
 
     public static void main(String[] args) throws MigrateSolrIndexException {
@@ -0,0 +1,150 @@
+package cz.incad.kramerius.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.sun.jersey.api.client.Client;
+
+import cz.incad.kramerius.service.MigrateSolrIndexException;
+import cz.incad.kramerius.utils.XMLUtils;
+
+/**
+ * Sends batches prepared by workers to the destination index in its own thread. Batches waiting in the queue
+ * are merged into one update request of at most <code>sendBatchSize</code> documents.
+ */
+public class SolrSender implements Runnable {
+
+    public static final Logger LOGGER = Logger.getLogger(SolrSender.class.getName());
+
+    private static final Update END = new Update(null, null);
+
+    private static class Update {
+
+        private final Document batch;
+        private final Runnable onSent;
+
+        private Update(Document batch, Runnable onSent) {
+            this.batch = batch;
+            this.onSent = onSent;
+        }
+
+        private int size() {
+            return XMLUtils.getElements(batch.getDocumentElement()).size();
+        }
+    }
+
+    private final Client client;
+    private final int sendBatchSize;
+    private final BlockingQueue<Update> queue;
+    private final Thread thread;
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public SolrSender(Client client, int sendBatchSize, int queueSize) {
+        this.client = client;
+        this.sendBatchSize = sendBatchSize;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.thread = new Thread(this, "solr-migration-sender");
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Enqueues batches of one source page; waits if the queue is full
+     * @param batches Batches
+     * @param onSent Called when all batches are sent
+     */
+    public void send(List<Document> batches, Runnable onSent) throws InterruptedException {
+        if (batches.isEmpty()) {
+            onSent.run();
+            return;
+        }
+        AtomicInteger pending = new AtomicInteger(batches.size());
+        Runnable batchSent = () -> {
+            if (pending.decrementAndGet() == 0) {
+                onSent.run();
+            }
+        };
+        for (Document batch : batches) {
+            queue.put(new Update(batch, batchSent));
+        }
+    }
+
+    /**
+     * Sends everything what is enqueued and stops the sender
+     */
+    public void finish() throws InterruptedException {
+        if (thread.isAlive()) {
+            queue.put(END);
+            thread.join();
+        }
+    }
+
+    /**
+     * @return number of update requests which failed
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public void run() {
+        boolean end = false;
+        try {
+            while (!end) {
+                Update first = queue.take();
+                if (first == END) {
+                    break;
+                }
+                List<Update> updates = new ArrayList<>();
+                updates.add(first);
+                int docs = first.size();
+                while (docs < sendBatchSize) {
+                    Update next = queue.poll();
+                    if (next == null) {
+                        break;
+                    } else if (next == END) {
+                        end = true;
+                        break;
+                    }
+                    updates.add(next);
+                    docs += next.size();
+                }
+                post(updates);
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "sender interrupted; " + queue.size() + " batches not sent");
+        }
+    }
+
+    private void post(List<Update> updates) {
+        try {
+            Document merged = updates.get(0).batch;
+            if (updates.size() > 1) {
+                merged = XMLUtils.crateDocument("add");
+                for (Update update : updates) {
+                    for (Element doc : XMLUtils.getElements(update.batch.getDocumentElement())) {
+                        merged.getDocumentElement().appendChild(merged.importNode(doc, true));
+                    }
+                }
+            }
+            MigrationUtils.sendToDest(this.client, merged);
+            updates.forEach(update -> update.onSent.run());
+        } catch (ParserConfigurationException | MigrateSolrIndexException e) {
+            // pages of the batches stay unmigrated, checkpoint doesn't move past them
+            failed.incrementAndGet();
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+}
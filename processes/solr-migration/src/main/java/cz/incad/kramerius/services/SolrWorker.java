@@ -2,10 +2,7 @@ package cz.incad.kramerius.services;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,6 +17,9 @@ import com.sun.jersey.api.client.Client;
 
 import cz.incad.kramerius.service.MigrateSolrIndexException;
 
+/**
+ * Fetches documents of one source page and passes their batches to the sender
+ */
 public class SolrWorker implements Runnable {
 
 
@@ -27,22 +27,21 @@ public class SolrWorker implements Runnable {
 
     private Client client;
     private List<String> pidsToBeProcessed;
+    private SolrSender sender;
+    private Runnable onMigrated;
 
-    private CyclicBarrier barrier;
-
-    public SolrWorker( Client client, List<String> pids) {
+    /**
+     * @param client Client
+     * @param pids Pids of the page
+     * @param sender Sender of batches to destination
+     * @param onMigrated Called when all documents of the page are sent
+     */
+    public SolrWorker(Client client, List<String> pids, SolrSender sender, Runnable onMigrated) {
         super();
         this.client = client;
         this.pidsToBeProcessed = pids;
-
-    }
-
-    public CyclicBarrier getBarrier() {
-        return barrier;
-    }
-
-    public void setBarrier(CyclicBarrier barrier) {
-        this.barrier = barrier;
+        this.sender = sender;
+        this.onMigrated = onMigrated;
     }
 
     @Override
@@ -52,6 +51,8 @@ public class SolrWorker implements Runnable {
             int batchSize = MigrationUtils.configuredBatchSize();
             int batches = this.pidsToBeProcessed.size() / batchSize + (this.pidsToBeProcessed.size() % batchSize == 0 ? 0 :1);
             LOGGER.info("["+Thread.currentThread().getName()+"] creating  "+batches+" batches ");
+            List<Document> batchDocuments = new ArrayList<>();
+            boolean complete = true;
             for (int i=0;i<batches;i++) {
                 int from = i*batchSize;
                 int to = from + batchSize;
@@ -61,28 +62,19 @@ public class SolrWorker implements Runnable {
                     Element resultElem = XMLUtils.findElement(response, (elm) -> {
                         return elm.getNodeName().equals("result");
                     });
-                    List<Document> batchDocuments = BatchUtils.batches(resultElem, MigrationUtils.configuredBatchSize());
-                    for (Document  batch : batchDocuments) {
-                        MigrationUtils.sendToDest(this.client, batch);
-                    }
-                } catch (ParserConfigurationException e) {
-                    LOGGER.log(Level.SEVERE,e.getMessage(),e);
-                } catch (SAXException e) {
-                    LOGGER.log(Level.SEVERE,e.getMessage(),e);
-                } catch (IOException e) {
+                    batchDocuments.addAll(BatchUtils.batches(resultElem, MigrationUtils.configuredBatchSize()));
+                } catch (ParserConfigurationException | SAXException | IOException e) {
+                    complete = false;
                     LOGGER.log(Level.SEVERE,e.getMessage(),e);
-               }
+                }
             }
+            // page with failed fetch is sent, but never marked as migrated
+            this.sender.send(batchDocuments, complete ? this.onMigrated : () -> {});
         } catch (MigrateSolrIndexException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(),e);
-        } finally {
-            try {
-                this.barrier.await();
-            } catch (InterruptedException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(),e);
-            } catch (BrokenBarrierException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(),e);
-            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.SEVERE, e.getMessage(),e);
         }
     }
 }
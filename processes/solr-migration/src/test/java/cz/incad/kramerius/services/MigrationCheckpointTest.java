@@ -0,0 +1,38 @@
+package cz.incad.kramerius.services;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MigrationCheckpointTest {
+
+    @Test
+    public void testStoresLongestMigratedPrefix() throws IOException {
+        File file = File.createTempFile("migration", ".checkpoint");
+        file.delete();
+        try {
+            MigrationCheckpoint checkpoint = new MigrationCheckpoint(file);
+            Assert.assertNull(checkpoint.load());
+            long first = checkpoint.register("A");
+            long second = checkpoint.register("B");
+            long third = checkpoint.register("C");
+
+            checkpoint.migrated(second);
+            Assert.assertNull(checkpoint.load());
+            checkpoint.migrated(first);
+            Assert.assertEquals("B", checkpoint.load());
+            Assert.assertFalse(checkpoint.isFinished());
+
+            checkpoint.migrated(third);
+            Assert.assertEquals("C", new MigrationCheckpoint(file).load());
+            Assert.assertTrue(checkpoint.isFinished());
+
+            checkpoint.clear();
+            Assert.assertFalse(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -43,6 +43,10 @@ import cz.incad.kramerius.pdf.FirstPagePDFService;
 import cz.incad.kramerius.pdf.GeneratePDFService;
 import cz.incad.kramerius.pdf.OutOfRangeException;
 import cz.incad.kramerius.pdf.SimplePDFService;
+import cz.incad.kramerius.pdf.impl.ConfigurationUtils;
+import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupport;
+import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupportNotReadyException;
+import cz.incad.kramerius.pdf.utils.PDFJobScheduler;
 import cz.incad.kramerius.pdf.utils.pdf.FontMap;
 import cz.incad.kramerius.rest.api.k5.client.SolrMemoization;
 import cz.incad.kramerius.security.RightsResolver;
@@ -53,6 +57,7 @@ import cz.incad.kramerius.service.TextsService;
 import cz.incad.kramerius.statistics.ReportedAction;
 import cz.incad.kramerius.statistics.StatisticsAccessLog;
 import cz.incad.kramerius.utils.FedoraUtils;
+import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
 
 //@Deprecated
@@ -276,4 +281,25 @@ public class AbstractPDFResource {
             LOGGER.log(Level.WARNING, "Can't write statistic records for " + pid, e);
         }
     }
+
+    // number of pages used only for ordering in the queue; invalid number is rejected later by ConfigurationUtils.checkNumber
+    int requestedPages(String number) {
+        try {
+            return ConfigurationUtils.checkNumber(number);
+        } catch (OutOfRangeException | NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Waits in the PDF queue for a free slot
+     * @throws PDFResourceNotReadyException queue is full or the request has been waiting too long
+     */
+    PDFJobScheduler.Ticket acquireSlot(int pages) {
+        try {
+            return PDFExlusiveGenerateSupport.PDF_SCHEDULER.acquire(IPAddressUtils.getRemoteAddress(this.requestProvider.get()), pages);
+        } catch (PDFExlusiveGenerateSupportNotReadyException e) {
+            throw new PDFResourceNotReadyException("not ready: " + e.getMessage());
+        }
+    }
 }
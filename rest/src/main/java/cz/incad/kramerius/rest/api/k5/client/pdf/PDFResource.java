@@ -59,6 +59,7 @@ import cz.incad.kramerius.ProcessSubtreeException;
 import cz.incad.kramerius.pdf.OutOfRangeException;
 import cz.incad.kramerius.pdf.impl.ConfigurationUtils;
 import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupport;
+import cz.incad.kramerius.pdf.utils.PDFJobScheduler;
 import cz.incad.kramerius.rest.api.exceptions.ActionNotAllowed;
 import cz.incad.kramerius.rest.api.exceptions.BadRequestException;
 import cz.incad.kramerius.rest.api.exceptions.GenericApplicationException;
@@ -136,19 +137,9 @@ public class PDFResource extends AbstractPDFResource  {
             } else {
                 jsonObject.put("pdfMaxRange", maxPage);
             }
-            boolean acquired =  false;
-            try {
-                acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-                if (acquired) {
-                    jsonObject.put("resourceBusy", false);
-                } else {
-                    jsonObject.put("resourceBusy", true);
-                }
-            } finally {
-                if (acquired) {
-                    PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
-                }
-            }
+            PDFJobScheduler scheduler = PDFExlusiveGenerateSupport.PDF_SCHEDULER;
+            jsonObject.put("resourceBusy", scheduler.isBusy());
+            jsonObject.put("queueLength", scheduler.getWaiting());
             return Response.ok().entity(jsonObject.toString()).build();
         } catch (JSONException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -176,173 +167,82 @@ public class PDFResource extends AbstractPDFResource  {
             @QueryParam("width") String width,
             @QueryParam("height") String height,
             @QueryParam("format") String format) throws OutOfRangeException {
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
-                if (pid != null) {
-                    File fileToDelete = null;
-                    try {
-                        pid = this.fedoraAccess.findFirstViewablePid(pid);
-                        
-                        BufferedImage bufImage = KrameriusImageSupport.readImage(pid,FedoraUtils.IMG_FULL_STREAM, this.fedoraAccess, 0);
-
-                        double xPerctDouble = Double.parseDouble(xpos);
-                        double yPerctDouble = Double.parseDouble(ypos);
-
-                        double widthPerctDouble = Double.parseDouble(width);
-                        double heightPerctDouble = Double.parseDouble(height);
-
-                        BufferedImage subImage =  KrameriusImageSupport.partOfImage(bufImage, xPerctDouble, yPerctDouble,
-                                widthPerctDouble, heightPerctDouble);
-            
-                        fileToDelete = File.createTempFile("subimage", ".png");
-                        FileOutputStream fos = new FileOutputStream(fileToDelete);
-                        KrameriusImageSupport.writeImageToStream(subImage, ImageMimeType.PNG.getDefaultFileExtension(), fos);
-                        fos.close();
-
-                        reportAccess(pid);
-                        
-                        StreamingOutput stream = streamingOutput(fileToDelete,format);
-                        return Response
-                            .ok()
-                            .entity(stream).type("application/pdf").build();
-                    } catch (NumberFormatException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (XPathExpressionException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (FileNotFoundException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (IOException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    }
-                } else {
-                    LOGGER.log(Level.SEVERE, "No pid defined");
-                    throw new BadRequestException("No pid defined");
-                }
-            } else {
-                throw new PDFResourceNotReadyException("not ready");
-            }
-        } finally {
-            if (acquired)
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
-        }
-    }
-
-    /**
-     * Generate pdf from selection
-     * @param pidsParam List of pids
-     * @param pageType First page type. Possible values TEXT, IMAGE
-     * @param format Page format. Possible values : A0,...A5, B0,...B5, LETTER, POSTCARD
-     * @return
-     * @throws OutOfRangeException
-     */
-    @GET
-    @Path("selection")
-    @Produces({ "application/pdf", "application/json" })
-    public Response selection(@QueryParam("pids") String pidsParam,
-            @QueryParam("firstPageType") @DefaultValue("TEXT") String pageType,
-            @QueryParam("format") String format) throws OutOfRangeException {
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(1)) {
+            if (pid != null) {
+                File fileToDelete = null;
                 try {
+                    pid = this.fedoraAccess.findFirstViewablePid(pid);
+                    
+                    BufferedImage bufImage = KrameriusImageSupport.readImage(pid,FedoraUtils.IMG_FULL_STREAM, this.fedoraAccess, 0);
 
-                    AbstractPDFResource.FirstPage fp = pageType != null ? AbstractPDFResource.FirstPage
-                            .valueOf(pageType) : AbstractPDFResource.FirstPage.TEXT;
-
-                    if (StringUtils.isAnyString(pidsParam)) {
-                        String[] pids = pidsParam.split(",");
-                        // max number test
-                        ConfigurationUtils.checkNumber(pids);
-
-                        Rectangle formatRect = formatRect(format);
-                        final File generatedPDF = super.selection(pids, formatRect, fp);
-                        final InputStream fis = new FileInputStream(generatedPDF);
-                        StreamingOutput stream = new StreamingOutput() {
-                            public void write(OutputStream output)
-                                    throws IOException, WebApplicationException {
-                                try {
-                                    IOUtils.copyStreams(fis, output);
-                                } catch (Exception e) {
-                                    throw new WebApplicationException(e);
-                                } finally {
-                                    if (generatedPDF != null)
-                                        generatedPDF.delete();
-                                }
-                            }
-                        };
-                        SimpleDateFormat sdate = new SimpleDateFormat(
-                                "yyyyMMdd_mmhhss");
-                        return Response
-                                .ok()
-                                .header("Content-disposition",
-                                        "attachment; filename="
-                                                + sdate.format(new Date()) + ".pdf")
-                                .entity(stream).type("application/pdf").build();
-                    } else {
-                        return Response.status(Response.Status.BAD_REQUEST).build();
-                    }
-                } catch (MalformedURLException e) {
+                    double xPerctDouble = Double.parseDouble(xpos);
+                    double yPerctDouble = Double.parseDouble(ypos);
+
+                    double widthPerctDouble = Double.parseDouble(width);
+                    double heightPerctDouble = Double.parseDouble(height);
+
+                    BufferedImage subImage =  KrameriusImageSupport.partOfImage(bufImage, xPerctDouble, yPerctDouble,
+                            widthPerctDouble, heightPerctDouble);
+        
+                    fileToDelete = File.createTempFile("subimage", ".png");
+                    FileOutputStream fos = new FileOutputStream(fileToDelete);
+                    KrameriusImageSupport.writeImageToStream(subImage, ImageMimeType.PNG.getDefaultFileExtension(), fos);
+                    fos.close();
+
+                    reportAccess(pid);
+                    
+                    StreamingOutput stream = streamingOutput(fileToDelete,format);
+                    return Response
+                        .ok()
+                        .entity(stream).type("application/pdf").build();
+                } catch (NumberFormatException e) {
                     LOGGER.log(Level.SEVERE, e.getMessage(), e);
                     throw new GenericApplicationException(e.getMessage());
-                } catch (IOException e) {
+                } catch (XPathExpressionException e) {
                     LOGGER.log(Level.SEVERE, e.getMessage(), e);
                     throw new GenericApplicationException(e.getMessage());
-                } catch (ProcessSubtreeException e) {
+                } catch (FileNotFoundException e) {
                     LOGGER.log(Level.SEVERE, e.getMessage(), e);
                     throw new GenericApplicationException(e.getMessage());
-                } catch (DocumentException e) {
+                } catch (IOException e) {
                     LOGGER.log(Level.SEVERE, e.getMessage(), e);
                     throw new GenericApplicationException(e.getMessage());
-                } catch(SecurityException e) {
-                    LOGGER.log(Level.INFO, e.getMessage());
-                    throw new ActionNotAllowed(e.getMessage());
                 }
             } else {
-                throw new PDFResourceNotReadyException("not ready");
+                LOGGER.log(Level.SEVERE, "No pid defined");
+                throw new BadRequestException("No pid defined");
             }
-        } finally {
-            if (acquired)
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
         }
     }
 
     /**
-     * Generate whole document
-     * @param pid PID of generating document
-     * @param number Number of pages (whole document or maximum number of pages)
-     * @param pageType Type of firt page. Possible values: TEXT,IMAGE
+     * Generate pdf from selection
+     * @param pidsParam List of pids
+     * @param pageType First page type. Possible values TEXT, IMAGE
      * @param format Page format. Possible values : A0,...A5, B0,...B5, LETTER, POSTCARD
      * @return
+     * @throws OutOfRangeException
      */
     @GET
-    @Path("parent")
+    @Path("selection")
     @Produces({ "application/pdf", "application/json" })
-    public Response parent(@QueryParam("pid") String pid,
-            @QueryParam("number") String number,
+    public Response selection(@QueryParam("pids") String pidsParam,
             @QueryParam("firstPageType") @DefaultValue("TEXT") String pageType,
-            @QueryParam("format") String format) {
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
-                try {
-                    AbstractPDFResource.FirstPage fp = pageType != null ? AbstractPDFResource.FirstPage
-                            .valueOf(pageType) : AbstractPDFResource.FirstPage.TEXT;
+            @QueryParam("format") String format) throws OutOfRangeException {
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(StringUtils.isAnyString(pidsParam) ? pidsParam.split(",").length : 1)) {
+            try {
 
-                    // max number test
-                    int n = ConfigurationUtils.checkNumber(number);
-                    Rectangle formatRect = formatRect(format);
+                AbstractPDFResource.FirstPage fp = pageType != null ? AbstractPDFResource.FirstPage
+                        .valueOf(pageType) : AbstractPDFResource.FirstPage.TEXT;
 
-                    final File generatedPdf = super.parent(pid, n, formatRect, fp);
+                if (StringUtils.isAnyString(pidsParam)) {
+                    String[] pids = pidsParam.split(",");
+                    // max number test
+                    ConfigurationUtils.checkNumber(pids);
 
-                    final InputStream fis = new FileInputStream(generatedPdf);
+                    Rectangle formatRect = formatRect(format);
+                    final File generatedPDF = super.selection(pids, formatRect, fp);
+                    final InputStream fis = new FileInputStream(generatedPDF);
                     StreamingOutput stream = new StreamingOutput() {
                         public void write(OutputStream output)
                                 throws IOException, WebApplicationException {
@@ -351,12 +251,11 @@ public class PDFResource extends AbstractPDFResource  {
                             } catch (Exception e) {
                                 throw new WebApplicationException(e);
                             } finally {
-                                if (generatedPdf != null)
-                                    generatedPdf.delete();
+                                if (generatedPDF != null)
+                                    generatedPDF.delete();
                             }
                         }
                     };
-
                     SimpleDateFormat sdate = new SimpleDateFormat(
                             "yyyyMMdd_mmhhss");
                     return Response
@@ -365,34 +264,99 @@ public class PDFResource extends AbstractPDFResource  {
                                     "attachment; filename="
                                             + sdate.format(new Date()) + ".pdf")
                             .entity(stream).type("application/pdf").build();
-                } catch (NumberFormatException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (FileNotFoundException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (DocumentException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (ProcessSubtreeException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (OutOfRangeException e1) {
-                    LOGGER.log(Level.WARNING,"too much pages for pdf generating - consider changing config attribute (generatePdfMaxRange)");
-                    throw new PDFResourceBadRequestException(e1.getMessage());
-                } catch (SecurityException e1) {
-                    LOGGER.log(Level.INFO, e1.getMessage());
-                    throw new ActionNotAllowed(e1.getMessage());
+                } else {
+                    return Response.status(Response.Status.BAD_REQUEST).build();
                 }
-            } else {
-                throw new PDFResourceNotReadyException("not ready");
+            } catch (MalformedURLException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (ProcessSubtreeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (DocumentException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch(SecurityException e) {
+                LOGGER.log(Level.INFO, e.getMessage());
+                throw new ActionNotAllowed(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Generate whole document
+     * @param pid PID of generating document
+     * @param number Number of pages (whole document or maximum number of pages)
+     * @param pageType Type of firt page. Possible values: TEXT,IMAGE
+     * @param format Page format. Possible values : A0,...A5, B0,...B5, LETTER, POSTCARD
+     * @return
+     */
+    @GET
+    @Path("parent")
+    @Produces({ "application/pdf", "application/json" })
+    public Response parent(@QueryParam("pid") String pid,
+            @QueryParam("number") String number,
+            @QueryParam("firstPageType") @DefaultValue("TEXT") String pageType,
+            @QueryParam("format") String format) {
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(requestedPages(number))) {
+            try {
+                AbstractPDFResource.FirstPage fp = pageType != null ? AbstractPDFResource.FirstPage
+                        .valueOf(pageType) : AbstractPDFResource.FirstPage.TEXT;
+
+                // max number test
+                int n = ConfigurationUtils.checkNumber(number);
+                Rectangle formatRect = formatRect(format);
+
+                final File generatedPdf = super.parent(pid, n, formatRect, fp);
+
+                final InputStream fis = new FileInputStream(generatedPdf);
+                StreamingOutput stream = new StreamingOutput() {
+                    public void write(OutputStream output)
+                            throws IOException, WebApplicationException {
+                        try {
+                            IOUtils.copyStreams(fis, output);
+                        } catch (Exception e) {
+                            throw new WebApplicationException(e);
+                        } finally {
+                            if (generatedPdf != null)
+                                generatedPdf.delete();
+                        }
+                    }
+                };
+
+                SimpleDateFormat sdate = new SimpleDateFormat(
+                        "yyyyMMdd_mmhhss");
+                return Response
+                        .ok()
+                        .header("Content-disposition",
+                                "attachment; filename="
+                                        + sdate.format(new Date()) + ".pdf")
+                        .entity(stream).type("application/pdf").build();
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (FileNotFoundException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (DocumentException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (ProcessSubtreeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (OutOfRangeException e1) {
+                LOGGER.log(Level.WARNING,"too much pages for pdf generating - consider changing config attribute (generatePdfMaxRange)");
+                throw new PDFResourceBadRequestException(e1.getMessage());
+            } catch (SecurityException e1) {
+                LOGGER.log(Level.INFO, e1.getMessage());
+                throw new ActionNotAllowed(e1.getMessage());
             }
-        } finally {
-            if (acquired)
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
         }
     }
 
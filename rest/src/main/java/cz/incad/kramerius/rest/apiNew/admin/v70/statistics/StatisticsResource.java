@@ -19,7 +19,6 @@ package cz.incad.kramerius.rest.apiNew.admin.v70.statistics;
 import static org.apache.http.HttpStatus.SC_BAD_REQUEST;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -38,7 +37,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -92,6 +90,7 @@ import cz.incad.kramerius.statistics.ReportedAction;
 import cz.incad.kramerius.statistics.StatisticReport;
 import cz.incad.kramerius.statistics.StatisticsAccessLog;
 import cz.incad.kramerius.statistics.StatisticsReportException;
+import cz.incad.kramerius.statistics.StatisticsReportEngine;
 import cz.incad.kramerius.statistics.filters.AnnualYearFilter;
 import cz.incad.kramerius.statistics.filters.DateFilter;
 import cz.incad.kramerius.statistics.filters.IdentifiersFilter;
@@ -120,13 +119,15 @@ public class StatisticsResource {
 
     public static final Logger LOGGER = Logger.getLogger(StatisticsResource.class.getName());
     
-    public static final Semaphore STATISTIC_SEMAPHORE = new Semaphore(1);
 
 
     @Inject
     @Named("database")
     StatisticsAccessLog statisticsAccessLog;
 
+    @Inject
+    StatisticsReportEngine reportEngine;
+
     @Inject
     RightsResolver rightsResolver;
 
@@ -162,6 +163,7 @@ public class StatisticsResource {
                         Date dateFromd = StatisticReport.DATE_FORMAT.parse(dateFrom);
                         Date dateTod = StatisticReport.DATE_FORMAT.parse(dateTo);
                         int deletedResult = this.statisticsAccessLog.cleanData(dateFromd, dateTod);
+                        this.reportEngine.invalidate();
                         JSONObject jsonObject = new JSONObject();
                         jsonObject.put("deleted", deletedResult);
                         return Response.ok().entity(jsonObject.toString()).build();
@@ -526,32 +528,29 @@ public class StatisticsResource {
                     	StatisticsReportFormatter selectedFormatter =  opts.get();
                         String info = "";
 
-                        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
                         try {
-                            STATISTIC_SEMAPHORE.acquire();
-                            selectedFormatter.addInfo(bos, info);
-                            selectedFormatter.beforeProcess(bos);
-
-                            // Must be synchronized - only one report at the time
-                            //report.prepareViews(action != null ? ReportedAction.valueOf(action) : null,new StatisticsFiltersContainer(new StatisticsFilter []{dateFilter,modelFilter,  multimodelFilter, annualYearFilter, pidsFilter}));
-                            report.processAccessLog(action != null ? ReportedAction.valueOf(action) : null, selectedFormatter,new StatisticsFiltersContainer(new StatisticsFilter []{dateFilter,modelFilter,visFilter, multimodelFilter, annualYearFilter,  pidsFilter, licenseFilter, idFilter}));
-                            selectedFormatter.afterProcess(bos);
+                            final ReportedAction reportedAction = action != null ? ReportedAction.valueOf(action) : null;
+                            final StatisticsFiltersContainer filters = new StatisticsFiltersContainer(new StatisticsFilter []{dateFilter,modelFilter,visFilter, multimodelFilter, annualYearFilter,  pidsFilter, licenseFilter, idFilter});
+                            // formatters are created per request, reports run concurrently
+                            final byte[] data = this.reportEngine.export(report.getReportId(),
+                                    Arrays.asList(action, format, dateFrom, dateTo, model, visibilityValue, annual, pids, license, identifier),
+                                    this.reportEngine.isClosed(dateTo, annual), out -> {
+                                selectedFormatter.addInfo(out, info);
+                                selectedFormatter.beforeProcess(out);
+                                report.processAccessLog(reportedAction, selectedFormatter, filters);
+                                selectedFormatter.afterProcess(out);
+                            });
 
                             return Response.ok(new StreamingOutput() {
                                 @Override
                                 public void write(OutputStream output) throws IOException, WebApplicationException {
-                                    IOUtils.copyStreams(new ByteArrayInputStream(bos.toByteArray()), output);
+                                    IOUtils.copyStreams(new ByteArrayInputStream(data), output);
                                 }
                             }).header("Content-disposition",  "attachment; filename="+file).build();
                         } catch (IOException e) {
                             throw new GenericApplicationException(e.getMessage());
                         } catch (StatisticsReportException e) {
                             throw new GenericApplicationException(e.getMessage());
-                        } catch (InterruptedException e) {
-                            throw new GenericApplicationException(e.getMessage());
-                        } finally {
-                            STATISTIC_SEMAPHORE.release();
                         }
                     } else {
                     	String body = results.stream().collect(Collectors.joining("\n"));
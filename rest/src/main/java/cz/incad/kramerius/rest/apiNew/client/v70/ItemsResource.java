@@ -9,6 +9,9 @@ import cz.incad.kramerius.audio.AudioFormat;
 import cz.incad.kramerius.audio.AudioStreamForwardingHelper;
 import cz.incad.kramerius.audio.AudioStreamId;
 import cz.incad.kramerius.fedora.om.RepositoryException;
+import cz.incad.kramerius.imaging.DecodedImageCache;
+import cz.incad.kramerius.imaging.TileSessionCache;
+import cz.incad.kramerius.imaging.TileSessionCache.TileMetadata;
 import cz.incad.kramerius.repository.ExtractStructureHelper;
 import cz.incad.kramerius.repository.KrameriusRepositoryApi;
 import cz.incad.kramerius.repository.KrameriusRepositoryApi.KnownDatastreams;
@@ -18,6 +21,7 @@ import cz.incad.kramerius.rest.IIPImagesSupport;
 import cz.incad.kramerius.rest.api.exceptions.ActionNotAllowed;
 import cz.incad.kramerius.rest.apiNew.admin.v70.collections.CutItem;
 import cz.incad.kramerius.rest.apiNew.client.v70.epub.EPubFileTypes;
+import cz.incad.kramerius.rest.apiNew.client.v70.utils.ByteRangeResponses;
 import cz.incad.kramerius.rest.apiNew.client.v70.utils.RightRuntimeInformations;
 import cz.incad.kramerius.rest.apiNew.client.v70.utils.RightRuntimeInformations.RuntimeInformation;
 import cz.incad.kramerius.rest.apiNew.exceptions.BadRequestException;
@@ -40,6 +44,7 @@ import cz.incad.kramerius.utils.ApplicationURL;
 import cz.incad.kramerius.utils.Dom4jUtils;
 import cz.incad.kramerius.utils.FedoraUtils;
 import cz.incad.kramerius.utils.RESTHelper;
+import cz.incad.kramerius.utils.RelsExtHelper;
 import cz.incad.kramerius.utils.StringUtils;
 import cz.incad.kramerius.utils.XMLUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
@@ -100,6 +105,7 @@ import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -178,9 +184,9 @@ public class ItemsResource extends ClientApiResource {
     /**
      * Only relevant with AUDIO_SERVE_WITH_FORWARDING=false
      * Disable byte-serving when audio data is serverd through Kramerius Repository (Akubra).
-     * It would be inefficient to use byte-serving this way. Since Kramerius Repository (Akubra) has to fetch whole audio file again for every byte-serving request
+     * Ranges are read directly from the file of the datastream store; audio that is not stored as a file is always returned whole
      */
-    private static final boolean AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE = true;
+    private static final boolean AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE = false;
 
     private static final int SEARCH_INDEX_BATCH_SIZE = 98;
 
@@ -211,6 +217,12 @@ public class ItemsResource extends ClientApiResource {
     
     @Inject
     LicensesManager licensesManager;
+
+    @Inject
+    DecodedImageCache decodedImageCache;
+
+    @Inject
+    TileSessionCache tileSessionCache;
     
     @Inject
     protected transient HttpAsyncClient client;
@@ -595,35 +607,49 @@ public class ItemsResource extends ClientApiResource {
             checkUserIsAllowedToReadDatastream(pid, dsId); //autorizace podle zdroje přístupu, POLICY apod. (by JSESSIONID)
             String mimeType = krameriusRepositoryApi.getImgFullMimetype(pid);
             
-            if (ImageMimeType.JPEG2000.getValue().equals(mimeType)) {
-                
-                InputStream istream = krameriusRepositoryApi.getImgFull(pid);
-                ImageIO.setUseCache(true);
-                BufferedImage jpeg2000 = ImageIO.read(istream);
-                
-                
+            boolean jpeg2000 = ImageMimeType.JPEG2000.getValue().equals(mimeType);
+            boolean djvu = ImageMimeType.DJVU.getValue().equals(mimeType) || ImageMimeType.VNDDJVU.getValue().equals(mimeType) || ImageMimeType.XDJVU.getValue().equals(mimeType);
+            if ((jpeg2000 || djvu) && decodedImageCache.isEnabled()) {
+                //decoded once per datastream version, then served from disk
+                Date lastModified = krameriusRepositoryApi.getLowLevelApi().getDatastreamLastModified(pid, dsId.toString());
+                File jpeg = decodedImageCache.get(pid, lastModified != null ? String.valueOf(lastModified.getTime()) : "", output -> {
+                    InputStream istream;
+                    try {
+                        istream = krameriusRepositoryApi.getLowLevelApi().getLatestVersionOfDatastream(pid, dsId.toString());
+                    } catch (RepositoryException e) {
+                        throw new IOException(e);
+                    }
+                    BufferedImage image = jpeg2000 ? decodeJpeg2000(istream) : decodeDjvu(istream);
+                    ImageIO.write(image, "jpeg", output);
+                });
+                //opened now, cache eviction cannot remove it before it is sent
+                InputStream is = new FileInputStream(jpeg);
                 StreamingOutput stream = output -> {
-                  ImageIO.write(jpeg2000, "jpg", output);
-//                    IOUtils.copy(fstream, output);
-//                    IOUtils.closeQuietly(fstream);
+                    try {
+                        IOUtils.copy(is, output);
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
                 };
-                return Response.ok().entity(stream).type(mimeType).build();
-                
-
-            } else  if (ImageMimeType.DJVU.getValue().equals(mimeType) || ImageMimeType.VNDDJVU.getValue().equals(mimeType) || ImageMimeType.XDJVU.getValue().equals(mimeType) ) {
-
-                File tmpFile = File.createTempFile("djvu", "djvu");
-                InputStream istream = krameriusRepositoryApi.getImgFull(pid);
-                Files.copy(istream, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                
-                BufferedImage djvu = KrameriusImageSupport.readImage(tmpFile.toURI().toURL(), ImageMimeType.DJVU, 0);
+                return Response.ok().entity(stream).type(ImageMimeType.JPEG.getValue()).header("Content-Length", jpeg.length()).build();
+            } else if (jpeg2000) {
+                BufferedImage image = decodeJpeg2000(krameriusRepositoryApi.getImgFull(pid));
                 StreamingOutput stream = output -> {
-                    ImageIO.write(djvu, "jpeg", output);
+                    ImageIO.write(image, "jpg", output);
                 };
-                return Response.ok().entity(stream).type(mimeType).build();
-                
+                return Response.ok().entity(stream).type(ImageMimeType.JPEG.getValue()).build();
+            } else if (djvu) {
+                BufferedImage image = decodeDjvu(krameriusRepositoryApi.getImgFull(pid));
+                StreamingOutput stream = output -> {
+                    ImageIO.write(image, "jpeg", output);
+                };
+                return Response.ok().entity(stream).type(ImageMimeType.JPEG.getValue()).build();
             } else {
-                
+                File file = krameriusRepositoryApi.getDatastreamFile(pid, dsId);
+                if (file != null) {
+                    //pdf and other binary content, served with byte ranges
+                    return ByteRangeResponses.fromFile(requestProvider.get(), file, mimeType, true);
+                }
                 InputStream is = krameriusRepositoryApi.getImgFull(pid);
                 StreamingOutput stream = output -> {
                     IOUtils.copy(is, output);
@@ -640,6 +666,26 @@ public class ItemsResource extends ClientApiResource {
         }
     }
     
+    private static BufferedImage decodeJpeg2000(InputStream istream) throws IOException {
+        try {
+            ImageIO.setUseCache(true);
+            return ImageIO.read(istream);
+        } finally {
+            IOUtils.closeQuietly(istream);
+        }
+    }
+
+    private static BufferedImage decodeDjvu(InputStream istream) throws IOException {
+        File tmpFile = File.createTempFile("djvu", "djvu");
+        try {
+            Files.copy(istream, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return KrameriusImageSupport.readImage(tmpFile.toURI().toURL(), ImageMimeType.DJVU, 0);
+        } finally {
+            IOUtils.closeQuietly(istream);
+            tmpFile.delete();
+        }
+    }
+
     @GET
     @Path("{pid}/foxml")
     @Produces(MediaType.APPLICATION_XML)
@@ -946,6 +992,10 @@ public class ItemsResource extends ClientApiResource {
                 return builder.build();
             } else {
                 String mimeType = krameriusRepositoryApi.getAudioMp3Mimetype(pid);
+                File file = krameriusRepositoryApi.getDatastreamFile(pid, dsId);
+                if (file != null) {
+                    return ByteRangeResponses.fromFile(requestProvider.get(), file, mimeType, !AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE);
+                }
                 InputStream is = krameriusRepositoryApi.getAudioMp3(pid);
                 return getAudioDataFromAkubra(mimeType, is, pid);
             }
@@ -957,48 +1007,19 @@ public class ItemsResource extends ClientApiResource {
         }
     }
 
+    /**
+     * Audio content that is not stored as a file of the repository (legacy storage, external reference);
+     * header Range is ignored, content is streamed whole
+     */
     private Response getAudioDataFromAkubra(String mimeType, InputStream is, String pid) throws IOException {
-        String headerRange = requestProvider.get().getHeader("Range");
-        boolean useRange = !AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE && //not disabled
-                headerRange != null && !headerRange.isEmpty() && //Range present
-                !"bytes=0-".equals(headerRange) && //Chrome uses this and expects 200 instead of 206
-                headerRange.matches("bytes=\\d*-\\d*"); //ignoring different units or <unit>=<range-start>-<range-end>, <range-start>-<range-end>, <range-start>-<range-end>
-        if (!useRange) { //request without header Range or header Range ignored
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int totalSize = IOUtils.copy(is, buffer);
-            IOUtils.closeQuietly(is);
-            byte[] dataComplete = buffer.toByteArray();
-            Response.ResponseBuilder resp = Response.ok().entity(dataComplete).type(mimeType)
-                    .header("Content-Length", totalSize);
-            if (!AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE) {
-                resp.header("Accept-Ranges", "bytes");
-            }
-            return resp.build();
-        } else { //using header Range
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int totalSize = IOUtils.copy(is, buffer);
-            IOUtils.closeQuietly(is);
-            //this should be cached (in Akubra?), next requests with Range for this resource will very probably follow
-            byte[] dataComplete = buffer.toByteArray();
-            Integer start = 0;
-            Integer end = dataComplete.length;
-            String[] rangeItems = headerRange.substring(("bytes=".length())).split("-");
-            if (!rangeItems[0].equals("")) {
-                start = Integer.valueOf(rangeItems[0]);
-            }
-            if (rangeItems.length == 2 && !rangeItems[1].equals("")) {
-                start = Integer.valueOf(rangeItems[1]);
-            }
-            byte[] dataInRange = Arrays.copyOfRange(dataComplete, start, end);
-
-            Response.ResponseBuilder resp = Response.status(206).entity(dataInRange).type(mimeType)
-                    .header("Accept-Ranges", "bytes")
-                    .header("Content-Length", totalSize);
-            if (!(start == 0 && end == totalSize)) {
-                resp.header("Content-Range", String.format("bytes %d-%d/%d", start, end - 1, totalSize));
+        StreamingOutput stream = output -> {
+            try {
+                IOUtils.copy(is, output);
+            } finally {
+                IOUtils.closeQuietly(is);
             }
-            return resp.build();
-        }
+        };
+        return Response.ok().entity(stream).type(mimeType).build();
     }
 
     @HEAD
@@ -1050,6 +1071,10 @@ public class ItemsResource extends ClientApiResource {
                 return builder.build();
             } else {
                 String mimeType = krameriusRepositoryApi.getAudioOggMimetype(pid);
+                File file = krameriusRepositoryApi.getDatastreamFile(pid, dsId);
+                if (file != null) {
+                    return ByteRangeResponses.fromFile(requestProvider.get(), file, mimeType, !AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE);
+                }
                 InputStream is = krameriusRepositoryApi.getAudioOgg(pid);
                 return getAudioDataFromAkubra(mimeType, is, pid);
             }
@@ -1110,6 +1135,10 @@ public class ItemsResource extends ClientApiResource {
                 return builder.build();
             } else {
                 String mimeType = krameriusRepositoryApi.getAudioWavMimetype(pid);
+                File file = krameriusRepositoryApi.getDatastreamFile(pid, dsId);
+                if (file != null) {
+                    return ByteRangeResponses.fromFile(requestProvider.get(), file, mimeType, !AUDIO_SERVED_BY_AKUBRA_IGNORE_RANGE);
+                }
                 InputStream is = krameriusRepositoryApi.getAudioWav(pid);
                 return getAudioDataFromAkubra(mimeType, is, pid);
             }
@@ -1183,9 +1212,13 @@ public class ItemsResource extends ClientApiResource {
                 }
             }
             
-            InputStream stream = krameriusRepositoryApi.getLowLevelApi().getLatestVersionOfDatastream(pid, "RELS-EXT");
-            org.w3c.dom.Document relsExt = XMLUtils.parseDocument(stream, true);
-            String u = IIIFUtils.iiifImageEndpoint(relsExt);
+            // shared with /iiif servlet the request is forwarded to
+            TileMetadata metadata = tileSessionCache.getMetadata(pid, () -> {
+                InputStream stream = krameriusRepositoryApi.getLowLevelApi().getLatestVersionOfDatastream(pid, "RELS-EXT");
+                org.w3c.dom.Document relsExt = XMLUtils.parseDocument(stream, true);
+                return new TileMetadata(true, RelsExtHelper.getRelsExtTilesUrl(relsExt), solrAccess.getPidPaths(pid));
+            });
+            String u = IIIFUtils.iiifImageEndpointFromTilesUrl(metadata.getTilesUrl());
             if(u != null) {
                 // size can contain ^ or ! 
                 if (size.contains("^") || size.contains("!")) {
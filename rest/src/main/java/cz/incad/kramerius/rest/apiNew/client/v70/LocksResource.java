@@ -42,12 +42,12 @@ import cz.incad.kramerius.rest.apiNew.client.v70.utils.RightRuntimeInformations;
 import cz.incad.kramerius.rest.apiNew.client.v70.utils.RightRuntimeInformations.RuntimeInformation;
 import cz.incad.kramerius.rest.apiNew.exceptions.InternalErrorException;
 import cz.incad.kramerius.security.User;
-import cz.incad.kramerius.security.impl.criteria.utils.CriteriaLicenseUtils;
 import cz.incad.kramerius.security.licenses.impl.lock.ExclusiveLockMapItemImpl;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLock;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMap;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMapItem;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMaps;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveMapException;
 
 @Path("/client/v7.0/locks")
 public class LocksResource extends ClientApiResource {
@@ -69,21 +69,19 @@ public class LocksResource extends ClientApiResource {
             ExclusiveLockMap lockMap = this.exclusiveLockMaps.findHash(hash);
             if (lockMap != null) {
                 String tokenId = user.getSessionAttributes().get("token_id");
-                synchronized (CriteriaLicenseUtils.INTERNAL_SYNC_LOCK) {
-                    ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
-                    if (item != null) {
-                        if (item.isValid(Instant.now())) {
-                            JSONObject jsonObject = item.toJSONObject();
-                            return Response.ok(jsonObject.toString()).type(MediaType.APPLICATION_JSON).build();
-                        } else {
-                            LOGGER.log(Level.SEVERE, String.format("Item  %s is not valid!, Deregistering ", item.toJSONObject().toString()));
-                            lockMap.deregisterItem(item);
-                            return Response.status(Status.NOT_FOUND).build();
-                        }
+                ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
+                if (item != null) {
+                    if (item.isValid(Instant.now())) {
+                        JSONObject jsonObject = item.toJSONObject();
+                        return Response.ok(jsonObject.toString()).type(MediaType.APPLICATION_JSON).build();
                     } else {
-                        LOGGER.log(Level.SEVERE,String.format("Item by token id is not found %s", tokenId));
+                        LOGGER.log(Level.SEVERE, String.format("Item  %s is not valid!, Deregistering ", item.toJSONObject().toString()));
+                        lockMap.deregisterItem(item);
                         return Response.status(Status.NOT_FOUND).build();
                     }
+                } else {
+                    LOGGER.log(Level.SEVERE,String.format("Item by token id is not found %s", tokenId));
+                    return Response.status(Status.NOT_FOUND).build();
                 }
             } else {
                 LOGGER.log(Level.SEVERE,"Exclusive map not found ");
@@ -109,22 +107,29 @@ public class LocksResource extends ClientApiResource {
             if (lockMap != null) {
                 String tokenId = user.getSessionAttributes().get("token_id");
                 if (tokenId != null) {
-                    synchronized (CriteriaLicenseUtils.INTERNAL_SYNC_LOCK) {
-                        ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
-                        if (item != null && item.isValid(Instant.now())) {
-                            item.refresh(Instant.now());
-                            JSONObject jsonObject = item.toJSONObject();
-                            return Response.ok(jsonObject.toString()).type(MediaType.APPLICATION_JSON).build();
+                    ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
+                    if (item != null && item.isValid(Instant.now())) {
+                        // item could be a copy (locks shared by the cluster), refresh through the map
+                        try {
+                            lockMap.refresh(tokenId);
+                            item = lockMap.findByTokenId(tokenId);
+                        } catch (ExclusiveMapException e) {
+                            // expired in the meantime, try to register again
+                            item = null;
+                        }
+                    }
+                    if (item != null && item.isValid(Instant.now())) {
+                        JSONObject jsonObject = item.toJSONObject();
+                        return Response.ok(jsonObject.toString()).type(MediaType.APPLICATION_JSON).build();
+                    } else {
+                        ExclusiveLock lock = lockMap.getAssociatedExcelusiveLock();
+                        Instant now = Instant.now();
+                        ExclusiveLockMapItem nitem = new ExclusiveLockMapItemImpl(tokenId, lock.getRefreshInterval(), now, now, now.plusSeconds(lock.getMaxInterval()), user.getLoginname());
+                        // check and register at once, two nodes must not lend out the last copy at the same time
+                        if (lockMap.tryRegisterItem(nitem)) {
+                            return Response.ok(nitem.toJSONObject().toString()).type(MediaType.APPLICATION_JSON).build();
                         } else {
-                            if (lockMap.checkAvailabitlity()) {
-                                ExclusiveLock lock = lockMap.getAssociatedExcelusiveLock();
-                                Instant now = Instant.now();
-                                ExclusiveLockMapItem nitem = new ExclusiveLockMapItemImpl(tokenId, lock.getRefreshInterval(), now, now, now.plusSeconds(lock.getMaxInterval()), user.getLoginname());
-                                lockMap.registerItem(nitem);
-                                return Response.ok(nitem.toJSONObject().toString()).type(MediaType.APPLICATION_JSON).build();
-                            } else {
-                                return Response.status(409).type(MediaType.APPLICATION_JSON).build();
-                            }
+                            return Response.status(409).type(MediaType.APPLICATION_JSON).build();
                         }
                     }
                 } else {
@@ -152,14 +157,12 @@ public class LocksResource extends ClientApiResource {
             User user = this.userProvider.get();
             ExclusiveLockMap lockMap = this.exclusiveLockMaps.findHash(hash);
             String tokenId = user.getSessionAttributes().get("token_id");
-            synchronized (CriteriaLicenseUtils.INTERNAL_SYNC_LOCK) {
-                ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
-                if (item != null) {
-                    lockMap.deregisterItem(item);
-                    return Response.ok().type(MediaType.APPLICATION_JSON).build();
-                } else {
-                    return Response.status(Status.NOT_FOUND).build();
-                }
+            ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
+            if (item != null) {
+                lockMap.deregisterItem(item);
+                return Response.ok().type(MediaType.APPLICATION_JSON).build();
+            } else {
+                return Response.status(Status.NOT_FOUND).build();
             }
         } catch (WebApplicationException e) {
             throw e;
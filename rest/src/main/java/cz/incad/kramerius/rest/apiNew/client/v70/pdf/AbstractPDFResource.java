@@ -13,9 +13,13 @@ import cz.incad.kramerius.pdf.FirstPagePDFService;
 import cz.incad.kramerius.pdf.GeneratePDFService;
 import cz.incad.kramerius.pdf.OutOfRangeException;
 import cz.incad.kramerius.pdf.SimplePDFService;
+import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupport;
+import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupportNotReadyException;
+import cz.incad.kramerius.pdf.utils.PDFJobScheduler;
 import cz.incad.kramerius.pdf.utils.pdf.FontMap;
 import cz.incad.kramerius.rest.api.k5.client.SolrMemoization;
 import cz.incad.kramerius.rest.api.k5.client.pdf.PDFResourceBadRequestException;
+import cz.incad.kramerius.rest.api.k5.client.pdf.PDFResourceNotReadyException;
 import cz.incad.kramerius.security.RightsResolver;
 import cz.incad.kramerius.security.SecuredActions;
 import cz.incad.kramerius.security.SecurityException;
@@ -24,6 +28,7 @@ import cz.incad.kramerius.service.TextsService;
 import cz.incad.kramerius.statistics.ReportedAction;
 import cz.incad.kramerius.statistics.accesslogs.AggregatedAccessLogs;
 import cz.incad.kramerius.utils.FedoraUtils;
+import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
 import org.apache.commons.configuration.Configuration;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
@@ -270,6 +275,31 @@ public class AbstractPDFResource {
         return numberOfPages;
     }
 
+    // number of pages used only for ordering in the queue; invalid number is rejected later by extractNumberOfPages
+    int requestedPages(String numberOfPagesStr) {
+        try {
+            return extractNumberOfPages(numberOfPagesStr);
+        } catch (OutOfRangeException | NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Waits in the PDF queue for a free slot
+     * @throws PDFResourceNotReadyException queue is full or the request has been waiting too long
+     */
+    PDFJobScheduler.Ticket acquireSlot(int pages) {
+        try {
+            return PDFExlusiveGenerateSupport.PDF_SCHEDULER.acquire(clientId(), pages);
+        } catch (PDFExlusiveGenerateSupportNotReadyException e) {
+            throw new PDFResourceNotReadyException("not ready: " + e.getMessage());
+        }
+    }
+
+    String clientId() {
+        return IPAddressUtils.getRemoteAddress(this.requestProvider.get());
+    }
+
     FirstPageType extractFirstPageType(String firstPageTypeStr) {
         return firstPageTypeStr == null || firstPageTypeStr.trim().isEmpty()
                 ? FirstPageType.TEXT
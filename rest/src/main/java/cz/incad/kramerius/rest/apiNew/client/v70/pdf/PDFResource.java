@@ -6,12 +6,12 @@ import cz.incad.kramerius.ProcessSubtreeException;
 import cz.incad.kramerius.pdf.OutOfRangeException;
 import cz.incad.kramerius.pdf.impl.ConfigurationUtils;
 import cz.incad.kramerius.pdf.utils.PDFExlusiveGenerateSupport;
+import cz.incad.kramerius.pdf.utils.PDFJobScheduler;
 import cz.incad.kramerius.rest.api.exceptions.ActionNotAllowed;
 import cz.incad.kramerius.rest.api.exceptions.BadRequestException;
 import cz.incad.kramerius.rest.api.exceptions.GenericApplicationException;
 //TODO: move exceptions from cz.incad.kramerius.rest.api.k5
 import cz.incad.kramerius.rest.api.k5.client.pdf.PDFResourceBadRequestException;
-import cz.incad.kramerius.rest.api.k5.client.pdf.PDFResourceNotReadyException;
 import cz.incad.kramerius.security.SecurityException;
 import cz.incad.kramerius.statistics.ReportedAction;
 import cz.incad.kramerius.utils.FedoraUtils;
@@ -103,19 +103,9 @@ public class PDFResource extends AbstractPDFResource {
             } else {
                 jsonObject.put("pdfMaxRange", maxPage);
             }
-            boolean acquired = false;
-            try {
-                acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-                if (acquired) {
-                    jsonObject.put("resourceBusy", false);
-                } else {
-                    jsonObject.put("resourceBusy", true);
-                }
-            } finally {
-                if (acquired) {
-                    PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
-                }
-            }
+            PDFJobScheduler scheduler = PDFExlusiveGenerateSupport.PDF_SCHEDULER;
+            jsonObject.put("resourceBusy", scheduler.isBusy());
+            jsonObject.put("queueLength", scheduler.getWaiting());
             return Response.ok().entity(jsonObject.toString()).build();
         } catch (JSONException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
@@ -147,61 +137,52 @@ public class PDFResource extends AbstractPDFResource {
         if (PDF_ENDPOINTS_DISABLED) {
             return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
         }
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
-                if (pid != null) {
-                    File fileToDelete = null;
-                    try {
-                        pid = this.fedoraAccess.findFirstViewablePid(pid);
-
-                        BufferedImage bufImage = KrameriusImageSupport.readImage(pid, FedoraUtils.IMG_FULL_STREAM, this.fedoraAccess, 0);
-
-                        double xPerctDouble = Double.parseDouble(xpos);
-                        double yPerctDouble = Double.parseDouble(ypos);
-
-                        double widthPerctDouble = Double.parseDouble(width);
-                        double heightPerctDouble = Double.parseDouble(height);
-
-                        BufferedImage subImage = KrameriusImageSupport.partOfImage(bufImage,
-                                xPerctDouble, yPerctDouble,
-                                widthPerctDouble, heightPerctDouble);
-
-                        fileToDelete = File.createTempFile("subimage", ".png");
-                        FileOutputStream fos = new FileOutputStream(fileToDelete);
-                        KrameriusImageSupport.writeImageToStream(subImage, ImageMimeType.PNG.getDefaultFileExtension(), fos);
-                        fos.close();
-
-                        reportAccess(pid);
-
-                        StreamingOutput stream = streamingOutput(fileToDelete, format);
-                        return Response
-                                .ok()
-                                .entity(stream).type("application/pdf").build();
-                    } catch (NumberFormatException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (XPathExpressionException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (FileNotFoundException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    } catch (IOException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        throw new GenericApplicationException(e.getMessage());
-                    }
-                } else {
-                    LOGGER.log(Level.SEVERE, "No pid defined");
-                    throw new BadRequestException("No pid defined");
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(1)) {
+            if (pid != null) {
+                File fileToDelete = null;
+                try {
+                    pid = this.fedoraAccess.findFirstViewablePid(pid);
+
+                    BufferedImage bufImage = KrameriusImageSupport.readImage(pid, FedoraUtils.IMG_FULL_STREAM, this.fedoraAccess, 0);
+
+                    double xPerctDouble = Double.parseDouble(xpos);
+                    double yPerctDouble = Double.parseDouble(ypos);
+
+                    double widthPerctDouble = Double.parseDouble(width);
+                    double heightPerctDouble = Double.parseDouble(height);
+
+                    BufferedImage subImage = KrameriusImageSupport.partOfImage(bufImage,
+                            xPerctDouble, yPerctDouble,
+                            widthPerctDouble, heightPerctDouble);
+
+                    fileToDelete = File.createTempFile("subimage", ".png");
+                    FileOutputStream fos = new FileOutputStream(fileToDelete);
+                    KrameriusImageSupport.writeImageToStream(subImage, ImageMimeType.PNG.getDefaultFileExtension(), fos);
+                    fos.close();
+
+                    reportAccess(pid);
+
+                    StreamingOutput stream = streamingOutput(fileToDelete, format);
+                    return Response
+                            .ok()
+                            .entity(stream).type("application/pdf").build();
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                    throw new GenericApplicationException(e.getMessage());
+                } catch (XPathExpressionException e) {
+                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                    throw new GenericApplicationException(e.getMessage());
+                } catch (FileNotFoundException e) {
+                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                    throw new GenericApplicationException(e.getMessage());
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                    throw new GenericApplicationException(e.getMessage());
                 }
             } else {
-                throw new PDFResourceNotReadyException("not ready");
+                LOGGER.log(Level.SEVERE, "No pid defined");
+                throw new BadRequestException("No pid defined");
             }
-        } finally {
-            if (acquired)
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
         }
     }
 
@@ -224,66 +205,57 @@ public class PDFResource extends AbstractPDFResource {
         if (PDF_ENDPOINTS_DISABLED) {
             return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
         }
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
-                try {
-                    FirstPageType fistPageTypeEn = extractFirstPageType(firstPageType);
-                    if (StringUtils.isAnyString(pidsParam)) {
-                        String[] pids = pidsParam.split(",");
-                        // max number test
-                        int numberOfPages = extractNumberOfPages("" + pids.length);
-                        //ConfigurationUtils.checkNumber(pids);
-                        //LOGGER.info("number of pages: " + numberOfPages); //TODO: remove for production
-
-                        Rectangle formatRect = formatRect(format);
-                        final File generatedPDF = super.selection(pids, formatRect, fistPageTypeEn);
-                        final InputStream fis = new FileInputStream(generatedPDF);
-                        StreamingOutput stream = new StreamingOutput() {
-                            public void write(OutputStream output)
-                                    throws IOException, WebApplicationException {
-                                try {
-                                    IOUtils.copyStreams(fis, output);
-                                } catch (Exception e) {
-                                    throw new WebApplicationException(e);
-                                } finally {
-                                    if (generatedPDF != null)
-                                        generatedPDF.delete();
-                                }
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(StringUtils.isAnyString(pidsParam) ? pidsParam.split(",").length : 1)) {
+            try {
+                FirstPageType fistPageTypeEn = extractFirstPageType(firstPageType);
+                if (StringUtils.isAnyString(pidsParam)) {
+                    String[] pids = pidsParam.split(",");
+                    // max number test
+                    int numberOfPages = extractNumberOfPages("" + pids.length);
+                    //ConfigurationUtils.checkNumber(pids);
+                    //LOGGER.info("number of pages: " + numberOfPages); //TODO: remove for production
+
+                    Rectangle formatRect = formatRect(format);
+                    final File generatedPDF = super.selection(pids, formatRect, fistPageTypeEn);
+                    final InputStream fis = new FileInputStream(generatedPDF);
+                    StreamingOutput stream = new StreamingOutput() {
+                        public void write(OutputStream output)
+                                throws IOException, WebApplicationException {
+                            try {
+                                IOUtils.copyStreams(fis, output);
+                            } catch (Exception e) {
+                                throw new WebApplicationException(e);
+                            } finally {
+                                if (generatedPDF != null)
+                                    generatedPDF.delete();
                             }
-                        };
-                        SimpleDateFormat sdate = new SimpleDateFormat("yyyyMMdd_mmhhss");
-                        return Response
-                                .ok()
-                                .header("Content-disposition",
-                                        "attachment; filename=" + sdate.format(new Date()) + ".pdf")
-                                .entity(stream).type("application/pdf").build();
-                    } else {
-                        return Response.status(Response.Status.BAD_REQUEST).build();
-                    }
-                } catch (MalformedURLException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (ProcessSubtreeException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (DocumentException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (SecurityException e) {
-                    LOGGER.log(Level.INFO, e.getMessage());
-                    throw new ActionNotAllowed(e.getMessage());
+                        }
+                    };
+                    SimpleDateFormat sdate = new SimpleDateFormat("yyyyMMdd_mmhhss");
+                    return Response
+                            .ok()
+                            .header("Content-disposition",
+                                    "attachment; filename=" + sdate.format(new Date()) + ".pdf")
+                            .entity(stream).type("application/pdf").build();
+                } else {
+                    return Response.status(Response.Status.BAD_REQUEST).build();
                 }
-            } else {
-                throw new PDFResourceNotReadyException("not ready");
+            } catch (MalformedURLException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (ProcessSubtreeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (DocumentException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (SecurityException e) {
+                LOGGER.log(Level.INFO, e.getMessage());
+                throw new ActionNotAllowed(e.getMessage());
             }
-        } finally {
-            if (acquired)
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
         }
     }
 
@@ -306,69 +278,59 @@ public class PDFResource extends AbstractPDFResource {
         if (PDF_ENDPOINTS_DISABLED) {
             return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
         }
-        boolean acquired = false;
-        try {
-            acquired = PDFExlusiveGenerateSupport.PDF_SEMAPHORE.tryAcquire();
-            if (acquired) {
-                try {
-                    FirstPageType firstPageTypeEn = extractFirstPageType(firstPageType);
-
-                    // max number test
-                    int numberOfPagesInt = extractNumberOfPages(numberOfPages);
-                    //int n = ConfigurationUtils.checkNumber(number);
-                    LOGGER.info("number of pages: " + numberOfPagesInt); //TODO: remove for production
-                    Rectangle formatRect = formatRect(format);
-
-                    final File generatedPdf = super.parent(pid, numberOfPagesInt, formatRect, firstPageTypeEn);
-
-                    final InputStream fis = new FileInputStream(generatedPdf);
-                    StreamingOutput stream = new StreamingOutput() {
-                        public void write(OutputStream output) throws WebApplicationException {
-                            try {
-                                IOUtils.copyStreams(fis, output);
-                            } catch (Exception e) {
-                                throw new WebApplicationException(e);
-                            } finally {
-                                if (generatedPdf != null) {
-                                    generatedPdf.delete();
-                                }
+        try (PDFJobScheduler.Ticket ticket = acquireSlot(requestedPages(numberOfPages))) {
+            try {
+                FirstPageType firstPageTypeEn = extractFirstPageType(firstPageType);
+
+                // max number test
+                int numberOfPagesInt = extractNumberOfPages(numberOfPages);
+                //int n = ConfigurationUtils.checkNumber(number);
+                LOGGER.info("number of pages: " + numberOfPagesInt); //TODO: remove for production
+                Rectangle formatRect = formatRect(format);
+
+                final File generatedPdf = super.parent(pid, numberOfPagesInt, formatRect, firstPageTypeEn);
+
+                final InputStream fis = new FileInputStream(generatedPdf);
+                StreamingOutput stream = new StreamingOutput() {
+                    public void write(OutputStream output) throws WebApplicationException {
+                        try {
+                            IOUtils.copyStreams(fis, output);
+                        } catch (Exception e) {
+                            throw new WebApplicationException(e);
+                        } finally {
+                            if (generatedPdf != null) {
+                                generatedPdf.delete();
                             }
                         }
-                    };
-
-                    SimpleDateFormat sdate = new SimpleDateFormat("yyyyMMdd_mmhhss");
-                    return Response
-                            .ok()
-                            .header("Content-disposition", "attachment; filename=" + sdate.format(new Date()) + ".pdf")
-                            .entity(stream).type("application/pdf").build();
-                } catch (NumberFormatException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (FileNotFoundException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (DocumentException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (ProcessSubtreeException e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                    throw new GenericApplicationException(e.getMessage());
-                } catch (OutOfRangeException e1) {
-                    LOGGER.log(Level.WARNING, "too much pages for pdf generating - consider changing config attribute (generatePdfMaxRange)");
-                    throw new PDFResourceBadRequestException(e1.getMessage());
-                } catch (SecurityException e1) {
-                    LOGGER.log(Level.INFO, e1.getMessage());
-                    throw new ActionNotAllowed(e1.getMessage());
-                }
-            } else {
-                throw new PDFResourceNotReadyException("not ready");
-            }
-        } finally {
-            if (acquired) {
-                PDFExlusiveGenerateSupport.PDF_SEMAPHORE.release();
+                    }
+                };
+
+                SimpleDateFormat sdate = new SimpleDateFormat("yyyyMMdd_mmhhss");
+                return Response
+                        .ok()
+                        .header("Content-disposition", "attachment; filename=" + sdate.format(new Date()) + ".pdf")
+                        .entity(stream).type("application/pdf").build();
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (FileNotFoundException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (DocumentException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (ProcessSubtreeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                throw new GenericApplicationException(e.getMessage());
+            } catch (OutOfRangeException e1) {
+                LOGGER.log(Level.WARNING, "too much pages for pdf generating - consider changing config attribute (generatePdfMaxRange)");
+                throw new PDFResourceBadRequestException(e1.getMessage());
+            } catch (SecurityException e1) {
+                LOGGER.log(Level.INFO, e1.getMessage());
+                throw new ActionNotAllowed(e1.getMessage());
             }
         }
     }
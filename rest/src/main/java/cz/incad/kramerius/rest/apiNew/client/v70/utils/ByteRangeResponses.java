@@ -0,0 +1,248 @@
+package cz.incad.kramerius.rest.apiNew.client.v70.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Serves file content (managed datastreams stored in the repository file store) with support of
+ * byte ranges (RFC 7233) and validators <code>ETag</code>, <code>Last-Modified</code>.
+ * <p>
+ * Content is never buffered on heap, requested ranges are copied from the file by {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ */
+public class ByteRangeResponses {
+
+    /** More ranges in one request are ignored and whole content is returned */
+    private static final int MAX_RANGES = 16;
+
+    private ByteRangeResponses() {}
+
+    static class Range {
+        final long start;
+        final long end; //inclusive
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long totalLength) {
+            return String.format("bytes %d-%d/%d", start, end, totalLength);
+        }
+    }
+
+    /**
+     * @param request current request (headers Range, If-Range, If-None-Match, If-Modified-Since)
+     * @param file content
+     * @param mimeType mimetype of the content
+     * @param rangesEnabled if false, header Range is ignored and whole content is always returned
+     */
+    public static Response fromFile(HttpServletRequest request, File file, String mimeType, boolean rangesEnabled) {
+        final long length = file.length();
+        //http dates have second precision
+        final long lastModified = file.lastModified() / 1000 * 1000;
+        EntityTag etag = new EntityTag(Long.toHexString(lastModified) + "-" + Long.toHexString(length));
+
+        if (notModified(request, etag, lastModified)) {
+            return Response.notModified(etag).lastModified(new Date(lastModified)).build();
+        }
+
+        List<Range> ranges = null;
+        String headerRange = request.getHeader("Range");
+        if (rangesEnabled && headerRange != null && !headerRange.isEmpty()
+                && !"bytes=0-".equals(headerRange) //Chrome uses this and expects 200 instead of 206
+                && ifRangeMatches(request, etag, lastModified)) {
+            ranges = parseRanges(headerRange, length);
+        }
+
+        Response.ResponseBuilder resp;
+        if (ranges == null) {
+            resp = Response.ok().entity(output(file, 0, length)).type(mimeType)
+                    .header("Content-Length", length);
+        } else if (ranges.isEmpty()) {
+            return Response.status(416)
+                    .header("Content-Range", "bytes */" + length)
+                    .header("Accept-Ranges", "bytes")
+                    .tag(etag)
+                    .build();
+        } else if (ranges.size() == 1) {
+            Range range = ranges.get(0);
+            resp = Response.status(206).entity(output(file, range.start, range.length())).type(mimeType)
+                    .header("Content-Range", range.contentRange(length))
+                    .header("Content-Length", range.length());
+        } else {
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+            List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = 0;
+            for (Range range : ranges) {
+                byte[] partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+                        boundary, mimeType, range.contentRange(length)).getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + range.length();
+            }
+            byte[] end = String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+            contentLength += end.length;
+            final List<Range> parts = ranges;
+            StreamingOutput multipart = output -> {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    for (int i = 0; i < parts.size(); i++) {
+                        output.write(partHeaders.get(i));
+                        transfer(channel, parts.get(i).start, parts.get(i).length(), output);
+                    }
+                }
+                output.write(end);
+            };
+            resp = Response.status(206).entity(multipart).type("multipart/byteranges; boundary=" + boundary)
+                    .header("Content-Length", contentLength);
+        }
+        if (rangesEnabled) {
+            resp.header("Accept-Ranges", "bytes");
+        }
+        return resp.tag(etag).lastModified(new Date(lastModified)).build();
+    }
+
+    private static StreamingOutput output(File file, long start, long count) {
+        return output -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                transfer(channel, start, count, output);
+            }
+        };
+    }
+
+    private static void transfer(FileChannel channel, long position, long count, OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        while (count > 0) {
+            long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("unexpected end of file at position " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static boolean notModified(HttpServletRequest request, EntityTag etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    private static boolean ifRangeMatches(HttpServletRequest request, EntityTag etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return ifRange.trim().equals(quoted(etag));
+        }
+        return dateHeader(request, "If-Range") == lastModified;
+    }
+
+    private static boolean matches(String header, EntityTag etag) {
+        for (String tag : header.split(",")) {
+            String value = tag.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(quoted(etag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String quoted(EntityTag etag) {
+        return '"' + etag.getValue() + '"';
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return satisfiable ranges sorted and coalesced; empty list if no range is satisfiable; null if header is not valid
+     * (or contains too many ranges) and should be ignored
+     */
+    static List<Range> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            String item = spec.trim();
+            int dash = item.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = item.substring(0, dash).trim();
+            String last = item.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    //suffix range: last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new Range(Math.max(0, length - suffix), length - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (!last.isEmpty() && Long.parseLong(last) < start) {
+                        return null;
+                    }
+                    if (start < length) {
+                        ranges.add(new Range(start, end));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (ranges.size() <= 1) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r.start));
+        List<Range> coalesced = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            Range next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new Range(current.start, Math.max(current.end, next.end));
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+}
@@ -39,12 +39,7 @@ public class IIIFUtils {
     
     public static String iiifImageEndpoint(String pid, FedoraAccess fedoraAccess) throws IOException {
         try {
-            String url = RelsExtHelper.getRelsExtTilesUrl(pid, fedoraAccess);
-            if (url == null)
-                return null;
-            if (url.trim().equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL))
-                return null;
-            return url.replaceAll("[z|Z]oomify|deepZoom","iiif");
+            return iiifImageEndpointFromTilesUrl(RelsExtHelper.getRelsExtTilesUrl(pid, fedoraAccess));
         } catch (XPathExpressionException  e) {
             throw new IOException(e.getMessage());
         }
@@ -52,17 +47,23 @@ public class IIIFUtils {
 
     public static String iiifImageEndpoint( Document relsExt) throws IOException {
         try {
-            String url = RelsExtHelper.getRelsExtTilesUrl(relsExt);
-            if (url == null)
-                return null;
-            if (url.trim().equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL))
-                return null;
-            return url.replaceAll("[z|Z]oomify|deepZoom","iiif");
+            return iiifImageEndpointFromTilesUrl(RelsExtHelper.getRelsExtTilesUrl(relsExt));
         } catch (XPathExpressionException  e) {
             throw new IOException(e.getMessage());
         }
     }
 
+    /**
+     * IIIF endpoint derived from tiles url (<code>kramerius:tiles-url</code> in RELS-EXT)
+     */
+    public static String iiifImageEndpointFromTilesUrl(String url) {
+        if (url == null)
+            return null;
+        if (url.trim().equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL))
+            return null;
+        return url.replaceAll("[z|Z]oomify|deepZoom","iiif");
+    }
+
     public static void copyFromImageServer(Client c, String urlString, ByteArrayOutputStream bos, ResponseBuilder builder) throws IOException {
         IIIFUtils.copyFromImageServer(c,urlString, bos, builder, null);
     }
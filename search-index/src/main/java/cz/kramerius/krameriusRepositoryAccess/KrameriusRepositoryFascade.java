@@ -25,6 +25,19 @@ public class KrameriusRepositoryFascade {
         this.processingIndex = processingIndex;
     }
 
+    /**
+     * Hint that given objects (typically children of the object being indexed) will be read soon.
+     * Does nothing here, see {@link PrefetchingKrameriusRepositoryFascade}
+     */
+    public void prefetch(List<String> pids) {
+    }
+
+    /**
+     * Releases resources of the fascade (threads loading objects in advance); nothing here, see {@link PrefetchingKrameriusRepositoryFascade}
+     */
+    public void shutdown() {
+    }
+
     //OBJECT
 
     /*
@@ -0,0 +1,278 @@
+package cz.kramerius.krameriusRepositoryAccess;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import cz.kramerius.adapters.ProcessingIndex;
+import cz.kramerius.adapters.RepositoryAccess;
+import cz.kramerius.shared.NamespaceRemovingVisitor;
+import org.apache.commons.configuration.Configuration;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads FOXML of every object only once and serves inline datastreams (RELS-EXT, DC, MODS), IMG_FULL mimetype
+ * and object availability from that single parse. OCR text (managed datastream) is loaded together with FOXML, if present.
+ * <p>
+ * Objects passed to {@link #prefetch(List)} are loaded asynchronously, at most <code>prefetchDepth</code> objects ahead
+ * of the object being currently read, so that repository I/O for next objects overlaps with building solr document of the current one.
+ * <p>
+ * Returned documents are copies, callers can modify them.
+ */
+public class PrefetchingKrameriusRepositoryFascade extends KrameriusRepositoryFascade {
+
+    private static final ObjectSnapshot MISSING = new ObjectSnapshot(null, null);
+
+    private final int prefetchDepth;
+    private final ExecutorService loaders;
+    private final Cache<String, CompletableFuture<ObjectSnapshot>> snapshots;
+    //position of pid in list of siblings given to prefetch()
+    private final Map<String, PrefetchWindow> windows = new ConcurrentHashMap<>();
+
+    public PrefetchingKrameriusRepositoryFascade(RepositoryAccess repository, ProcessingIndex processingIndex, int threads, int prefetchDepth, int cacheSize) {
+        super(repository, processingIndex);
+        this.prefetchDepth = prefetchDepth;
+        this.loaders = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder().setNameFormat("foxml-prefetch-%d").setDaemon(true).build());
+        this.snapshots = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterAccess(5, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Configured by <code>indexer.prefetch.enabled</code>, <code>indexer.prefetch.threads</code>, <code>indexer.prefetch.depth</code>
+     * and <code>indexer.prefetch.cacheSize</code>. Every cached object holds parsed FOXML and OCR text, so the cache is by default
+     * only as large as the prefetch windows need: one window for every level of a typical tree (e.g. periodical, volume,
+     * issue, page) and every indexing thread (<code>indexer.parallelism</code>)
+     * @return prefetching fascade, or plain {@link KrameriusRepositoryFascade} if prefetching is disabled
+     */
+    public static KrameriusRepositoryFascade create(RepositoryAccess repository, ProcessingIndex processingIndex) {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        if (!conf.getBoolean("indexer.prefetch.enabled", true)) {
+            return new KrameriusRepositoryFascade(repository, processingIndex);
+        }
+        int prefetchDepth = conf.getInt("indexer.prefetch.depth", 16);
+        int windowsSize = 4 * Math.max(1, prefetchDepth) * Math.max(1, conf.getInt("indexer.parallelism", 1));
+        return new PrefetchingKrameriusRepositoryFascade(repository, processingIndex,
+                conf.getInt("indexer.prefetch.threads", 4),
+                prefetchDepth,
+                conf.getInt("indexer.prefetch.cacheSize", windowsSize));
+    }
+
+    private static class ObjectSnapshot {
+        //namespace aware, never modified
+        final Document foxml;
+        final String ocrText;
+
+        ObjectSnapshot(Document foxml, String ocrText) {
+            this.foxml = foxml;
+            this.ocrText = ocrText;
+        }
+    }
+
+    private static class PrefetchWindow {
+        final List<String> pids;
+        final int position;
+
+        PrefetchWindow(List<String> pids, int position) {
+            this.pids = pids;
+            this.position = position;
+        }
+    }
+
+    @Override
+    public void prefetch(List<String> pids) {
+        for (int i = 0; i < pids.size(); i++) {
+            windows.put(pids.get(i), new PrefetchWindow(pids, i));
+        }
+        for (int i = 0; i < Math.min(prefetchDepth, pids.size()); i++) {
+            load(pids.get(i), true);
+        }
+    }
+
+    private CompletableFuture<ObjectSnapshot> load(String pid, boolean async) {
+        CompletableFuture<ObjectSnapshot> future = snapshots.getIfPresent(pid);
+        if (future == null) {
+            CompletableFuture<ObjectSnapshot> created = new CompletableFuture<>();
+            future = snapshots.asMap().putIfAbsent(pid, created);
+            if (future == null) {
+                future = created;
+                if (async) {
+                    loaders.execute(() -> complete(pid, created));
+                } else {
+                    complete(pid, created);
+                }
+            }
+        }
+        return future;
+    }
+
+    private void complete(String pid, CompletableFuture<ObjectSnapshot> future) {
+        try {
+            future.complete(readSnapshot(pid));
+        } catch (Throwable e) {
+            //not cached, next read will try again (and report error)
+            snapshots.asMap().remove(pid, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private ObjectSnapshot readSnapshot(String pid) throws IOException {
+        if (!super.isObjectAvailable(pid)) {
+            return MISSING;
+        }
+        Document foxml = super.getObjectFoxml(pid, true);
+        if (foxml == null) {
+            return MISSING;
+        }
+        String ocrText = findDatastream(foxml, KnownDatastreams.OCR_TEXT) != null ? super.getOcrText(pid) : null;
+        return new ObjectSnapshot(foxml, ocrText);
+    }
+
+    private ObjectSnapshot snapshot(String pid) throws IOException {
+        PrefetchWindow window = windows.remove(pid);
+        if (window != null) {
+            int next = window.position + prefetchDepth;
+            if (next < window.pids.size()) {
+                load(window.pids.get(next), true);
+            }
+        }
+        try {
+            return load(pid, false).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return last version of datastream
+     */
+    private static Element findDatastream(Document foxml, String dsId) {
+        for (Element datastream : foxml.getRootElement().elements()) {
+            if ("datastream".equals(datastream.getName()) && dsId.equals(datastream.attributeValue("ID"))) {
+                List<Element> versions = datastream.elements();
+                for (int i = versions.size() - 1; i >= 0; i--) {
+                    if ("datastreamVersion".equals(versions.get(i).getName())) {
+                        return versions.get(i);
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return content of inline (X) datastream; null if datastream is missing or not inline
+     */
+    private static Document extractInlineDatastream(Document foxml, String dsId, boolean nsAware) {
+        Element version = findDatastream(foxml, dsId);
+        Element xmlContent = version == null ? null : version.element("xmlContent");
+        if (xmlContent == null || xmlContent.elements().isEmpty()) {
+            return null;
+        }
+        Document doc = DocumentHelper.createDocument(xmlContent.elements().get(0).createCopy());
+        if (!nsAware) {
+            doc.accept(new NamespaceRemovingVisitor(true, true));
+        }
+        return doc;
+    }
+
+    private static boolean isInline(Document foxml, String dsId) {
+        Element version = findDatastream(foxml, dsId);
+        return version != null && version.element("xmlContent") != null;
+    }
+
+    private Document getInlineDatastream(String pid, String dsId, boolean nsAware) throws IOException {
+        ObjectSnapshot snapshot = snapshot(pid);
+        return snapshot == MISSING ? null : extractInlineDatastream(snapshot.foxml, dsId, nsAware);
+    }
+
+    @Override
+    public boolean isObjectAvailable(String pid) throws IOException {
+        return snapshot(pid) != MISSING;
+    }
+
+    @Override
+    public Document getObjectFoxml(String pid, boolean nsAware) throws IOException {
+        ObjectSnapshot snapshot = snapshot(pid);
+        if (snapshot == MISSING) {
+            return super.getObjectFoxml(pid, nsAware);
+        }
+        Document copy = (Document) snapshot.foxml.clone();
+        if (!nsAware) {
+            copy.accept(new NamespaceRemovingVisitor(true, true));
+        }
+        return copy;
+    }
+
+    @Override
+    public Document getRelsExt(String pid, boolean nsAware) throws IOException {
+        Document doc = getInlineDatastream(pid, KnownDatastreams.RELS_EXT, nsAware);
+        return doc != null || !hasNonInline(pid, KnownDatastreams.RELS_EXT) ? doc : super.getRelsExt(pid, nsAware);
+    }
+
+    @Override
+    public Document getDublinCore(String pid, boolean nsAware) throws IOException {
+        Document doc = getInlineDatastream(pid, KnownDatastreams.METADATA_DC, nsAware);
+        return doc != null || !hasNonInline(pid, KnownDatastreams.METADATA_DC) ? doc : super.getDublinCore(pid, nsAware);
+    }
+
+    @Override
+    public Document getMods(String pid, boolean nsAware) throws IOException {
+        Document doc = getInlineDatastream(pid, KnownDatastreams.METADATA_MODS, nsAware);
+        return doc != null || !hasNonInline(pid, KnownDatastreams.METADATA_MODS) ? doc : super.getMods(pid, nsAware);
+    }
+
+    /**
+     * Datastream exists, but its content is not part of FOXML (managed or external), it has to be read from repository
+     */
+    private boolean hasNonInline(String pid, String dsId) throws IOException {
+        ObjectSnapshot snapshot = snapshot(pid);
+        return snapshot != MISSING && findDatastream(snapshot.foxml, dsId) != null && !isInline(snapshot.foxml, dsId);
+    }
+
+    @Override
+    public String getOcrText(String pid) throws IOException {
+        ObjectSnapshot snapshot = snapshot(pid);
+        if (snapshot == MISSING) {
+            return super.getOcrText(pid);
+        }
+        return snapshot.ocrText;
+    }
+
+    @Override
+    public String getImgFullMimetype(String pid) throws IOException {
+        ObjectSnapshot snapshot = snapshot(pid);
+        if (snapshot == MISSING) {
+            return super.getImgFullMimetype(pid);
+        }
+        Element version = findDatastream(snapshot.foxml, KnownDatastreams.IMG_FULL);
+        return version == null ? null : version.attributeValue("MIMETYPE");
+    }
+
+    @Override
+    public void shutdown() {
+        loaders.shutdownNow();
+        snapshots.invalidateAll();
+        windows.clear();
+    }
+}
@@ -25,6 +25,7 @@ import cz.kramerius.searchIndex.indexer.execution.IndexationType;
 import cz.kramerius.searchIndex.indexer.execution.Indexer;
 import cz.kramerius.searchIndex.indexer.execution.ProgressListener;
 import cz.kramerius.krameriusRepositoryAccess.KrameriusRepositoryFascade;
+import cz.kramerius.krameriusRepositoryAccess.PrefetchingKrameriusRepositoryFascade;
 import cz.kramerius.adapters.impl.krameriusNewApi.ProcessingIndexImplByKrameriusNewApis;
 import cz.kramerius.adapters.impl.krameriusNoApi.RepositoryAccessImplByKrameriusDirect;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -37,6 +38,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -122,73 +124,77 @@ public class NewIndexerProcessIndexModel {
         //access to processing index through new public APIs
         ProcessingIndex processingIndex = new ProcessingIndexImplByKrameriusNewApis(krameriusApiRepository, ProcessUtils.getCoreBaseUrl());
 
-        KrameriusRepositoryFascade krameriusRepositoryFascade = new KrameriusRepositoryFascade(repository, processingIndex);
-        Indexer indexer = new Indexer(krameriusRepositoryFascade, solrConfig, System.out, ignoreInconsistentObjects);
+        KrameriusRepositoryFascade krameriusRepositoryFascade = PrefetchingKrameriusRepositoryFascade.create(repository, processingIndex);
+        try {
+            Indexer indexer = new Indexer(krameriusRepositoryFascade, solrConfig, System.out, ignoreInconsistentObjects);
 
-        KrameriusRepositoryApiImpl krameriusRepositoryApi = injector.getInstance(Key.get(KrameriusRepositoryApiImpl.class));
-        SolrAccess solrAccess = filters.indexAll() ? null : injector.getInstance(Key.get(SolrAccess.class, Names.named("new-index")));
+            KrameriusRepositoryApiImpl krameriusRepositoryApi = injector.getInstance(Key.get(KrameriusRepositoryApiImpl.class));
+            SolrAccess solrAccess = filters.indexAll() ? null : injector.getInstance(Key.get(SolrAccess.class, Names.named("new-index")));
 
-        int processed = 0;
-        int nowIgnored = 0;
-        int nowIndexed = 0;
-        int nowErrors = 0;
-        final int[] totalObjectProcessed = {0};
+            int processed = 0;
+            int nowIgnored = 0;
+            //top-level objects are indexed in parallel, if indexer.parallelism > 1
+            AtomicInteger nowIndexed = new AtomicInteger();
+            AtomicInteger nowErrors = new AtomicInteger();
+            AtomicInteger totalObjectProcessed = new AtomicInteger();
+            ProgressListener progressListener = new ProgressListener() {
+                @Override
+                public void onProgress(int processed) {
+                    int total = totalObjectProcessed.incrementAndGet();
+                    //log number of objects processed so far
+                    if (total < 100 && total % 10 == 0 ||
+                            total < 1000 && total % 100 == 0 ||
+                            total % 1000 == 0
+                    ) {
+                        LOGGER.info("objects processed so far: " + total);
+                    }
+                }
+
+                @Override
+                public void onFinished(int processed) {
 
-        String cursor = "*";
-        int limit = 100;
-        while (cursor != null) {
-            RepositoryApi.TitlePidPairs titlePidPairsByModel = krameriusRepositoryApi.getLowLevelApi().getPidsOfObjectsWithTitlesByModelWithCursor(model, true, cursor, limit);
-            cursor = cursor.equals(titlePidPairsByModel.nextCursorMark) ? null : titlePidPairsByModel.nextCursorMark;
-            processed += titlePidPairsByModel.titlePidPairs.size();
-            List<Pair<String, String>> toBeIndexed = filters.indexAll() ? titlePidPairsByModel.titlePidPairs : filter(solrAccess, titlePidPairsByModel.titlePidPairs, filters);
-            nowIgnored += titlePidPairsByModel.titlePidPairs.size() - toBeIndexed.size();
-            for (Pair<String, String> titlePidPair : toBeIndexed) {
-                String title = titlePidPair.getFirst();
-                String pid = titlePidPair.getSecond();
-                //report(String.format("indexing %s: %s", pid, title));
-                try {
-                    indexer.indexByObjectPid(pid, type, new ProgressListener() {
-                        @Override
-                        public void onProgress(int processed) {
-                            totalObjectProcessed[0]++;
-                            //log number of objects processed so far
-                            if (totalObjectProcessed[0] < 100 && totalObjectProcessed[0] % 10 == 0 ||
-                                    totalObjectProcessed[0] < 1000 && totalObjectProcessed[0] % 100 == 0 ||
-                                    totalObjectProcessed[0] % 1000 == 0
-                            ) {
-                                LOGGER.info("objects processed so far: " + totalObjectProcessed[0]);
-                            }
-                        }
+                }
+            };
 
-                        @Override
-                        public void onFinished(int processed) {
-                            
-                        }
-                    });
-                    nowIndexed++;
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    LOGGER.log(Level.SEVERE,e.getMessage(),e);
-                    nowErrors++;
+            String cursor = "*";
+            int limit = 100;
+            while (cursor != null) {
+                RepositoryApi.TitlePidPairs titlePidPairsByModel = krameriusRepositoryApi.getLowLevelApi().getPidsOfObjectsWithTitlesByModelWithCursor(model, true, cursor, limit);
+                cursor = cursor.equals(titlePidPairsByModel.nextCursorMark) ? null : titlePidPairsByModel.nextCursorMark;
+                processed += titlePidPairsByModel.titlePidPairs.size();
+                List<Pair<String, String>> toBeIndexed = filters.indexAll() ? titlePidPairsByModel.titlePidPairs : filter(solrAccess, titlePidPairsByModel.titlePidPairs, filters);
+                nowIgnored += titlePidPairsByModel.titlePidPairs.size() - toBeIndexed.size();
+                List<String> pids = new ArrayList<>(toBeIndexed.size());
+                for (Pair<String, String> titlePidPair : toBeIndexed) {
+                    pids.add(titlePidPair.getSecond());
                 }
+                indexer.indexByObjectPids(pids, type, progressListener, (pid, e) -> {
+                    if (e == null) {
+                        nowIndexed.incrementAndGet();
+                    } else {
+                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                        nowErrors.incrementAndGet();
+                    }
+                });
             }
-        }
 
-        report(" ");
-        report("Top-level summary");
-        report("===========================================");
-        report(" Top-level objects processed:   " + processed);
-        report(" Top-level objects indexed:     " + nowIndexed);
-        report(" Top-level objects ignored:     " + nowIgnored);
-        report(" Top-level objects erroneous:   " + nowErrors);
-        report(" Top-level objects erroneous:   " + nowErrors);
-        report("     Total objects processed:   " + totalObjectProcessed[0]);
-        report("===========================================");
-        
-        if (nowErrors > 0 || nowIgnored >0) {
-            throw new IllegalStateException("Indexation finished with errors; see error log");
+            report(" ");
+            report("Top-level summary");
+            report("===========================================");
+            report(" Top-level objects processed:   " + processed);
+            report(" Top-level objects indexed:     " + nowIndexed.get());
+            report(" Top-level objects ignored:     " + nowIgnored);
+            report(" Top-level objects erroneous:   " + nowErrors.get());
+            report(" Top-level objects erroneous:   " + nowErrors.get());
+            report("     Total objects processed:   " + totalObjectProcessed.get());
+            report("===========================================");
+
+            if (nowErrors.get() > 0 || nowIgnored >0) {
+                throw new IllegalStateException("Indexation finished with errors; see error log");
+            }
+        } finally {
+            krameriusRepositoryFascade.shutdown();
         }
-        
     }
 
     private static List<Pair<String, String>> filter(SolrAccess solrAccess, List<Pair<String, String>> titlePidPairs, Filters filters) throws IOException {
@@ -20,6 +20,7 @@ import cz.kramerius.searchIndex.indexer.execution.IndexationType;
 import cz.kramerius.searchIndex.indexer.execution.Indexer;
 import cz.kramerius.searchIndex.indexer.execution.ProgressListener;
 import cz.kramerius.krameriusRepositoryAccess.KrameriusRepositoryFascade;
+import cz.kramerius.krameriusRepositoryAccess.PrefetchingKrameriusRepositoryFascade;
 import cz.kramerius.adapters.impl.krameriusNewApi.ProcessingIndexImplByKrameriusNewApis;
 import cz.kramerius.adapters.impl.krameriusNoApi.RepositoryAccessImplByKrameriusDirect;
 
@@ -122,26 +123,30 @@ public class NewIndexerProcessIndexObject {
         //access to resource index through new public APIs
         ProcessingIndex processingIndex = new ProcessingIndexImplByKrameriusNewApis(krameriusApiRepository, ProcessUtils.getCoreBaseUrl());
 
-        KrameriusRepositoryFascade krameriusRepositoryFascade = new KrameriusRepositoryFascade(repository, processingIndex);
-        Indexer indexer = new Indexer(krameriusRepositoryFascade, solrConfig, System.out, ignoreInconsistentObjects);
-
-        for (String pid : pids) {
-            indexer.indexByObjectPid(pid, IndexationType.valueOf(type), new ProgressListener() {
-                @Override
-                public void onProgress(int processed) {
-                    //log number of objects processed so far
-                    if (processed < 100 && processed % 10 == 0 ||
-                            processed < 1000 && processed % 100 == 0 ||
-                            processed % 1000 == 0
-                    ) {
-                        LOGGER.info("objects processed so far: " + processed);
+        KrameriusRepositoryFascade krameriusRepositoryFascade = PrefetchingKrameriusRepositoryFascade.create(repository, processingIndex);
+        try {
+            Indexer indexer = new Indexer(krameriusRepositoryFascade, solrConfig, System.out, ignoreInconsistentObjects);
+
+            for (String pid : pids) {
+                indexer.indexByObjectPid(pid, IndexationType.valueOf(type), new ProgressListener() {
+                    @Override
+                    public void onProgress(int processed) {
+                        //log number of objects processed so far
+                        if (processed < 100 && processed % 10 == 0 ||
+                                processed < 1000 && processed % 100 == 0 ||
+                                processed % 1000 == 0
+                        ) {
+                            LOGGER.info("objects processed so far: " + processed);
+                        }
                     }
-                }
 
-                @Override
-                public void onFinished(int processed) {
-                }
-            });
+                    @Override
+                    public void onFinished(int processed) {
+                    }
+                });
+            }
+        } finally {
+            krameriusRepositoryFascade.shutdown();
         }
     }
 
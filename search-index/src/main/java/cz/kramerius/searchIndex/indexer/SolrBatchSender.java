@@ -0,0 +1,188 @@
+package cz.kramerius.searchIndex.indexer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded asynchronous sender of solr documents.
+ * <p>
+ * Documents are collected into batches of <code>batchSize</code>; a batch is sent when it is full or when it is older
+ * than <code>flushIntervalMs</code>. At most <code>maxInFlight</code> batches are being sent at the same time,
+ * {@link #add(SolrInputDocument)} blocks when the limit is reached. When a batch fails, its documents are resent one by one
+ * and documents that fail again are passed to the failure handler given with the document, or collected as {@link Failure}s,
+ * see {@link #flush()}.
+ */
+public class SolrBatchSender implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(SolrBatchSender.class.getName());
+
+    public static class Failure {
+        public final String pid;
+        public final Exception exception;
+
+        public Failure(String pid, Exception exception) {
+            this.pid = pid;
+            this.exception = exception;
+        }
+    }
+
+    private final SolrClient solrClient;
+    private final String collection;
+    private final int batchSize;
+    private final int commitWithinMs;
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService flusher;
+    private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong sentDocuments = new AtomicLong();
+    private final AtomicLong resentDocuments = new AtomicLong();
+
+    private List<SolrInputDocument> buffer;
+    private List<Consumer<Failure>> failureHandlers;
+
+    public SolrBatchSender(SolrClient solrClient, String collection, int batchSize, long flushIntervalMs, int maxInFlight, int commitWithinMs) {
+        this.solrClient = solrClient;
+        this.collection = collection;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.commitWithinMs = commitWithinMs;
+        //fair, so that flush() waiting for all permits is not starved by threads submitting new batches
+        this.inFlight = new Semaphore(this.maxInFlight, true);
+        this.buffer = new ArrayList<>(this.batchSize);
+        this.failureHandlers = new ArrayList<>(this.batchSize);
+        this.senders = Executors.newFixedThreadPool(this.maxInFlight, new ThreadFactoryBuilder().setNameFormat("solr-batch-sender-%d").setDaemon(true).build());
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("solr-batch-flusher-%d").setDaemon(true).build());
+        if (flushIntervalMs > 0) {
+            this.flusher.scheduleWithFixedDelay(this::submitBuffer, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void add(SolrInputDocument doc) {
+        add(doc, null);
+    }
+
+    /**
+     * @param failureHandler called from sender thread if the document cannot be indexed; if null, failure is returned from {@link #flush()}
+     */
+    public synchronized void add(SolrInputDocument doc, Consumer<Failure> failureHandler) {
+        buffer.add(doc);
+        failureHandlers.add(failureHandler);
+        if (buffer.size() >= batchSize) {
+            submitBuffer();
+        }
+    }
+
+    private synchronized void submitBuffer() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<SolrInputDocument> batch = buffer;
+        List<Consumer<Failure>> handlers = failureHandlers;
+        buffer = new ArrayList<>(batchSize);
+        failureHandlers = new ArrayList<>(batchSize);
+        inFlight.acquireUninterruptibly();
+        try {
+            senders.execute(() -> {
+                try {
+                    send(batch, handlers);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void send(List<SolrInputDocument> batch, List<Consumer<Failure>> handlers) {
+        try {
+            solrClient.add(collection, batch, commitWithinMs);
+            sentBatches.incrementAndGet();
+            sentDocuments.addAndGet(batch.size());
+        } catch (Exception batchException) {
+            LOGGER.log(Level.WARNING, String.format("batch of %d documents failed (%s), resending one by one", batch.size(), batchException.getMessage()));
+            for (int i = 0; i < batch.size(); i++) {
+                SolrInputDocument doc = batch.get(i);
+                try {
+                    solrClient.add(collection, doc, commitWithinMs);
+                    resentDocuments.incrementAndGet();
+                    sentDocuments.incrementAndGet();
+                } catch (Exception e) {
+                    Object pid = doc.getFieldValue("pid");
+                    Failure failure = new Failure(pid != null ? pid.toString() : null, e);
+                    Consumer<Failure> handler = handlers.get(i);
+                    if (handler != null) {
+                        try {
+                            handler.accept(failure);
+                        } catch (RuntimeException handlerException) {
+                            LOGGER.log(Level.WARNING, handlerException.getMessage(), handlerException);
+                        }
+                    } else {
+                        failures.add(failure);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends buffered documents and waits until all batches submitted before are sent
+     * @return documents that could not be indexed since last flush
+     */
+    public List<Failure> flush() {
+        submitBuffer();
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        List<Failure> retval = new ArrayList<>();
+        Failure failure;
+        while ((failure = failures.poll()) != null) {
+            retval.add(failure);
+        }
+        return retval;
+    }
+
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    public long getSentDocuments() {
+        return sentDocuments.get();
+    }
+
+    public long getResentDocuments() {
+        return resentDocuments.get();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        flusher.shutdownNow();
+        senders.shutdown();
+        try {
+            senders.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
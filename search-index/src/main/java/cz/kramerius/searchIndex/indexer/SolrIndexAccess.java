@@ -1,8 +1,10 @@
 package cz.kramerius.searchIndex.indexer;
 
 import cz.incad.kramerius.utils.IterationUtils;
+import cz.incad.kramerius.utils.conf.KConfiguration;
 import cz.kramerius.searchIndex.indexer.nodes.RepositoryNode;
 import cz.kramerius.shared.Dom4jUtils;
+import org.apache.commons.configuration.Configuration;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
@@ -31,6 +33,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static cz.kramerius.searchIndex.indexer.execution.Indexer.*;
 
@@ -42,6 +45,7 @@ public class SolrIndexAccess {
 
     private final HttpSolrClient solrClient;
     private final String collection; //because solrClient is buggy and still requires explicit collection-name as a parameter for some operations even though it gets collection-name in the constructor
+    private SolrBatchSender batchSender;
 
     public SolrIndexAccess(SolrConfig config) {
         System.setProperty("solr.cloud.client.stallTime", "119999");
@@ -100,6 +104,72 @@ public class SolrIndexAccess {
         return builder.toString();
     }
 
+    /**
+     * Batch size, flush interval and max batches being sent at once are configured by
+     * <code>indexer.solr.batch.size</code>, <code>indexer.solr.batch.flushIntervalMs</code> and <code>indexer.solr.batch.maxInFlight</code>.
+     * Batch size 1 means that documents are sent synchronously, one by one.
+     */
+    private synchronized SolrBatchSender getBatchSender() {
+        if (batchSender == null) {
+            Configuration conf = KConfiguration.getInstance().getConfiguration();
+            int batchSize = conf.getInt("indexer.solr.batch.size", 100);
+            if (batchSize > 1) {
+                batchSender = new SolrBatchSender(solrClient, collection, batchSize,
+                        conf.getLong("indexer.solr.batch.flushIntervalMs", 2000),
+                        conf.getInt("indexer.solr.batch.maxInFlight", 2),
+                        MAX_TIME_WITHOUT_COMMIT_MS);
+            }
+        }
+        return batchSender;
+    }
+
+    public UpdateResponse indexSolrInputDocument(SolrInputDocument doc, boolean explicitCommit) throws IOException, SolrServerException {
+        UpdateResponse addResponse = solrClient.add(collection, doc, MAX_TIME_WITHOUT_COMMIT_MS);
+        if (explicitCommit) {
+            solrClient.commit(collection);
+        }
+        return addResponse;
+    }
+
+    /**
+     * Adds document to the current batch, or sends it directly if batching is disabled.
+     * Documents of failed batches are resent one by one; those failing again are returned from {@link #flushBatch()}
+     */
+    public void addToBatch(SolrInputDocument doc) throws IOException, SolrServerException {
+        addToBatch(doc, null);
+    }
+
+    /**
+     * @param failureHandler handles documents of this caller that could not be indexed, see {@link SolrBatchSender#add(SolrInputDocument, java.util.function.Consumer)}
+     */
+    public void addToBatch(SolrInputDocument doc, Consumer<SolrBatchSender.Failure> failureHandler) throws IOException, SolrServerException {
+        SolrBatchSender sender = getBatchSender();
+        if (sender != null) {
+            sender.add(doc, failureHandler);
+        } else {
+            indexSolrInputDocument(doc, false);
+        }
+    }
+
+    /**
+     * Sends all batched documents and waits for them
+     * @return documents that could not be indexed since last flush
+     */
+    public List<SolrBatchSender.Failure> flushBatch() {
+        SolrBatchSender sender;
+        synchronized (this) {
+            sender = batchSender;
+        }
+        return sender != null ? sender.flush() : new ArrayList<>();
+    }
+
+    public synchronized void closeBatch() {
+        if (batchSender != null) {
+            batchSender.close();
+            batchSender = null;
+        }
+    }
+
     public UpdateResponse indexFromXmlFile(File xmlFile, boolean explicitCommit) throws IOException, SolrServerException, DocumentException {
         return indexFromXmlInputStream(new FileInputStream(xmlFile), explicitCommit);
     }
@@ -230,6 +300,7 @@ public class SolrIndexAccess {
     }
 
     public void commit() throws IOException, SolrServerException {
+        flushBatch();
         solrClient.commit(collection);
     }
 
@@ -1,5 +1,6 @@
 package cz.kramerius.searchIndex.indexer;
 
+import org.apache.solr.common.SolrInputDocument;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
@@ -18,7 +19,7 @@ public class SolrInput {
 
     public void addField(String name, String value) {
         if (value != null) {
-            value = value.trim();
+            value = stripInvalidXmlCharacters(value).trim();
             if (value.isEmpty()) {
                 value = null;
             }
@@ -36,6 +37,41 @@ public class SolrInput {
         }
     }
 
+    /**
+     * Removes characters which are not allowed in XML 1.0 (control characters, unpaired surrogates, U+FFFE, U+FFFF).
+     * Typically they come from OCR; such document would break wt=xml responses and other XML consumers of the index.
+     */
+    public static String stripInvalidXmlCharacters(String value) {
+        int i = 0;
+        while (i < value.length()) {
+            int codePoint = value.codePointAt(i);
+            if (!isValidXmlCharacter(codePoint)) {
+                break;
+            }
+            i += Character.charCount(codePoint);
+        }
+        if (i == value.length()) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        builder.append(value, 0, i);
+        while (i < value.length()) {
+            int codePoint = value.codePointAt(i);
+            if (isValidXmlCharacter(codePoint)) {
+                builder.appendCodePoint(codePoint);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return builder.toString();
+    }
+
+    private static boolean isValidXmlCharacter(int codePoint) {
+        return codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD
+                || (codePoint >= 0x20 && codePoint <= 0xD7FF)
+                || (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+                || (codePoint >= 0x10000 && codePoint <= 0x10FFFF);
+    }
+
     public void printTo(File outFile, boolean prettyPrint) throws IOException {
         Document document = getDocument();
         //System.out.println(document.asXML().toString());
@@ -72,6 +108,21 @@ public class SolrInput {
         return doc;
     }
 
+    /**
+     * Same content as {@link #getDocument()}, but without building and parsing the xml
+     */
+    public SolrInputDocument toSolrInputDocument() {
+        SolrInputDocument doc = new SolrInputDocument();
+        List<String> fieldNames = new ArrayList<>(fields.keySet());
+        Collections.sort(fieldNames);
+        for (String fieldName : fieldNames) {
+            for (String value : fields.get(fieldName)) {
+                doc.addField(fieldName, value);
+            }
+        }
+        return doc;
+    }
+
     public Map<String, List<String>> getFieldsCopy() {
         Map<String, List<String>> fieldsCopy = new HashMap<>();
         for (String key : fields.keySet()) {
@@ -2,6 +2,8 @@ package cz.kramerius.searchIndex.indexer.execution;
 
 
 import cz.incad.kramerius.utils.IterationUtils;
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import cz.kramerius.searchIndex.indexer.SolrBatchSender;
 import cz.kramerius.searchIndex.indexer.SolrConfig;
 import cz.kramerius.searchIndex.indexer.SolrIndexAccess;
 import cz.kramerius.searchIndex.indexer.SolrInput;
@@ -23,6 +25,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +43,9 @@ public class Indexer {
 
     private final SolrConfig solrConfig;
     //only state variable
-    private boolean shutDown = false;
+    private volatile boolean shutDown = false;
+    //null - sequential indexation
+    private final ForkJoinPool pool;
     //helpers
     private final ReportLogger reportLogger;
     private final KrameriusRepositoryFascade krameriusRepositoryFascade;
@@ -78,6 +90,8 @@ public class Indexer {
         this.solrConfig = solrConfig;
         this.reportLogger = new ReportLogger(reportLoggerStream);
         this.ignoreInconsistentObjects = ignoreInconsistentObjects;
+        int parallelism = KConfiguration.getInstance().getConfiguration().getInt("indexer.parallelism", 1);
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
         init();
     }
 
@@ -117,6 +131,38 @@ public class Indexer {
 
 
     public void indexByObjectPid(String pid, IndexationType type, ProgressListener progressListener) {
+        indexByObjectPid(pid, type, progressListener, true);
+    }
+
+    /**
+     * Indexes top-level objects, in parallel if <code>indexer.parallelism</code> is greater than 1. Solr commit is done once, after all objects.
+     * @param resultListener called for every pid after the commit, with null, or with error that caused indexation of pid's tree to fail;
+     *                       if documents could not be sent or committed at the end, pids indexed so far are reported with that error
+     */
+    public void indexByObjectPids(List<String> pids, IndexationType type, ProgressListener progressListener, BiConsumer<String, Throwable> resultListener) {
+        Map<String, Throwable> errors = new ConcurrentHashMap<>();
+        Set<String> indexed = ConcurrentHashMap.newKeySet();
+        forEachChild(pids, pid -> {
+            try {
+                indexByObjectPid(pid, type, progressListener, false);
+                indexed.add(pid);
+            } catch (Throwable e) {
+                errors.put(pid, e);
+            }
+        });
+        Counters counters = new Counters();
+        commitAfterLastIndexation(counters);
+        Throwable commitError = counters.getErrors() > 0 ? new IllegalStateException("Indexed documents could not be sent or committed; see error log") : null;
+        for (String pid : pids) {
+            if (errors.containsKey(pid)) {
+                resultListener.accept(pid, errors.get(pid));
+            } else if (indexed.contains(pid)) {
+                resultListener.accept(pid, commitError);
+            }
+        }
+    }
+
+    private void indexByObjectPid(String pid, IndexationType type, ProgressListener progressListener, boolean commit) {
         if (shutDown) {
             report("Indexer has already been shut down");
         } else {
@@ -131,9 +177,13 @@ public class Indexer {
             indexObjectWithCounters(pid, node, counters, setFullIndexationInProgress, progressListener);
             processChildren(pid, node, counters, type, true, progressListener);
             if (node != null && setFullIndexationInProgress) {
-                clearFullIndexationInProgress(pid, node);
+                clearFullIndexationInProgress(pid, node, counters);
+            }
+            if (commit) {
+                commitAfterLastIndexation(counters);
+            } else {
+                processBatchFailures(counters);
             }
-            commitAfterLastIndexation(counters);
 
             report(" ");
             if (shutDown) {
@@ -182,18 +232,19 @@ public class Indexer {
                 solrInput.addField("full_indexation_in_progress", Boolean.TRUE.toString());
                 solrInput.addField("indexer_version", String.valueOf(INDEXER_VERSION));
                 ensureCompositeId(solrInput, repositoryNode, pid);
-                String solrInputStr = solrInput.getDocument().asXML();
-                solrIndexer.indexFromXmlString(solrInputStr, false);
+                solrIndexer.indexSolrInputDocument(solrInput.toSolrInputDocument(), false);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
-    private void clearFullIndexationInProgress(String pid, RepositoryNode repositoryNode) {
+    private void clearFullIndexationInProgress(String pid, RepositoryNode repositoryNode, Counters counters) {
         report("clearing field full_indexation_in_progress for " + pid);
         //will not work for objects that are not stored and not docValues
         //see https://github.com/ceskaexpedice/kramerius/issues/782
+        //atomic update must not overtake batched documents
+        processBatchFailures(counters);
         solrIndexer.setSingleFieldValue(pid, repositoryNode, "full_indexation_in_progress", null, false, false);
     }
 
@@ -229,16 +280,10 @@ public class Indexer {
                 String imgFullMime = krameriusRepositoryFascade.getImgFullMimetype(pid);
 
                 Integer audioLength = "track".equals(repositoryNode.getModel()) ? detectAudioLength(repositoryNode.getPid()) : null;
-                try {
-                    SolrInput solrInput = solrInputBuilder.processObjectFromRepository(foxmlDoc, ocrText, repositoryNode, nodeManager, imgFullMime, audioLength, setFullIndexationInProgress);
-                    String solrInputStr = solrInput.getDocument().asXML();
-                    solrIndexer.indexFromXmlString(solrInputStr, false);
-                } catch (DocumentException e) {  //try to reindex without ocr - TODO: hack, ocr should be properly escaped
-                    //typical root cause: Caused by: org.xml.sax.SAXParseException; lineNumber: 2; columnNumber: 2302; Character reference "&#6" is an invalid XML character.
-                    SolrInput solrInput = solrInputBuilder.processObjectFromRepository(foxmlDoc, "", repositoryNode, nodeManager, imgFullMime, audioLength, setFullIndexationInProgress);
-                    String solrInputStr = solrInput.getDocument().asXML();
-                    solrIndexer.indexFromXmlString(solrInputStr, false);
-                }
+                //documents are sent in batches as SolrInputDocument, characters invalid in xml (typically in ocr) are removed by SolrInput
+                //failures of batched documents are reported in processBatchFailures()
+                SolrInput solrInput = solrInputBuilder.processObjectFromRepository(foxmlDoc, ocrText, repositoryNode, nodeManager, imgFullMime, audioLength, setFullIndexationInProgress);
+                solrIndexer.addToBatch(solrInput.toSolrInputDocument(), failure -> onBatchFailure(failure, counters));
                 counters.incrementIndexed();
                 report("");
                 if ("application/pdf".equals(imgFullMime)) {
@@ -279,7 +324,7 @@ public class Indexer {
         }
     }
 
-    private void indexPagesFromPdf(String pid, RepositoryNode repositoryNode, Counters counters) throws IOException, DocumentException, SolrServerException {
+    private void indexPagesFromPdf(String pid, RepositoryNode repositoryNode, Counters counters) throws IOException, SolrServerException {
         report("object " + pid + " contains PDF, extracting pages");
         InputStream imgFull = krameriusRepositoryFascade.getImgFull(pid);
         PdfExtractor extractor = new PdfExtractor(pid, imgFull);
@@ -290,8 +335,7 @@ public class Indexer {
             report("extracting page " + pageNumber + "/" + pages);
             String ocrText = normalizeWhitespacesForOcrText(extractor.getPageText(i));
             SolrInput solrInput = solrInputBuilder.processPageFromPdf(nodeManager, repositoryNode, pageNumber, ocrText);
-            String solrInputStr = solrInput.getDocument().asXML();
-            solrIndexer.indexFromXmlString(solrInputStr, false);
+            solrIndexer.addToBatch(solrInput.toSolrInputDocument(), failure -> onBatchFailure(failure, counters));
             counters.incrementIndexed();
             report("");
         }
@@ -310,6 +354,11 @@ public class Indexer {
             LOGGER.log(Level.SEVERE, "object not found in repository (or found in inconsistent state), ignoring it's children: " + parentPid);
             return;
         }
+        if (type != IndexationType.OBJECT) {
+            //children are read in the same order, repository may load them in advance
+            krameriusRepositoryFascade.prefetch(parentNode.getPidsOfOwnChildren());
+            krameriusRepositoryFascade.prefetch(parentNode.getPidsOfFosterChildren());
+        }
         switch (type) {
             case OBJECT: {
                 //nothing
@@ -317,49 +366,49 @@ public class Indexer {
             break;
             case OBJECT_AND_CHILDREN: {
                 if (isIndexationRoot) {
-                    for (String childPid : parentNode.getPidsOfOwnChildren()) {
+                    forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> {
                         RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                         indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
-                    }
-                    for (String childPid : parentNode.getPidsOfFosterChildren()) {
+                    });
+                    forEachChild(parentNode.getPidsOfFosterChildren(), childPid -> {
                         RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                         indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index foster child
-                    }
+                    });
                 }
             }
             break;
             case TREE: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) { //index own children
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> { //index own children
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
                     processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
-                }
+                });
             }
             break;
             case TREE_INDEX_ONLY_NEWER: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) { //index own children
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> { //index own children
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     boolean isNewer = true; //TODO: detect
                     if (isNewer) {
                         indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
                     }
                     processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
-                }
+                });
             }
             break;
             case TREE_PROCESS_ONLY_NEWER: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) { //index own children
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> { //index own children
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     boolean isNewer = true; //TODO: detect
                     if (isNewer) {
                         indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
                         processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
                     }
-                }
+                });
             }
             break;
             case TREE_INDEX_ONLY_PAGES: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) { //index own children
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> { //index own children
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     boolean isPage = true; //TODO: detect
                     if (isPage) {
@@ -367,37 +416,86 @@ public class Indexer {
                     } else {
                         processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
                     }
-                }
+                });
             }
             break;
             case TREE_INDEX_ONLY_NONPAGES: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) { //index own children
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> { //index own children
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     boolean isPage = false; //TODO: detect
                     if (!isPage) {
                         indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
                         processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
                     }
-                }
+                });
             }
             break;
             case TREE_AND_FOSTER_TREES: {
-                for (String childPid : parentNode.getPidsOfOwnChildren()) {
+                forEachChild(parentNode.getPidsOfOwnChildren(), childPid -> {
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index own child
                     processChildren(childPid, childNode, counters, type, false, progressListener); //process own child's tree
-                }
-                for (String childPid : parentNode.getPidsOfFosterChildren()) {
+                });
+                forEachChild(parentNode.getPidsOfFosterChildren(), childPid -> {
                     RepositoryNode childNode = nodeManager.getKrameriusNode(childPid);
                     indexObjectWithCounters(childPid, childNode, counters, false, progressListener); //index foster child
                     processChildren(childPid, childNode, counters, type, false, progressListener); //process foster child's tree
-                }
+                });
+            }
+        }
+    }
+
+    /**
+     * Waits for batched documents and moves documents that could not be indexed from indexed to errors
+     */
+    private void processBatchFailures(Counters counters) {
+        for (SolrBatchSender.Failure failure : solrIndexer.flushBatch()) {
+            onBatchFailure(failure, counters);
+        }
+    }
+
+    private void onBatchFailure(SolrBatchSender.Failure failure, Counters counters) {
+        counters.moveIndexedToErrors();
+        reportError(" Solr error while indexing " + failure.pid, failure.exception);
+    }
+
+    /**
+     * Sequentially, or as subtasks in the pool; subtasks wait for their own subtasks (other workers steal them meanwhile),
+     * so that processing of a tree finishes after processing of all its subtrees.
+     */
+    private void forEachChild(List<String> pids, Consumer<String> action) {
+        if (pool == null || pids.size() < 2) {
+            for (String pid : pids) {
+                action.accept(pid);
+            }
+        } else {
+            List<RecursiveAction> tasks = new ArrayList<>(pids.size());
+            for (String pid : pids) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        if (!shutDown) {
+                            action.accept(pid);
+                        }
+                    }
+                });
+            }
+            if (ForkJoinTask.getPool() == pool) {
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(tasks);
+                    }
+                });
             }
         }
     }
 
     private void commitAfterLastIndexation(Counters counters) {
         try {
+            processBatchFailures(counters);
             solrIndexer.commit();
         } catch (IOException e) {
             counters.incrementErrors();
@@ -485,6 +583,10 @@ public class Indexer {
         report("  Https: " + solrConfig.useHttps);
         //report("  Login: " + solrConfig.login);
         report(" ");
+        report(" Indexation");
+        report(" -----------------");
+        report("  Parallelism: " + (pool == null ? 1 : pool.getParallelism()));
+        report(" ");
     }
 
     public void shutDown() {
@@ -492,6 +594,12 @@ public class Indexer {
     }
 
     public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (solrIndexer != null) {
+            solrIndexer.closeBatch();
+        }
         reportLogger.close();
     }
 }
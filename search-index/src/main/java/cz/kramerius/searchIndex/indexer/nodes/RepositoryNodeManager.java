@@ -1,6 +1,9 @@
 package cz.kramerius.searchIndex.indexer.nodes;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import cz.incad.kramerius.resourceindex.ResourceIndexException;
+import cz.incad.kramerius.utils.conf.KConfiguration;
 import cz.kramerius.searchIndex.indexer.conversions.extraction.*;
 import cz.kramerius.krameriusRepositoryAccess.KrameriusRepositoryFascade;
 import cz.kramerius.shared.AuthorInfo;
@@ -19,7 +22,11 @@ import java.util.stream.Collectors;
 public class RepositoryNodeManager {
 
     private final KrameriusRepositoryFascade krameriusRepositoryFascade;
-    private final LRUCache<String, RepositoryNode> nodesByPid = new LRUCache<>(1024);
+    //shared by indexation threads; a node being built concurrently by two threads is just built twice (nodes are immutable)
+    private final Cache<String, RepositoryNode> nodesByPid = CacheBuilder.newBuilder()
+            .maximumSize(KConfiguration.getInstance().getConfiguration().getInt("indexer.nodeCache.size", 1024))
+            .concurrencyLevel(Math.max(4, Runtime.getRuntime().availableProcessors()))
+            .build();
     private final boolean surviveInconsistentObjects;
 
     public RepositoryNodeManager(KrameriusRepositoryFascade krameriusRepositoryFascade, boolean surviveInconsistentObjects) {
@@ -44,8 +51,9 @@ public class RepositoryNodeManager {
 
     private RepositoryNode getKrameriusNodeWithCycleDetection(String pid, List<String> path) {
         //http://admin.k7-test.mzk.cz/processes/8410 and uuid:51f84b60-5542-11e9-8854-005056827e51
-        if (nodesByPid.containsKey(pid)) {
-            return nodesByPid.get(pid);
+        RepositoryNode cached = nodesByPid.getIfPresent(pid);
+        if (cached != null) {
+            return cached;
         } else {
             if (path.contains(pid)) {
                 throw new RuntimeException("parent cycle detected: " + buildPath(pid, path));
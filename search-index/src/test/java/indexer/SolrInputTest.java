@@ -0,0 +1,37 @@
+package indexer;
+
+import cz.kramerius.searchIndex.indexer.SolrInput;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class SolrInputTest {
+
+    @Test
+    public void invalidXmlCharactersAreRemovedFromOcr() throws DocumentException {
+        SolrInput solrInput = new SolrInput();
+        solrInput.addField("text_ocr", "Příliš\u0006 žluťoučký\u0000 kůň\uD800 úpěl\uFFFE ďábelské \uD83D\uDE00ódy\u001F");
+
+        String expected = "Příliš žluťoučký kůň úpěl ďábelské \uD83D\uDE00ódy";
+        assertEquals(expected, solrInput.toSolrInputDocument().getFieldValue("text_ocr"));
+        // document can be serialized to xml and parsed back
+        String xml = solrInput.getDocument().asXML();
+        assertEquals(expected, DocumentHelper.parseText(xml).getRootElement().element("doc").element("field").getText());
+    }
+
+    @Test
+    public void validTextIsUntouched() {
+        String text = "tab\tnewline\ncarriage return\r \uD83D\uDE00 \uE000\uFFFD";
+        assertSame(text, SolrInput.stripInvalidXmlCharacters(text));
+    }
+
+    @Test
+    public void valueOfInvalidCharactersOnlyIsNotAdded() {
+        SolrInput solrInput = new SolrInput();
+        solrInput.addField("text_ocr", "\u0001\u0002 \u0003");
+        assertEquals(0, solrInput.getFieldsCopy().size());
+    }
+}
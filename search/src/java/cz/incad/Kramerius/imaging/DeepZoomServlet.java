@@ -33,11 +33,14 @@ import cz.incad.kramerius.ObjectPidsPath;
 import cz.incad.kramerius.SolrAccess;
 import cz.incad.kramerius.imaging.DeepZoomCacheService;
 import cz.incad.kramerius.imaging.DeepZoomTileSupport;
+import cz.incad.kramerius.imaging.TileSessionCache;
+import cz.incad.kramerius.imaging.TileSessionCache.TileMetadata;
 import cz.incad.kramerius.security.RightsResolver;
 import cz.incad.kramerius.security.SecuredActions;
 import cz.incad.kramerius.security.User;
 import cz.incad.kramerius.statistics.StatisticsAccessLog;
 import cz.incad.kramerius.utils.FedoraUtils;
+import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.RelsExtHelper;
 import cz.incad.kramerius.utils.conf.KConfiguration;
 import cz.incad.kramerius.utils.imgs.ImageMimeType;
@@ -68,6 +71,9 @@ public class DeepZoomServlet extends AbstractImageServlet {
     @Inject
     AggregatedAccessLogs aggregatedAccessLogs;
 
+    @Inject
+    TileSessionCache tileSessionCache;
+
     @Override
     public void init() throws ServletException {
         super.init();
@@ -80,16 +86,20 @@ public class DeepZoomServlet extends AbstractImageServlet {
             String zoomUrl = disectZoom(requestURL);
             StringTokenizer tokenizer = new StringTokenizer(zoomUrl, "/");
             String pid = tokenizer.nextToken();
-            if (this.fedoraAccess.isObjectAvailable(pid)) {
-                ObjectPidsPath[] paths = solrAccess.getPidPaths(pid);
-                RightsReturnObject rightsReturnObject = null;
-                for (ObjectPidsPath pth : paths) {
-                    rightsReturnObject =  this.rightsResolver.isActionAllowed(userProvider.get(), SecuredActions.A_READ.getFormalName(),pid,null,pth.injectRepository());
-                    if (rightsReturnObject.flag()) break;
-                }
+            TileMetadata metadata = tileSessionCache.getMetadata(pid, () -> TileMetadata.load(pid, this.fedoraAccess, this.solrAccess));
+            if (metadata.isAvailable()) {
+                User user = userProvider.get();
+                boolean permitted = tileSessionCache.isReadAllowed(pid, user, IPAddressUtils.getRemoteAddress(req), () -> {
+                    RightsReturnObject rightsReturnObject = null;
+                    for (ObjectPidsPath pth : metadata.getPaths()) {
+                        rightsReturnObject =  this.rightsResolver.isActionAllowed(user, SecuredActions.A_READ.getFormalName(),pid,null,pth.injectRepository());
+                        if (rightsReturnObject.flag()) break;
+                    }
+                    return rightsReturnObject != null && rightsReturnObject.flag();
+                });
                 
-                if (rightsReturnObject.flag()) {
-                    String stringMimeType = this.fedoraAccess.getImageFULLMimeType(pid);
+                if (permitted) {
+                    String stringMimeType = metadata.getMimeType(() -> this.fedoraAccess.getImageFULLMimeType(pid));
                     ImageMimeType mimeType = ImageMimeType.loadFromMimeType(stringMimeType);
                     if ((mimeType != null) && (!hasNoSupportForMimeType(mimeType))) {
                         resp.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
@@ -98,10 +108,10 @@ public class DeepZoomServlet extends AbstractImageServlet {
                             String files = tokenizer.nextToken();
                             String level = tokenizer.nextToken();
                             String tile = tokenizer.nextToken();
-                            renderTile(pid, level, tile, req, resp);
+                            renderTile(pid, metadata, level, tile, req, resp);
                         } else {
                             if (this.fedoraAccess.isContentAccessible(pid)) {
-                                renderDZI(pid, req, resp);
+                                renderDZI(pid, metadata, req, resp);
                             } else {
                                 resp.setStatus(HttpServletResponse.SC_FORBIDDEN);
                             }
@@ -124,11 +134,11 @@ public class DeepZoomServlet extends AbstractImageServlet {
         return (!mimeType.equals(ImageMimeType.PDF));
     }
 
-    private void renderDZI(String pid, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
+    private void renderDZI(String pid, TileMetadata metadata, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
         reportAccess(pid);
         setDateHaders(pid,FedoraUtils.IMG_FULL_STREAM, resp);
         setResponseCode(pid,FedoraUtils.IMG_FULL_STREAM, req, resp);
-        String relsExtUrl = RelsExtHelper.getRelsExtTilesUrl(pid, this.fedoraAccess);
+        String relsExtUrl = metadata.getTilesUrl();
         if (relsExtUrl != null) {
             if (!relsExtUrl.equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL)) {
                 try {
@@ -178,10 +188,10 @@ public class DeepZoomServlet extends AbstractImageServlet {
         }
     }
 
-    private void renderTile(String pid, String slevel, String stile, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
+    private void renderTile(String pid, TileMetadata metadata, String slevel, String stile, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
         setDateHaders(pid, FedoraUtils.IMG_FULL_STREAM, resp);
         setResponseCode(pid,FedoraUtils.IMG_FULL_STREAM, req, resp);
-        String relsExtUrl = RelsExtHelper.getRelsExtTilesUrl(pid, this.fedoraAccess);
+        String relsExtUrl = metadata.getTilesUrl();
         if (relsExtUrl != null) {
             if (!relsExtUrl.equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL)) {
                 try {
@@ -191,7 +201,7 @@ public class DeepZoomServlet extends AbstractImageServlet {
                     resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
                 }
             } else {
-                renderEmbededTile(pid, slevel, stile, req, resp);
+                renderEmbededTile(pid, metadata, slevel, stile, req, resp);
             }
         } else {
             resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -215,7 +225,7 @@ public class DeepZoomServlet extends AbstractImageServlet {
         }
     }
 
-    private void renderEmbededTile(String pid, String slevel, String stile, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    private void renderEmbededTile(String pid, TileMetadata metadata, String slevel, String stile, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         try {
             int ilevel = Integer.parseInt(slevel);
             if (stile.contains(".")) {
@@ -223,7 +233,7 @@ public class DeepZoomServlet extends AbstractImageServlet {
                 StringTokenizer tokenizer = new StringTokenizer(stile, "_");
                 String scol = tokenizer.nextToken();
                 String srow = tokenizer.nextToken();
-                Dimension originalResolution = cacheService.getResolutionFromFile(pid);
+                Dimension originalResolution = metadata.getResolution(() -> cacheService.getResolutionFromFile(pid));
                 int maxLevels = tileSupport.getLevels(originalResolution, 1);
 
                 Dimension scaledResolution = tileSupport.getScaledDimension(originalResolution, ilevel,maxLevels);
@@ -7,6 +7,8 @@ import cz.incad.Kramerius.AbstractImageServlet;
 import cz.incad.kramerius.FedoraAccess;
 import cz.incad.kramerius.ObjectPidsPath;
 import cz.incad.kramerius.SolrAccess;
+import cz.incad.kramerius.imaging.TileSessionCache;
+import cz.incad.kramerius.imaging.TileSessionCache.TileMetadata;
 import cz.incad.kramerius.rest.utils.IIIFUtils;
 import cz.incad.kramerius.security.RightsResolver;
 import cz.incad.kramerius.security.SecuredActions;
@@ -14,6 +16,7 @@ import cz.incad.kramerius.security.User;
 import cz.incad.kramerius.statistics.StatisticsAccessLog;
 import cz.incad.kramerius.statistics.accesslogs.AggregatedAccessLogs;
 import cz.incad.kramerius.utils.FedoraUtils;
+import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.RESTHelper;
 import cz.incad.kramerius.utils.imgs.KrameriusImageSupport;
 import org.apache.commons.io.IOUtils;
@@ -63,6 +66,9 @@ public class IiifServlet extends AbstractImageServlet {
     @Inject
     AggregatedAccessLogs aggregatedAccessLogs;
 
+    @Inject
+    TileSessionCache tileSessionCache;
+
     private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(IiifServlet.class.getName());
 
 
@@ -72,21 +78,25 @@ public class IiifServlet extends AbstractImageServlet {
             String requestURL = req.getRequestURL().toString();
             String zoomUrl = DeepZoomServlet.disectZoom(requestURL);
             StringTokenizer tokenizer = new StringTokenizer(zoomUrl, "/");
-            String pid = tokenizer.nextToken();
-
             //unescape PID
-            pid = URLDecoder.decode(pid, "UTF-8");
+            String pid = URLDecoder.decode(tokenizer.nextToken(), "UTF-8");
 
-            ObjectPidsPath[] paths = solrAccess.getPidPaths(pid);
-            boolean permited = false;
-            for (ObjectPidsPath pth : paths) {
-                permited = this.rightsResolver.isActionAllowed(userProvider.get(), SecuredActions.A_READ.getFormalName(), pid, null, pth.injectRepository()).flag();
-                if (permited) break;
+            TileMetadata metadata = tileSessionCache.getMetadata(pid, () -> TileMetadata.load(pid, this.fedoraAccess, this.solrAccess));
+            if (!metadata.isAvailable()) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
             }
+            User user = userProvider.get();
+            boolean permited = tileSessionCache.isReadAllowed(pid, user, IPAddressUtils.getRemoteAddress(req), () -> {
+                for (ObjectPidsPath pth : metadata.getPaths()) {
+                    if (this.rightsResolver.isActionAllowed(user, SecuredActions.A_READ.getFormalName(), pid, null, pth.injectRepository()).flag()) return true;
+                }
+                return false;
+            });
             if (permited) {
                 try {
                     
-                    String u = IIIFUtils.iiifImageEndpoint(pid, this.fedoraAccess);
+                    String u = IIIFUtils.iiifImageEndpointFromTilesUrl(metadata.getTilesUrl());
                     if (u != null) {
                         StringBuilder url = new StringBuilder(u);
                         while (tokenizer.hasMoreTokens()) {
@@ -56,12 +56,15 @@ import cz.incad.kramerius.ObjectPidsPath;
 import cz.incad.kramerius.SolrAccess;
 import cz.incad.kramerius.imaging.DeepZoomCacheService;
 import cz.incad.kramerius.imaging.DeepZoomTileSupport;
+import cz.incad.kramerius.imaging.TileSessionCache;
+import cz.incad.kramerius.imaging.TileSessionCache.TileMetadata;
 import cz.incad.kramerius.security.RightsResolver;
 import cz.incad.kramerius.security.SecuredActions;
 import cz.incad.kramerius.security.User;
 import cz.incad.kramerius.statistics.StatisticsAccessLog;
 import cz.incad.kramerius.utils.FedoraUtils;
 import cz.incad.kramerius.utils.IOUtils;
+import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.RelsExtHelper;
 import cz.incad.kramerius.utils.XMLUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
@@ -100,6 +103,9 @@ public class ZoomifyServlet extends AbstractImageServlet {
     @Inject
     MostDesirable mostDesirable;
 
+    @Inject
+    TileSessionCache tileSessionCache;
+
     
     @Override
     public ScalingMethod getScalingMethod() {
@@ -122,17 +128,19 @@ public class ZoomifyServlet extends AbstractImageServlet {
             String pid = tokenizer.nextToken();
             String rest = tokenizer.hasMoreTokens() ?  tokenizer.nextToken() : "";
 
-            if (this.fedoraAccess.isObjectAvailable(pid)) {
-                ObjectPidsPath[] paths = solrAccess.getPidPaths(pid);
-                boolean permitted = false;
-                for (ObjectPidsPath pth : paths) {
-                    permitted = this.rightsResolver.isActionAllowed(userProvider.get(), SecuredActions.A_READ.getFormalName(),pid,null,pth.injectRepository()).flag();
-                    if (permitted) break;
-                }
+            TileMetadata metadata = tileSessionCache.getMetadata(pid, () -> TileMetadata.load(pid, this.fedoraAccess, this.solrAccess));
+            if (metadata.isAvailable()) {
+                User user = userProvider.get();
+                boolean permitted = tileSessionCache.isReadAllowed(pid, user, IPAddressUtils.getRemoteAddress(req), () -> {
+                    for (ObjectPidsPath pth : metadata.getPaths()) {
+                        if (this.rightsResolver.isActionAllowed(user, SecuredActions.A_READ.getFormalName(),pid,null,pth.injectRepository()).flag()) return true;
+                    }
+                    return false;
+                });
                 
                 if (permitted) {
                     if (rest.equals("ImageProperties.xml")) {
-                        renderXMLDescriptor(pid, req, resp);
+                        renderXMLDescriptor(pid, metadata, req, resp);
                     } else {
                         if (tokenizer.hasMoreTokens()) {
                             String files = tokenizer.nextToken();
@@ -146,7 +154,7 @@ public class ZoomifyServlet extends AbstractImageServlet {
                                 String level = substokenizer.nextToken();
                                 String x = substokenizer.nextToken();
                                 String y = substokenizer.nextToken();
-                                renderTile(pid, level, x, y, ext, req, resp);
+                                renderTile(pid, metadata, level, x, y, ext, req, resp);
                             }
                         }
                     }
@@ -162,14 +170,14 @@ public class ZoomifyServlet extends AbstractImageServlet {
         }
     }
 
-    private void renderXMLDescriptor(String pid, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
+    private void renderXMLDescriptor(String pid, TileMetadata metadata, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
         reportAccess(pid);
 
         setDateHaders(pid,FedoraUtils.IMG_FULL_STREAM, resp);
         setResponseCode(pid,FedoraUtils.IMG_FULL_STREAM, req, resp);
         mostDesirable.saveAccess(pid, new java.util.Date());
 
-        String relsExtUrl = RelsExtHelper.getRelsExtTilesUrl(pid, this.fedoraAccess);
+        String relsExtUrl = metadata.getTilesUrl();
         if (relsExtUrl != null) {
             if (!relsExtUrl.equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL)) {
                 try {
@@ -268,10 +276,10 @@ public class ZoomifyServlet extends AbstractImageServlet {
         return useFromReplicated;
     }
     
-    private void renderTile(String pid, String slevel, String x, String y, String ext, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
+    private void renderTile(String pid, TileMetadata metadata, String slevel, String x, String y, String ext, HttpServletRequest req, HttpServletResponse resp) throws IOException, XPathExpressionException {
         setDateHaders(pid, FedoraUtils.IMG_FULL_STREAM, resp);
         setResponseCode(pid,FedoraUtils.IMG_FULL_STREAM, req, resp);
-        String relsExtUrl = RelsExtHelper.getRelsExtTilesUrl(pid, this.fedoraAccess);
+        String relsExtUrl = metadata.getTilesUrl();
         if (relsExtUrl != null) {
             if (!relsExtUrl.equals(RelsExtHelper.CACHE_RELS_EXT_LITERAL)) {
                 try {
@@ -283,7 +291,7 @@ public class ZoomifyServlet extends AbstractImageServlet {
             } else {
                 // srow = y
                 // scol = x
-                renderEmbededTile(pid, slevel,x,y,ext, req, resp);
+                renderEmbededTile(pid, metadata, slevel,x,y,ext, req, resp);
             }
         } else {
             resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
@@ -292,15 +300,16 @@ public class ZoomifyServlet extends AbstractImageServlet {
 
 
     
-    private void renderEmbededTile(String pid, String slevel, String x, String y,String ext, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    private void renderEmbededTile(String pid, TileMetadata metadata, String slevel, String x, String y,String ext, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         try {
             
-            if (!cacheService.isResolutionFilePresent(pid)) {
-                Dimension rawDim = KrameriusImageSupport.readDimension(pid, FedoraUtils.IMG_FULL_STREAM, fedoraAccess, 0);
-                cacheService.writeResolution(pid, rawDim);
-            }
-
-            Dimension originalResolution = cacheService.getResolutionFromFile(pid);
+            Dimension originalResolution = metadata.getResolution(() -> {
+                if (!cacheService.isResolutionFilePresent(pid)) {
+                    Dimension rawDim = KrameriusImageSupport.readDimension(pid, FedoraUtils.IMG_FULL_STREAM, fedoraAccess, 0);
+                    cacheService.writeResolution(pid, rawDim);
+                }
+                return cacheService.getResolutionFromFile(pid);
+            });
             int requestedLevel = Integer.parseInt(slevel);
             int maxLevels = tileSupport.getLevels(originalResolution, tileSupport.getTileSize());
 
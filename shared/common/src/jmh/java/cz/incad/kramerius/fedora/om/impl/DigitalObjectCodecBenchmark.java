@@ -0,0 +1,96 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares FOXML parse throughput of one globally synchronized unmarshaller (original
+ * AkubraDOManager code) with {@link DigitalObjectCodec} at 1, 8 and 32 threads.
+ * <p>
+ * Run: <code>gradle :shared:common:jmh</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigitalObjectCodecBenchmark {
+
+    private static final String FOXML = "/cz/incad/kramerius/fedora/om/5035a48a-5e2e-486c-8127-2fa650842e46.xml";
+
+    private byte[] foxml;
+    private Unmarshaller sharedUnmarshaller;
+
+    @Setup
+    public void setup() throws IOException, JAXBException {
+        try (InputStream is = DigitalObjectCodecBenchmark.class.getResourceAsStream(FOXML)) {
+            this.foxml = IOUtils.toByteArray(is);
+        }
+        this.sharedUnmarshaller = DigitalObjectCodec.getContext().createUnmarshaller();
+    }
+
+    private DigitalObject synchronizedUnmarshal() throws JAXBException {
+        synchronized (sharedUnmarshaller) {
+            return (DigitalObject) sharedUnmarshaller.unmarshal(new ByteArrayInputStream(foxml));
+        }
+    }
+
+    private DigitalObject codecUnmarshal() throws JAXBException {
+        return DigitalObjectCodec.unmarshal(new ByteArrayInputStream(foxml));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DigitalObject synchronizedUnmarshaller_1() throws JAXBException {
+        return synchronizedUnmarshal();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public DigitalObject synchronizedUnmarshaller_8() throws JAXBException {
+        return synchronizedUnmarshal();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public DigitalObject synchronizedUnmarshaller_32() throws JAXBException {
+        return synchronizedUnmarshal();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DigitalObject codec_1() throws JAXBException {
+        return codecUnmarshal();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public DigitalObject codec_8() throws JAXBException {
+        return codecUnmarshal();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public DigitalObject codec_32() throws JAXBException {
+        return codecUnmarshal();
+    }
+}
@@ -0,0 +1,135 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write path of AkubraDOManager.commit for write heavy processes (SetLicenseProcess, import):
+ * <ul>
+ *     <li><code>stringCopies</code> - original code: marshal into StringWriter, String, UTF-8 bytes, existence probe, copy into the store</li>
+ *     <li><code>bytes</code> - marshal into byte array, copy into the store</li>
+ *     <li><code>streaming</code> - {@link DigitalObjectCodec#marshalToFile(DigitalObject, File)}, marshalled directly into the file</li>
+ * </ul>
+ * Files are written into a temporary directory, every thread replaces its own object file.
+ * <p>
+ * Run: <code>gradle :shared:common:jmh -PjmhInclude=FoxmlCommitBenchmark</code>, use <code>-prof gc</code> for allocation rate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FoxmlCommitBenchmark {
+
+    private static final String FOXML = "/cz/incad/kramerius/fedora/om/5035a48a-5e2e-486c-8127-2fa650842e46.xml";
+
+    private DigitalObject object;
+    private File dir;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Target {
+        File file;
+
+        @Setup
+        public void setup(FoxmlCommitBenchmark benchmark) {
+            this.file = new File(new File(benchmark.dir, String.format("%02d", benchmark.threads.incrementAndGet())), "info%3Afedora%2Fuuid%3Abenchmark");
+            this.file.getParentFile().mkdirs();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException, JAXBException {
+        try (InputStream is = FoxmlCommitBenchmark.class.getResourceAsStream(FOXML)) {
+            this.object = DigitalObjectCodec.unmarshal(is);
+        }
+        this.dir = Files.createTempDirectory("foxml-commit").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File stringCopies_1(Target target) throws Exception {
+        return stringCopies(target.file);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public File stringCopies_8(Target target) throws Exception {
+        return stringCopies(target.file);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File bytes_1(Target target) throws Exception {
+        return bytes(target.file);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public File bytes_8(Target target) throws Exception {
+        return bytes(target.file);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File streaming_1(Target target) throws Exception {
+        DigitalObjectCodec.marshalToFile(object, target.file);
+        return target.file;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public File streaming_8(Target target) throws Exception {
+        DigitalObjectCodec.marshalToFile(object, target.file);
+        return target.file;
+    }
+
+    private File stringCopies(File file) throws Exception {
+        StringWriter writer = new StringWriter();
+        DigitalObjectCodec.marshal(object, writer);
+        byte[] bytes = writer.toString().getBytes(StandardCharsets.UTF_8);
+        // objectExists probe before replace
+        if (file.exists()) {
+            Files.copy(new ByteArrayInputStream(bytes), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.copy(new ByteArrayInputStream(bytes), file.toPath());
+        }
+        return file;
+    }
+
+    private File bytes(File file) throws Exception {
+        DigitalObjectCodec.copyToFile(new ByteArrayInputStream(DigitalObjectCodec.marshalToBytes(object)), file);
+        return file;
+    }
+}
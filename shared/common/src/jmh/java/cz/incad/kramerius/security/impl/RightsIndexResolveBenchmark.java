@@ -0,0 +1,97 @@
+package cz.incad.kramerius.security.impl;
+
+import cz.incad.kramerius.ObjectPidsPath;
+import cz.incad.kramerius.security.RightCriteriumException;
+import cz.incad.kramerius.security.RightsReturnObject;
+import cz.incad.kramerius.security.Role;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link DatabaseRightsManager#resolve} served from {@link RightsIndex} (no database access)
+ * for a page five levels deep in a tree; index contains <code>objects</code> rights on other objects.
+ * <p>
+ * Run: <code>gradle :shared:common:jmh</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RightsIndexResolveBenchmark {
+
+    private static final String READ = "read";
+
+    @Param({"1000", "100000"})
+    public int objects;
+
+    private DatabaseRightsManager rightsManager;
+    private ObjectPidsPath path;
+    private UserImpl user;
+
+    @Setup
+    public void setup() {
+        List<RightsIndex.RightRecord> records = new ArrayList<>();
+        int id = 1;
+        for (int i = 0; i < objects; i++) {
+            records.add(record(id++, "uuid:object-" + i, "admins", null));
+        }
+        String[] pathPids = new String[]{"uuid:monograph", "uuid:volume", "uuid:part", "uuid:chapter", "uuid:page"};
+        for (String pid : pathPids) {
+            //rights of other roles on the path, not applicable for the user
+            records.add(record(id++, pid, "admins", null));
+            records.add(record(id++, pid, "k4_admins", null));
+        }
+        records.add(record(id++, "uuid:1", "common_users", null));
+        records.add(record(id, "uuid:1", "admins", null));
+
+        RightsIndex index = new RightsIndex();
+        index.setRecords(records);
+
+        this.rightsManager = new DatabaseRightsManager();
+        this.rightsManager.rightsIndex = index;
+        this.path = new ObjectPidsPath(pathPids);
+        this.user = new UserImpl(1, "", "", "benchmark", -1);
+        this.user.setGroups(new Role[]{new RoleImpl(1, "common_users", -1), new RoleImpl(2, "readers", -1)});
+    }
+
+    private static RightsIndex.RightRecord record(int id, String pid, String role, Integer userId) {
+        return new RightsIndex.RightRecord(id, pid, READ, 0, role, userId,
+                null, 0, 0,
+                0, null, null, null,
+                0, null, null, null, 0,
+                false, 0, 0, 0, null);
+    }
+
+    private RightsReturnObject resolve() throws RightCriteriumException {
+        RightParamEvaluatingContextImpl ctx = new RightParamEvaluatingContextImpl.Builder().setUser(user).build();
+        return rightsManager.resolve(ctx, "uuid:page", path, READ, user);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public RightsReturnObject resolve1() throws RightCriteriumException {
+        return resolve();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public RightsReturnObject resolve8() throws RightCriteriumException {
+        return resolve();
+    }
+}
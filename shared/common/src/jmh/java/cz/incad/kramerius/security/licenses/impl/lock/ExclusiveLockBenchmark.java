@@ -0,0 +1,137 @@
+package cz.incad.kramerius.security.licenses.impl.lock;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import cz.incad.kramerius.security.licenses.impl.LicenseImpl;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLock.ExclusiveLockType;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMap;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMapItem;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMaps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exclusive lock operations of 8 threads (requests of different users) on <code>copies</code> lock maps:
+ * <ul>
+ *     <li><code>acquireRelease</code> - register a lease if there is a free place and return it (LocksResource refresh + delete)</li>
+ *     <li><code>refresh</code> - refresh of a held lease</li>
+ *     <li><code>check</code> - read path of the rights check (find lease of the token, validity)</li>
+ * </ul>
+ * <code>local</code> is the per-node {@link ExclusiveLockMapsImpl}, <code>hazelcast</code> is {@link HazelcastExclusiveLockMapsImpl}
+ * on an embedded single member cluster (serialization and partition operations, no network).
+ * With one copy all threads contend for one lock; with 64 copies they mostly don't.
+ * <p>
+ * Run: <code>gradle :shared:common:jmh -PjmhInclude=ExclusiveLockBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ExclusiveLockBenchmark {
+
+    @Param({"local", "hazelcast"})
+    public String impl;
+
+    @Param({"1", "64"})
+    public int copies;
+
+    private HazelcastInstance hazelcast;
+    private LicenseImpl license;
+    private ExclusiveLockMap[] maps;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Reader {
+        ExclusiveLockMap map;
+        String tokenId;
+
+        @Setup
+        public void setup(ExclusiveLockBenchmark benchmark) {
+            int thread = benchmark.threads.getAndIncrement();
+            this.map = benchmark.maps[thread % benchmark.maps.length];
+            this.tokenId = "token-" + thread;
+            // lease held by refresh and check
+            this.map.registerItem(benchmark.item(this.tokenId));
+        }
+    }
+
+    @Setup
+    public void setup() {
+        this.license = new LicenseImpl("benchmark", "", "local");
+        // refresh 60s, max 1h; readers enough for held leases of all threads and one acquisition of each
+        this.license.initExclusiveLock(60, 3600, 16, ExclusiveLockType.INSTANCE);
+
+        ExclusiveLockMaps lockMaps;
+        if ("hazelcast".equals(impl)) {
+            Config config = new Config();
+            config.getGroupConfig().setName("exclusive-lock-benchmark");
+            JoinConfig join = config.getNetworkConfig().getJoin();
+            join.getMulticastConfig().setEnabled(false);
+            join.getTcpIpConfig().setEnabled(false);
+            this.hazelcast = Hazelcast.newHazelcastInstance(config);
+            lockMaps = new HazelcastExclusiveLockMapsImpl(hazelcast.getMap(HazelcastExclusiveLockMapsImpl.MAP_NAME), () -> null);
+        } else {
+            lockMaps = new ExclusiveLockMapsImpl();
+        }
+        this.maps = new ExclusiveLockMap[copies];
+        for (int i = 0; i < copies; i++) {
+            String pid = "uuid:copy-" + i;
+            maps[i] = lockMaps.findOrCreateByHash(license.getExclusiveLock().createLockHash(license, null, pid), license, pid, "benchmark");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (hazelcast != null) {
+            hazelcast.shutdown();
+        }
+    }
+
+    ExclusiveLockMapItem item(String tokenId) {
+        Instant now = Instant.now();
+        return new ExclusiveLockMapItemImpl(tokenId, 60, now, now, now.plusSeconds(3600), "benchmark");
+    }
+
+    @Benchmark
+    public boolean acquireRelease(Reader reader) {
+        ExclusiveLockMapItem item = item(reader.tokenId + "-next");
+        if (reader.map.tryRegisterItem(item)) {
+            reader.map.deregisterItem(item);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public ExclusiveLockMap refresh(Reader reader) throws Exception {
+        reader.map.refresh(reader.tokenId);
+        return reader.map;
+    }
+
+    @Benchmark
+    public boolean check(Reader reader) {
+        ExclusiveLockMapItem item = reader.map.findByTokenId(reader.tokenId);
+        return item != null && item.isValid(Instant.now());
+    }
+}
@@ -0,0 +1,160 @@
+package cz.incad.kramerius.statistics.impl;
+
+import cz.incad.kramerius.utils.IterationUtils;
+import cz.incad.kramerius.utils.XMLUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processing of one export of <code>logs</code> generated access log documents, without network: the original
+ * iteration (DOM parsed pages of 1000 ids, every 10 ids fetched as json string and parsed again) against json cursor
+ * pages of full documents parsed from the stream by {@link NKPLogReport#page}. Both convert documents by
+ * {@link NKPLogReport#toMap}. The original iteration also needs one request per 10 documents, the streaming one
+ * per page.
+ * <p>
+ * Run: <code>gradle :shared:common:jmh -PjmhInclude=NKPLogReportBenchmark</code>, use <code>-prof gc</code> for allocation rate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NKPLogReportBenchmark {
+
+    private static final int PAGE = 1000;
+    private static final int BATCH = 10;
+
+    @Param({"10000", "100000"})
+    public int logs;
+
+    /** xml pages of ids (original iteration) */
+    private List<byte[]> idPages;
+    /** json responses of 10 documents by their first id (original iteration) */
+    private Map<String, byte[]> batches;
+    /** json cursor pages of full documents */
+    private List<byte[]> docPages;
+
+    @Setup
+    public void setup() {
+        this.idPages = new ArrayList<>();
+        this.batches = new HashMap<>();
+        this.docPages = new ArrayList<>();
+        for (int start = 0; start < logs; start += PAGE) {
+            int end = Math.min(logs, start + PAGE);
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response><lst name=\"responseHeader\"><int name=\"status\">0</int></lst>");
+            xml.append("<result name=\"response\" numFound=\"").append(logs).append("\" start=\"0\">");
+            JSONArray pageDocs = new JSONArray();
+            for (int b = start; b < end; b += BATCH) {
+                JSONArray batchDocs = new JSONArray();
+                for (int i = b; i < Math.min(end, b + BATCH); i++) {
+                    JSONObject doc = log(i);
+                    xml.append("<doc><str name=\"id\">").append(doc.getString("id")).append("</str></doc>");
+                    batchDocs.put(doc);
+                    pageDocs.put(doc);
+                }
+                batches.put(id(b), response(batchDocs, null));
+            }
+            xml.append("</result><str name=\"nextCursorMark\">").append(id(end)).append("</str></response>");
+            idPages.add(xml.toString().getBytes(StandardCharsets.UTF_8));
+            docPages.add(response(pageDocs, id(end)));
+        }
+    }
+
+    private static String id(int i) {
+        return String.format("log-%08d", i);
+    }
+
+    private static JSONObject log(int i) {
+        JSONObject doc = new JSONObject();
+        doc.put("id", id(i));
+        doc.put("pid", "uuid:" + new UUID(i, i * 31L));
+        doc.put("date", String.format("2023-%02d-%02dT10:15:30Z", i % 12 + 1, i % 28 + 1));
+        doc.put("ip_address", "192.168." + (i % 256) + "." + (i * 7 % 256));
+        doc.put("user", "user" + (i % 100));
+        doc.put("date.str", "1923");
+        doc.put("date_range_start.year", 1923);
+        doc.put("date_range_end.year", 1923);
+        doc.put("licenses", new JSONArray().put("dnnto").put("public"));
+        doc.put("evaluated_map", new JSONObject().put("providedByLicense", "dnnto").put("evaluated", true).toString());
+        doc.put("user_session_attributes", new JSONObject().put("eduPersonPrincipalName", "user" + (i % 100) + "@example.org")
+                .put("affiliation", "member").toString());
+        doc.put("root_title", "Periodical " + (i % 50));
+        doc.put("titles", new JSONArray().put("Page " + i).put("Periodical " + (i % 50)));
+        doc.put("root_model", "periodical");
+        doc.put("own_model_path", "periodical/periodicalvolume/periodicalitem/page");
+        doc.put("own_pid_path", "uuid:root/uuid:volume/uuid:item/uuid:page" + i);
+        doc.put("pid_paths", new JSONArray().put("uuid:root/uuid:volume/uuid:item/uuid:page" + i));
+        doc.put("all_models", new JSONArray().put("periodical").put("periodicalvolume").put("periodicalitem").put("page"));
+        doc.put("pids_periodical", new JSONArray().put("uuid:root"));
+        doc.put("pids_periodicalvolume", new JSONArray().put("uuid:volume"));
+        doc.put("publishers", new JSONArray().put("Publisher " + (i % 20)));
+        doc.put("authors", new JSONArray().put("Author " + (i % 30)));
+        doc.put("id_issn", new JSONArray().put("1234-5678"));
+        return doc;
+    }
+
+    private static byte[] response(JSONArray docs, String nextCursorMark) {
+        JSONObject response = new JSONObject();
+        response.put("responseHeader", new JSONObject().put("status", 0));
+        response.put("response", new JSONObject().put("numFound", docs.length()).put("start", 0).put("docs", docs));
+        if (nextCursorMark != null) {
+            response.put("nextCursorMark", nextCursorMark);
+        }
+        return response.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void domIdsAndBatches(Blackhole blackhole) throws IOException, ParserConfigurationException, SAXException {
+        for (byte[] page : idPages) {
+            Document document = XMLUtils.parseDocument(new ByteArrayInputStream(page));
+            blackhole.consume(IterationUtils.findCursorMark(document.getDocumentElement()));
+            NodeList ids = document.getElementsByTagName("str");
+            for (int i = 0; i < ids.getLength(); i++) {
+                Element id = (Element) ids.item(i);
+                if ("id".equals(id.getAttribute("name")) && i % BATCH == 0) {
+                    String string = IOUtils.toString(new ByteArrayInputStream(batches.get(id.getTextContent())), "UTF-8");
+                    JSONArray docs = new JSONObject(string).getJSONObject("response").getJSONArray("docs");
+                    for (int j = 0; j < docs.length(); j++) {
+                        blackhole.consume(NKPLogReport.toMap(docs.getJSONObject(j)));
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamedCursorPages(Blackhole blackhole) throws IOException {
+        for (byte[] page : docPages) {
+            blackhole.consume(NKPLogReport.page(new ByteArrayInputStream(page), doc -> blackhole.consume(NKPLogReport.toMap(doc))));
+        }
+    }
+}
@@ -7,8 +7,8 @@ import ca.thoughtwire.concurrent.HazelcastDataStructureFactory;
 import com.hazelcast.core.HazelcastInstance;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -86,15 +86,7 @@ public class DistributedLockService implements GridMembershipListener {
      */
     public ReadWriteLock getReentrantReadWriteLock(final String lockName)
     {
-        if (THREAD_LOCKS.containsKey(lockName))
-        {
-            return THREAD_LOCKS.get(lockName);
-        }
-        else {
-            final DistributedReentrantReadWriteLock lock = new DistributedReentrantReadWriteLock(this, lockName);
-            THREAD_LOCKS.put(lockName, lock);
-            return lock;
-        }
+        return THREAD_LOCKS.computeIfAbsent(lockName, name -> new DistributedReentrantReadWriteLock(this, name));
 
     }
 
@@ -172,7 +164,7 @@ public class DistributedLockService implements GridMembershipListener {
     private static final String PREFIX = "HZLOCK_";
 
     private static final Map<String, DistributedReentrantReadWriteLock> THREAD_LOCKS =
-            new HashMap<String, DistributedReentrantReadWriteLock>();
+            new ConcurrentHashMap<String, DistributedReentrantReadWriteLock>();
 
     /* Structures used to release locks held by crashed nodes */
     private final String nodeId;
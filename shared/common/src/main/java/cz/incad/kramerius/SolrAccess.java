@@ -195,7 +195,7 @@ public interface SolrAccess {
      *              for example: start=0&wt=json&fl=pid&q=indexed:%5B2021-02-01T18%5C:18%5C:00.000Z%20TO%20*%5D&rows=10
      *              notice the url encoding of query param content, here demonstrated on "indexed:[2021-02-01T18\:18\:00.000Z TO *]"
      * @param type  value "xml" or "json", this will be passed to query param wt
-     * @return
+     * @return whole response read into memory
      * @throws IOException
      * @deprecated instead use requestWithSelectReturningJson(), requestWithSelectReturningXml(query), or requestWithSelectReturningString(query,type)
      */
@@ -224,7 +224,7 @@ public interface SolrAccess {
      *              for example: start=0&wt=json&fl=pid&q=indexed:%5B2021-02-01T18%5C:18%5C:00.000Z%20TO%20*%5D&rows=10
      *              notice the url encoding of query param content, here demonstrated on "indexed:[2021-02-01T18\:18\:00.000Z TO *]"
      * @param type  value "xml" or "json", this will be passed to query param wt
-     * @return
+     * @return whole response read into memory
      * @throws IOException
      */
     public InputStream requestWithTerms(String query, String type) throws IOException;
@@ -389,9 +389,11 @@ public class FedoraAccessAkubraImpl extends AbstractFedoraAccess {
     public InputStream getFoxml(String pid, boolean archive) throws IOException {
         try {
             if (archive){
-                DigitalObject obj = manager.readObjectCloneFromStorage(pid);
-                manager.resolveArchivedDatastreams(obj);
-                return this.manager.marshallObject(obj);
+                InputStream archived = manager.retrieveArchivedObject(pid);
+                if (archived == null) {
+                    throw new IOException("Object not found: " + pid);
+                }
+                return archived;
             }else {
                 return this.manager.retrieveObject(pid);
             }
@@ -1,6 +1,10 @@
 package cz.incad.kramerius.fedora.om.impl;
 
 import ca.thoughtwire.lock.DistributedLockService;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hazelcast.client.HazelcastClient;
 import com.hazelcast.client.config.ClientConfig;
 import com.hazelcast.client.config.XmlClientConfigBuilder;
@@ -13,26 +17,17 @@ import org.akubraproject.fs.FSBlobStore;
 import org.akubraproject.map.IdMapper;
 import org.akubraproject.map.IdMappingBlobStore;
 import org.apache.commons.io.IOUtils;
-import org.ehcache.Cache;
 import org.ehcache.CacheManager;
-import org.ehcache.config.builders.CacheConfigurationBuilder;
-import org.ehcache.config.builders.ResourcePoolsBuilder;
-import org.ehcache.expiry.Duration;
-import org.ehcache.expiry.Expirations;
 import org.fcrepo.server.errors.LowlevelStorageException;
 import org.fcrepo.server.errors.ObjectAlreadyInLowlevelStorageException;
 import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
 import org.fcrepo.server.storage.ConnectionPool;
 import org.fcrepo.server.storage.lowlevel.DefaultLowlevelStorage;
-import org.fcrepo.server.storage.lowlevel.ICheckable;
 import org.fcrepo.server.storage.lowlevel.ILowlevelStorage;
 import org.fcrepo.server.storage.lowlevel.akubra.AkubraLowlevelStorage;
 import org.fcrepo.server.storage.lowlevel.akubra.HashPathIdMapper;
 import org.fcrepo.server.utilities.DDLConverter;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.io.*;
 import java.net.URI;
@@ -40,9 +35,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +49,12 @@ public class AkubraDOManager {
     public static final Logger LOGGER = Logger.getLogger(AkubraDOManager.class.getName());
     private KConfiguration configuration = KConfiguration.getInstance();
     private ILowlevelStorage storage;
+    //base directory and id mapper of datastream store (akubra storage only), used to resolve managed datastreams to files
+    private File datastreamStoreDir;
+    private IdMapper datastreamStoreMapper;
+    //base directory and id mapper of object store (akubra storage only), objects are written directly to files
+    private File objectStoreDir;
+    private IdMapper objectStoreMapper;
 
     private static HazelcastInstance hzInstance;
     //private static IMap<String, Integer> pidLocks;
@@ -57,27 +62,36 @@ public class AkubraDOManager {
     private static DistributedLockService lockService ;
     private static ITopic<String> cacheInvalidator;
 
-    private static Cache<String, DigitalObject> objectCache;
-    private static final String DIGITALOBJECT_CACHE_ALIAS = "DigitalObjectCache";
+    private static AkubraObjectCache objectCache;
 
-    private static Unmarshaller unmarshaller = null;
-    private static Marshaller marshaller = null;
+    /** When true, readers also take the cluster wide read lock (original behaviour) */
+    private static final boolean CLUSTER_READ_LOCKS = KConfiguration.getInstance().getConfiguration().getBoolean("hazelcast.clusterReadLocks", false);
 
-    static {
-        try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(DigitalObject.class);
+    /** In-JVM per-PID locks; values are weak, held locks are referenced from {@link HybridPidLock} */
+    private static final LoadingCache<String, ReentrantReadWriteLock> localLocks = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(CacheLoader.from(pid -> new ReentrantReadWriteLock()));
 
-            unmarshaller = jaxbContext.createUnmarshaller();
+    /** Write stamps (striped by pid hash); changed on every local write and every invalidation received from the cluster */
+    private static final int WRITE_STAMP_STRIPES = 1024;
+    private static final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
 
+    private static final AkubraLockStatistics lockStatistics = new AkubraLockStatistics();
 
-            //JAXBContext jaxbdatastreamContext = JAXBContext.newInstance(DatastreamType.class);
-            marshaller = jaxbContext.createMarshaller();
+    /** Writers of archive FOXML exports, see {@link #retrieveArchivedObject(String)}; exports over the queue size are refused */
+    private static final ThreadPoolExecutor archiveExports;
+    /** Export is stopped when the reader doesn't read anything for this time (ms) */
+    private static final long ARCHIVE_EXPORT_WRITE_TIMEOUT = KConfiguration.getInstance().getConfiguration().getLong("objectStore.archiveExport.writeTimeout", 300000);
 
+    static {
+        int threads = Math.max(1, KConfiguration.getInstance().getConfiguration().getInt("objectStore.archiveExport.threads", 4));
+        int queueSize = Math.max(1, KConfiguration.getInstance().getConfiguration().getInt("objectStore.archiveExport.queueSize", 64));
+        archiveExports = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("foxml-archive-%d").setDaemon(true).build());
+        archiveExports.allowCoreThreadTimeOut(true);
+    }
 
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Cannot init JAXB", e);
-            throw new RuntimeException(e);
-        }
+    static {
         ClientConfig config = null;
         File configFile = KConfiguration.getInstance().findConfigFile("hazelcast.clientconfig");
         if (configFile != null) {
@@ -100,25 +114,23 @@ public class AkubraDOManager {
         cacheInvalidator.addMessageListener(new MessageListener<String>() {
             @Override
             public void onMessage(Message<String> message) {
-                if (objectCache != null && message != null) {
-                    objectCache.remove(message.getMessageObject());
+                if (message != null) {
+                    bumpWriteStamp(message.getMessageObject());
+                    if (objectCache != null) {
+                        objectCache.remove(message.getMessageObject());
+                    }
                 }
             }
         });
+        lockStatistics.register();
     }
 
     public AkubraDOManager( CacheManager cacheManager) throws IOException {
         try {
             this.storage = initLowLevelStorage();
-            if (cacheManager != null) {
-                objectCache = cacheManager.getCache(DIGITALOBJECT_CACHE_ALIAS, String.class, DigitalObject.class);
-                if (objectCache == null) {
-                    objectCache = cacheManager.createCache(DIGITALOBJECT_CACHE_ALIAS,
-                            CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, DigitalObject.class,
-                                    ResourcePoolsBuilder.heap(3000))
-                                    .withExpiry(Expirations.timeToLiveExpiration(
-                                            Duration.of(configuration.getCacheTimeToLiveExpiration(), TimeUnit.SECONDS))).build());
-                }
+            if (cacheManager != null && objectCache == null) {
+                objectCache = new AkubraObjectCache(cacheManager);
+                objectCache.register();
             }
         } catch (Exception ex) {
             throw new IOException(ex);
@@ -134,11 +146,17 @@ public class AkubraDOManager {
     }
 
     private AkubraLowlevelStorage createAkubraLowLevelStorage() throws Exception {
-        BlobStore fsObjectStore = new FSBlobStore(new URI("urn:example.org:fsObjectStore"), new File(configuration.getProperty("objectStore.path")));
+        File objectStorePath = new File(configuration.getProperty("objectStore.path"));
+        BlobStore fsObjectStore = new FSBlobStore(new URI("urn:example.org:fsObjectStore"), objectStorePath);
         IdMapper fsObjectStoreMapper = new HashPathIdMapper(configuration.getProperty("objectStore.pattern"));
+        this.objectStoreDir = objectStorePath;
+        this.objectStoreMapper = fsObjectStoreMapper;
         BlobStore objectStore = new IdMappingBlobStore(new URI("urn:example.org:objectStore"), fsObjectStore, fsObjectStoreMapper);
-        BlobStore fsDatastreamStore = new FSBlobStore(new URI("urn:example.org:fsDatastreamStore"), new File(configuration.getProperty("datastreamStore.path")));
+        File datastreamStorePath = new File(configuration.getProperty("datastreamStore.path"));
+        BlobStore fsDatastreamStore = new FSBlobStore(new URI("urn:example.org:fsDatastreamStore"), datastreamStorePath);
         IdMapper fsDatastreamStoreMapper = new HashPathIdMapper(configuration.getProperty("datastreamStore.pattern"));
+        this.datastreamStoreDir = datastreamStorePath;
+        this.datastreamStoreMapper = fsDatastreamStoreMapper;
         BlobStore datastreamStore = new IdMappingBlobStore(new URI("urn:example.org:datastreamStore"), fsDatastreamStore, fsDatastreamStoreMapper);
         AkubraLowlevelStorage retval = new AkubraLowlevelStorage(objectStore, datastreamStore, true, true);
         return retval;
@@ -189,7 +207,8 @@ public class AkubraDOManager {
     }
 
     /**
-     * Loads and unmarshalls fresh copy of DigitalObject from Akubra storage, bypassing the cache
+     * Unmarshalls a private copy of DigitalObject which the caller may modify; the copy is never shared through the cache of
+     * unmarshalled objects, but it is unmarshalled from the cached FOXML bytes if they are present (read from Akubra storage otherwise).
      * Intended for use in FedoraAccess.getFoxml, which resolves internal managed datastreams to base64 binary content
      * @param pid
      * @return
@@ -199,30 +218,69 @@ public class AkubraDOManager {
         return readObjectFromStorageOrCache(pid, false);
     }
 
+    /**
+     * Unmarshalled objects are shared only by readers using the cache; a clone is always unmarshalled again
+     * (from cached FOXML bytes if possible)
+     */
     private DigitalObject readObjectFromStorageOrCache(String pid, boolean useCache) throws IOException {
-        DigitalObject retval = useCache ? objectCache.get(pid) : null;
-        if (retval == null) {
-            Object obj = null;
-            Lock lock = getReadLock(pid);
-            try (InputStream inputStream = this.storage.retrieveObject(pid);){
-                synchronized (unmarshaller) {
-                    obj = unmarshaller.unmarshal(inputStream);
+        if (objectCache != null) {
+            if (useCache) {
+                DigitalObject cached = objectCache.getObject(pid);
+                if (cached != null) {
+                    return cached;
                 }
-            } catch (ObjectNotInLowlevelStorageException ex) {
-                return null;
-            } catch (Exception e) {
-                throw new IOException(e);
-            } finally {
-                lock.unlock();
             }
-            retval = (DigitalObject) obj;
-            if (useCache) {
-                objectCache.put(pid, retval);
+            // optimistic check: object read while a write was published must not get into the cache
+            long stamp = writeStamp(pid);
+            byte[] bytes = objectCache.getFoxml(pid);
+            if (bytes != null) {
+                long start = System.nanoTime();
+                DigitalObject obj = unmarshal(bytes);
+                objectCache.unmarshalled(System.nanoTime() - start);
+                if (useCache && writeStamp(pid) == stamp) {
+                    objectCache.putObject(pid, obj, bytes.length);
+                }
+                return obj;
+            }
+        }
+        long start = System.nanoTime();
+        long stamp = writeStamp(pid);
+        byte[] bytes;
+        Lock lock = getReadLock(pid);
+        try (InputStream inputStream = this.storage.retrieveObject(pid);){
+            bytes = IOUtils.toByteArray(inputStream);
+        } catch (ObjectNotInLowlevelStorageException ex) {
+            return null;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            lock.unlock();
+        }
+        DigitalObject retval = unmarshal(bytes);
+        if (objectCache != null) {
+            objectCache.loaded(System.nanoTime() - start);
+            if (writeStamp(pid) == stamp) {
+                objectCache.put(pid, bytes, useCache ? retval : null);
             }
         }
         return retval;
     }
 
+    private static DigitalObject unmarshal(byte[] bytes) throws IOException {
+        try {
+            return DigitalObjectCodec.unmarshal(new ByteArrayInputStream(bytes));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Hits, misses, evictions and load times of the object cache; null if the manager was created without cache manager
+     */
+    public static AkubraObjectCache getObjectCache() {
+        return objectCache;
+    }
+
     public InputStream retrieveDatastream(String dsKey) throws IOException {
         try {
             return storage.retrieveDatastream(dsKey);
@@ -231,6 +289,25 @@ public class AkubraDOManager {
         }
     }
 
+    /**
+     * Resolves managed datastream to the file of the FSBlobStore
+     * @param dsKey datastream key (pid+dsId+dsVersionId)
+     * @return file with content of the datastream; null if legacy storage is used or file does not exist
+     */
+    public File getDatastreamFile(String dsKey) {
+        if (datastreamStoreMapper == null) {
+            return null;
+        }
+        try {
+            URI internalId = datastreamStoreMapper.getInternalId(AkubraLowlevelStorage.getBlobId(dsKey));
+            File file = new File(datastreamStoreDir, internalId.getRawSchemeSpecificPart());
+            return file.isFile() ? file : null;
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Cannot resolve datastream " + dsKey + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     public InputStream retrieveObject(String objectKey) throws IOException {
         Lock lock = getReadLock(objectKey);
         try {
@@ -278,11 +355,7 @@ public class AkubraDOManager {
             }
             try {
                 setLastModified(object);
-                StringWriter stringWriter = new StringWriter();
-                synchronized (marshaller) {
-                    marshaller.marshal(object, stringWriter);
-                }
-                addOrReplaceObject(pid, new ByteArrayInputStream(stringWriter.toString().getBytes("UTF-8")));
+                writeObject(object);
 
             } catch (Exception e) {
                 LOGGER.severe("Could not replace object in Akubra: " + e+", pid:'"+pid+"'");
@@ -326,11 +399,7 @@ public class AkubraDOManager {
                 setLastModified(object);
                 ensureCreatedDate(object);
                 ensureActive(object);
-                StringWriter stringWriter = new StringWriter();
-                synchronized (marshaller) {
-                    marshaller.marshal(object, stringWriter);
-                }
-                addOrReplaceObject(object.getPID(), new ByteArrayInputStream(stringWriter.toString().getBytes("UTF-8")));
+                writeObject(object);
 
             } catch (Exception e) {
                 LOGGER.severe("Could not replace object in Akubra: " + e);
@@ -343,11 +412,7 @@ public class AkubraDOManager {
 
     public InputStream marshallObject(DigitalObject object) {
         try {
-            StringWriter stringWriter = new StringWriter();
-            synchronized (marshaller) {
-                marshaller.marshal(object, stringWriter);
-            }
-            return new ByteArrayInputStream(stringWriter.toString().getBytes("UTF-8"));
+            return new ByteArrayInputStream(DigitalObjectCodec.marshalToBytes(object));
         } catch (Exception e) {
             LOGGER.severe("Could not marshall object: " + e);
             throw new RuntimeException(e);
@@ -429,6 +494,23 @@ public class AkubraDOManager {
         }
     }
 
+    /**
+     * FOXML of the object with content of managed datastreams inlined; binaries are streamed from the datastream store
+     * while the caller reads, see {@link FoxmlArchiveWriter}
+     * @return stream or null if the object doesn't exist
+     */
+    public InputStream retrieveArchivedObject(String pid) throws IOException {
+        DigitalObject object = readObjectCloneFromStorage(pid);
+        if (object == null) {
+            return null;
+        }
+        return FoxmlArchiveWriter.openStream(pid, object, this::retrieveDatastream, archiveExports, ARCHIVE_EXPORT_WRITE_TIMEOUT);
+    }
+
+    /**
+     * Loads content of all managed datastreams into the object; for export use {@link #retrieveArchivedObject(String)}, which doesn't
+     * hold the binaries in memory
+     */
     public void resolveArchivedDatastreams(DigitalObject object) {
         for (DatastreamType datastreamType : object.getDatastream()) {
             resolveArchiveManagedStream(datastreamType);
@@ -450,11 +532,47 @@ public class AkubraDOManager {
         }
     }
 
-    public void addOrReplaceObject(String pid, InputStream content) throws LowlevelStorageException {
-        if (((ICheckable) storage).objectExists(pid)) {
-            storage.replaceObject(pid, content, null);
+    /**
+     * Stores object (caller holds the write lock). Akubra storage: marshalled directly into the object file (temp file and atomic rename,
+     * no existence probe, no in-memory copy of FOXML); legacy storage: marshalled to bytes and added or replaced
+     */
+    private void writeObject(DigitalObject object) throws Exception {
+        File file = objectFile(object.getPID());
+        if (file != null) {
+            DigitalObjectCodec.marshalToFile(object, file);
         } else {
+            addOrReplaceObject(object.getPID(), new ByteArrayInputStream(DigitalObjectCodec.marshalToBytes(object)));
+        }
+    }
+
+    /**
+     * Resolves object to the file of the FSBlobStore
+     * @return file of the object (may not exist); null if legacy storage is used
+     */
+    private File objectFile(String pid) {
+        if (objectStoreMapper == null) {
+            return null;
+        }
+        URI internalId = objectStoreMapper.getInternalId(AkubraLowlevelStorage.getBlobId(pid));
+        return new File(objectStoreDir, internalId.getRawSchemeSpecificPart());
+    }
+
+    public void addOrReplaceObject(String pid, InputStream content) throws LowlevelStorageException {
+        File file = objectFile(pid);
+        if (file != null) {
+            // create or replace in one step, without probing the storage first
+            try {
+                DigitalObjectCodec.copyToFile(content, file);
+            } catch (IOException e) {
+                throw new LowlevelStorageException(true, "Cannot write object " + pid, e);
+            }
+            return;
+        }
+        try {
             storage.addObject(pid, content, null);
+        } catch (ObjectAlreadyInLowlevelStorageException e) {
+            // legacy storage checks the registry before reading the content, so the stream is not consumed yet
+            storage.replaceObject(pid, content, null);
         }
     }
 
@@ -475,25 +593,96 @@ public class AkubraDOManager {
     }
 
 
+    /**
+     * Acquires write lock for given pid. Writers are always coordinated across the cluster;
+     * local readers are excluded by the in-JVM lock and readers on other nodes are fenced
+     * by cache invalidation, see {@link #getReadLock(String)}
+     * @param pid
+     * @return acquired lock
+     */
     public static Lock getWriteLock(String pid) {
         if (pid == null) {
             throw new IllegalArgumentException("pid cannot be null");
         }
-        ReadWriteLock lock = lockService.getReentrantReadWriteLock(pid);
-        lock.writeLock().lock();
-        return lock.writeLock();
+        ReentrantReadWriteLock local = localLocks.getUnchecked(pid);
+        long start = System.nanoTime();
+        local.writeLock().lock();
+        long acquired = System.nanoTime();
+        lockStatistics.record(AkubraLockStatistics.Operation.localWrite, acquired - start);
+        try {
+            ReadWriteLock lock = lockService.getReentrantReadWriteLock(pid);
+            lock.writeLock().lock();
+            lockStatistics.record(AkubraLockStatistics.Operation.clusterWrite, System.nanoTime() - acquired);
+            return new HybridPidLock(local, local.writeLock(), lock.writeLock(), () -> bumpWriteStamp(pid));
+        } catch (RuntimeException e) {
+            local.writeLock().unlock();
+            throw e;
+        }
     }
 
+    /**
+     * Acquires read lock for given pid. By default only the in-JVM lock is taken; objects are replaced in the
+     * store atomically and every write is published to the cacheInvalidator topic, so readers do not need
+     * a cluster round-trip. Cluster wide read locks can be enabled by <code>hazelcast.clusterReadLocks=true</code>
+     * @param pid
+     * @return acquired lock
+     */
     public static Lock getReadLock(String pid) {
         if (pid == null) {
             throw new IllegalArgumentException("pid cannot be null");
         }
-        ReadWriteLock lock = lockService.getReentrantReadWriteLock(pid);
-        lock.readLock().lock();
-        return lock.readLock();
+        ReentrantReadWriteLock local = localLocks.getUnchecked(pid);
+        long start = System.nanoTime();
+        local.readLock().lock();
+        long acquired = System.nanoTime();
+        lockStatistics.record(AkubraLockStatistics.Operation.localRead, acquired - start);
+        if (!CLUSTER_READ_LOCKS) {
+            return new HybridPidLock(local, local.readLock(), null, null);
+        }
+        try {
+            ReadWriteLock lock = lockService.getReentrantReadWriteLock(pid);
+            lock.readLock().lock();
+            lockStatistics.record(AkubraLockStatistics.Operation.clusterRead, System.nanoTime() - acquired);
+            return new HybridPidLock(local, local.readLock(), lock.readLock(), null);
+        } catch (RuntimeException e) {
+            local.readLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Hazelcast topic of the cluster this node is connected to
+     */
+    public static <E> ITopic<E> getTopic(String name) {
+        return hzInstance.getTopic(name);
+    }
+
+    /**
+     * Hazelcast map of the cluster this node is connected to
+     */
+    public static <K, V> IMap<K, V> getMap(String name) {
+        return hzInstance.getMap(name);
+    }
+
+    public static AkubraLockStatistics getLockStatistics() {
+        return lockStatistics;
+    }
+
+    private static long writeStamp(String pid) {
+        return writeStamps.get(pid.hashCode() & (WRITE_STAMP_STRIPES - 1));
+    }
+
+    private static void bumpWriteStamp(String pid) {
+        if (pid != null) {
+            writeStamps.incrementAndGet(pid.hashCode() & (WRITE_STAMP_STRIPES - 1));
+        }
     }
 
     private static void invalidateCache(String pid) {
+        bumpWriteStamp(pid);
+        if (objectCache != null) {
+            objectCache.remove(pid);
+        }
         cacheInvalidator.publish(pid);
     }
 
@@ -66,6 +66,13 @@ public class AkubraDatastream implements RepositoryDatastream {
     }
 
 
+    /**
+     * @return file of managed content in datastream store, null if content is not stored as a file
+     */
+    public File getContentFile() {
+        return AkubraUtils.getStreamFile(AkubraUtils.getLastStreamVersion(datastream), manager);
+    }
+
     @Override
     public Document getMetadata() throws RepositoryException {
         return null;
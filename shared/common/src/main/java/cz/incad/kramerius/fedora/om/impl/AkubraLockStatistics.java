@@ -0,0 +1,92 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lock wait time statistics per lock operation
+ */
+public class AkubraLockStatistics implements AkubraLockStatisticsMXBean {
+
+    public static final Logger LOGGER = Logger.getLogger(AkubraLockStatistics.class.getName());
+
+    public static final String OBJECT_NAME = "cz.incad.kramerius:type=AkubraLocks";
+
+    public enum Operation {
+        localRead, localWrite, clusterRead, clusterWrite
+    }
+
+    private final LongAdder[] counts = new LongAdder[Operation.values().length];
+    private final LongAdder[] waitNanos = new LongAdder[Operation.values().length];
+    private final LongAccumulator[] maxWaitNanos = new LongAccumulator[Operation.values().length];
+
+    public AkubraLockStatistics() {
+        for (Operation op : Operation.values()) {
+            counts[op.ordinal()] = new LongAdder();
+            waitNanos[op.ordinal()] = new LongAdder();
+            maxWaitNanos[op.ordinal()] = new LongAccumulator(Math::max, 0L);
+        }
+    }
+
+    public void record(Operation op, long nanos) {
+        counts[op.ordinal()].increment();
+        waitNanos[op.ordinal()].add(nanos);
+        maxWaitNanos[op.ordinal()].accumulate(nanos);
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> retval = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            retval.put(op.name(), counts[op.ordinal()].sum());
+        }
+        return retval;
+    }
+
+    @Override
+    public Map<String, Double> getAverageWaitMillis() {
+        Map<String, Double> retval = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            long count = counts[op.ordinal()].sum();
+            retval.put(op.name(), count == 0 ? 0.0 : waitNanos[op.ordinal()].sum() / (double) count / 1_000_000.0);
+        }
+        return retval;
+    }
+
+    @Override
+    public Map<String, Double> getMaxWaitMillis() {
+        Map<String, Double> retval = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            retval.put(op.name(), maxWaitNanos[op.ordinal()].get() / 1_000_000.0);
+        }
+        return retval;
+    }
+
+    @Override
+    public void reset() {
+        for (Operation op : Operation.values()) {
+            counts[op.ordinal()].reset();
+            waitNanos[op.ordinal()].reset();
+            maxWaitNanos[op.ordinal()].reset();
+        }
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Cannot register lock statistics MBean: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.util.Map;
+
+/**
+ * JMX view of lock wait times in {@link AkubraDOManager}; keys are lock operations
+ * (localRead, localWrite, clusterRead, clusterWrite)
+ */
+public interface AkubraLockStatisticsMXBean {
+
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getAverageWaitMillis();
+
+    Map<String, Double> getMaxWaitMillis();
+
+    void reset();
+}
@@ -195,9 +195,9 @@ public class AkubraObject implements RepositoryObject {
             if (streamId.equals(FedoraUtils.RELS_EXT_STREAM)) {
                 try {
                     // process rels-ext and create all children and relations
-                    this.feeder.deleteByRelationsForPid(pid);
-                    input.reset();
-                    rebuildProcessingIndexImpl(input);
+                    ProcessingIndexFeeder.Session session = this.feeder.session();
+                    session.deleteByRelationsForPid(pid);
+                    rebuildProcessingIndexImpl(session);
                 } catch (Throwable th) {
                     LOGGER.log(Level.SEVERE, "Cannot update processing index for "+ pid + " - reindex manually.", th);
                 }
@@ -252,114 +252,6 @@ public class AkubraObject implements RepositoryObject {
         }
     }
 
-    /**
-     * Process one relation and feed processing index
-     */
-    public void processRELSEXTRelationAndFeedProcessingIndex(String object, String localName) throws RepositoryException {
-        if (localName.equals("hasModel")) {
-            try {
-                boolean dcStreamExists = this.streamExists(FedoraUtils.DC_STREAM);
-                // TODO: Biblio mods ukladat jinam ??
-                boolean modsStreamExists = this.streamExists(FedoraUtils.BIBLIO_MODS_STREAM);
-                if (dcStreamExists || modsStreamExists) {
-                    try {
-                        //LOGGER.info("DC or BIBLIOMODS exists");
-                        if (dcStreamExists) {
-                            List<String> dcTList = dcTitle();
-                            if (dcTList != null && !dcTList.isEmpty()) {
-                                this.indexDescription(object, dcTList.stream().collect(Collectors.joining(" ")));
-                            } else {
-                                this.indexDescription(object, "");
-                            }
-                        } else if (modsStreamExists) {
-                            // czech title or default
-                            List<String> modsTList = modsTitle("cze");
-                            if (modsTList != null && !modsTList.isEmpty()) {
-                                this.indexDescription(object, modsTList.stream().collect(Collectors.joining(" ")), ProcessingIndexFeeder.TitleType.mods);
-                            } else {
-                                this.indexDescription(object, "");
-                            }
-                        }
-                    } catch (ParserConfigurationException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        this.indexDescription(object, "");
-                    } catch (SAXException e) {
-                        LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                        this.indexDescription(object, "");
-                    }
-                } else {
-                    LOGGER.info("Index description without dc or mods");
-                    this.indexDescription(object, "");
-                }
-            } catch (Throwable th) {
-                LOGGER.log(Level.SEVERE, "Cannot update processing index for "+ pid + " - reindex manually.", th);
-            }
-        } else {
-            try {
-                this.indexRelation(localName, object);
-            } catch (Throwable th) {
-                LOGGER.log(Level.SEVERE, "Cannot update processing index for "+ pid + " - reindex manually.", th);
-            }
-        }
-    }
-
-
-    private List<String> dcTitle() throws RepositoryException, ParserConfigurationException, SAXException, IOException {
-        InputStream stream = this.getStream(FedoraUtils.DC_STREAM).getContent();
-        Element title = XMLUtils.findElement(XMLUtils.parseDocument(stream, true).getDocumentElement(), "title", FedoraNamespaces.DC_NAMESPACE_URI);
-        return title != null ? Arrays.asList(title.getTextContent()) : new ArrayList<>();
-    }
-
-    private List<String> modsTitle(String lang) throws RepositoryException, ParserConfigurationException, SAXException, IOException {
-        InputStream stream = this.getStream(FedoraUtils.BIBLIO_MODS_STREAM).getContent();
-        Element docElement = XMLUtils.parseDocument(stream, true).getDocumentElement();
-
-        List<Element> elements = XMLUtils.getElementsRecursive(docElement, new XMLUtils.ElementsFilter() {
-            @Override
-            public boolean acceptElement(Element element) {
-                if (element.getNamespaceURI().equals(FedoraNamespaces.BIBILO_MODS_URI)) {
-                    if (element.getLocalName().equals("title") && element.hasAttribute("lang") && element.getAttribute("lang").equals("cze")) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-        });
-
-
-        if (elements.isEmpty()) {
-            elements = XMLUtils.getElementsRecursive(docElement, new XMLUtils.ElementsFilter() {
-                @Override
-                public boolean acceptElement(Element element) {
-                    if (element.getNamespaceURI().equals(FedoraNamespaces.BIBILO_MODS_URI)) {
-                        // TODO: Change it  
-                        if (element.getLocalName().equals("title")) {
-                            return true;
-                        }
-                    }
-                    return false;
-                }
-            });
-
-        }
-
-        return elements.stream().map(Element::getTextContent).collect(Collectors.toList());
-
-    }
-
-
-    private void indexRelation(String localName, String object) throws IOException, SolrServerException {
-        this.feeder.feedRelationDocument(this.getPid(), localName, object);
-    }
-
-    private void indexDescription(String model, String title, ProcessingIndexFeeder.TitleType ttype) throws IOException, SolrServerException {
-        this.feeder.feedDescriptionDocument(this.getPid(), model, title.trim(), AkubraUtils.getAkubraInternalId(this.getPid()), new Date(), ttype);
-    }
-
-    private void indexDescription(String model, String title) throws IOException, SolrServerException {
-        this.feeder.feedDescriptionDocument(this.getPid(), model, title.trim(), AkubraUtils.getAkubraInternalId(this.getPid()), new Date());
-    }
-
     public void deleteProcessingIndex() throws IOException, SolrServerException {
         feeder.deleteByPid(this.getPid());
     }
@@ -751,24 +643,20 @@ public class AkubraObject implements RepositoryObject {
 
     @Override
     public void rebuildProcessingIndex() throws RepositoryException {
-        RepositoryDatastream stream = this.getStream(FedoraUtils.RELS_EXT_STREAM);
-        InputStream content = stream.getContent();
-        rebuildProcessingIndexImpl(content);
+        rebuildProcessingIndexImpl(this.feeder.session());
     }
 
-    private void rebuildProcessingIndexImpl(InputStream content) throws RepositoryException {
+    /**
+     * All changes of one object are sent in one flush of the session
+     */
+    private void rebuildProcessingIndexImpl(ProcessingIndexFeeder.Session session) throws RepositoryException {
         try {
-            String s = IOUtils.toString(content, "UTF-8");
-            RELSEXTSPARQLBuilder sparqlBuilder = new RELSEXTSPARQLBuilderImpl();
-            sparqlBuilder.sparqlProps(s.trim(), (object, localName) -> {
-                processRELSEXTRelationAndFeedProcessingIndex(object, localName);
-                return object;
-            });
-        } catch (IOException e) {
-            throw new RepositoryException(e);
-        } catch (SAXException e) {
-            throw new RepositoryException(e);
-        } catch (ParserConfigurationException e) {
+            ObjectIndexingView view = ObjectIndexingView.create(this.digitalObject, this.manager);
+            if (view != null) {
+                view.feed(session);
+            }
+            session.flush();
+        } catch (IOException | SolrServerException e) {
             throw new RepositoryException(e);
         } finally {
             try {
@@ -0,0 +1,251 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.event.EventType;
+import org.ehcache.expiry.Duration;
+import org.ehcache.expiry.Expirations;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+
+/**
+ * Two tier cache of objects read by {@link AkubraDOManager}, both tiers are sized in bytes of FOXML:
+ * <ul>
+ *     <li>raw FOXML bytes (ehcache, heap <code>objectCache.heapSize</code> MB and optional off-heap <code>objectCache.offheapSize</code> MB);
+ *     a hit costs unmarshalling, but no access to the object store</li>
+ *     <li>unmarshalled objects of recently read FOXML, up to <code>objectCache.objectsSize</code> MB of their FOXML</li>
+ * </ul>
+ * A page and a periodical volume with inline OCR no longer count the same. Hits, misses, evictions and load times
+ * are published as MBean {@value #OBJECT_NAME}.
+ */
+public class AkubraObjectCache implements AkubraObjectCacheMXBean {
+
+    public static final Logger LOGGER = Logger.getLogger(AkubraObjectCache.class.getName());
+
+    public static final String OBJECT_NAME = "cz.incad.kramerius:type=AkubraObjectCache";
+
+    private static final String FOXML_CACHE_ALIAS = "DigitalObjectFoxmlCache";
+
+    private static final class CachedObject {
+        private final DigitalObject object;
+        private final int size;
+
+        private CachedObject(DigitalObject object, int size) {
+            this.object = object;
+            this.size = size;
+        }
+    }
+
+    private final org.ehcache.Cache<String, byte[]> foxml;
+    private final Cache<String, CachedObject> objects;
+    private final int maxEntrySize;
+
+    private final LongAdder objectHits = new LongAdder();
+    private final LongAdder foxmlHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder unmarshalNanos = new LongAdder();
+
+    public AkubraObjectCache(CacheManager cacheManager) {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        long ttl = KConfiguration.getInstance().getCacheTimeToLiveExpiration();
+        long heapSize = Math.max(1, conf.getLong("objectCache.heapSize", 64));
+        long offheapSize = conf.getLong("objectCache.offheapSize", 0);
+        this.maxEntrySize = (int) Math.min(Integer.MAX_VALUE, conf.getLong("objectCache.maxEntrySize", 4096) * 1024L);
+
+        org.ehcache.Cache<String, byte[]> existing = cacheManager.getCache(FOXML_CACHE_ALIAS, String.class, byte[].class);
+        if (existing == null) {
+            ResourcePoolsBuilder pools = ResourcePoolsBuilder.newResourcePoolsBuilder().heap(heapSize, MemoryUnit.MB);
+            if (offheapSize > 0) {
+                pools = pools.offheap(Math.max(offheapSize, heapSize + 1), MemoryUnit.MB);
+            }
+            existing = cacheManager.createCache(FOXML_CACHE_ALIAS,
+                    CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, byte[].class, pools)
+                            .withSizeOfMaxObjectSize(maxEntrySize + 1024L, MemoryUnit.B)
+                            .withExpiry(Expirations.timeToLiveExpiration(Duration.of(ttl, TimeUnit.SECONDS)))
+                            .add(CacheEventListenerConfigurationBuilder
+                                    .newEventListenerConfiguration(event -> evictions.increment(), EventType.EVICTED)
+                                    .unordered().asynchronous())
+                            .build());
+        }
+        this.foxml = existing;
+        this.objects = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, conf.getLong("objectCache.objectsSize", 32)) * 1024L * 1024L)
+                .weigher((String pid, CachedObject cached) -> cached.size)
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return unmarshalled object (shared with other readers) or null
+     */
+    DigitalObject getObject(String pid) {
+        CachedObject cached = objects.getIfPresent(pid);
+        if (cached != null) {
+            objectHits.increment();
+            return cached.object;
+        }
+        return null;
+    }
+
+    /**
+     * @return cached FOXML or null; null counts as a miss
+     */
+    byte[] getFoxml(String pid) {
+        byte[] bytes = foxml.get(pid);
+        if (bytes != null) {
+            foxmlHits.increment();
+        } else {
+            misses.increment();
+        }
+        return bytes;
+    }
+
+    /**
+     * Caches FOXML read from the object store and (if given) its unmarshalled object; FOXML larger than
+     * <code>objectCache.maxEntrySize</code> KB is not cached
+     */
+    void put(String pid, byte[] bytes, DigitalObject object) {
+        if (bytes.length > maxEntrySize) {
+            return;
+        }
+        foxml.put(pid, bytes);
+        if (object != null) {
+            objects.put(pid, new CachedObject(object, bytes.length));
+        }
+    }
+
+    /**
+     * Keeps object unmarshalled from cached FOXML
+     */
+    void putObject(String pid, DigitalObject object, int size) {
+        objects.put(pid, new CachedObject(object, size));
+    }
+
+    void remove(String pid) {
+        // local write removes the entry and then receives its own invalidation message, count it once
+        boolean present = objects.asMap().remove(pid) != null;
+        if (foxml.containsKey(pid)) {
+            foxml.remove(pid);
+            present = true;
+        }
+        if (present) {
+            invalidations.increment();
+        }
+    }
+
+    void loaded(long nanos) {
+        loadNanos.add(nanos);
+    }
+
+    void unmarshalled(long nanos) {
+        unmarshalNanos.add(nanos);
+    }
+
+    @Override
+    public long getObjectHits() {
+        return objectHits.sum();
+    }
+
+    @Override
+    public long getFoxmlHits() {
+        return foxmlHits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getObjectHits() + getFoxmlHits();
+        long all = hits + getMisses();
+        return all == 0 ? 0.0 : hits / (double) all;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public double getAverageLoadMillis() {
+        long count = getMisses();
+        return count == 0 ? 0.0 : loadNanos.sum() / (double) count / 1_000_000.0;
+    }
+
+    @Override
+    public double getAverageUnmarshalMillis() {
+        long count = getFoxmlHits();
+        return count == 0 ? 0.0 : unmarshalNanos.sum() / (double) count / 1_000_000.0;
+    }
+
+    @Override
+    public long getObjectCount() {
+        return objects.size();
+    }
+
+    @Override
+    public long getObjectBytes() {
+        long size = 0;
+        for (CachedObject cached : objects.asMap().values()) {
+            size += cached.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void reset() {
+        objectHits.reset();
+        foxmlHits.reset();
+        misses.reset();
+        evictions.reset();
+        invalidations.reset();
+        loadNanos.reset();
+        unmarshalNanos.reset();
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Cannot register object cache MBean: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+/**
+ * JMX view of the object cache of {@link AkubraDOManager}
+ */
+public interface AkubraObjectCacheMXBean {
+
+    /** Reads served by an already unmarshalled object */
+    long getObjectHits();
+
+    /** Reads served by cached FOXML bytes (unmarshalled again) */
+    long getFoxmlHits();
+
+    /** Reads from the object store */
+    long getMisses();
+
+    /** (objectHits + foxmlHits) / all reads */
+    double getHitRate();
+
+    /** Entries evicted for size from both tiers */
+    long getEvictions();
+
+    /** Entries removed because the object was changed (locally or in the cluster) */
+    long getInvalidations();
+
+    /** Average time of reading and unmarshalling an object from the object store */
+    double getAverageLoadMillis();
+
+    /** Average time of unmarshalling cached FOXML bytes */
+    double getAverageUnmarshalMillis();
+
+    /** Number of unmarshalled objects held */
+    long getObjectCount();
+
+    /** Size of FOXML of unmarshalled objects held, in bytes */
+    long getObjectBytes();
+
+    void reset();
+}
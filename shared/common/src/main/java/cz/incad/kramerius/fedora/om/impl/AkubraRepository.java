@@ -146,41 +146,17 @@ public class AkubraRepository extends Repository {
     }
 
 
+    /**
+     * Iterates pids of all objects in the object store (decoded from file names, objects are not read).
+     * Object store is scanned in parallel, the consumer is called from one thread at a time.
+     */
     @Override
     public void iterateObjects(Consumer<String> consumer) throws RepositoryException,  IOException {
-        /*
-        Stack<String> stack = new Stack<>();
-        StringBuilder builder = new StringBuilder(endpoint()).append("/").append(Fedora4Utils.DATA_PREFIX_PATH);
-        stack.push(builder.toString());
-        while(!stack.isEmpty()) {
-            String url = stack.pop();
-            try (FcrepoResponse response = new GetBuilder(URI.create(url), client).accept("application/rdf+xml").perform()) {
-                if (response.getStatusCode() == 200) {
-                    InputStream body = response.getBody();
-                    Document document = XMLUtils.parseDocument(body, true);
-                    Element hasModel = XMLUtils.findElement(document.getDocumentElement(), "hasModel", FedoraNamespaces.FEDORA_MODELS_URI);
-                    if (hasModel != null ) {
-                        Element pidElm = XMLUtils.findElement(document.getDocumentElement(), "PID", FedoraNamespaces.FEDORA_FOXML_URI);
-                        consumer.accept(pidElm.getTextContent());
-                    } else {
-                        List<String> ldp = XMLUtils.getElementsRecursive(document.getDocumentElement(), (element) -> {
-                            String localName = element.getLocalName();
-                            String namespace = element.getNamespaceURI();
-                            if (localName.equals("contains") && namespace.equals(FedoraNamespaces.LDP_NAMESPACE_URI)) {
-                                return true;
-                            } else return false;
-                        }).stream().map((element) -> {
-                            return element.getAttributeNS(FedoraNamespaces.RDF_NAMESPACE_URI, "resource");
-                        }).collect(Collectors.toList());
-                        ldp.stream().forEach(u-> stack.push(u));
-                    }
-                }
-            } catch (SAXException e) {
-                throw new RepositoryException(e.getMessage());
-            } catch (ParserConfigurationException e) {
-                throw new RepositoryException(e.getMessage());
+        ObjectStoreScanner.fromConfiguration(null).scanPids(pid -> {
+            synchronized (consumer) {
+                consumer.accept(pid);
             }
-        } */ //TODO iterovat cele repository a consumerovi predavat pid
+        });
     }
 
     @Override
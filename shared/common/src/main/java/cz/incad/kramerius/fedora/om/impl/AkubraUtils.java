@@ -18,6 +18,7 @@ import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.transform.TransformerException;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
@@ -108,6 +109,26 @@ public class AkubraUtils {
         }
     }
 
+    /**
+     * File of managed datastream content (INTERNAL_ID or local fedora reference)
+     * @return file in datastream store, or null if the content is not stored as a file (inline, external, legacy storage)
+     */
+    public static File getStreamFile(DatastreamVersionType stream, AkubraDOManager manager) {
+        if (stream == null || stream.getContentLocation() == null) {
+            return null;
+        }
+        String ref = stream.getContentLocation().getREF();
+        if ("INTERNAL_ID".equals(stream.getContentLocation().getTYPE())) {
+            return manager.getDatastreamFile(ref);
+        } else if ("URL".equals(stream.getContentLocation().getTYPE()) && ref.startsWith(LOCAL_REF_PREFIX)) {
+            String[] refArray = ref.replace(LOCAL_REF_PREFIX, "").split("/");
+            if (refArray.length == 2) {
+                return manager.getDatastreamFile(refArray[0] + "+" + refArray[1] + "+" + refArray[1] + ".0");
+            }
+        }
+        return null;
+    }
+
     private static InputStream readFromURL(String url) throws IOException {
         URL searchURL = new URL(url);
         URLConnection conn = searchURL.openConnection();
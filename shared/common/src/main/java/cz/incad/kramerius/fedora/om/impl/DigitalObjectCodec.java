@@ -0,0 +1,168 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+import org.apache.commons.io.IOUtils;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe FOXML (un)marshalling of {@link DigitalObject}.
+ * <p>
+ * {@link JAXBContext} is thread safe and expensive to create, so it is shared. {@link Unmarshaller} and
+ * {@link Marshaller} are cheap but not thread safe; every thread gets its own instance,
+ * so concurrent readers never wait on one global monitor.
+ */
+public final class DigitalObjectCodec {
+
+    public static final Logger LOGGER = Logger.getLogger(DigitalObjectCodec.class.getName());
+
+    private static final JAXBContext JAXB_CONTEXT;
+
+    private static final String TEMP_FILE_PREFIX = ".foxml-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    static {
+        try {
+            JAXB_CONTEXT = JAXBContext.newInstance(DigitalObject.class);
+        } catch (JAXBException e) {
+            LOGGER.log(Level.SEVERE, "Cannot init JAXB", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final ThreadLocal<Unmarshaller> UNMARSHALLER = ThreadLocal.withInitial(() -> {
+        try {
+            return JAXB_CONTEXT.createUnmarshaller();
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Cannot create unmarshaller", e);
+        }
+    });
+
+    private static final ThreadLocal<Marshaller> MARSHALLER = ThreadLocal.withInitial(() -> {
+        try {
+            return JAXB_CONTEXT.createMarshaller();
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Cannot create marshaller", e);
+        }
+    });
+
+    private DigitalObjectCodec() {
+    }
+
+    public static JAXBContext getContext() {
+        return JAXB_CONTEXT;
+    }
+
+    public static DigitalObject unmarshal(InputStream inputStream) throws JAXBException {
+        return (DigitalObject) UNMARSHALLER.get().unmarshal(inputStream);
+    }
+
+    public static DigitalObject unmarshal(Reader reader) throws JAXBException {
+        return (DigitalObject) UNMARSHALLER.get().unmarshal(reader);
+    }
+
+    public static void marshal(DigitalObject object, OutputStream outputStream) throws JAXBException {
+        MARSHALLER.get().marshal(object, outputStream);
+    }
+
+    public static void marshal(DigitalObject object, Writer writer) throws JAXBException {
+        MARSHALLER.get().marshal(object, writer);
+    }
+
+    /**
+     * Marshals object directly into UTF-8 bytes (default marshaller encoding)
+     */
+    public static byte[] marshalToBytes(DigitalObject object) throws JAXBException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        marshal(object, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Marshals object into a temporary file next to the target and renames it to the target atomically;
+     * target is created or replaced, readers see either the old or the new content, never a partial one.
+     * New file gets default permissions (umask), replaced file keeps permissions and group of the original one
+     */
+    public static void marshalToFile(DigitalObject object, File file) throws IOException {
+        writeAtomically(file, out -> {
+            try {
+                marshal(object, out);
+            } catch (JAXBException e) {
+                throw new IOException(e);
+            }
+        });
+    }
+
+    /**
+     * Copies already marshalled FOXML into the file the same way as {@link #marshalToFile(DigitalObject, File)}
+     */
+    public static void copyToFile(InputStream content, File file) throws IOException {
+        writeAtomically(file, out -> IOUtils.copy(content, out));
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(File file, ContentWriter writer) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        // not Files.createTempFile; it creates owner-only (0600) file which would replace the object
+        Path tmp = dir.toPath().resolve(TEMP_FILE_PREFIX + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024)) {
+                writer.write(out);
+            }
+            copyPermissions(file.toPath(), tmp);
+            Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void copyPermissions(Path original, Path tmp) {
+        PosixFileAttributeView view = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+        if (view == null || !Files.exists(original)) {
+            return;
+        }
+        try {
+            PosixFileAttributes attributes = Files.readAttributes(original, PosixFileAttributes.class);
+            view.setPermissions(attributes.permissions());
+            if (!attributes.group().equals(view.readAttributes().group())) {
+                view.setGroup(attributes.group());
+            }
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            LOGGER.log(Level.WARNING, "Cannot copy permissions of " + original + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the file is a temporary file of {@link #marshalToFile(DigitalObject, File)} (write in progress or interrupted)
+     */
+    public static boolean isTempFile(String fileName) {
+        return fileName.startsWith(TEMP_FILE_PREFIX) && fileName.endsWith(TEMP_FILE_SUFFIX);
+    }
+}
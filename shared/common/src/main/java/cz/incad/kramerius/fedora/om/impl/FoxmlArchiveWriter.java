@@ -0,0 +1,456 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.IOUtils;
+
+import com.qbizm.kramerius.imp.jaxb.ContentLocationType;
+import com.qbizm.kramerius.imp.jaxb.DatastreamType;
+import com.qbizm.kramerius.imp.jaxb.DatastreamVersionType;
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+
+import cz.incad.kramerius.FedoraNamespaces;
+
+/**
+ * Writes FOXML in archive form (content of managed datastreams inlined as <code>binaryContent</code>) with constant memory.
+ * <p>
+ * Managed datastream versions get a placeholder instead of their content; while the object is marshalled, every placeholder
+ * is replaced by base64 of the datastream, read from the datastream store in chunks only at that moment.
+ * Exporting an object with gigabyte binaries therefore never holds them on the heap (unlike
+ * {@link AkubraDOManager#resolveArchivedDatastreams(DigitalObject)}).
+ * <p>
+ * Managed datastream which cannot be opened (missing or unreadable) is logged and its version is exported with
+ * <code>contentLocation</code> instead of <code>binaryContent</code>, as {@link AkubraDOManager#resolveArchivedDatastreams(DigitalObject)} does.
+ * Failure while the content is being written aborts the export; the document is already partially written.
+ */
+public class FoxmlArchiveWriter {
+
+    public static final Logger LOGGER = Logger.getLogger(FoxmlArchiveWriter.class.getName());
+
+    /** Multiple of 3, so that chunks encode to base64 without padding */
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+
+    private static final byte[] PLACEHOLDER = new byte[] { 0 };
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    /**
+     * Opens content of managed datastream
+     */
+    @FunctionalInterface
+    public interface ContentSource {
+        InputStream open(String ref) throws IOException;
+    }
+
+    private FoxmlArchiveWriter() {
+    }
+
+    /**
+     * Writes archive FOXML of given object into the stream; the object is modified (managed datastreams lose their content location),
+     * so it must be a private copy (e.g. {@link AkubraDOManager#readObjectCloneFromStorage(String)})
+     */
+    public static void write(DigitalObject object, ContentSource source, OutputStream out) throws IOException {
+        // refs in the order binaryContent elements are marshalled; "" = binary content already inline
+        Deque<String> contents = new ArrayDeque<>();
+        for (DatastreamType datastream : object.getDatastream()) {
+            for (DatastreamVersionType version : datastream.getDatastreamVersion()) {
+                ContentLocationType location = version.getContentLocation();
+                if ("M".equals(datastream.getCONTROLGROUP()) && version.getBinaryContent() == null && location != null && location.getREF() != null
+                        && canOpen(source, location.getREF())) {
+                    version.setBinaryContent(PLACEHOLDER);
+                    version.setContentLocation(null);
+                    contents.add(location.getREF());
+                } else if (version.getBinaryContent() != null) {
+                    contents.add("");
+                }
+            }
+        }
+        try {
+            XMLStreamWriter writer = new BinaryContentWriter(OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8"), contents, source);
+            Marshaller marshaller = DigitalObjectCodec.getContext().createMarshaller();
+            marshaller.marshal(object, writer);
+            writer.flush();
+        } catch (JAXBException | XMLStreamException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean canOpen(ContentSource source, String ref) {
+        try (InputStream input = source.open(ref)) {
+            if (input == null) {
+                throw new IOException("no content");
+            }
+            return true;
+        } catch (Exception e) {
+            LOGGER.severe("Could not resolve archive managed datastream " + ref + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Replaces placeholder content of <code>binaryContent</code> elements by streamed base64
+     */
+    private static class BinaryContentWriter implements XMLStreamWriter {
+
+        private static final String BINARY_CONTENT = "binaryContent";
+
+        private final XMLStreamWriter delegate;
+        private final Deque<String> contents;
+        private final ContentSource source;
+        // ref of the binaryContent element being written; "" = original inline content, null = outside binaryContent
+        private String current;
+
+        BinaryContentWriter(XMLStreamWriter delegate, Deque<String> contents, ContentSource source) {
+            this.delegate = delegate;
+            this.contents = contents;
+            this.source = source;
+        }
+
+        private void started(String namespaceURI, String localName) {
+            if (BINARY_CONTENT.equals(localName) && (namespaceURI == null || FedoraNamespaces.FEDORA_FOXML_URI.equals(namespaceURI))) {
+                current = contents.isEmpty() ? "" : contents.poll();
+            }
+        }
+
+        private boolean placeholder() {
+            return current != null && !current.isEmpty();
+        }
+
+        private void streamContent(String ref) throws XMLStreamException {
+            try (InputStream input = source.open(ref)) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                Base64.Encoder encoder = Base64.getEncoder();
+                int read;
+                while ((read = IOUtils.read(input, buffer)) > 0) {
+                    delegate.writeCharacters(encoder.encodeToString(read == buffer.length ? buffer : Arrays.copyOf(buffer, read)));
+                }
+            } catch (IOException e) {
+                // export must not silently contain broken binary
+                throw new XMLStreamException("Cannot read managed datastream " + ref, e);
+            }
+        }
+
+        @Override
+        public void writeStartElement(String localName) throws XMLStreamException {
+            started(null, localName);
+            delegate.writeStartElement(localName);
+        }
+
+        @Override
+        public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+            started(namespaceURI, localName);
+            delegate.writeStartElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            started(namespaceURI, localName);
+            delegate.writeStartElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEndElement() throws XMLStreamException {
+            if (placeholder()) {
+                streamContent(current);
+            }
+            current = null;
+            delegate.writeEndElement();
+        }
+
+        @Override
+        public void writeCharacters(String text) throws XMLStreamException {
+            if (!placeholder()) {
+                delegate.writeCharacters(text);
+            }
+        }
+
+        @Override
+        public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+            if (!placeholder()) {
+                delegate.writeCharacters(text, start, len);
+            }
+        }
+
+        @Override
+        public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+            delegate.writeEmptyElement(namespaceURI, localName);
+        }
+
+        @Override
+        public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+            delegate.writeEmptyElement(prefix, localName, namespaceURI);
+        }
+
+        @Override
+        public void writeEmptyElement(String localName) throws XMLStreamException {
+            delegate.writeEmptyElement(localName);
+        }
+
+        @Override
+        public void writeEndDocument() throws XMLStreamException {
+            delegate.writeEndDocument();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            delegate.close();
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            delegate.flush();
+        }
+
+        @Override
+        public void writeAttribute(String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(localName, value);
+        }
+
+        @Override
+        public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(prefix, namespaceURI, localName, value);
+        }
+
+        @Override
+        public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+            delegate.writeAttribute(namespaceURI, localName, value);
+        }
+
+        @Override
+        public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+            delegate.writeNamespace(prefix, namespaceURI);
+        }
+
+        @Override
+        public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+            delegate.writeDefaultNamespace(namespaceURI);
+        }
+
+        @Override
+        public void writeComment(String data) throws XMLStreamException {
+            delegate.writeComment(data);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target) throws XMLStreamException {
+            delegate.writeProcessingInstruction(target);
+        }
+
+        @Override
+        public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+            delegate.writeProcessingInstruction(target, data);
+        }
+
+        @Override
+        public void writeCData(String data) throws XMLStreamException {
+            delegate.writeCData(data);
+        }
+
+        @Override
+        public void writeDTD(String dtd) throws XMLStreamException {
+            delegate.writeDTD(dtd);
+        }
+
+        @Override
+        public void writeEntityRef(String name) throws XMLStreamException {
+            delegate.writeEntityRef(name);
+        }
+
+        @Override
+        public void writeStartDocument() throws XMLStreamException {
+            delegate.writeStartDocument();
+        }
+
+        @Override
+        public void writeStartDocument(String version) throws XMLStreamException {
+            delegate.writeStartDocument(version);
+        }
+
+        @Override
+        public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+            delegate.writeStartDocument(encoding, version);
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return delegate.getPrefix(uri);
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+            delegate.setPrefix(prefix, uri);
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+            delegate.setDefaultNamespace(uri);
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            delegate.setNamespaceContext(context);
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return delegate.getNamespaceContext();
+        }
+
+        @Override
+        public Object getProperty(String name) throws IllegalArgumentException {
+            return delegate.getProperty(name);
+        }
+    }
+
+    /**
+     * Archive FOXML as a stream; written by the executor while the caller reads, so that neither the FOXML
+     * nor the binaries are held in memory. Failure of the writer is reported to the reader as IOException.
+     * The writer stops when the reader closes the stream or doesn't read anything for <code>writeTimeout</code> ms.
+     * @throws IOException if the executor doesn't accept the export
+     */
+    public static InputStream openStream(String pid, DigitalObject object, ContentSource source, Executor executor, long writeTimeout) throws IOException {
+        ArchiveInputStream input = new ArchiveInputStream();
+        ArchiveOutputStream output = new ArchiveOutputStream(input, writeTimeout);
+        try {
+            executor.execute(() -> {
+                try {
+                    write(object, source, output);
+                } catch (Throwable e) {
+                    if (input.closed) {
+                        LOGGER.info("Export of archive FOXML of " + pid + " closed by the reader");
+                    } else {
+                        LOGGER.log(Level.SEVERE, "Cannot export archive FOXML of " + pid + ": " + e.getMessage(), e);
+                    }
+                    // recorded before the pipe is closed, the reader must not see a regular end of stream
+                    input.failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+                } finally {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            input.close();
+            throw new IOException("Too many archive exports, cannot export " + pid, e);
+        }
+        return input;
+    }
+
+    /**
+     * Reader side of the pipe; end of a failed export is reported as the failure, not as a regular end of stream
+     */
+    private static class ArchiveInputStream extends PipedInputStream {
+
+        private volatile IOException failure;
+        private volatile boolean closed;
+
+        ArchiveInputStream() {
+            super(CHUNK_SIZE * 2);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return checkFailure(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return checkFailure(super.read(b, off, len));
+        }
+
+        private int checkFailure(int read) throws IOException {
+            if (read < 0 && failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+        /**
+         * Waits until the reader frees space in the buffer
+         * @return number of bytes which can be written without blocking
+         * @throws IOException if the reader closed the stream or didn't read anything for timeout ms
+         */
+        synchronized int awaitSpace(long timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!closed && available() >= buffer.length) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Archive export not read for " + timeout + " ms");
+                }
+                try {
+                    // reader doesn't notify when it frees space, the same polling as in PipedInputStream
+                    wait(Math.min(remaining, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            return buffer.length - available();
+        }
+    }
+
+    /**
+     * Writer side of the pipe; never blocks longer than the write timeout
+     */
+    private static class ArchiveOutputStream extends PipedOutputStream {
+
+        private final ArchiveInputStream input;
+        private final long writeTimeout;
+
+        ArchiveOutputStream(ArchiveInputStream input, long writeTimeout) throws IOException {
+            super(input);
+            this.input = input;
+            this.writeTimeout = writeTimeout;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            input.awaitSpace(writeTimeout);
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int space = Math.min(len, input.awaitSpace(writeTimeout));
+                super.write(b, off, space);
+                off += space;
+                len -= space;
+            }
+        }
+    }
+}
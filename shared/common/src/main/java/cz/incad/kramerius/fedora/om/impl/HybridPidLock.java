@@ -0,0 +1,122 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Already acquired per-PID lock returned from {@link AkubraDOManager#getReadLock(String)} and
+ * {@link AkubraDOManager#getWriteLock(String)}. Combines the in-JVM lock with an optional cluster wide lock;
+ * {@link #unlock()} releases the cluster lock first and then the local one. Other {@link Lock} methods acquire
+ * the local lock first and then the cluster one, the same order as {@link AkubraDOManager} does.
+ * <p>
+ * Keeps a strong reference to the local {@link ReentrantReadWriteLock} so that the weakly held lock registry
+ * cannot drop it while it is held.
+ */
+class HybridPidLock implements Lock {
+
+    private final ReentrantReadWriteLock owner;
+    private final Lock local;
+    private final Lock cluster;
+    private final Runnable afterUnlock;
+
+    HybridPidLock(ReentrantReadWriteLock owner, Lock local, Lock cluster, Runnable afterUnlock) {
+        this.owner = owner;
+        this.local = local;
+        this.cluster = cluster;
+        this.afterUnlock = afterUnlock;
+    }
+
+    @Override
+    public void unlock() {
+        try {
+            if (cluster != null) {
+                cluster.unlock();
+            }
+        } finally {
+            local.unlock();
+            if (afterUnlock != null) {
+                afterUnlock.run();
+            }
+        }
+    }
+
+    /**
+     * Acquires the lock once more (both locks are reentrant); every acquisition must be paired with {@link #unlock()}
+     */
+    @Override
+    public void lock() {
+        local.lock();
+        if (cluster != null) {
+            try {
+                cluster.lock();
+            } catch (RuntimeException e) {
+                local.unlock();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        local.lockInterruptibly();
+        if (cluster != null) {
+            try {
+                cluster.lockInterruptibly();
+            } catch (InterruptedException | RuntimeException e) {
+                local.unlock();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        if (!local.tryLock()) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = cluster == null || cluster.tryLock();
+            return acquired;
+        } finally {
+            if (!acquired) {
+                local.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (!local.tryLock(time, unit)) {
+            return false;
+        }
+        boolean acquired = false;
+        try {
+            acquired = cluster == null || cluster.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return acquired;
+        } finally {
+            if (!acquired) {
+                local.unlock();
+            }
+        }
+    }
+
+    /**
+     * Condition of the in-JVM lock; not supported when the cluster lock is held too (a condition cannot span
+     * both locks) and for read locks
+     */
+    @Override
+    public Condition newCondition() {
+        if (cluster != null) {
+            throw new UnsupportedOperationException("conditions are not supported by cluster wide locks");
+        }
+        return local.newCondition();
+    }
+
+    ReentrantReadWriteLock getOwner() {
+        return owner;
+    }
+}
@@ -0,0 +1,239 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.qbizm.kramerius.imp.jaxb.DatastreamVersionType;
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+import com.qbizm.kramerius.imp.jaxb.PropertyType;
+
+import cz.incad.kramerius.FedoraNamespaces;
+import cz.incad.kramerius.resourceindex.ProcessingIndexFeeder;
+import cz.incad.kramerius.utils.FedoraUtils;
+import cz.incad.kramerius.utils.XMLUtils;
+import cz.incad.kramerius.utils.pid.PIDParser;
+
+/**
+ * Everything the processing index needs from one FOXML object: relations from RELS-EXT, model, title (DC or MODS) and dates.
+ * <p>
+ * RELS-EXT, DC and MODS are read once, inline XML datastreams are used directly as unmarshalled elements
+ * (no serialization and parsing again). Feeding the processing index is then one pass over {@link #getRelations()}.
+ */
+public class ObjectIndexingView {
+
+    public static final Logger LOGGER = Logger.getLogger(ObjectIndexingView.class.getName());
+
+    private static final String HAS_MODEL = "hasModel";
+
+    private final String pid;
+    private final List<Pair<String, String>> relations;
+    private final String model;
+    private final String title;
+    private final ProcessingIndexFeeder.TitleType titleType;
+    private final Date created;
+    private final Date lastModified;
+
+    private ObjectIndexingView(String pid, List<Pair<String, String>> relations, String title, ProcessingIndexFeeder.TitleType titleType, Date created, Date lastModified) {
+        this.pid = pid;
+        this.relations = Collections.unmodifiableList(relations);
+        this.model = relations.stream().filter(p -> HAS_MODEL.equals(p.getLeft())).map(Pair::getRight).findFirst().orElse(null);
+        this.title = title;
+        this.titleType = titleType;
+        this.created = created;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param manager needed only for managed or referenced datastreams; may be null when the object is read from FOXML file
+     * @return view or null if the object has no RELS-EXT
+     */
+    public static ObjectIndexingView create(DigitalObject object, AkubraDOManager manager) throws IOException {
+        Element relsExt = xmlContent(object, FedoraUtils.RELS_EXT_STREAM, manager);
+        if (relsExt == null) {
+            return null;
+        }
+        List<Pair<String, String>> relations = relations(relsExt);
+
+        String title = null;
+        ProcessingIndexFeeder.TitleType titleType = ProcessingIndexFeeder.TitleType.dc;
+        //title is indexed only with model
+        if (relations.stream().anyMatch(p -> HAS_MODEL.equals(p.getLeft()))) {
+            title = "";
+            try {
+                Element dc = xmlContent(object, FedoraUtils.DC_STREAM, manager);
+                if (dc != null) {
+                    Element dcTitle = XMLUtils.findElement(dc, "title", FedoraNamespaces.DC_NAMESPACE_URI);
+                    title = dcTitle != null ? dcTitle.getTextContent() : "";
+                } else {
+                    Element mods = xmlContent(object, FedoraUtils.BIBLIO_MODS_STREAM, manager);
+                    if (mods != null) {
+                        List<String> modsTitles = modsTitle(mods, "cze");
+                        if (!modsTitles.isEmpty()) {
+                            title = modsTitles.stream().collect(Collectors.joining(" "));
+                            titleType = ProcessingIndexFeeder.TitleType.mods;
+                        }
+                    }
+                }
+            } catch (XmlException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        return new ObjectIndexingView(object.getPID(), relations, title != null ? title.trim() : null, titleType,
+                property(object, "info:fedora/fedora-system:def/model#createdDate"),
+                property(object, "info:fedora/fedora-system:def/view#lastModifiedDate"));
+    }
+
+    /**
+     * Feeds description and relations of the object into given session (in order of RELS-EXT, as the sparql builder does)
+     */
+    public void feed(ProcessingIndexFeeder.Session session) throws IOException, SolrServerException {
+        feed(session, null);
+    }
+
+    /**
+     * @param sourceModified last modification of the FOXML file, stored in the description document (watermark of incremental rebuild)
+     */
+    public void feed(ProcessingIndexFeeder.Session session, Long sourceModified) throws IOException, SolrServerException {
+        String ref = AkubraUtils.getAkubraInternalId(pid);
+        for (Pair<String, String> relation : relations) {
+            if (HAS_MODEL.equals(relation.getLeft())) {
+                session.feedDescriptionDocument(pid, relation.getRight(), title != null ? title : "", ref, new Date(), titleType, sourceModified);
+            } else {
+                session.feedRelationDocument(pid, relation.getLeft(), relation.getRight());
+            }
+        }
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * @return pairs (relation local name, target pid) of RELS-EXT relations to other objects
+     */
+    public List<Pair<String, String>> getRelations() {
+        return relations;
+    }
+
+    /**
+     * @return model (target of hasModel, e.g. <code>model:page</code>)
+     */
+    public String getModel() {
+        return model;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public ProcessingIndexFeeder.TitleType getTitleType() {
+        return titleType;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    private static List<Pair<String, String>> relations(Element relsExt) {
+        List<Pair<String, String>> relations = new ArrayList<>();
+        Element description = XMLUtils.findElement(relsExt, "Description", FedoraNamespaces.RDF_NAMESPACE_URI);
+        if (description == null) {
+            return relations;
+        }
+        NodeList childNodes = description.getChildNodes();
+        for (int i = 0, ll = childNodes.getLength(); i < ll; i++) {
+            Node n = childNodes.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                Element elm = (Element) n;
+                Attr resource = elm.getAttributeNodeNS(FedoraNamespaces.RDF_NAMESPACE_URI, "resource");
+                if (resource != null && resource.getValue().startsWith(PIDParser.INFO_FEDORA_PREFIX)) {
+                    relations.add(new ImmutablePair<>(elm.getLocalName(), resource.getValue().substring(PIDParser.INFO_FEDORA_PREFIX.length())));
+                }
+            }
+        }
+        return relations;
+    }
+
+    private static List<String> modsTitle(Element mods, String lang) {
+        List<Element> elements = XMLUtils.getElementsRecursive(mods, element ->
+                FedoraNamespaces.BIBILO_MODS_URI.equals(element.getNamespaceURI()) && element.getLocalName().equals("title")
+                        && element.hasAttribute("lang") && element.getAttribute("lang").equals(lang));
+        if (elements.isEmpty()) {
+            elements = XMLUtils.getElementsRecursive(mods, element ->
+                    FedoraNamespaces.BIBILO_MODS_URI.equals(element.getNamespaceURI()) && element.getLocalName().equals("title"));
+        }
+        return elements.stream().map(Element::getTextContent).collect(Collectors.toList());
+    }
+
+    /**
+     * Root element of the latest version of given XML datastream; inline content is returned as it is
+     */
+    private static Element xmlContent(DigitalObject object, String streamId, AkubraDOManager manager) throws IOException {
+        if (!AkubraUtils.streamExists(object, streamId)) {
+            return null;
+        }
+        DatastreamVersionType version = AkubraUtils.getLastStreamVersion(object, streamId);
+        if (version == null) {
+            return null;
+        }
+        if (version.getXmlContent() != null) {
+            List<Element> any = version.getXmlContent().getAny();
+            return any.isEmpty() ? null : any.get(0);
+        }
+        try (InputStream stream = AkubraUtils.getStreamContent(version, manager)) {
+            return XMLUtils.parseDocument(stream, true).getDocumentElement();
+        } catch (ParserConfigurationException | SAXException | TransformerException e) {
+            throw new XmlException(object.getPID() + "/" + streamId + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Date property(DigitalObject object, String name) {
+        if (object.getObjectProperties() == null) {
+            return null;
+        }
+        for (PropertyType propertyType : object.getObjectProperties().getProperty()) {
+            if (name.equals(propertyType.getNAME())) {
+                try {
+                    return AkubraUtils.DATE_FORMAT.parse(propertyType.getVALUE());
+                } catch (ParseException e) {
+                    LOGGER.warning("Cannot parse " + name + ": " + object.getPID() + ": " + propertyType.getVALUE());
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Datastream is not well-formed XML; like in the original feeding, the object is then indexed with empty title
+     */
+    private static class XmlException extends IOException {
+        XmlException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
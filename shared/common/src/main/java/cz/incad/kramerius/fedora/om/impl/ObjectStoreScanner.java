@@ -0,0 +1,299 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import cz.incad.kramerius.utils.pid.PIDParser;
+
+/**
+ * Parallel scanner of the object store (directory layout of {@link org.fcrepo.server.storage.lowlevel.akubra.HashPathIdMapper},
+ * file names are encoded object URIs, e.g. <code>7c/2b/info%3Afedora%2Fuuid%3A912509d3-...</code>).
+ * <p>
+ * Top level directories of the store are units of work, <code>threads</code> units are scanned at the same time and every unit is
+ * enumerated and consumed by one thread. The consumer is called directly from the scanning threads (it must be thread safe),
+ * so there are never more than <code>threads</code> objects in memory; a slow consumer slows down the scan.
+ * <p>
+ * With checkpoint file, names of finished units are appended to it and units listed there are skipped, so an interrupted scan
+ * continues where it stopped. The file is deleted after the whole store has been scanned.
+ */
+public class ObjectStoreScanner {
+
+    public static final Logger LOGGER = Logger.getLogger(ObjectStoreScanner.class.getName());
+
+    /**
+     * Consumer of scanned items
+     */
+    @FunctionalInterface
+    public interface ItemConsumer<T> {
+        void accept(T item) throws Exception;
+    }
+
+    /**
+     * Called in the scanning thread after the unit (top level directory) has been consumed and before it is written to the checkpoint file,
+     * e.g. to flush what the thread has buffered
+     */
+    @FunctionalInterface
+    public interface UnitListener {
+        void unitFinished(String unit) throws Exception;
+    }
+
+    private final Path root;
+    private final int threads;
+    private final File checkpointFile;
+    private UnitListener unitListener;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger finishedUnits = new AtomicInteger();
+    private final AtomicInteger skippedUnits = new AtomicInteger();
+
+    /**
+     * @param root root directory of the object store
+     * @param threads number of units scanned at the same time
+     * @param checkpointFile file with finished units; null - scan cannot be resumed
+     */
+    public ObjectStoreScanner(Path root, int threads, File checkpointFile) {
+        this.root = root;
+        this.threads = Math.max(1, threads);
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Scanner of the configured object store (<code>objectStore.path</code>, or <code>object_store_base</code> with <code>legacyfs</code>),
+     * number of threads is <code>objectStore.scan.threads</code>
+     */
+    public static ObjectStoreScanner fromConfiguration(File checkpointFile) {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        Path root = conf.getBoolean("legacyfs", false) ? Paths.get(conf.getString("object_store_base")) : Paths.get(conf.getString("objectStore.path"));
+        int threads = conf.getInt("objectStore.scan.threads", Runtime.getRuntime().availableProcessors());
+        return new ObjectStoreScanner(root, threads, checkpointFile);
+    }
+
+    public ObjectStoreScanner setUnitListener(UnitListener unitListener) {
+        this.unitListener = unitListener;
+        return this;
+    }
+
+    /**
+     * Pids of stored objects; decoded from file names only, files are not read
+     */
+    public void scanPids(ItemConsumer<String> consumer) throws IOException {
+        scan(file -> {
+            String pid = pidFromFileName(file.getFileName().toString());
+            if (pid != null) {
+                consumer.accept(pid);
+            }
+        });
+    }
+
+    /**
+     * Raw FOXML files
+     */
+    public void scanFiles(ItemConsumer<Path> consumer) throws IOException {
+        scan(consumer);
+    }
+
+    /**
+     * Unmarshalled objects
+     */
+    public void scanObjects(ItemConsumer<DigitalObject> consumer) throws IOException {
+        scan(file -> {
+            DigitalObject object;
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+                object = DigitalObjectCodec.unmarshal(input);
+            }
+            consumer.accept(object);
+        });
+    }
+
+    /**
+     * @return pid from the file name (encoded object URI) or null if the name is not an object URI
+     */
+    public static String pidFromFileName(String fileName) {
+        try {
+            String decoded = URLDecoder.decode(fileName, "UTF-8");
+            if (decoded.startsWith(PIDParser.INFO_FEDORA_PREFIX)) {
+                return decoded.substring(PIDParser.INFO_FEDORA_PREFIX.length());
+            }
+            return null;
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void scan(ItemConsumer<Path> consumer) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Object store doesn't exist: " + root);
+        }
+        Set<String> finished = readCheckpoint();
+        List<Path> units = new ArrayList<>();
+        boolean rootFiles = false;
+        try (Stream<Path> children = Files.list(root)) {
+            for (Path child : (Iterable<Path>) children.sorted()::iterator) {
+                if (Files.isDirectory(child)) {
+                    units.add(child);
+                } else {
+                    rootFiles = true;
+                }
+            }
+        }
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ScannerThreadFactory());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            if (rootFiles) {
+                // flat store (no pattern), files in root
+                futures.add(executor.submit(() -> {
+                    scanUnit("", root, 1, consumer, finished);
+                    return null;
+                }));
+            }
+            for (Path unit : units) {
+                futures.add(executor.submit(() -> {
+                    scanUnit(unit.getFileName().toString(), unit, Integer.MAX_VALUE, consumer, finished);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Scan interrupted", e);
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info(String.format("Object store %s scanned in %d ms: %d files (%d failed), %d units, %d units skipped (checkpoint)",
+                root, System.currentTimeMillis() - start, files.get(), failed.get(), finishedUnits.get(), skippedUnits.get()));
+        if (checkpointFile != null) {
+            Files.deleteIfExists(checkpointFile.toPath());
+        }
+    }
+
+    private void scanUnit(String name, Path dir, int depth, ItemConsumer<Path> consumer, Set<String> finished) throws IOException {
+        if (finished.contains(name)) {
+            skippedUnits.incrementAndGet();
+            return;
+        }
+        Files.walkFileTree(dir, Collections.singleton(FileVisitOption.FOLLOW_LINKS), depth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || DigitalObjectCodec.isTempFile(file.getFileName().toString())) {
+                    return FileVisitResult.CONTINUE;
+                }
+                files.incrementAndGet();
+                try {
+                    consumer.accept(file);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Error processing file: " + file, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.SEVERE, "Error processing file: " + file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (unitListener != null) {
+            try {
+                unitListener.unitFinished(name);
+            } catch (Exception e) {
+                // unit is not written to the checkpoint, it is scanned again after resume
+                LOGGER.log(Level.SEVERE, "Unit " + name + " not finished: " + e.getMessage(), e);
+                return;
+            }
+        }
+        finishedUnits.incrementAndGet();
+        writeCheckpoint(name);
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        Set<String> finished = new HashSet<>();
+        if (checkpointFile != null && checkpointFile.isFile()) {
+            for (String line : Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8)) {
+                finished.add(line.trim());
+            }
+            LOGGER.info(String.format("Resuming scan of %s, %d units already finished", root, finished.size()));
+        }
+        return finished;
+    }
+
+    private synchronized void writeCheckpoint(String unit) throws IOException {
+        if (checkpointFile == null) {
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(checkpointFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC)) {
+            writer.write(unit);
+            writer.newLine();
+        }
+    }
+
+    /**
+     * @return true if the checkpoint file contains finished units (the scan will be resumed)
+     */
+    public boolean isResuming() {
+        return checkpointFile != null && checkpointFile.isFile() && checkpointFile.length() > 0;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private static class ScannerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "object-store-scanner-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package cz.incad.kramerius.imaging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.configuration.Configuration;
+
+import com.google.inject.Singleton;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+
+/**
+ * Disk cache of images transcoded for delivery (JPEG2000 and DjVu masters of IMG_FULL re-encoded to JPEG).
+ * <p>
+ * Entries are keyed by pid and version of the source datastream (last modification), so a changed datastream
+ * is never served from the cache; stale entries are evicted as the least recently used ones once the cache
+ * exceeds its size limit. Concurrent requests for the same entry share one decode and the number
+ * of decodes running at the same time is limited.
+ * <p>
+ * Configuration:
+ * <ul>
+ *     <li><code>imgFull.decodedCache.enabled</code></li>
+ *     <li><code>imgFull.decodedCache.dir</code> - directory, default <code>imgfull</code> in the deep zoom cache directory</li>
+ *     <li><code>imgFull.decodedCache.maxSize</code> - max size in MB</li>
+ *     <li><code>imgFull.decodedCache.maxConcurrentDecodes</code></li>
+ * </ul>
+ */
+@Singleton
+public class DecodedImageCache {
+
+    public static final Logger LOGGER = Logger.getLogger(DecodedImageCache.class.getName());
+
+    /**
+     * Writes decoded and re-encoded image
+     */
+    @FunctionalInterface
+    public interface Decoder {
+        void decode(OutputStream out) throws IOException;
+    }
+
+    private final boolean enabled;
+    private final File cacheDir;
+    private final long maxSize;
+    private final Semaphore decodes;
+
+    private final Map<String, CompletableFuture<File>> inProgress = new ConcurrentHashMap<>();
+    private final Map<File, Long> sizes = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    private volatile boolean scanned = false;
+
+    public DecodedImageCache() {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        this.enabled = conf.getBoolean("imgFull.decodedCache.enabled", true);
+        this.cacheDir = new File(conf.getString("imgFull.decodedCache.dir", KConfiguration.getInstance().getDeepZoomCacheDir() + File.separator + "imgfull"));
+        this.maxSize = conf.getLong("imgFull.decodedCache.maxSize", 2048) * 1024L * 1024L;
+        this.decodes = new Semaphore(Math.max(1, conf.getInt("imgFull.decodedCache.maxConcurrentDecodes", Math.max(1, Runtime.getRuntime().availableProcessors() / 2))), true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns cached image, decodes it if it is not cached yet
+     * @param pid pid of the object
+     * @param version version of the source datastream (e.g. last modified timestamp)
+     * @param decoder writes decoded image; called at most once for concurrent requests of the same entry
+     * @return file with the image
+     */
+    public File get(String pid, String version, Decoder decoder) throws IOException {
+        scanIfNeeded();
+        String key = key(pid, version);
+        File file = file(key);
+        if (file.isFile()) {
+            //access time for LRU eviction
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        CompletableFuture<File> created = new CompletableFuture<>();
+        CompletableFuture<File> running = inProgress.putIfAbsent(key, created);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            created.complete(decode(file, decoder));
+        } catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+        } finally {
+            inProgress.remove(key, created);
+        }
+        return await(created);
+    }
+
+    private File decode(File file, Decoder decoder) throws IOException {
+        try {
+            decodes.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        try {
+            if (file.isFile()) {
+                return file;
+            }
+            file.getParentFile().mkdirs();
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))) {
+                    decoder.decode(out);
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } finally {
+            decodes.release();
+        }
+        added(file);
+        return file;
+    }
+
+    private static File await(CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void added(File file) {
+        long size = file.length();
+        Long previous = sizes.put(file, size);
+        totalSize.addAndGet(size - (previous != null ? previous : 0));
+        if (totalSize.get() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is below 90% of its size
+     */
+    private synchronized void evict() {
+        if (totalSize.get() <= maxSize) {
+            return;
+        }
+        List<File> files = new ArrayList<>(sizes.keySet());
+        Map<File, Long> accessed = new HashMap<>();
+        for (File f : files) {
+            accessed.put(f, f.lastModified());
+        }
+        files.sort(Comparator.comparingLong(accessed::get));
+        long target = maxSize / 10 * 9;
+        for (File f : files) {
+            if (totalSize.get() <= target) {
+                break;
+            }
+            Long size = sizes.remove(f);
+            if (size != null) {
+                totalSize.addAndGet(-size);
+                if (!f.delete() && f.exists()) {
+                    LOGGER.warning("cannot delete cached image " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private void scanIfNeeded() {
+        if (scanned) {
+            return;
+        }
+        synchronized (this) {
+            if (scanned) {
+                return;
+            }
+            File[] subdirs = cacheDir.listFiles(File::isDirectory);
+            if (subdirs != null) {
+                for (File subdir : subdirs) {
+                    File[] files = subdir.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File f : files) {
+                        if (f.getName().endsWith(".tmp")) {
+                            //decode interrupted by restart
+                            f.delete();
+                        } else if (f.isFile()) {
+                            sizes.put(f, f.length());
+                            totalSize.addAndGet(f.length());
+                        }
+                    }
+                }
+            }
+            scanned = true;
+        }
+        if (totalSize.get() > maxSize) {
+            evict();
+        }
+    }
+
+    private File file(String key) {
+        return new File(new File(cacheDir, key.substring(0, 2)), key);
+    }
+
+    private static String key(String pid, String version) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(pid.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+            return Hex.encodeHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getSize() {
+        return totalSize.get();
+    }
+}
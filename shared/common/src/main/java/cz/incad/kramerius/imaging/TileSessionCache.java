@@ -0,0 +1,256 @@
+package cz.incad.kramerius.imaging;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.configuration.Configuration;
+import org.w3c.dom.Document;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Singleton;
+import com.hazelcast.core.ITopic;
+
+import cz.incad.kramerius.FedoraAccess;
+import cz.incad.kramerius.ObjectPidsPath;
+import cz.incad.kramerius.SolrAccess;
+import cz.incad.kramerius.fedora.om.impl.AkubraDOManager;
+import cz.incad.kramerius.security.Role;
+import cz.incad.kramerius.security.User;
+import cz.incad.kramerius.security.impl.RightsIndex;
+import cz.incad.kramerius.utils.RelsExtHelper;
+import cz.incad.kramerius.utils.conf.KConfiguration;
+
+/**
+ * Short-lived cache of everything tile servlets (zoomify, deep zoom, iiif) resolve per pid: availability of the object,
+ * tiles url from RELS-EXT, mimetype and resolution of IMG_FULL, pid paths; and the read decision per pid and user.
+ * <p>
+ * One viewer session fires hundreds of tile requests for the same pid; without the cache every one of them reads RELS-EXT,
+ * asks solr for pid paths and evaluates rights.
+ * <p>
+ * Entries expire after <code>tiles.sessionCache.ttl</code> seconds, read decisions after <code>tiles.sessionCache.rightsTtl</code> seconds.
+ * Pid entries are dropped when the object is changed (hazelcast topic <code>cacheInvalidator</code>), all read decisions
+ * are dropped when rights are changed (topic {@link RightsIndex#INVALIDATION_TOPIC}).
+ */
+@Singleton
+public class TileSessionCache {
+
+    public static final Logger LOGGER = Logger.getLogger(TileSessionCache.class.getName());
+
+    public static final String OBJECT_INVALIDATION_TOPIC = "cacheInvalidator";
+
+    private static final char KEY_SEPARATOR = '\t';
+
+    /**
+     * Metadata of one object; values not needed by every servlet (mimetype, resolution) are resolved with the first request which needs them
+     */
+    public static final class TileMetadata {
+
+        private final boolean available;
+        private final String tilesUrl;
+        private final ObjectPidsPath[] paths;
+        private final AtomicReference<String> mimeType = new AtomicReference<>();
+        private final AtomicReference<Dimension> resolution = new AtomicReference<>();
+
+        public TileMetadata(boolean available, String tilesUrl, ObjectPidsPath[] paths) {
+            this.available = available;
+            this.tilesUrl = tilesUrl;
+            this.paths = paths != null ? paths : new ObjectPidsPath[0];
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        /**
+         * @return content of <code>kramerius:tiles-url</code> from RELS-EXT or null
+         */
+        public String getTilesUrl() {
+            return tilesUrl;
+        }
+
+        public ObjectPidsPath[] getPaths() {
+            return paths;
+        }
+
+        public String getMimeType(Callable<String> loader) throws IOException {
+            return lazy(mimeType, loader);
+        }
+
+        public Dimension getResolution(Callable<Dimension> loader) throws IOException {
+            Dimension dim = lazy(resolution, loader);
+            return dim != null ? new Dimension(dim) : null;
+        }
+
+        private static <T> T lazy(AtomicReference<T> ref, Callable<T> loader) throws IOException {
+            T value = ref.get();
+            if (value == null) {
+                try {
+                    value = loader.call();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                if (value != null) {
+                    ref.compareAndSet(null, value);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Reads metadata of given pid (RELS-EXT is read once)
+         */
+        public static TileMetadata load(String pid, FedoraAccess fedoraAccess, SolrAccess solrAccess) throws IOException {
+            if (!fedoraAccess.isObjectAvailable(pid)) {
+                return new TileMetadata(false, null, null);
+            }
+            try {
+                Document relsExt = fedoraAccess.getRelsExt(pid);
+                String tilesUrl = RelsExtHelper.getRelsExtTilesUrl(relsExt);
+                return new TileMetadata(true, tilesUrl, solrAccess.getPidPaths(pid));
+            } catch (XPathExpressionException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final Cache<String, TileMetadata> metadata;
+    private final Cache<String, Boolean> readDecisions;
+    private volatile boolean subscribed;
+
+    public TileSessionCache() {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        this.enabled = conf.getBoolean("tiles.sessionCache.enabled", true);
+        this.metadata = CacheBuilder.newBuilder()
+                .maximumSize(conf.getLong("tiles.sessionCache.maxSize", 10000))
+                .expireAfterWrite(conf.getLong("tiles.sessionCache.ttl", 300), TimeUnit.SECONDS)
+                .build();
+        this.readDecisions = CacheBuilder.newBuilder()
+                .maximumSize(conf.getLong("tiles.sessionCache.maxSize", 10000) * 4)
+                .expireAfterWrite(conf.getLong("tiles.sessionCache.rightsTtl", 60), TimeUnit.SECONDS)
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns metadata of given pid, loader is called only if they are not cached
+     */
+    public TileMetadata getMetadata(String pid, Callable<TileMetadata> loader) throws IOException {
+        if (!enabled) {
+            return call(loader);
+        }
+        subscribe();
+        try {
+            return metadata.get(pid, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns cached read decision of given user (from given address) for given pid, evaluator is called only if the decision is not cached
+     */
+    public boolean isReadAllowed(String pid, User user, String remoteAddress, Callable<Boolean> evaluator) throws IOException {
+        if (!enabled) {
+            return Boolean.TRUE.equals(call(evaluator));
+        }
+        subscribe();
+        String key = pid + KEY_SEPARATOR + userKey(user, remoteAddress);
+        Boolean decision = readDecisions.getIfPresent(key);
+        if (decision == null) {
+            decision = Boolean.TRUE.equals(call(evaluator));
+            readDecisions.put(key, decision);
+        }
+        return decision;
+    }
+
+    public void invalidate(String pid) {
+        metadata.invalidate(pid);
+        String prefix = pid + KEY_SEPARATOR;
+        readDecisions.asMap().keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    public void invalidateReadDecisions() {
+        readDecisions.invalidateAll();
+    }
+
+    /**
+     * Decision depends on the user, his roles, session attributes (licenses) and address (ip criteriums)
+     */
+    private static String userKey(User user, String remoteAddress) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(remoteAddress).append(KEY_SEPARATOR);
+        if (user != null) {
+            builder.append(user.getId()).append(KEY_SEPARATOR).append(user.getLoginname()).append(KEY_SEPARATOR);
+            Role[] groups = user.getGroups();
+            if (groups != null) {
+                String[] names = new String[groups.length];
+                for (int i = 0; i < groups.length; i++) {
+                    names[i] = groups[i].getName();
+                }
+                Arrays.sort(names);
+                builder.append(Arrays.toString(names));
+            }
+            Map<String, String> attributes = user.getSessionAttributes();
+            if (attributes != null && !attributes.isEmpty()) {
+                builder.append(KEY_SEPARATOR).append(new TreeMap<>(attributes));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static <T> T call(Callable<T> callable) throws IOException {
+        try {
+            return callable.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void subscribe() {
+        if (subscribed) {
+            return;
+        }
+        synchronized (this) {
+            if (subscribed) {
+                return;
+            }
+            subscribed = true;
+            try {
+                ITopic<String> objects = AkubraDOManager.getTopic(OBJECT_INVALIDATION_TOPIC);
+                objects.addMessageListener(message -> {
+                    if (message != null && message.getMessageObject() != null) {
+                        invalidate(message.getMessageObject());
+                    }
+                });
+                ITopic<String> rights = AkubraDOManager.getTopic(RightsIndex.INVALIDATION_TOPIC);
+                rights.addMessageListener(message -> invalidateReadDecisions());
+            } catch (RuntimeException | LinkageError e) {
+                LOGGER.log(Level.WARNING, "tile session cache is not invalidated across the cluster, only after ttl: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -15,9 +15,22 @@ import org.ehcache.expiry.Expirations;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import org.xml.sax.SAXException;
+
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
@@ -28,17 +41,21 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * CachedFedoraAccessImpl
+ * <p>
+ * XML datastreams (RELS-EXT, BIBLIO_MODS, DC, ...) are cached as serialized bytes, not as DOM: cached entry is immutable
+ * and several times smaller, and every caller gets its own parsed document (DOM is not safe even for concurrent reads).
+ * The cache is sized in bytes: <code>cache.xmls.heapSize</code> and <code>cache.xmls.offheapSize</code> (MB).
  *
  * @author Martin Rumanek
  */
 public class CachedFedoraAccessImpl  implements FedoraAccess, FedoraCacheAwareness {
 
-    private static Cache<String, Document> xmlscache;
+    private static Cache<String, byte[]> xmlscache;
     private static Cache<String, Boolean> existsCache;
     private static Cache<String, Date> lastModifiedCache;
 
 
-    private static final String XMLS_CACHE_ALIAS = "FedoraXMLSCache";
+    private static final String XMLS_CACHE_ALIAS = "FedoraXMLSBytesCache";
     private static final String EXISTS_CACHE_ALIAS = "FedoraExistsCache";
     private static final String LAST_MODIFIED_CACHE_ALIAS = "FedoraLastmodifiedCache";
 
@@ -51,11 +68,13 @@ public class CachedFedoraAccessImpl  implements FedoraAccess, FedoraCacheAwarene
 
         this.fedoraAccess = fedoraAccess;
 
-        xmlscache = cacheManager.getCache(XMLS_CACHE_ALIAS, String.class, Document.class);
+        xmlscache = cacheManager.getCache(XMLS_CACHE_ALIAS, String.class, byte[].class);
         if (xmlscache == null) {
+            long heapSize = KConfiguration.getInstance().getConfiguration().getLong("cache.xmls.heapSize", 16);
+            long offheapSize = Math.max(heapSize + 1, KConfiguration.getInstance().getConfiguration().getLong("cache.xmls.offheapSize", 64));
             xmlscache = cacheManager.createCache(XMLS_CACHE_ALIAS,
-                    CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, Document.class,
-                            ResourcePoolsBuilder.heap(3000).offheap(32, MemoryUnit.MB))
+                    CacheConfigurationBuilder.newCacheConfigurationBuilder(String.class, byte[].class,
+                            ResourcePoolsBuilder.newResourcePoolsBuilder().heap(heapSize, MemoryUnit.MB).offheap(offheapSize, MemoryUnit.MB))
                             .withExpiry(Expirations.timeToLiveExpiration(
                                     Duration.of(  KConfiguration.getInstance().getCacheTimeToLiveExpiration(), TimeUnit.SECONDS))).build());
         }
@@ -84,40 +103,84 @@ public class CachedFedoraAccessImpl  implements FedoraAccess, FedoraCacheAwarene
         return pid +"/"+stream;
     }
 
+    @FunctionalInterface
+    private interface XmlLoader {
+        Document load() throws IOException;
+    }
+
+    /**
+     * Returns new document parsed from cached bytes; on cache miss the document is loaded, serialized into the cache and
+     * parsed again, so that the caller never shares DOM with anybody else
+     */
+    private Document cachedXml(String pid, String stream, XmlLoader loader) throws IOException {
+        String key = cacheKey(pid, stream);
+        byte[] bytes = xmlscache.get(key);
+        if (bytes == null) { //xmlscache miss
+            Document doc = loader.load();
+            if (doc == null) {
+                return null;
+            }
+            bytes = serialize(doc);
+            xmlscache.put(key, bytes);
+        }
+        return parse(bytes);
+    }
+
+    private static byte[] serialize(Document doc) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            // loaded document may be shared (e.g. inline content of cached FOXML)
+            synchronized (doc) {
+                TRANSFORMER.get().transform(new DOMSource(doc), new StreamResult(out));
+            }
+        } catch (TransformerException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Document parse(byte[] bytes) throws IOException {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        try {
+            return builder.parse(new ByteArrayInputStream(bytes));
+        } catch (SAXException e) {
+            throw new IOException(e);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial(() -> {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial(() -> {
+        try {
+            return TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     @Override
     public Document getRelsExt(String pid) throws IOException {
-        Document relsExt = xmlscache.get(cacheKey(pid, FedoraUtils.RELS_EXT_STREAM));
-        if (relsExt != null) { //xmlscache hit
-            return relsExt;
-        } else { //xmlscache miss
-            relsExt = this.fedoraAccess.getRelsExt(pid);
-            xmlscache.put(cacheKey(pid, FedoraUtils.RELS_EXT_STREAM), relsExt);
-            return relsExt;
-        }
+        return cachedXml(pid, FedoraUtils.RELS_EXT_STREAM, () -> this.fedoraAccess.getRelsExt(pid));
     }
 
     @Override
     public Document getBiblioMods(String pid) throws IOException {
-        Document mods = xmlscache.get(cacheKey(pid, FedoraUtils.BIBLIO_MODS_STREAM));
-        if (mods != null) {
-            return mods;
-        } else {
-            mods = this.fedoraAccess.getBiblioMods(pid);
-            xmlscache.put(cacheKey(pid, FedoraUtils.BIBLIO_MODS_STREAM), mods);
-        }
-        return mods;
+        return cachedXml(pid, FedoraUtils.BIBLIO_MODS_STREAM, () -> this.fedoraAccess.getBiblioMods(pid));
     }
 
     @Override
     public Document getDC(String pid) throws IOException {
-        Document dc = xmlscache.get(cacheKey(pid, FedoraUtils.DC_STREAM));
-        if (dc != null) {
-            return dc;
-        } else {
-            dc = this.fedoraAccess.getDC(pid);
-            xmlscache.put(cacheKey(pid, FedoraUtils.DC_STREAM), dc);
-        }
-        return dc;
+        return cachedXml(pid, FedoraUtils.DC_STREAM, () -> this.fedoraAccess.getDC(pid));
     }
 
     @Override
@@ -306,14 +369,7 @@ public class CachedFedoraAccessImpl  implements FedoraAccess, FedoraCacheAwarene
 
     @Override
     public Document getDataStreamXmlAsDocument(String pid, String datastreamName) throws IOException {
-        Document doc = xmlscache.get(cacheKey(pid, datastreamName));
-        if (doc != null) {
-            return doc;
-        } else {
-            doc = this.fedoraAccess.getDataStreamXmlAsDocument(pid,datastreamName);
-            xmlscache.put(cacheKey(pid, datastreamName), doc);
-        }
-        return doc;
+        return cachedXml(pid, datastreamName, () -> this.fedoraAccess.getDataStreamXmlAsDocument(pid, datastreamName));
     }
 
     @Override
@@ -29,9 +29,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.*;
@@ -49,17 +47,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import org.apache.commons.io.IOUtils;
-
-import org.apache.http.HttpEntity;
-
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.HttpResponseException;
-
-import static org.apache.http.HttpStatus.SC_OK;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import cz.incad.kramerius.utils.solr.SolrHttpClient;
+import org.json.JSONTokener;
 
 
 
@@ -188,6 +179,15 @@ public class SolrAccessImplNewIndex implements SolrAccess {
         }
         try {
             List<ObjectPidsPath> paths = new ArrayList<>();
+            if (utils.streaming) {
+                List<String> pidPaths = utils.getSolrFieldValues(pid, "pid_paths");
+                if (pidPaths != null) {
+                    for (String pidPath : pidPaths) {
+                        paths.add(toObjectPidPath(pidPath));
+                    }
+                }
+                return paths.toArray(new ObjectPidsPath[0]);
+            }
             JSONObject solrData = utils.getSolrDataJson(pid);
             if (solrData != null) {
                 if (solrData.has("pid_paths")) {
@@ -275,6 +275,15 @@ public class SolrAccessImplNewIndex implements SolrAccess {
         //TODO: allow datastream pids?
         try {
             List<ObjectModelsPath> paths = new ArrayList<>();
+            if (utils.streaming) {
+                List<String> modelPaths = utils.getSolrFieldValues(pid, "own_model_path");
+                if (modelPaths != null) {
+                    for (String modelPath : modelPaths) {
+                        paths.add(toModelPidPath(modelPath));
+                    }
+                }
+                return paths.toArray(new ObjectModelsPath[0]);
+            }
             JSONObject solrData = utils.getSolrDataJson(pid);
             if (solrData != null) {
                 String modelPath = solrData.getString("own_model_path");
@@ -346,9 +355,11 @@ public class SolrAccessImplNewIndex implements SolrAccess {
      */
     private static class SolrUtils {
         private final String solrHost;
+        private final boolean streaming;
 
         public SolrUtils(String solrHost) {
             this.solrHost = solrHost;
+            this.streaming = KConfiguration.getInstance().getConfiguration().getBoolean("solr.search.streamingParser", true);
         }
 
         JSONObject getSolrDataJson(String pid) throws IOException {
@@ -367,85 +378,70 @@ public class SolrAccessImplNewIndex implements SolrAccess {
         }
 
         /**
-         * @param query for example: q=model%3Amonograph&fl=pid%2Ctitle.search&start=0&sort=created+desc&fq=model%3Aperiodical+OR+model%3Amonograph&rows=24&hl.fragsize=20
-         *              i.e. url encoded and without query param wt
+         * Requests only given field of the object and reads it directly from the response stream;
+         * neither DOM nor JSON tree is built
+         * @return values of the field; null if there is no such document
          */
-        JSONObject requestWithSelectReturningJson(String query) throws IOException {
-            String jsonStr = cz.incad.kramerius.utils.solr.SolrUtils.requestWithSelectReturningString(this.solrHost,  query, "json");
-            JSONObject jsonObject = new JSONObject(jsonStr);
-            return jsonObject;
-        }
-
-        Document requestWithSelectReturningXml(String query) throws IOException {
-            try {
-                InputStream in = cz.incad.kramerius.utils.solr.SolrUtils.requestWithSelectReturningStream(this.solrHost,query, "xml");
-                return XMLUtils.parseDocument(in);
-            } catch (ParserConfigurationException e) {
-                throw new IOException(e);
-            } catch (SAXException e) {
-                throw new IOException(e);
-            }
-        }
-
-        String requestWithSelectReturningString(String query, String type) throws IOException {
-            InputStream in = requestWithSelectReturningStream(query, type);
-            BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-            StringBuilder responseStrBuilder = new StringBuilder();
-            String inputStr;
-            while ((inputStr = streamReader.readLine()) != null) {
-                responseStrBuilder.append(inputStr);
-            }
-            return responseStrBuilder.toString();
+        List<String> getSolrFieldValues(String pid, String field) throws IOException {
+            String query = "q=" + URLEncoder.encode("pid:" + pid.replace(":", "\\:"), "UTF-8") + "&fl=" + field + "&rows=1";
+            return SolrHttpClient.select(this.solrHost, query, "json", in -> {
+                try (JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"))) {
+                    return readFirstDocField(reader, field);
+                }
+            });
         }
 
-        /**
-         * @param query for example: q=model%3Amonograph&fl=pid%2Ctitle.search&start=0&sort=created+desc&fq=model%3Aperiodical+OR+model%3Amonograph&rows=24&hl.fragsize=20
-         *              i.e. url encoded and without query param wt
-         */
-        InputStream requestWithSelectReturningStream(String query, String type) throws IOException {
-            String url = String.format("%s/select?%s&wt=%s", solrHost, query, type);
-            HttpGet httpGet = new HttpGet(url);
-            CloseableHttpClient client = HttpClients.createDefault();
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        InputStream stream = readContentAndProvideThroughBufferedStream(entity);
-                        String strEntity = IOUtils.toString(stream, "UTF-8");
-                        LOGGER.log(Level.SEVERE,  String.format("Error entity %s", strEntity));
+        private static List<String> readFirstDocField(JsonReader reader, String field) throws IOException {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("response".equals(reader.nextName())) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("docs".equals(reader.nextName())) {
+                            reader.beginArray();
+                            if (!reader.hasNext()) {
+                                return null;
+                            }
+                            List<String> values = new ArrayList<>();
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                if (field.equals(reader.nextName())) {
+                                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                                        reader.beginArray();
+                                        while (reader.hasNext()) {
+                                            values.add(reader.nextString());
+                                        }
+                                        reader.endArray();
+                                    } else {
+                                        values.add(reader.nextString());
+                                    }
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            return values;
+                        } else {
+                            reader.skipValue();
+                        }
                     }
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+                    return null;
+                } else {
+                    reader.skipValue();
                 }
             }
+            return null;
         }
 
         /**
          * @param query for example: q=model%3Amonograph&fl=pid%2Ctitle.search&start=0&sort=created+desc&fq=model%3Aperiodical+OR+model%3Amonograph&rows=24&hl.fragsize=20
          *              i.e. url encoded and without query param wt
          */
-        InputStream requestWithTermsReturningStream(String query, String type) throws IOException {
-            String url = String.format("%s/terms?%s&wt=%s", solrHost, query, type);
-            HttpGet httpGet = new HttpGet(url);
-            CloseableHttpClient client = HttpClients.createDefault();
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
+        JSONObject requestWithSelectReturningJson(String query) throws IOException {
+            return SolrHttpClient.select(this.solrHost, query, "json", in -> new JSONObject(new JSONTokener(new InputStreamReader(in, "UTF-8"))));
         }
 
-        //reads and closes entity's content stream
-        private InputStream readContentAndProvideThroughBufferedStream(HttpEntity entity) throws IOException {
-            try (InputStream src = entity.getContent()) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                IOUtils.copy(src, bos);
-                return new ByteArrayInputStream(bos.toByteArray());
-            }
+        Document requestWithSelectReturningXml(String query) throws IOException {
+            return SolrHttpClient.select(this.solrHost, query, "xml", cz.incad.kramerius.utils.solr.SolrUtils::parseDocument);
         }
     }
     
@@ -120,12 +120,6 @@ public class AbstractPDFRenderSupport {
             float percentage, PdfWriter pdfWriter, org.w3c.dom.Document alto,
             BufferedImage javaImg) throws IOException, BadElementException,
             MalformedURLException, DocumentException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        writeImageToStream(javaImg, "jpeg", bos);
-
-        // com.lowagie.text.Image img =
-        // com.lowagie.text.Image.getInstance(bos.toByteArray());
-
         PdfTextUnderImage textUnderImage = new PdfTextUnderImage();
         ScaledImageOptions options = insertJavaImage(document, percentage,
                 javaImg);
@@ -135,6 +129,15 @@ public class AbstractPDFRenderSupport {
         return options;
     }
 
+    public ScaledImageOptions insertImageWithOCR(Document document,
+            float percentage, PdfWriter pdfWriter, org.w3c.dom.Document alto,
+            com.lowagie.text.Image img) throws DocumentException {
+        PdfTextUnderImage textUnderImage = new PdfTextUnderImage();
+        ScaledImageOptions options = insertImage(document, percentage, img);
+        textUnderImage.imageWithAlto(document, pdfWriter, alto, options);
+        return options;
+    }
+
     public static ScaledImageOptions insertJavaImage(Document document,
             float percentage, BufferedImage javaImg) throws IOException,
             BadElementException, MalformedURLException, DocumentException {
@@ -143,11 +146,18 @@ public class AbstractPDFRenderSupport {
 
         com.lowagie.text.Image img = com.lowagie.text.Image.getInstance(bos
                 .toByteArray());
+        return insertImage(document, percentage, img);
+    }
 
-        Float ratio = ratio(document, percentage, javaImg);
+    /**
+     * Inserts image (already encoded for iText, e.g. original JPEG) fitted to the page
+     */
+    public static ScaledImageOptions insertImage(Document document,
+            float percentage, com.lowagie.text.Image img) throws DocumentException {
+        Float ratio = ratio(document, percentage, img.getWidth(), img.getHeight());
 
-        int fitToPageWidth = (int) (javaImg.getWidth(null) * ratio);
-        int fitToPageHeight = (int) (javaImg.getHeight(null) * ratio);
+        int fitToPageWidth = (int) (img.getWidth() * ratio);
+        int fitToPageHeight = (int) (img.getHeight() * ratio);
 
         int offsetX = ((int) document.getPageSize().getWidth() - fitToPageWidth) / 2;
         int offsetY = ((int) document.getPageSize().getHeight() - fitToPageHeight) / 2;
@@ -176,10 +186,15 @@ public class AbstractPDFRenderSupport {
 
     public static Float ratio(Document document, float percentage,
             BufferedImage javaImg) {
+        return ratio(document, percentage, javaImg.getWidth(null), javaImg.getHeight(null));
+    }
+
+    public static Float ratio(Document document, float percentage,
+            float width, float height) {
         Float wratio = document.getPageSize().getWidth()
-                / javaImg.getWidth(null);
+                / width;
         Float hratio = document.getPageSize().getHeight()
-                / javaImg.getHeight(null);
+                / height;
         Float ratio = Math.min(wratio, hratio);
         if (percentage != 1.0) {
             ratio = ratio * percentage;
@@ -17,6 +17,7 @@ import cz.incad.kramerius.pdf.OutOfRangeException;
 import cz.incad.kramerius.pdf.PDFContext;
 import cz.incad.kramerius.pdf.commands.ITextCommands;
 import cz.incad.kramerius.pdf.commands.render.RenderPDF;
+import cz.incad.kramerius.pdf.impl.PageImagePipeline.PageImage;
 import cz.incad.kramerius.pdf.utils.pdf.DocumentUtils;
 import cz.incad.kramerius.pdf.utils.pdf.FontMap;
 import cz.incad.kramerius.service.ResourceBundleService;
@@ -47,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 
 import static cz.incad.kramerius.utils.imgs.KrameriusImageSupport.writeImageToStream;
@@ -144,24 +146,28 @@ public class GeneratePDFServiceImpl extends AbstractPDFRenderSupport implements
             int pocetStranek = 0;
             List<AbstractPage> pages = new ArrayList<AbstractPage>(
                     rdoc.getPages());
-            while (!pages.isEmpty()) {
-                pocetStranek += 1;
-                AbstractPage page = pages.remove(0);
-                doc.newPage();
-                if (page instanceof ImagePage) {
-                    ImagePage iPage = (ImagePage) page;
-                    insertOutlinedImagePage(iPage, writer, doc, pdfContext,
-                            fetcher);
-                } else {
-                    TextPage tPage = (TextPage) page;
-                    insertOutlinedTextPage(tPage, writer, doc,
-                            rdoc.getDocumentTitle(), pdfContext);
-                }
-                os.flush();
-                if (brk.broken(page.getUuid())) {
-                    brokenPage = page.getUuid();
-                    rdoc.removePagesTill(page.getUuid());
-                    break;
+            try (PageImagePipeline pipeline = new PageImagePipeline(pages,
+                    page -> fetchPageImage(page.getUuid(), djvUrl, fetcher))) {
+                while (!pages.isEmpty()) {
+                    pocetStranek += 1;
+                    AbstractPage page = pages.remove(0);
+                    PageImage pageImage = pipeline.take();
+                    doc.newPage();
+                    if (page instanceof ImagePage) {
+                        ImagePage iPage = (ImagePage) page;
+                        insertOutlinedImagePage(iPage, pageImage, writer, doc,
+                                pdfContext);
+                    } else {
+                        TextPage tPage = (TextPage) page;
+                        insertOutlinedTextPage(tPage, writer, doc,
+                                rdoc.getDocumentTitle(), pdfContext);
+                    }
+                    os.flush();
+                    if (brk.broken(page.getUuid())) {
+                        brokenPage = page.getUuid();
+                        rdoc.removePagesTill(page.getUuid());
+                        break;
+                    }
                 }
             }
 
@@ -224,19 +230,21 @@ public class GeneratePDFServiceImpl extends AbstractPDFRenderSupport implements
             doc.open();
 
             doc.newPage();
-            for (AbstractPage page : rdoc.getPages()) {
-                doc.newPage();
-                if (page instanceof ImagePage) {
-                    ImagePage iPage = (ImagePage) page;
-                    insertImage(iPage.getUuid(), writer, doc, (float) 1.0,
-                            imgServletUrl, fetcher, pdfContext.getFontMap()
-                                    .getRegistredFont("normal"));
-                } else {
-                    TextPage tPage = (TextPage) page;
-                    if (tPage.getOutlineTitle().trim().equals(""))
-                        throw new IllegalArgumentException(page.getUuid());
-                    insertOutlinedTextPage(tPage, writer, doc,
-                            rdoc.getDocumentTitle(), pdfContext);
+            try (PageImagePipeline pipeline = new PageImagePipeline(rdoc.getPages(),
+                    page -> fetchPageImage(page.getUuid(), imgServletUrl, fetcher))) {
+                for (AbstractPage page : rdoc.getPages()) {
+                    PageImage pageImage = pipeline.take();
+                    doc.newPage();
+                    if (page instanceof ImagePage) {
+                        writePageImage(pageImage, writer, doc, (float) 1.0,
+                                pdfContext.getFontMap().getRegistredFont("normal"));
+                    } else {
+                        TextPage tPage = (TextPage) page;
+                        if (tPage.getOutlineTitle().trim().equals(""))
+                            throw new IllegalArgumentException(page.getUuid());
+                        insertOutlinedTextPage(tPage, writer, doc,
+                                rdoc.getDocumentTitle(), pdfContext);
+                    }
                 }
             }
 
@@ -405,10 +413,17 @@ public class GeneratePDFServiceImpl extends AbstractPDFRenderSupport implements
     public void insertOutlinedImagePage(ImagePage page, PdfWriter pdfWriter,
             Document document, PDFContext pdfContext, ImageFetcher fetcher)
             throws XPathExpressionException, IOException, DocumentException {
+        insertOutlinedImagePage(page, PageImagePipeline.prepareNow(fetchPageImage(
+                page.getUuid(), pdfContext.getDjvuUrl(), fetcher)), pdfWriter,
+                document, pdfContext);
+    }
+
+    public void insertOutlinedImagePage(ImagePage page, PageImage pageImage,
+            PdfWriter pdfWriter, Document document, PDFContext pdfContext)
+            throws IOException, DocumentException {
         String pageNumber = page.getPageNumber();
-        insertImage(page.getUuid(), pdfWriter, document, 0.7f,
-                pdfContext.getDjvuUrl(), fetcher, pdfContext.getFontMap()
-                        .getRegistredFont(FontMap.NORMAL_FONT));
+        writePageImage(pageImage, pdfWriter, document, 0.7f,
+                pdfContext.getFontMap().getRegistredFont(FontMap.NORMAL_FONT));
 
         // Font font = createFont();
         Font font = pdfContext.getFontMap().getRegistredFont(
@@ -489,65 +504,77 @@ public class GeneratePDFServiceImpl extends AbstractPDFRenderSupport implements
             Document document, float percentage, String imgServletUrl,
             ImageFetcher fetcher, Font font) throws XPathExpressionException,
             IOException, DocumentException {
+        writePageImage(PageImagePipeline.prepareNow(fetchPageImage(uuid,
+                imgServletUrl, fetcher)), pdfWriter, document, percentage, font);
+    }
+
+    /**
+     * Reads IMG_FULL (and ALTO) of the page through secured access on the calling thread;
+     * decoding is left to the returned preparation, which can run in another thread
+     */
+    public Callable<PageImage> fetchPageImage(String uuid, String imgServletUrl,
+            ImageFetcher fetcher) throws IOException {
         try {
             if (fedoraAccess.isImageFULLAvailable(uuid)) {
-                // bypass
-                // String imgUrl = createIMGFULL(uuid, imgServletUrl);
                 // kdyz je pdf, musi
                 String mimetypeString = fedoraAccess.getImageFULLMimeType(uuid);
                 ImageMimeType mimetype = ImageMimeType
                         .loadFromMimeType(mimetypeString);
                 if (mimetype != null && (!ImageMimeType.PDF.equals(mimetype))) {
-                    BufferedImage javaImg = fetcher.fetch(uuid, imgServletUrl,
-                            mimetype, this.fedoraAccess);
+                    byte[] data;
+                    try (InputStream is = fetcher.openRaw(uuid, imgServletUrl, this.fedoraAccess)) {
+                        data = org.apache.commons.io.IOUtils.toByteArray(is);
+                    }
                     boolean textocr = this.fedoraAccess.isStreamAvailable(uuid,
                             FedoraUtils.ALTO_STREAM);
                     boolean useAlto = KConfiguration.getInstance()
                             .getConfiguration()
                             .getBoolean("pdfQueue.useAlto", true);
+                    byte[] alto = null;
                     if (textocr && useAlto) {
-                        try {
-                            org.w3c.dom.Document alto = XMLUtils
-                                    .parseDocument(this.fedoraAccess
-                                            .getDataStream(uuid,
-                                                    FedoraUtils.ALTO_STREAM));
-                            insertJavaImageWithOCR(document, percentage,
-                                    pdfWriter, alto, javaImg);
-                        } catch (ParserConfigurationException e) {
-                            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                            insertJavaImage(document, percentage, javaImg);
-                        } catch (SAXException e) {
-                            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-                            insertJavaImage(document, percentage, javaImg);
+                        try (InputStream is = this.fedoraAccess.getDataStream(uuid, FedoraUtils.ALTO_STREAM)) {
+                            alto = org.apache.commons.io.IOUtils.toByteArray(is);
                         }
-
-                    } else {
-                        insertJavaImage(document, percentage, javaImg);
                     }
-                } else {
-                    String text = textsService.getText("image_not_available",
-                            localeProvider.get());
-                    text = text != null ? text : "image_not_available";
-                    Chunk chunk = new Chunk(text, font);
-                    Paragraph na = new Paragraph();
-                    na.add(chunk);
-                    document.add(na);
+                    byte[] altoData = alto;
+                    return () -> PageImage.prepare(uuid, data, mimetype, altoData);
                 }
-            } else {
-                String text = textsService.getText("image_not_available",
-                        localeProvider.get());
-                text = text != null ? text : "image_not_available";
-                Chunk chunk = new Chunk(text, font);
-                Paragraph na = new Paragraph();
-                na.add(chunk);
-                document.add(na);
             }
+            return () -> PageImage.NOT_AVAILABLE;
+        } catch (XPathExpressionException e) {
+            throw new IOException(e);
         } catch (cz.incad.kramerius.security.SecurityException e) {
             LOGGER.log(Level.INFO, e.getMessage());
+            return () -> PageImage.SECURITY_FAIL;
+        }
+    }
+
+    /**
+     * Writes prepared image of a page (with text from ALTO under it), or the reason why it is not available
+     */
+    public void writePageImage(PageImage pageImage, PdfWriter pdfWriter,
+            Document document, float percentage, Font font)
+            throws IOException, DocumentException {
+        if (pageImage.getImage() != null) {
+            if (pageImage.getAlto() != null) {
+                insertImageWithOCR(document, percentage, pdfWriter,
+                        pageImage.getAlto(), pageImage.getImage());
+            } else {
+                insertImage(document, percentage, pageImage.getImage());
+            }
+        } else if (pageImage.isSecurityFail()) {
             Chunk chunk = new Chunk(textsService.getText("security_fail",
                     localeProvider.get()), font);
             Paragraph na = new Paragraph(chunk);
             document.add(na);
+        } else {
+            String text = textsService.getText("image_not_available",
+                    localeProvider.get());
+            text = text != null ? text : "image_not_available";
+            Chunk chunk = new Chunk(text, font);
+            Paragraph na = new Paragraph();
+            na.add(chunk);
+            document.add(na);
         }
     }
 
@@ -2,6 +2,7 @@ package cz.incad.kramerius.pdf.impl;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -24,6 +25,11 @@ public enum ImageFetcher {
                 throw new IOException(e);
             }
         }
+
+        @Override
+        public InputStream openRaw(String pid, String imgServlet, FedoraAccess fedoraAccess) throws IOException {
+            return new URL(createIMGFULL(pid, imgServlet)).openStream();
+        }
     }, 
     WEB {
         @Override
@@ -35,6 +41,11 @@ public enum ImageFetcher {
                 throw new IOException(e);
             }
         }
+
+        @Override
+        public InputStream openRaw(String pid, String imgServlet, FedoraAccess fedoraAccess) throws IOException {
+            return fedoraAccess.getImageFULL(pid);
+        }
     };
     
     private static String createIMGFULL(String objectId, String imgServletUrl) {
@@ -43,4 +54,9 @@ public enum ImageFetcher {
     }
 
     public abstract BufferedImage fetch(String pid, String imgServlet, ImageMimeType mimeType, FedoraAccess fedoraAccess) throws IOException;
+
+    /**
+     * Opens IMG_FULL as stored (not decoded)
+     */
+    public abstract InputStream openRaw(String pid, String imgServlet, FedoraAccess fedoraAccess) throws IOException;
 }
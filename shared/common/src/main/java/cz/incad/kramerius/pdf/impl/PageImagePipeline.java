@@ -0,0 +1,249 @@
+package cz.incad.kramerius.pdf.impl;
+
+import static cz.incad.kramerius.utils.imgs.KrameriusImageSupport.writeImageToStream;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Image;
+import com.lowagie.text.Jpeg;
+
+import cz.incad.kramerius.document.model.AbstractPage;
+import cz.incad.kramerius.document.model.ImagePage;
+import cz.incad.kramerius.utils.XMLUtils;
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import cz.incad.kramerius.utils.imgs.ImageMimeType;
+import cz.incad.kramerius.utils.imgs.KrameriusImageSupport;
+
+/**
+ * Prepares images of the next pages of a PDF in parallel while the current page is written.
+ * <p>
+ * Fetching (secured access, bound to the request) runs on the writing thread; decoding, re-encoding and parsing of ALTO
+ * run in a pool shared by all generated PDFs (<code>pdfQueue.decodeThreads</code>). At most
+ * <code>pdfQueue.prefetchPages</code> pages are prepared ahead, pages are taken in their order.
+ * JPEG accepted by iText is embedded as stored, without decoding.
+ */
+public class PageImagePipeline implements Closeable {
+
+    public static final Logger LOGGER = Logger.getLogger(PageImagePipeline.class.getName());
+
+    private static final int DECODE_THREADS = Math.max(1, KConfiguration.getInstance().getConfiguration()
+            .getInt("pdfQueue.decodeThreads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private static final ExecutorService DECODERS = Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pdf-page-decoder-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Fetches data of an image page on the writing thread and returns the preparation which is run in the pool
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        Callable<PageImage> fetch(ImagePage page) throws IOException;
+    }
+
+    /**
+     * Image of a page ready for iText, or the reason why there is none
+     */
+    public static class PageImage {
+
+        public static final PageImage NOT_AVAILABLE = new PageImage(null, null, false);
+        public static final PageImage SECURITY_FAIL = new PageImage(null, null, true);
+
+        private final Image image;
+        private final org.w3c.dom.Document alto;
+        private final boolean securityFail;
+
+        private PageImage(Image image, org.w3c.dom.Document alto, boolean securityFail) {
+            this.image = image;
+            this.alto = alto;
+            this.securityFail = securityFail;
+        }
+
+        /** @return image or null if not available */
+        public Image getImage() {
+            return image;
+        }
+
+        /** @return parsed ALTO or null */
+        public org.w3c.dom.Document getAlto() {
+            return alto;
+        }
+
+        public boolean isSecurityFail() {
+            return securityFail;
+        }
+
+        /**
+         * Prepares fetched image data: JPEG is used as it is, other formats are decoded and encoded to JPEG
+         */
+        public static PageImage prepare(String pid, byte[] data, ImageMimeType mimetype, byte[] alto) throws IOException {
+            Image image = null;
+            if (ImageMimeType.JPEG.equals(mimetype)) {
+                try {
+                    Image original = Image.getInstance(data);
+                    if (original instanceof Jpeg) {
+                        image = original;
+                    }
+                } catch (BadElementException | IOException e) {
+                    LOGGER.log(Level.FINE, String.format("Cannot embed original jpeg of %s, reencoding: %s", pid, e.getMessage()));
+                }
+            }
+            if (image == null) {
+                BufferedImage javaImg = KrameriusImageSupport.readImage(bytesUrl(pid, data), mimetype, 0);
+                if (javaImg == null) {
+                    return NOT_AVAILABLE;
+                }
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                writeImageToStream(javaImg, "jpeg", bos);
+                try {
+                    image = Image.getInstance(bos.toByteArray());
+                } catch (BadElementException e) {
+                    throw new IOException(e);
+                }
+            }
+            org.w3c.dom.Document altoDocument = null;
+            if (alto != null) {
+                try {
+                    altoDocument = XMLUtils.parseDocument(new ByteArrayInputStream(alto));
+                } catch (ParserConfigurationException | SAXException e) {
+                    LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                }
+            }
+            return new PageImage(image, altoDocument, false);
+        }
+
+        private static URL bytesUrl(String pid, byte[] data) throws MalformedURLException {
+            return new URL("bytes", "", 0, pid, new URLStreamHandler() {
+                @Override
+                protected URLConnection openConnection(URL u) {
+                    return new URLConnection(u) {
+                        @Override
+                        public void connect() {
+                        }
+
+                        @Override
+                        public InputStream getInputStream() {
+                            return new ByteArrayInputStream(data);
+                        }
+                    };
+                }
+            });
+        }
+    }
+
+    private final List<AbstractPage> pages;
+    private final Fetcher fetcher;
+    private final int prefetch;
+    private final Deque<Future<PageImage>> window = new ArrayDeque<>();
+    private int next = 0;
+
+    public PageImagePipeline(List<AbstractPage> pages, Fetcher fetcher) {
+        this.pages = new ArrayList<>(pages);
+        this.fetcher = fetcher;
+        this.prefetch = Math.max(1, KConfiguration.getInstance().getConfiguration().getInt("pdfQueue.prefetchPages", 4));
+    }
+
+    /**
+     * Takes the image of the next page (in order of the pages given to the constructor)
+     * @return prepared image, null for a text page
+     */
+    public PageImage take() throws IOException {
+        fill();
+        Future<PageImage> future = window.poll();
+        if (future == null) {
+            throw new IllegalStateException("no more pages");
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void fill() {
+        while (window.size() < prefetch && next < pages.size()) {
+            AbstractPage page = pages.get(next++);
+            if (page instanceof ImagePage) {
+                try {
+                    Callable<PageImage> preparation = fetcher.fetch((ImagePage) page);
+                    window.add(prefetch > 1 ? DECODERS.submit(preparation) : CompletableFuture.completedFuture(prepareNow(preparation)));
+                } catch (IOException | RuntimeException e) {
+                    // reported when the page is taken, not before the pages in front of it are written
+                    CompletableFuture<PageImage> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    window.add(failed);
+                }
+            } else {
+                window.add(CompletableFuture.completedFuture(null));
+            }
+        }
+    }
+
+    /**
+     * Runs the preparation on the calling thread
+     */
+    static PageImage prepareNow(Callable<PageImage> preparation) throws IOException {
+        try {
+            return preparation.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Cancels pages prepared ahead and not taken (e.g. the document has been broken)
+     */
+    @Override
+    public void close() {
+        Future<PageImage> future;
+        while ((future = window.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+}
@@ -18,14 +18,11 @@ package cz.incad.kramerius.pdf.utils;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
-
-import cz.incad.kramerius.utils.conf.KConfiguration;
 
 public class PDFExlusiveGenerateSupport {
 
     // controls genrating PDF
-    public static final Semaphore PDF_SEMAPHORE = new Semaphore(KConfiguration.getInstance().getConfiguration().getInt("pdfQueue.activeProcess", 5));
+    public static final PDFJobScheduler PDF_SCHEDULER = PDFJobScheduler.fromConfiguration();
 
     // stores handle for pdf
     public static HashMap<String, File> PREPARED_FILES = new HashMap<String, File>();
@@ -0,0 +1,319 @@
+package cz.incad.kramerius.pdf.utils;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.configuration.Configuration;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+
+/**
+ * Queue of PDF generation requests. At most <code>pdfQueue.activeProcess</code> documents are generated at once, other
+ * requests wait in a bounded queue (<code>pdfQueue.maxWaiting</code>, <code>pdfQueue.maxPerClient</code> per client)
+ * until a slot is free or their timeout passes.
+ * <p>
+ * Waiting requests are ordered by a virtual clock: a request is stamped with its arrival time (or with the stamp of
+ * the previous request of the same client, if later) plus <code>pdfQueue.pageWeight</code> milliseconds per page.
+ * Short documents overtake long ones, requests of one client are interleaved with the others, and no request waits
+ * forever because stamps of newcomers grow with time. Long documents (more than <code>pdfQueue.largeJobPages</code>
+ * pages) never occupy the last free slot.
+ */
+public class PDFJobScheduler implements PDFJobSchedulerMXBean {
+
+    public static final Logger LOGGER = Logger.getLogger(PDFJobScheduler.class.getName());
+
+    public static final String OBJECT_NAME = "cz.incad.kramerius:type=PDFJobScheduler";
+
+    /** Pages counted for the stamp at most (a request without a limit asks for Integer.MAX_VALUE pages) */
+    private static final int MAX_WEIGHTED_PAGES = 10_000;
+
+    private static final Comparator<Ticket> ORDER = Comparator.<Ticket>comparingLong(t -> t.stamp).thenComparingLong(t -> t.sequence);
+
+    enum State {
+        WAITING, RUNNING, RELEASED
+    }
+
+    /**
+     * Place of one request in the queue; closing it frees the slot (or leaves the queue)
+     */
+    public class Ticket implements Closeable {
+
+        private final String client;
+        private final boolean large;
+        private final long stamp;
+        private final long sequence;
+        private final long enqueued = System.nanoTime();
+        private State state = State.WAITING;
+
+        private Ticket(String client, int pages, long stamp, long sequence) {
+            this.client = client;
+            this.large = pages > largeJobPages;
+            this.stamp = stamp;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return 1 for the first waiting request, 0 if the request doesn't wait
+         */
+        public int getPosition() {
+            synchronized (PDFJobScheduler.this) {
+                return state == State.WAITING ? waiting.headSet(this).size() + 1 : 0;
+            }
+        }
+
+        public boolean isRunning() {
+            synchronized (PDFJobScheduler.this) {
+                return state == State.RUNNING;
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final int slots;
+    private final int largeSlots;
+    private final int maxWaiting;
+    private final int maxPerClient;
+    private final int largeJobPages;
+    private final long pageWeightMillis;
+    private final long waitTimeoutMillis;
+
+    private final TreeSet<Ticket> waiting = new TreeSet<>(ORDER);
+    private final Map<String, Long> clientStamps = new HashMap<>();
+    private final Map<String, Integer> clientJobs = new HashMap<>();
+    private int running = 0;
+    private int runningLarge = 0;
+    private long sequence = 0;
+
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder rejectedClientLimit = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder waitMillis = new LongAdder();
+    private final LongAccumulator maxWaitMillis = new LongAccumulator(Math::max, 0L);
+
+    public PDFJobScheduler(int slots, int maxWaiting, int maxPerClient, int largeJobPages, long pageWeightMillis, long waitTimeoutMillis) {
+        this.slots = Math.max(1, slots);
+        this.largeSlots = Math.max(1, this.slots - 1);
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.maxPerClient = Math.max(1, maxPerClient);
+        this.largeJobPages = largeJobPages;
+        this.pageWeightMillis = pageWeightMillis;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * Creates the scheduler configured by <code>pdfQueue.*</code> properties and registers its MBean
+     */
+    public static PDFJobScheduler fromConfiguration() {
+        Configuration conf = KConfiguration.getInstance().getConfiguration();
+        PDFJobScheduler scheduler = new PDFJobScheduler(
+                conf.getInt("pdfQueue.activeProcess", 5),
+                conf.getInt("pdfQueue.maxWaiting", 20),
+                conf.getInt("pdfQueue.maxPerClient", 2),
+                conf.getInt("pdfQueue.largeJobPages", 100),
+                conf.getLong("pdfQueue.pageWeight", 100),
+                TimeUnit.SECONDS.toMillis(conf.getLong("pdfQueue.waitTimeout", 30)));
+        scheduler.register();
+        return scheduler;
+    }
+
+    /**
+     * Waits for a slot at most <code>pdfQueue.waitTimeout</code>
+     * @param client Client identification (IP address) used for fairness
+     * @param pages Number of requested pages
+     * @return running ticket; must be closed when the document is generated
+     * @throws PDFExlusiveGenerateSupportNotReadyException queue is full or the request timed out
+     */
+    public Ticket acquire(String client, int pages) throws PDFExlusiveGenerateSupportNotReadyException {
+        Ticket ticket = enqueue(client, pages);
+        await(ticket, this.waitTimeoutMillis);
+        return ticket;
+    }
+
+    /**
+     * Enters the queue without waiting
+     * @throws PDFExlusiveGenerateSupportNotReadyException queue is full or the client has too many requests
+     */
+    public synchronized Ticket enqueue(String client, int pages) throws PDFExlusiveGenerateSupportNotReadyException {
+        if (waiting.size() >= maxWaiting && running >= slots) {
+            rejectedQueueFull.increment();
+            throw new PDFExlusiveGenerateSupportNotReadyException("queue is full");
+        }
+        int jobs = clientJobs.getOrDefault(client, 0);
+        if (jobs >= maxPerClient) {
+            rejectedClientLimit.increment();
+            throw new PDFExlusiveGenerateSupportNotReadyException("too many requests of client");
+        }
+        long start = Math.max(System.currentTimeMillis(), clientStamps.getOrDefault(client, 0L));
+        long stamp = start + Math.min(Math.max(pages, 1), MAX_WEIGHTED_PAGES) * pageWeightMillis;
+        clientStamps.put(client, stamp);
+        clientJobs.put(client, jobs + 1);
+
+        Ticket ticket = new Ticket(client, pages, stamp, sequence++);
+        waiting.add(ticket);
+        dispatch();
+        return ticket;
+    }
+
+    /**
+     * Waits until the ticket gets a slot; leaves the queue when it doesn't get it in time
+     * @throws PDFExlusiveGenerateSupportNotReadyException timeout or interruption
+     */
+    public synchronized void await(Ticket ticket, long timeoutMillis) throws PDFExlusiveGenerateSupportNotReadyException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (ticket.state == State.WAITING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timedOut.increment();
+                    release(ticket);
+                    throw new PDFExlusiveGenerateSupportNotReadyException("timeout");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(ticket);
+            throw new PDFExlusiveGenerateSupportNotReadyException(e);
+        }
+        if (ticket.state != State.RUNNING) {
+            throw new PDFExlusiveGenerateSupportNotReadyException("released");
+        }
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.state == State.RELEASED) {
+            return;
+        }
+        if (ticket.state == State.WAITING) {
+            waiting.remove(ticket);
+        } else {
+            running--;
+            if (ticket.large) {
+                runningLarge--;
+            }
+        }
+        ticket.state = State.RELEASED;
+        clientJobs.computeIfPresent(ticket.client, (k, v) -> v > 1 ? v - 1 : null);
+        long now = System.currentTimeMillis();
+        clientStamps.values().removeIf(stamp -> stamp <= now);
+        dispatch();
+    }
+
+    private void dispatch() {
+        boolean changed = false;
+        Iterator<Ticket> it = waiting.iterator();
+        while (running < slots && it.hasNext()) {
+            Ticket ticket = it.next();
+            if (ticket.large && runningLarge >= largeSlots) {
+                continue;
+            }
+            it.remove();
+            ticket.state = State.RUNNING;
+            running++;
+            if (ticket.large) {
+                runningLarge++;
+            }
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueued);
+            granted.increment();
+            waitMillis.add(waited);
+            maxWaitMillis.accumulate(waited);
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true if a new request would have to wait
+     */
+    public synchronized boolean isBusy() {
+        return running >= slots;
+    }
+
+    @Override
+    public int getActiveLimit() {
+        return slots;
+    }
+
+    @Override
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    @Override
+    public long getGranted() {
+        return granted.sum();
+    }
+
+    @Override
+    public long getRejectedQueueFull() {
+        return rejectedQueueFull.sum();
+    }
+
+    @Override
+    public long getRejectedClientLimit() {
+        return rejectedClientLimit.sum();
+    }
+
+    @Override
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        long count = granted.sum();
+        return count == 0 ? 0.0 : waitMillis.sum() / (double) count;
+    }
+
+    @Override
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    @Override
+    public void reset() {
+        granted.reset();
+        rejectedQueueFull.reset();
+        rejectedClientLimit.reset();
+        timedOut.reset();
+        waitMillis.reset();
+        maxWaitMillis.reset();
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Cannot register PDF queue MBean: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cz.incad.kramerius.pdf.utils;
+
+/**
+ * JMX view of the PDF generation queue ({@link PDFJobScheduler})
+ */
+public interface PDFJobSchedulerMXBean {
+
+    int getActiveLimit();
+
+    int getRunning();
+
+    int getWaiting();
+
+    long getGranted();
+
+    long getRejectedQueueFull();
+
+    long getRejectedClientLimit();
+
+    long getTimedOut();
+
+    double getAverageWaitMillis();
+
+    long getMaxWaitMillis();
+
+    void reset();
+}
@@ -5,6 +5,7 @@ import cz.incad.kramerius.utils.java.Pair;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.dom4j.Document;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -354,6 +355,16 @@ public interface KrameriusRepositoryApi {
      */
     public InputStream getImgFull(String pid) throws IOException, RepositoryException;
 
+    /**
+     * Content of managed binary datastream (IMG_FULL, audio) as a file of the repository storage; can be served by byte ranges
+     * @param pid Persistent identifier of the object
+     * @param ds datastream
+     * @return file with content of the datastream, null if datastream doesn't exist or its content is not stored as a file (then use stream variant)
+     * @throws IOException
+     * @throws RepositoryException
+     */
+    public File getDatastreamFile(String pid, KnownDatastreams ds) throws IOException, RepositoryException;
+
     /**
      * @param pid Persistent identifier of the object
      * @return if datastream IMG_THUMB is available for the object
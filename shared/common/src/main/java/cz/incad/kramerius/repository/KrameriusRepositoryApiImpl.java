@@ -8,6 +8,7 @@ import org.apache.solr.client.solrj.SolrServerException;
 import org.dom4j.Document;
 
 import javax.inject.Inject;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -110,6 +111,15 @@ public class KrameriusRepositoryApiImpl implements KrameriusRepositoryApi {
         return repositoryApi.getLatestVersionOfDatastream(pid, KnownDatastreams.IMG_FULL.toString());
     }
 
+    @Override
+    public File getDatastreamFile(String pid, KnownDatastreams ds) throws IOException, RepositoryException {
+        File file = repositoryApi.getLatestVersionOfDatastreamFile(pid, ds.toString());
+        if (file != null) {
+            this.accessLog.reportAccess(pid, ds.toString());
+        }
+        return file;
+    }
+
     @Override
     public boolean isImgThumbAvailable(String pid) throws IOException, RepositoryException {
         return repositoryApi.datastreamExists(pid, KnownDatastreams.IMG_THUMB.toString());
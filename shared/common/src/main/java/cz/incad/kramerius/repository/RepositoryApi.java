@@ -5,12 +5,14 @@ import cz.incad.kramerius.utils.java.Pair;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.dom4j.Document;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -68,9 +70,19 @@ public interface RepositoryApi {
 
     public String getTypeOfDatastream(String pid, String dsId) throws RepositoryException, IOException;
 
+    /**
+     * @return creation date of the latest version of the datastream, null if datastream does not exist
+     */
+    public Date getDatastreamLastModified(String pid, String dsId) throws RepositoryException, IOException;
+
     
     public InputStream getLatestVersionOfDatastream(String pid, String dsId) throws RepositoryException, IOException;
 
+    /**
+     * @return file containing content of the latest version of managed datastream, null if datastream does not exist or its content is not stored as a file in the repository
+     */
+    public File getLatestVersionOfDatastreamFile(String pid, String dsId) throws RepositoryException, IOException;
+
     public Document getLatestVersionOfInlineXmlDatastream(String pid, String dsId) throws RepositoryException, IOException;
 
     public String getLatestVersionOfManagedTextDatastream(String pid, String dsId) throws RepositoryException, IOException;
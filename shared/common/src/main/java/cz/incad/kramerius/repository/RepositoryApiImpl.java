@@ -10,7 +10,9 @@ import cz.incad.kramerius.fedora.om.RepositoryDatastream;
 import cz.incad.kramerius.fedora.om.RepositoryException;
 import cz.incad.kramerius.fedora.om.RepositoryObject;
 import cz.incad.kramerius.fedora.om.impl.AkubraDOManager;
+import cz.incad.kramerius.fedora.om.impl.AkubraDatastream;
 import cz.incad.kramerius.fedora.om.impl.AkubraRepository;
+import cz.incad.kramerius.fedora.om.impl.DigitalObjectCodec;
 import cz.incad.kramerius.repository.utils.Utils;
 import cz.incad.kramerius.resourceindex.ProcessingIndexFeeder;
 import cz.incad.kramerius.utils.Dom4jUtils;
@@ -23,15 +25,14 @@ import org.apache.solr.common.SolrDocument;
 import org.dom4j.*;
 import org.ehcache.CacheManager;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,18 +47,14 @@ public class RepositoryApiImpl implements RepositoryApi {
     
     private static final Namespace NS_FOXML = new Namespace("foxml", "info:fedora/fedora-system:def/foxml#");
     private final AkubraRepository akubraRepository;
-    private final Unmarshaller digitalObjectUnmarshaller;
 
     @Inject
     public RepositoryApiImpl(ProcessingIndexFeeder processingIndexFeeder, @Named("akubraCacheManager") CacheManager cacheManager) throws RepositoryException {
         try {
             AkubraDOManager akubraDOManager = new AkubraDOManager(cacheManager);
             this.akubraRepository = (AkubraRepository) AkubraRepository.build(processingIndexFeeder, akubraDOManager);
-            this.digitalObjectUnmarshaller = JAXBContext.newInstance(DigitalObject.class).createUnmarshaller();
         } catch (IOException e) {
             throw new RepositoryException(e);
-        } catch (JAXBException e) {
-            throw new RepositoryException("Error initializing JAXB unmarshaller for " + DigitalObject.class.getName());
         }
     }
 
@@ -215,6 +212,21 @@ public class RepositoryApiImpl implements RepositoryApi {
         }
     }
 
+    @Override
+    public Date getDatastreamLastModified(String pid, String dsId) throws RepositoryException, IOException {
+        Lock readLock = AkubraDOManager.getReadLock(pid);
+        try {
+            RepositoryObject object = akubraRepository.getObject(pid);
+            if (object.streamExists(dsId)) {
+                return object.getStream(dsId).getLastModified();
+            } else {
+                return null;
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     @Override
     public InputStream getLatestVersionOfDatastream(String pid, String dsId) throws RepositoryException, IOException {
         Lock readLock = AkubraDOManager.getReadLock(pid);
@@ -231,6 +243,22 @@ public class RepositoryApiImpl implements RepositoryApi {
         }
     }
 
+    @Override
+    public File getLatestVersionOfDatastreamFile(String pid, String dsId) throws RepositoryException, IOException {
+        Lock readLock = AkubraDOManager.getReadLock(pid);
+        try {
+            RepositoryObject object = akubraRepository.getObject(pid);
+            if (object.streamExists(dsId)) {
+                RepositoryDatastream stream = object.getStream(dsId);
+                return stream instanceof AkubraDatastream ? ((AkubraDatastream) stream).getContentFile() : null;
+            } else {
+                return null;
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     @Override
     public Document getLatestVersionOfInlineXmlDatastream(String pid, String dsId) throws RepositoryException, IOException {
         InputStream is = getLatestVersionOfDatastream(pid, dsId);
@@ -537,7 +565,7 @@ public class RepositoryApiImpl implements RepositoryApi {
 
     private DigitalObject foxmlDocToDigitalObject(Document foxml) throws IOException {
         try {
-            return (DigitalObject) digitalObjectUnmarshaller.unmarshal(new StringReader(foxml.asXML()));
+            return DigitalObjectCodec.unmarshal(new StringReader(foxml.asXML()));
         } catch (JAXBException e) {
             throw new IOException(e);
         }
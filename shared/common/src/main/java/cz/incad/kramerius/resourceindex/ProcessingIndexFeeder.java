@@ -11,6 +11,7 @@ import org.apache.commons.lang3.tuple.Triple;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrDocument;
@@ -20,7 +21,12 @@ import org.apache.solr.common.params.CursorMarkParams;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -41,10 +47,17 @@ public class ProcessingIndexFeeder {
     private static final String TYPE_RELATION = "relation";
     private static final String TYPE_DESC = "description";
 
+    /**
+     * Last modification of the FOXML file (ms) the description document was fed from; watermark of incremental rebuild
+     */
+    public static final String SOURCE_MODIFIED = "source_modified";
+
     public static final Logger LOGGER = Logger.getLogger(ProcessingIndexFeeder.class.getName());
 
     private SolrClient solrClient;
 
+    private final FeederStatistics statistics = new FeederStatistics();
+
     @Inject
     public ProcessingIndexFeeder(@Named("processingUpdate") SolrClient solrClient) {
         super();
@@ -56,6 +69,14 @@ public class ProcessingIndexFeeder {
 
         //String processingSolrHost = KConfiguration.getInstance().getSolrProcessingHost();
 
+        return feedDescriptionDocument(descriptionDocument(sourcePid, model, title, ref, date, ttype));
+    }
+
+    static SolrInputDocument descriptionDocument(String sourcePid, String model, String title, String ref, Date date, TitleType ttype) {
+        return descriptionDocument(sourcePid, model, title, ref, date, ttype, null);
+    }
+
+    static SolrInputDocument descriptionDocument(String sourcePid, String model, String title, String ref, Date date, TitleType ttype, Long sourceModified) {
         SolrInputDocument sdoc = new SolrInputDocument();
         sdoc.addField("source", sourcePid);
         sdoc.addField("type", TYPE_DESC);
@@ -68,43 +89,61 @@ public class ProcessingIndexFeeder {
         sdoc.addField("ref", ref);
         sdoc.addField("date", date);
         sdoc.addField("pid", TYPE_DESC + "|" + sourcePid);
-        return feedDescriptionDocument(sdoc);
+        if (sourceModified != null) {
+            sdoc.addField(SOURCE_MODIFIED, sourceModified);
+        }
+        return sdoc;
     }
     
     public UpdateResponse feedDescriptionDocument(String sourcePid, String model, String title, String ref, Date date) throws IOException, SolrServerException {
-        SolrInputDocument sdoc = new SolrInputDocument();
-        sdoc.addField("source", sourcePid);
-        sdoc.addField("type", TYPE_DESC);
-        sdoc.addField("model", model);
-        sdoc.addField("dc.title", title);
-        sdoc.addField("ref", ref);
-        sdoc.addField("date", date);
-        sdoc.addField("pid", TYPE_DESC + "|" + sourcePid);
-        return feedDescriptionDocument(sdoc);
+        return feedDescriptionDocument(descriptionDocument(sourcePid, model, title, ref, date, TitleType.dc));
     }
 
 
     public UpdateResponse feedDescriptionDocument(SolrInputDocument doc) throws IOException, SolrServerException {
+        long start = System.nanoTime();
         UpdateResponse response = this.solrClient.add(doc);
+        statistics.updated(1, 0, start);
         return response;
     }
 
     public UpdateResponse feedRelationDocument(String sourcePid, String relation, String targetPid) throws IOException, SolrServerException {
+        return feedRelationDocument(relationDocument(sourcePid, relation, targetPid));
+    }
+
+    static SolrInputDocument relationDocument(String sourcePid, String relation, String targetPid) {
         SolrInputDocument sdoc = new SolrInputDocument();
         sdoc.addField("source", sourcePid);
         sdoc.addField("type", TYPE_RELATION);
         sdoc.addField("relation", relation);
         sdoc.addField("targetPid", targetPid);
         sdoc.addField("pid", TYPE_RELATION + "|" + sourcePid + "|" + relation + "|" + targetPid);
-        return feedRelationDocument(sdoc);
+        return sdoc;
     }
 
 
     public UpdateResponse feedRelationDocument(SolrInputDocument sdoc) throws IOException, SolrServerException {
+        long start = System.nanoTime();
         UpdateResponse resp = this.solrClient.add(sdoc);
+        statistics.updated(1, 0, start);
         return resp;
     }
 
+    /**
+     * Starts batch of changes which are sent to the index with {@link Session#flush()} (or automatically after <code>processingIndex.batchSize</code> documents)
+     */
+    public Session session() {
+        return new Session(KConfiguration.getInstance().getConfiguration().getInt("processingIndex.batchSize", 1000));
+    }
+
+    public Session session(int batchSize) {
+        return new Session(batchSize);
+    }
+
+    public FeederStatistics getStatistics() {
+        return statistics;
+    }
+
 
     public UpdateResponse deleteProcessingIndex() throws IOException, SolrServerException {
         UpdateResponse response = this.solrClient.deleteByQuery("*:*");
@@ -113,7 +152,7 @@ public class ProcessingIndexFeeder {
 
 
     public UpdateResponse deleteByPid(String pid) throws IOException, SolrServerException {
-        UpdateResponse response = this.solrClient.deleteByQuery("source:\"" + pid + "\"");
+        UpdateResponse response = this.solrClient.deleteByQuery(deleteQuery(pid, null));
         return response;
     }
 
@@ -123,16 +162,19 @@ public class ProcessingIndexFeeder {
     }
 
     public UpdateResponse deleteDescriptionByPid(String pid) throws IOException, SolrServerException {
-        UpdateResponse response = this.solrClient.deleteByQuery("source:\"" + pid + "\" AND type:\"description\"");
+        UpdateResponse response = this.solrClient.deleteByQuery(deleteQuery(pid, TYPE_DESC));
         return response;
     }
 
     public UpdateResponse deleteByRelationsForPid(String pid) throws IOException, SolrServerException {
-        String query = "source:\"" + pid + "\" AND type:\"relation\"";
-        UpdateResponse response = this.solrClient.deleteByQuery(query);
+        UpdateResponse response = this.solrClient.deleteByQuery(deleteQuery(pid, TYPE_RELATION));
         return response;
     }
 
+    private static String deleteQuery(String pid, String type) {
+        return type != null ? "source:\"" + pid + "\" AND type:\"" + type + "\"" : "source:\"" + pid + "\"";
+    }
+
     /**
      * This iteration guarantees, that order of "description" records is always the same after rebuilding Processing index.
      * Also order of "relation" records from same RELS-EXT is the same, but it does NOT match order of elements in RELS-EXT.
@@ -242,6 +284,31 @@ public class ProcessingIndexFeeder {
         return response.getNextCursorMark();
     }
 
+    /**
+     * Iterates pids of all description documents with their {@link #SOURCE_MODIFIED} watermark (null if the document has none)
+     */
+    public void iterateSourceModified(BiConsumer<String, Long> action) throws IOException, SolrServerException {
+        SolrQuery solrQuery = new SolrQuery("type:\"" + TYPE_DESC + "\"");
+        solrQuery.setFields("source", SOURCE_MODIFIED);
+        solrQuery.setRows(5000);
+        solrQuery.addSort("pid", SolrQuery.ORDER.asc);
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        boolean done = false;
+        while (!done) {
+            solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+            QueryResponse response = this.solrClient.query(solrQuery);
+            String nextCursorMark = response.getNextCursorMark();
+            response.getResults().forEach((doc) -> {
+                Object modified = doc.getFieldValue(SOURCE_MODIFIED);
+                action.accept(doc.getFieldValue("source").toString(), modified instanceof Number ? ((Number) modified).longValue() : null);
+            });
+            if (cursorMark.equals(nextCursorMark)) {
+                done = true;
+            }
+            cursorMark = nextCursorMark;
+        }
+    }
+
     public List<Pair<String, String>> findByTargetPid(String pid) throws IOException, SolrServerException {
         final List<Pair<String, String>> retvals = new ArrayList<>();
         iterateProcessingSortedByPid("targetPid:\"" + pid + "\"", (doc) -> {
@@ -259,4 +326,143 @@ public class ProcessingIndexFeeder {
 
 
 
+    /**
+     * Batch of changes of the processing index; not thread-safe, every thread uses its own session.
+     * <p>
+     * Deletes are sent before additions (solr applies them in this order within one update request anyway),
+     * buffered documents matched by a delete are dropped when the delete is buffered.
+     * One flush means at most two update requests (deletes, documents) for any number of objects.
+     */
+    public class Session implements AutoCloseable {
+
+        private final int batchSize;
+        private final List<SolrInputDocument> docs = new ArrayList<>();
+        private final Set<String> deletes = new LinkedHashSet<>();
+
+        private Session(int batchSize) {
+            this.batchSize = Math.max(1, batchSize);
+        }
+
+        public void feedDescriptionDocument(String sourcePid, String model, String title, String ref, Date date, TitleType ttype) throws IOException, SolrServerException {
+            add(descriptionDocument(sourcePid, model, title, ref, date, ttype));
+        }
+
+        /**
+         * @param sourceModified watermark of incremental rebuild, see {@link #SOURCE_MODIFIED}
+         */
+        public void feedDescriptionDocument(String sourcePid, String model, String title, String ref, Date date, TitleType ttype, Long sourceModified) throws IOException, SolrServerException {
+            add(descriptionDocument(sourcePid, model, title, ref, date, ttype, sourceModified));
+        }
+
+        public void feedDescriptionDocument(String sourcePid, String model, String title, String ref, Date date) throws IOException, SolrServerException {
+            add(descriptionDocument(sourcePid, model, title, ref, date, TitleType.dc));
+        }
+
+        public void feedRelationDocument(String sourcePid, String relation, String targetPid) throws IOException, SolrServerException {
+            add(relationDocument(sourcePid, relation, targetPid));
+        }
+
+        public void deleteByPid(String pid) {
+            delete(pid, null);
+        }
+
+        public void deleteDescriptionByPid(String pid) {
+            delete(pid, TYPE_DESC);
+        }
+
+        public void deleteByRelationsForPid(String pid) {
+            delete(pid, TYPE_RELATION);
+        }
+
+        public int getBufferedDocuments() {
+            return docs.size();
+        }
+
+        private void add(SolrInputDocument doc) throws IOException, SolrServerException {
+            docs.add(doc);
+            if (docs.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void delete(String pid, String type) {
+            docs.removeIf(doc -> pid.equals(doc.getFieldValue("source")) && (type == null || type.equals(doc.getFieldValue("type"))));
+            deletes.add(deleteQuery(pid, type));
+        }
+
+        /**
+         * Sends buffered changes (without commit)
+         */
+        public void flush() throws IOException, SolrServerException {
+            long start = System.nanoTime();
+            int deleted = deletes.size();
+            int added = docs.size();
+            if (!deletes.isEmpty()) {
+                UpdateRequest request = new UpdateRequest();
+                for (String query : deletes) {
+                    request.deleteByQuery(query);
+                }
+                request.process(solrClient);
+                deletes.clear();
+            }
+            if (!docs.isEmpty()) {
+                UpdateRequest request = new UpdateRequest();
+                request.add(docs);
+                request.process(solrClient);
+                docs.clear();
+            }
+            if (added > 0 || deleted > 0) {
+                statistics.updated(added, deleted, start);
+            }
+        }
+
+        @Override
+        public void close() throws IOException, SolrServerException {
+            flush();
+        }
+    }
+
+    /**
+     * Throughput counters of the feeder (all sessions)
+     */
+    public static class FeederStatistics {
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong documents = new AtomicLong();
+        private final AtomicLong deleteQueries = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final long created = System.currentTimeMillis();
+
+        void updated(int addedDocuments, int deletes, long startNanos) {
+            requests.addAndGet((addedDocuments > 0 ? 1 : 0) + (deletes > 0 ? 1 : 0));
+            documents.addAndGet(addedDocuments);
+            deleteQueries.addAndGet(deletes);
+            nanos.addAndGet(System.nanoTime() - startNanos);
+        }
+
+        /** Number of flushes or single document updates (a flush with deletes and documents counts twice) */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getDocuments() {
+            return documents.get();
+        }
+
+        public long getDeleteQueries() {
+            return deleteQueries.get();
+        }
+
+        /** Time spent in update requests */
+        public long getUpdateTimeMs() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.get());
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - created);
+            return String.format("%d documents, %d delete queries in %d update requests (%d ms in solr), %.1f documents/s",
+                    getDocuments(), getDeleteQueries(), getRequests(), getUpdateTimeMs(), getDocuments() * 1000.0 / elapsed);
+        }
+    }
 }
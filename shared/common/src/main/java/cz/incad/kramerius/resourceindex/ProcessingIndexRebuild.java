@@ -4,57 +4,38 @@ import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Key;
 import com.google.inject.name.Names;
-import com.qbizm.kramerius.imp.jaxb.DatastreamType;
 import com.qbizm.kramerius.imp.jaxb.DigitalObject;
 import cz.incad.kramerius.FedoraAccess;
 import cz.incad.kramerius.fedora.RepoModule;
 import cz.incad.kramerius.fedora.om.RepositoryException;
-import cz.incad.kramerius.fedora.om.impl.AkubraObject;
-import cz.incad.kramerius.fedora.om.impl.AkubraUtils;
+import cz.incad.kramerius.fedora.om.impl.DigitalObjectCodec;
 import cz.incad.kramerius.fedora.om.impl.HazelcastServerNode;
-import cz.incad.kramerius.fedora.om.impl.RELSEXTSPARQLBuilder;
-import cz.incad.kramerius.fedora.om.impl.RELSEXTSPARQLBuilderImpl;
+import cz.incad.kramerius.fedora.om.impl.ObjectIndexingView;
+import cz.incad.kramerius.fedora.om.impl.ObjectStoreScanner;
 import cz.incad.kramerius.processes.starter.ProcessStarter;
 import cz.incad.kramerius.solr.SolrModule;
 import cz.incad.kramerius.statistics.NullStatisticsModule;
-import cz.incad.kramerius.utils.FedoraUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
-import org.apache.commons.io.IOUtils;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.xml.sax.SAXException;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
  * Deklarace procesu je v shared/common/src/main/java/cz/incad/kramerius/processes/res/lp.st (processing_rebuild)
  */
 public class ProcessingIndexRebuild {
-    // Could be any number between 100 and 500,000. Lower the number, lower memory usage.
-    // If it was too low, parallelization would be less effective.
-    // If it was too large, memory usage would slower overall execution, due to memory management.
-    private static final int MAX_QUEUED_SUBMITTED_TASKS = 10000;
-
     public static final Logger LOGGER = Logger.getLogger(ProcessingIndexCheck.class.getName());
 
-    private static final Unmarshaller unmarshaller = initUnmarshaller();
 
     private volatile static long counter = 0;
 
@@ -73,134 +54,131 @@ public class ProcessingIndexRebuild {
         final ProcessingIndexFeeder feeder = injector.getInstance(ProcessingIndexFeeder.class);
 
         long start = System.currentTimeMillis();
-        feeder.deleteProcessingIndex();
-        Path objectStoreRoot = null;
-        if (KConfiguration.getInstance().getConfiguration().getBoolean("legacyfs")) {
-            objectStoreRoot = Paths.get(KConfiguration.getInstance().getProperty("object_store_base"));
-        } else {
-            objectStoreRoot = Paths.get(KConfiguration.getInstance().getProperty("objectStore.path"));
+        // with checkpoint file interrupted rebuild continues with directories not finished yet
+        String checkpoint = KConfiguration.getInstance().getConfiguration().getString("processingIndex.rebuild.checkpoint");
+        ObjectStoreScanner scanner = ObjectStoreScanner.fromConfiguration(checkpoint != null && !checkpoint.trim().isEmpty() ? new File(checkpoint.trim()) : null);
+        boolean resuming = scanner.isResuming();
+        // incremental rebuild keeps the index and refeeds only changed objects, so the index stays usable during the rebuild
+        boolean incremental = KConfiguration.getInstance().getConfiguration().getBoolean("processingIndex.rebuild.incremental", false);
+        if (resuming) {
+            LOGGER.info("Resuming interrupted rebuild, processing index is not deleted");
+        } else if (!incremental) {
+            feeder.deleteProcessingIndex();
         }
-        
+
         boolean exclusiveCommit = KConfiguration.getInstance().getConfiguration().getBoolean("processingIndex.commit", false);
-        
-
-        // ForkJoinPool is used to preserve parallelization.
-        // The default constructor of ForkJoinPool creates a pool with parallelism
-        // equal to Runtime.availableProcessors(), same as parallel streams.
-        ForkJoinPool forkJoinPool = new ForkJoinPool();
-
-        // Files.walkFileTree() is used because it does not store any Paths in memory,
-        // which makes it a more efficient solution to the problem compared to Files.walk().
-        Files.walkFileTree(objectStoreRoot,
-                Collections.singleton(FileVisitOption.FOLLOW_LINKS),
-                Integer.MAX_VALUE,
-                new FileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                return FileVisitResult.CONTINUE;
-            }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (!Files.isRegularFile(file)) {
-                    return FileVisitResult.CONTINUE;
-                }
+        // every thread feeds its own session, documents of many objects are sent in one update request
+        List<ProcessingIndexFeeder.Session> sessions = new CopyOnWriteArrayList<>();
+        ThreadLocal<ProcessingIndexFeeder.Session> threadSession = ThreadLocal.withInitial(() -> {
+            ProcessingIndexFeeder.Session session = feeder.session();
+            sessions.add(session);
+            return session;
+        });
 
-                if (forkJoinPool.getQueuedSubmissionCount() < MAX_QUEUED_SUBMITTED_TASKS) {
-                    forkJoinPool.execute(() -> {
-                        String filename = file.toString();
-                        try (FileInputStream inputStream = new FileInputStream(file.toFile())) {
-                            DigitalObject digitalObject = createDigitalObject(inputStream);
-                            rebuildProcessingIndex(feeder, digitalObject, exclusiveCommit);
-                        } catch (Exception ex) {
-                            LOGGER.log(Level.SEVERE, "Error processing file: " + filename, ex);
-                        }
-                    });
-                } else {
-                    String filename = file.toString();
-                    try (FileInputStream inputStream = new FileInputStream(file.toFile())) {
-                        DigitalObject digitalObject = createDigitalObject(inputStream);
-                        rebuildProcessingIndex(feeder, digitalObject, exclusiveCommit);
-                    } catch (Exception ex) {
-                        LOGGER.log(Level.SEVERE, "Error processing file: " + filename, ex);
-                    }
-                }
+        // directory is written to the checkpoint only after documents of its objects have been sent
+        scanner.setUnitListener(unit -> threadSession.get().flush());
+        if (incremental) {
+            incrementalRebuild(feeder, scanner, threadSession, !resuming);
+        } else {
+            scanner.scanObjects(digitalObject -> rebuildProcessingIndex(feeder, threadSession.get(), digitalObject, exclusiveCommit));
+        }
 
-                return FileVisitResult.CONTINUE;
-            }
-            
+        for (ProcessingIndexFeeder.Session session : sessions) {
+            session.flush();
+        }
+        LOGGER.info("Finished object store scan in " + (System.currentTimeMillis() - start) + " ms; " + feeder.getStatistics());
 
-            @Override
-            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-                LOGGER.log(Level.SEVERE, "Error processing file: " + file.toString(), exc);
+        feeder.commit();
+        fa.shutdown();
+    }
 
-                // This will allow the execution to continue uninterrupted,
-                // even in the event of encountering permission errors.
-                return FileVisitResult.CONTINUE;
+    /**
+     * Refeeds only objects whose FOXML file changed since it was fed (last modification differs from {@link ProcessingIndexFeeder#SOURCE_MODIFIED}
+     * of the description document) and objects without the watermark; unchanged files are not even parsed.
+     * Finally documents of objects which are no longer in the object store are deleted (only after a complete scan without errors).
+     */
+    private static void incrementalRebuild(ProcessingIndexFeeder feeder, ObjectStoreScanner scanner, ThreadLocal<ProcessingIndexFeeder.Session> threadSession, boolean sweep) throws IOException, SolrServerException {
+        // pid -> watermark (-1 = no watermark); pids left after the scan are orphans
+        Map<String, Long> indexed = new ConcurrentHashMap<>();
+        feeder.iterateSourceModified((pid, modified) -> indexed.put(pid, modified != null ? modified : -1L));
+        LOGGER.info("Incremental rebuild, " + indexed.size() + " objects in processing index");
+
+        AtomicLong unchanged = new AtomicLong();
+        AtomicLong refed = new AtomicLong();
+        scanner.scanFiles(file -> {
+            String pid = ObjectStoreScanner.pidFromFileName(file.getFileName().toString());
+            if (pid == null) {
+                return;
             }
-
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                if (exc != null) {
-                    LOGGER.log(Level.SEVERE, "Error searching directory : " + dir.toString(), exc);
-                }
-
-                // This will allow the execution to continue uninterrupted,
-                // even in the event of encountering permission errors.
-                return FileVisitResult.CONTINUE;
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            Long watermark = indexed.remove(pid);
+            if (watermark != null && watermark == modified) {
+                unchanged.incrementAndGet();
+                return;
+            }
+            DigitalObject digitalObject;
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+                digitalObject = DigitalObjectCodec.unmarshal(input);
             }
+            ProcessingIndexFeeder.Session session = threadSession.get();
+            // relations removed from RELS-EXT must disappear too
+            session.deleteByPid(pid);
+            ObjectIndexingView view = ObjectIndexingView.create(digitalObject, null);
+            if (view != null) {
+                view.feed(session, modified);
+            }
+            refed.incrementAndGet();
         });
+        LOGGER.info(String.format("Incremental rebuild: %d objects refed, %d unchanged", refed.get(), unchanged.get()));
 
-//        Files.walk(objectStoreRoot, FileVisitOption.FOLLOW_LINKS).parallel().filter(Files::isRegularFile).forEach(path -> {
-//            String filename = path.toString();
-//            try {
-//                FileInputStream inputStream = new FileInputStream(path.toFile());
-//                DigitalObject digitalObject = createDigitalObject(inputStream);
-//                rebuildProcessingIndex(feeder, digitalObject);
-//            } catch (Exception ex) {
-//                LOGGER.log(Level.SEVERE, "Error processing file: " + filename, ex);
-//            }
-//        });
-
-        // Wait for all tasks to finish
-        forkJoinPool.shutdown();
-        try {
-            if (!forkJoinPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
-                LOGGER.severe("ForkJoinPool did not terminate.");
+        if (!sweep || scanner.getFailed() > 0) {
+            LOGGER.warning(String.format("Object store was not scanned completely (resumed scan or %d failed files), %d possibly orphaned objects are kept in processing index",
+                    scanner.getFailed(), indexed.size()));
+            return;
+        }
+        try (ProcessingIndexFeeder.Session session = feeder.session()) {
+            for (String pid : indexed.keySet()) {
+                session.deleteByPid(pid);
             }
-        } catch (InterruptedException e) {
-            LOGGER.log(Level.SEVERE, "Interrupted while waiting for ForkJoinPool to terminate", e);
-            Thread.currentThread().interrupt();
         }
-
-        LOGGER.info("Finished tree walk in " + (System.currentTimeMillis() - start) + " ms");
-
-        feeder.commit();
-        fa.shutdown();
+        LOGGER.info("Incremental rebuild: " + indexed.size() + " orphaned objects deleted from processing index");
     }
 
-    private static DigitalObject createDigitalObject(InputStream inputStream) {
-        DigitalObject obj = null;
+    public static void rebuildProcessingIndex(ProcessingIndexFeeder feeder, DigitalObject digitalObject, boolean commitAfteringest ) throws RepositoryException {
+        ProcessingIndexFeeder.Session session = feeder.session();
         try {
-            synchronized (unmarshaller) {
-                obj = (DigitalObject) unmarshaller.unmarshal(inputStream);
+            rebuildProcessingIndex(feeder, session, digitalObject, false);
+            session.flush();
+        } catch (IOException | SolrServerException e) {
+            throw new RepositoryException(e);
+        } finally {
+            if (commitAfteringest) {
+                try {
+                    feeder.commit();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } catch (SolrServerException e) {
+                    throw new RuntimeException(e);
+                }
+                LOGGER.info("Feeder commited.");
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
         }
-        return obj;
     }
 
-
-    public static void rebuildProcessingIndex(ProcessingIndexFeeder feeder, DigitalObject digitalObject, boolean commitAfteringest ) throws RepositoryException {
+    /**
+     * Adds documents of given object to the session; they are sent when the session is full or flushed.
+     * With <code>commitAfteringest</code> the session is flushed and committed after the object.
+     */
+    public static void rebuildProcessingIndex(ProcessingIndexFeeder feeder, ProcessingIndexFeeder.Session session, DigitalObject digitalObject, boolean commitAfteringest ) throws RepositoryException {
         try {
-            List<DatastreamType> datastreamList = digitalObject.getDatastream();
-            for (DatastreamType datastreamType : datastreamList) {
-                if (FedoraUtils.RELS_EXT_STREAM.equals(datastreamType.getID())) {
-                    InputStream streamContent = AkubraUtils.getStreamContent(AkubraUtils.getLastStreamVersion(datastreamType), null);
-                    AkubraObject akubraObject = new AkubraObject(null, digitalObject.getPID(), digitalObject, feeder);
-                    rebuildProcessingIndexImpl(akubraObject, streamContent);
-                }
+            ObjectIndexingView view = ObjectIndexingView.create(digitalObject, null);
+            if (view != null) {
+                view.feed(session);
+                LOGGER.info("Processed PID:" + view.getPid() + ",  count:" + (++counter));
+            }
+            if (commitAfteringest) {
+                session.flush();
             }
         } catch (Exception e) {
             throw new RepositoryException(e);
@@ -217,32 +195,4 @@ public class ProcessingIndexRebuild {
             }
         }
     }
-
-    private static void rebuildProcessingIndexImpl(AkubraObject akubraObject, InputStream content) throws RepositoryException {
-        try {
-            String s = IOUtils.toString(content, "UTF-8");
-            RELSEXTSPARQLBuilder sparqlBuilder = new RELSEXTSPARQLBuilderImpl();
-            sparqlBuilder.sparqlProps(s.trim(), (object, localName) -> {
-                akubraObject.processRELSEXTRelationAndFeedProcessingIndex(object, localName);
-                return object;
-            });
-            LOGGER.info("Processed PID:" + akubraObject.getPid() + ",  count:" + (++counter));
-        } catch (IOException e) {
-            throw new RepositoryException(e);
-        } catch (SAXException e) {
-            throw new RepositoryException(e);
-        } catch (ParserConfigurationException e) {
-            throw new RepositoryException(e);
-        }
-    }
-
-    private static Unmarshaller initUnmarshaller() {
-        try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(DigitalObject.class);
-            return jaxbContext.createUnmarshaller();
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Cannot init JAXB", e);
-            throw new RuntimeException(e);
-        }
-    }
 }
@@ -2,31 +2,21 @@ package cz.incad.kramerius.resourceindex;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
-import com.qbizm.kramerius.imp.jaxb.DatastreamType;
 import com.qbizm.kramerius.imp.jaxb.DigitalObject;
 import cz.incad.kramerius.fedora.RepoModule;
 import cz.incad.kramerius.fedora.om.RepositoryException;
-import cz.incad.kramerius.fedora.om.impl.AkubraObject;
-import cz.incad.kramerius.fedora.om.impl.AkubraUtils;
-import cz.incad.kramerius.fedora.om.impl.RELSEXTSPARQLBuilder;
-import cz.incad.kramerius.fedora.om.impl.RELSEXTSPARQLBuilderImpl;
+import cz.incad.kramerius.fedora.om.impl.DigitalObjectCodec;
+import cz.incad.kramerius.fedora.om.impl.ObjectIndexingView;
 import cz.incad.kramerius.processes.starter.ProcessStarter;
 import cz.incad.kramerius.solr.SolrModule;
 import cz.incad.kramerius.statistics.NullStatisticsModule;
-import cz.incad.kramerius.utils.FedoraUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
-import org.apache.commons.io.IOUtils;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.xml.sax.SAXException;
 
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,11 +26,9 @@ import java.util.logging.Logger;
 public class ProcessingIndexRebuildFromFoxmlByPid {
     public static final Logger LOGGER = Logger.getLogger(ProcessingIndexRebuildFromFoxmlByPid.class.getName());
 
-    private final Unmarshaller unmarshaller;
     private final ProcessingIndexFeeder feeder;
 
     private ProcessingIndexRebuildFromFoxmlByPid() {
-        this.unmarshaller = initUnmarshaller();
         Injector injector = Guice.createInjector(new SolrModule(), new ResourceIndexModule(), new RepoModule(), new NullStatisticsModule());
         this.feeder = injector.getInstance(ProcessingIndexFeeder.class);
     }
@@ -68,16 +56,6 @@ public class ProcessingIndexRebuildFromFoxmlByPid {
         new ProcessingIndexRebuildFromFoxmlByPid().rebuildProcessingIndexFromFoxml(pid);
     }
 
-    private Unmarshaller initUnmarshaller() {
-        try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(DigitalObject.class);
-            return jaxbContext.createUnmarshaller();
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Cannot init JAXB", e);
-            throw new RuntimeException(e);
-        }
-    }
-
     private void rebuildProcessingIndexFromFoxml(String pid) throws IOException {
         LOGGER.log(Level.INFO, "Updating processing index from FOXML of " + pid);
         File foxmlFile = findFoxmlFile(pid);
@@ -88,11 +66,11 @@ public class ProcessingIndexRebuildFromFoxmlByPid {
         if (!foxmlFile.canRead()) {
             throw new IOException("File can't be read: " + foxmlFile.getAbsolutePath());
         }
-        try {
-            FileInputStream inputStream = new FileInputStream(foxmlFile);
+        try (FileInputStream inputStream = new FileInputStream(foxmlFile)) {
             DigitalObject digitalObject = createDigitalObject(inputStream);
-            feeder.deleteByPid(pid); //smazat vsechny existujici vazby z objektu, ALE netyka se tech, co na objekt vedou (ty ted neprebudovavame)
-            rebuildProcessingIndex(feeder, digitalObject);
+            ProcessingIndexFeeder.Session session = feeder.session();
+            session.deleteByPid(pid); //smazat vsechny existujici vazby z objektu, ALE netyka se tech, co na objekt vedou (ty ted neprebudovavame)
+            rebuildProcessingIndex(session, digitalObject);
         } catch (Exception ex) {
             LOGGER.log(Level.SEVERE, "Error processing file: " + foxmlFile.getAbsolutePath(), ex);
         }
@@ -124,41 +102,23 @@ public class ProcessingIndexRebuildFromFoxmlByPid {
 
     private DigitalObject createDigitalObject(InputStream inputStream) {
         try {
-            return (DigitalObject) unmarshaller.unmarshal(inputStream);
+            return DigitalObjectCodec.unmarshal(inputStream);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void rebuildProcessingIndex(ProcessingIndexFeeder feeder, DigitalObject digitalObject) throws RepositoryException {
+    private void rebuildProcessingIndex(ProcessingIndexFeeder.Session session, DigitalObject digitalObject) throws RepositoryException {
         try {
-            List<DatastreamType> datastreamList = digitalObject.getDatastream();
-            for (DatastreamType datastreamType : datastreamList) {
-                if (FedoraUtils.RELS_EXT_STREAM.equals(datastreamType.getID())) {
-                    InputStream streamContent = AkubraUtils.getStreamContent(AkubraUtils.getLastStreamVersion(datastreamType), null);
-                    AkubraObject akubraObject = new AkubraObject(null, digitalObject.getPID(), digitalObject, feeder);
-                    rebuildProcessingIndexImpl(akubraObject, streamContent);
-                }
+            ObjectIndexingView view = ObjectIndexingView.create(digitalObject, null);
+            if (view != null) {
+                view.feed(session);
             }
-        } catch (Exception e) {
-            throw new RepositoryException(e);
-        }
-    }
-
-    private void rebuildProcessingIndexImpl(AkubraObject akubraObject, InputStream content) throws RepositoryException {
-        try {
-            String s = IOUtils.toString(content, "UTF-8");
-            RELSEXTSPARQLBuilder sparqlBuilder = new RELSEXTSPARQLBuilderImpl();
-            sparqlBuilder.sparqlProps(s.trim(), (object, localName) -> {
-                akubraObject.processRELSEXTRelationAndFeedProcessingIndex(object, localName);
-                return object;
-            });
-            LOGGER.info("Processed " + akubraObject.getPid());
+            session.flush();
+            LOGGER.info("Processed " + digitalObject.getPID());
         } catch (IOException e) {
             throw new RepositoryException(e);
-        } catch (SAXException e) {
-            throw new RepositoryException(e);
-        } catch (ParserConfigurationException e) {
+        } catch (SolrServerException e) {
             throw new RepositoryException(e);
         } finally {
             try {
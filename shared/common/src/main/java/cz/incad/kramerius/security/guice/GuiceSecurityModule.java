@@ -32,7 +32,9 @@ import cz.incad.kramerius.security.impl.RightCriteriumWrapperFactoryImpl;
 import cz.incad.kramerius.security.licenses.LicensesManager;
 import cz.incad.kramerius.security.licenses.impl.DatabaseLicensesManagerImpl;
 import cz.incad.kramerius.security.licenses.impl.lock.ExclusiveLockMapsImpl;
+import cz.incad.kramerius.security.licenses.impl.lock.HazelcastExclusiveLockMapsImpl;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMaps;
+import cz.incad.kramerius.utils.conf.KConfiguration;
 
 /**
  * Base abstract module for security in K4
@@ -47,7 +49,11 @@ public class GuiceSecurityModule extends AbstractModule {
         bind(RightCriteriumContextFactory.class).to(RightCriteriumContextFactoryImpl.class);
         bind(LicensesManager.class).to(DatabaseLicensesManagerImpl.class);
 
-        bind(ExclusiveLockMaps.class).to(ExclusiveLockMapsImpl.class).asEagerSingleton();
+        if (KConfiguration.getInstance().getConfiguration().getBoolean("exclusiveLocks.cluster", true)) {
+            bind(ExclusiveLockMaps.class).to(HazelcastExclusiveLockMapsImpl.class).asEagerSingleton();
+        } else {
+            bind(ExclusiveLockMaps.class).to(ExclusiveLockMapsImpl.class).asEagerSingleton();
+        }
         
 
         // bind criterium loaders
@@ -31,6 +31,7 @@ import java.util.stream.Collectors;
 import cz.incad.kramerius.security.*;
 import cz.incad.kramerius.security.licenses.License;
 import cz.incad.kramerius.utils.DatabaseUtils;
+import cz.incad.kramerius.utils.conf.KConfiguration;
 import org.antlr.stringtemplate.StringTemplate;
 
 import com.google.inject.Inject;
@@ -62,6 +63,12 @@ public class DatabaseRightsManager implements RightsManager {
 
     @Inject
     RightCriteriumWrapperFactory criteriumWrapperFactory;
+
+    /** In-memory rights; when null or disabled (<code>rights.index.enabled</code>), rights are queried from database */
+    @Inject
+    RightsIndex rightsIndex;
+
+    private static final boolean RIGHTS_INDEX_ENABLED = KConfiguration.getInstance().getConfiguration().getBoolean("rights.index.enabled", true);
     
     
     @Override
@@ -190,6 +197,15 @@ public class DatabaseRightsManager implements RightsManager {
                 pids[i] = "uuid:" + pids[i];
             }
         }
+        if (RIGHTS_INDEX_ENABLED && rightsIndex != null) {
+            List<RightsIndex.RightRecord> records = rightsIndex.find(pids, action, user.getId(), collected);
+            Right[] rights = new Right[records.size()];
+            for (int i = 0; i < rights.length; i++) {
+                rights[i] = records.get(i).toRight(criteriumWrapperFactory);
+            }
+            return rights;
+        }
+
         StringTemplate template = SecurityDatabaseUtils.stGroup().getInstanceOf("findRightFromWithGroups");
         template.setAttribute("pids", pids);
         template.setAttribute("groups", collected);
@@ -408,7 +424,7 @@ public class DatabaseRightsManager implements RightsManager {
 
         final RightCriteriumParams params = criteriumWrapper != null ? criteriumWrapper.getCriteriumParams() : null;
         final Connection con = provider.get();
-        return (Integer) new JDBCTransactionTemplate(con, true).updateWithTransaction(new JDBCCommand() {
+        int id = (Integer) new JDBCTransactionTemplate(con, true).updateWithTransaction(new JDBCCommand() {
 
             @Override
             public Object executeJDBCCommand(Connection con) throws SQLException {
@@ -450,6 +466,21 @@ public class DatabaseRightsManager implements RightsManager {
                 return insertRightImpl(con, right);
             }
         });
+        rightChanged(id, right);
+        return id;
+    }
+
+    private void rightChanged(int id, Right right) {
+        if (rightsIndex != null) {
+            rightsIndex.rightChanged(id, right.getPid(), right.getAction());
+        }
+    }
+
+    /** criteriums, params or licenses used by many rights */
+    private void criteriumsChanged() {
+        if (rightsIndex != null) {
+            rightsIndex.invalidateAll();
+        }
     }
 
     private License getLabel(RightCriteriumWrapper criteriumWrapper) {
@@ -503,6 +534,7 @@ public class DatabaseRightsManager implements RightsManager {
                 return -1;
             }
         });
+        rightChanged(right.getId(), right);
     }
 
     @InitSecurityDatabase
@@ -542,6 +574,7 @@ public class DatabaseRightsManager implements RightsManager {
                 return -1;
             }
         });
+        criteriumsChanged();
     }
     
     
@@ -564,6 +597,7 @@ public class DatabaseRightsManager implements RightsManager {
                 return -1;
             }
         });
+        rightChanged(right.getId(), right);
     }
     
     
@@ -611,6 +645,7 @@ public class DatabaseRightsManager implements RightsManager {
         } finally {
             DatabaseUtils.tryClose(connection);
         }
+        criteriumsChanged();
 
     }
 
@@ -624,6 +659,7 @@ public class DatabaseRightsManager implements RightsManager {
         } finally {
             DatabaseUtils.tryClose(con);
         }
+        criteriumsChanged();
     }
 
 
@@ -754,6 +790,7 @@ public class DatabaseRightsManager implements RightsManager {
                 return null;
             }
         });
+        criteriumsChanged();
 
     }
 
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2010 Pavel Stastny
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.incad.kramerius.security.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.antlr.stringtemplate.StringTemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hazelcast.core.ITopic;
+
+import cz.incad.kramerius.fedora.om.impl.AkubraDOManager;
+import cz.incad.kramerius.security.CriteriumType;
+import cz.incad.kramerius.security.Right;
+import cz.incad.kramerius.security.RightCriteriumWrapper;
+import cz.incad.kramerius.security.RightCriteriumWrapperFactory;
+import cz.incad.kramerius.security.database.SecurityDatabaseUtils;
+import cz.incad.kramerius.security.licenses.impl.LicenseImpl;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLock.ExclusiveLockType;
+import cz.incad.kramerius.security.utils.RightsDBUtils;
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import cz.incad.kramerius.utils.database.JDBCQueryTemplate;
+
+/**
+ * In-memory copy of all rights (with criteriums, params and licenses) keyed by pid and action,
+ * rights of one pid and action are grouped by role and by user.
+ * <p>
+ * Index is loaded with the first request and then updated per pid and action after every change made through {@link DatabaseRightsManager};
+ * changes are announced to other cluster nodes through hazelcast topic {@link #INVALIDATION_TOPIC} and reloaded there in a background thread
+ * (repeated announcements of a pid and action waiting for the reload are reloaded once). Whole index is reloaded
+ * after <code>rights.index.refreshInterval</code> seconds (changes made directly in the database, lost messages).
+ * <p>
+ * Readers never lock, every change replaces the whole map (rights are changed rarely).
+ * Index keeps only immutable rows, {@link Right} instances are created per request because their evaluation is not thread-safe.
+ */
+@Singleton
+public class RightsIndex {
+
+    public static final Logger LOGGER = Logger.getLogger(RightsIndex.class.getName());
+
+    public static final String INVALIDATION_TOPIC = "rightsInvalidator";
+
+    private static final String ALL = "*";
+    private static final char KEY_SEPARATOR = '\t';
+
+    @Inject
+    @Named("kramerius4")
+    Provider<Connection> provider;
+
+    private final long refreshIntervalMs;
+    private final Object updateLock = new Object();
+    private volatile Snapshot snapshot;
+    private volatile ITopic<String> topic;
+    private volatile boolean subscribed;
+
+    // reloads announced by other nodes, out of the hazelcast listener thread
+    private final ExecutorService reloader = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("rights-index-reloader-%d").setDaemon(true).build());
+    private final Set<String> pendingReloads = ConcurrentHashMap.newKeySet();
+
+    public RightsIndex() {
+        this.refreshIntervalMs = KConfiguration.getInstance().getConfiguration().getLong("rights.index.refreshInterval", 600) * 1000L;
+    }
+
+    /**
+     * Immutable row of right_entity joined with its criterium, params and license
+     */
+    public static final class RightRecord {
+        final int rightId;
+        final String pid;
+        final String action;
+        final int fixedPriority;
+        final String role;
+        final Integer userId;
+
+        final String qname;
+        final int criteriumType;
+        final int criteriumId;
+        final int paramsId;
+        final String paramsShortDesc;
+        final String paramsLongDesc;
+        final String paramsVals;
+
+        final int labelId;
+        final String labelName;
+        final String labelDescription;
+        final String labelGroup;
+        final int labelPriority;
+        final boolean lock;
+        final int lockMaxReaders;
+        final int lockRefreshInterval;
+        final int lockMaxInterval;
+        final String lockType;
+
+        public RightRecord(int rightId, String pid, String action, int fixedPriority, String role, Integer userId,
+                           String qname, int criteriumType, int criteriumId,
+                           int paramsId, String paramsShortDesc, String paramsLongDesc, String paramsVals,
+                           int labelId, String labelName, String labelDescription, String labelGroup, int labelPriority,
+                           boolean lock, int lockMaxReaders, int lockRefreshInterval, int lockMaxInterval, String lockType) {
+            this.rightId = rightId;
+            this.pid = pid;
+            this.action = action;
+            this.fixedPriority = fixedPriority;
+            this.role = role;
+            this.userId = userId;
+            this.qname = qname;
+            this.criteriumType = criteriumType;
+            this.criteriumId = criteriumId;
+            this.paramsId = paramsId;
+            this.paramsShortDesc = paramsShortDesc;
+            this.paramsLongDesc = paramsLongDesc;
+            this.paramsVals = paramsVals;
+            this.labelId = labelId;
+            this.labelName = labelName;
+            this.labelDescription = labelDescription;
+            this.labelGroup = labelGroup;
+            this.labelPriority = labelPriority;
+            this.lock = lock;
+            this.lockMaxReaders = lockMaxReaders;
+            this.lockRefreshInterval = lockRefreshInterval;
+            this.lockMaxInterval = lockMaxInterval;
+            this.lockType = lockType;
+        }
+
+        static RightRecord fromResultSet(ResultSet rs) throws SQLException {
+            int userId = rs.getInt("user_id");
+            boolean userNull = rs.wasNull();
+            return new RightRecord(rs.getInt("right_id"), rs.getString("uuid"), rs.getString("action"), rs.getInt("fixed_priority"),
+                    rs.getString("role"), userNull ? null : userId,
+                    rs.getString("qname"), rs.getInt("type"), rs.getInt("crit_id"),
+                    rs.getInt("crit_param_id"), rs.getString("short_desc"), rs.getString("long_desc"), rs.getString("vals"),
+                    rs.getInt("label_id"), rs.getString("label_name"), rs.getString("label_description"), rs.getString("label_group"), rs.getInt("label_priority"),
+                    rs.getBoolean("LOCK"), rs.getInt("LOCK_MAXREADERS"), rs.getInt("LOCK_REFRESHINTERVAL"), rs.getInt("LOCK_MAXINTERVAL"), rs.getString("LOCK_TYPE"));
+        }
+
+        /**
+         * Same as {@link RightsDBUtils#createRight(ResultSet, cz.incad.kramerius.security.Role, RightCriteriumWrapperFactory)}
+         */
+        public Right toRight(RightCriteriumWrapperFactory factory) {
+            RightCriteriumWrapper crit = null;
+            if (qname != null) {
+                RightCriteriumParamsImpl params = new RightCriteriumParamsImpl(paramsId);
+                params.setLongDescription(paramsLongDesc);
+                params.setShortDescription(paramsShortDesc);
+                params.setObjects(RightsDBUtils.valsFromString(paramsVals));
+                crit = factory.loadExistingWrapper(CriteriumType.findByValue(criteriumType), qname, criteriumId, params);
+                if (crit != null && crit.isLicenseAwareCriterium()) {
+                    LicenseImpl license = new LicenseImpl(labelId, labelName, labelDescription, labelGroup, labelPriority);
+                    if (lock) {
+                        license.initExclusiveLock(lockRefreshInterval, lockMaxInterval, lockMaxReaders, ExclusiveLockType.findByType(lockType));
+                    }
+                    crit.setLicense(license);
+                }
+            }
+            Right right = new RightImpl(rightId, crit, pid, action, new RoleImpl(role));
+            right.setFixedPriority(fixedPriority);
+            return right;
+        }
+    }
+
+    private static final class Entry {
+        final Map<String, List<RightRecord>> byRole;
+        final Map<Integer, List<RightRecord>> byUser;
+
+        Entry(Collection<RightRecord> records) {
+            Map<String, List<RightRecord>> roles = new HashMap<>();
+            Map<Integer, List<RightRecord>> users = new HashMap<>();
+            for (RightRecord record : records) {
+                if (record.role != null) {
+                    roles.computeIfAbsent(record.role, k -> new ArrayList<>()).add(record);
+                }
+                if (record.userId != null) {
+                    users.computeIfAbsent(record.userId, k -> new ArrayList<>()).add(record);
+                }
+            }
+            this.byRole = roles;
+            this.byUser = users;
+        }
+    }
+
+    static final class Snapshot {
+        final Map<String, Entry> byKey;
+        final Map<Integer, String> keyByRightId;
+        final long created;
+
+        Snapshot(Map<String, Entry> byKey, Map<Integer, String> keyByRightId, long created) {
+            this.byKey = byKey;
+            this.keyByRightId = keyByRightId;
+            this.created = created;
+        }
+    }
+
+    static String key(String pid, String action) {
+        return pid + KEY_SEPARATOR + action;
+    }
+
+    /**
+     * Rights for given pids and action associated with the user or with one of the roles; no database access once the index is loaded.
+     * Same as query <code>findRightFromWithGroups</code>
+     */
+    public List<RightRecord> find(String[] pids, String action, int userId, Collection<String> roles) {
+        Snapshot current = getSnapshot();
+        List<RightRecord> result = new ArrayList<>();
+        Set<Integer> added = new HashSet<>();
+        for (String pid : pids) {
+            Entry entry = current.byKey.get(key(pid, action));
+            if (entry == null) {
+                continue;
+            }
+            List<RightRecord> userRecords = entry.byUser.get(userId);
+            if (userRecords != null) {
+                for (RightRecord record : userRecords) {
+                    if (added.add(record.rightId)) {
+                        result.add(record);
+                    }
+                }
+            }
+            for (String role : roles) {
+                List<RightRecord> roleRecords = entry.byRole.get(role);
+                if (roleRecords != null) {
+                    for (RightRecord record : roleRecords) {
+                        if (added.add(record.rightId)) {
+                            result.add(record);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Snapshot getSnapshot() {
+        subscribe();
+        Snapshot current = this.snapshot;
+        if (current == null || System.currentTimeMillis() - current.created > refreshIntervalMs) {
+            synchronized (updateLock) {
+                current = this.snapshot;
+                if (current == null || System.currentTimeMillis() - current.created > refreshIntervalMs) {
+                    current = loadAll();
+                    this.snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // package-private for tests
+    Snapshot loadAll() {
+        StringTemplate template = SecurityDatabaseUtils.stGroup().getInstanceOf("findAllRightsIndex");
+        List<RightRecord> records = new JDBCQueryTemplate<RightRecord>(this.provider.get()) {
+            @Override
+            public boolean handleRow(ResultSet rs, List<RightRecord> returnsList) throws SQLException {
+                returnsList.add(RightRecord.fromResultSet(rs));
+                return true;
+            }
+        }.executeQuery(template.toString());
+        LOGGER.info(String.format("rights index loaded (%d rights)", records.size()));
+        return build(records, System.currentTimeMillis());
+    }
+
+    static Snapshot build(Collection<RightRecord> records, long created) {
+        Map<String, List<RightRecord>> grouped = new HashMap<>();
+        Map<Integer, String> keyByRightId = new HashMap<>();
+        for (RightRecord record : records) {
+            String key = key(record.pid, record.action);
+            grouped.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+            keyByRightId.put(record.rightId, key);
+        }
+        Map<String, Entry> byKey = new HashMap<>();
+        grouped.forEach((key, list) -> byKey.put(key, new Entry(list)));
+        return new Snapshot(byKey, keyByRightId, created);
+    }
+
+    /**
+     * Reloads rights of given pid and action (and former pid and action of the right, if it has been changed) and announces the change to the cluster
+     */
+    public void rightChanged(int rightId, String pid, String action) {
+        Set<String> keys = new HashSet<>();
+        keys.add(key(pid, action));
+        Snapshot current = this.snapshot;
+        if (current != null && current.keyByRightId.containsKey(rightId)) {
+            keys.add(current.keyByRightId.get(rightId));
+        }
+        reload(keys);
+        for (String key : keys) {
+            publish(key);
+        }
+    }
+
+    /**
+     * Drops whole index (criteriums, params or licenses have been changed) and announces it to the cluster
+     */
+    public void invalidateAll() {
+        this.snapshot = null;
+        publish(ALL);
+    }
+
+    private void reload(Set<String> keys) {
+        synchronized (updateLock) {
+            Snapshot current = this.snapshot;
+            if (current == null) {
+                return; // will be loaded with next request
+            }
+            Map<String, Entry> byKey = new HashMap<>(current.byKey);
+            Map<Integer, String> keyByRightId = new HashMap<>(current.keyByRightId);
+            keyByRightId.values().removeAll(keys);
+            for (String key : keys) {
+                int separator = key.indexOf(KEY_SEPARATOR);
+                List<RightRecord> records = loadKey(key.substring(0, separator), key.substring(separator + 1));
+                if (records.isEmpty()) {
+                    byKey.remove(key);
+                } else {
+                    byKey.put(key, new Entry(records));
+                    for (RightRecord record : records) {
+                        keyByRightId.put(record.rightId, key);
+                    }
+                }
+            }
+            this.snapshot = new Snapshot(byKey, keyByRightId, current.created);
+        }
+    }
+
+    // package-private for tests
+    List<RightRecord> loadKey(String pid, String action) {
+        StringTemplate template = SecurityDatabaseUtils.stGroup().getInstanceOf("findAllRightsFromWithGroups");
+        template.setAttribute("pids", new String[] {pid});
+        template.setAttribute("action", action);
+        List<RightRecord> records = new JDBCQueryTemplate<RightRecord>(this.provider.get()) {
+            @Override
+            public boolean handleRow(ResultSet rs, List<RightRecord> returnsList) throws SQLException {
+                returnsList.add(RightRecord.fromResultSet(rs));
+                return true;
+            }
+        }.executeQuery(template.toString());
+        return records != null ? records : Collections.emptyList();
+    }
+
+    // package-private for tests
+    void onMessage(String key) {
+        if (ALL.equals(key)) {
+            this.snapshot = null;
+        } else if (pendingReloads.add(key)) {
+            reloader.execute(() -> {
+                // removed before the reload starts, a change announced during the reload is loaded again
+                pendingReloads.remove(key);
+                try {
+                    reload(Collections.singleton(key));
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "cannot reload rights, whole index will be reloaded: " + e.getMessage(), e);
+                    this.snapshot = null;
+                }
+            });
+        }
+    }
+
+    private void publish(String key) {
+        ITopic<String> t = this.topic;
+        if (t != null) {
+            try {
+                t.publish(key);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "cannot publish rights change: " + e.getMessage());
+            }
+        }
+    }
+
+    private void subscribe() {
+        if (subscribed) {
+            return;
+        }
+        synchronized (this) {
+            if (subscribed) {
+                return;
+            }
+            subscribed = true;
+            if (KConfiguration.getInstance().getConfiguration().getBoolean("rights.index.clusterInvalidation", true)) {
+                try {
+                    ITopic<String> t = AkubraDOManager.getTopic(INVALIDATION_TOPIC);
+                    t.addMessageListener(message -> {
+                        if (message != null && message.getMessageObject() != null) {
+                            onMessage(message.getMessageObject());
+                        }
+                    });
+                    this.topic = t;
+                } catch (RuntimeException | LinkageError e) {
+                    LOGGER.log(Level.WARNING, "rights index is not invalidated across the cluster, only after refresh interval: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * For tests and benchmarks
+     */
+    void setRecords(Collection<RightRecord> records) {
+        this.subscribed = true;
+        this.snapshot = build(records, Long.MAX_VALUE / 2);
+    }
+}
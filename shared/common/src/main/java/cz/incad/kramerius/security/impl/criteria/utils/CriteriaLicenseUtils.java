@@ -111,8 +111,6 @@ public class CriteriaLicenseUtils {
         return false;
     }
 
-    public static Object INTERNAL_SYNC_LOCK = new Object();
-
     public static EvaluatingResultState licenseLock(Right right, RightCriteriumContext ctx, String pid, License lic) throws IOException {
         User user = ctx.getUser();
         if (user.getSessionAttributes().containsKey("token_id")) {
@@ -149,31 +147,29 @@ public class CriteriaLicenseUtils {
             
             String lockHash = exclusiveLock.createLockHash(lic, right, licensesPid);
             ExclusiveLockMap lockMap = ctx.getExclusiveLockMaps().findOrCreateByHash(lockHash, lic, licensesPid, createFormattedName(right));
-            synchronized (INTERNAL_SYNC_LOCK) {
-                ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
-                if (item != null) {
-                    boolean validitem = item.isValid(Instant.now());
-                    if (validitem) {
-                        ctx.getEvaluateInfoMap().put(ReadDNNTLabels.PROVIDED_BY_LABEL, lic.getName());
-                        ctx.getEvaluateInfoMap().put(ReadDNNTLabels.PROVIDED_BY_LICENSE, lic.getName());
-                        return EvaluatingResultState.TRUE;
-                    } else {
-                        // no valid
-                        lockMap.deregisterItem(item);
-                        ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_HASH, lockHash);
-                        ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_TYPE,
-                                lic.getExclusiveLock().getType().name());
-                        return EvaluatingResultState.NEED_LOCK;
-                    }
+            ExclusiveLockMapItem item = lockMap.findByTokenId(tokenId);
+            if (item != null) {
+                boolean validitem = item.isValid(Instant.now());
+                if (validitem) {
+                    ctx.getEvaluateInfoMap().put(ReadDNNTLabels.PROVIDED_BY_LABEL, lic.getName());
+                    ctx.getEvaluateInfoMap().put(ReadDNNTLabels.PROVIDED_BY_LICENSE, lic.getName());
+                    return EvaluatingResultState.TRUE;
                 } else {
-                    if (lockMap.checkAvailabitlity()) {
-                        ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_HASH, lockHash);
-                        ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_TYPE,
-                                lic.getExclusiveLock().getType().name());
-                        return EvaluatingResultState.NEED_LOCK;
-                    } else {
-                        return EvaluatingResultState.NOT_APPLICABLE;
-                    }
+                    // no valid
+                    lockMap.deregisterItem(item);
+                    ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_HASH, lockHash);
+                    ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_TYPE,
+                            lic.getExclusiveLock().getType().name());
+                    return EvaluatingResultState.NEED_LOCK;
+                }
+            } else {
+                if (lockMap.checkAvailabitlity()) {
+                    ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_HASH, lockHash);
+                    ctx.getEvaluateInfoMap().put(ExclusiveLockMap.LOCK_TYPE,
+                            lic.getExclusiveLock().getType().name());
+                    return EvaluatingResultState.NEED_LOCK;
+                } else {
+                    return EvaluatingResultState.NOT_APPLICABLE;
                 }
             }
             // }
@@ -19,6 +19,7 @@ import com.google.inject.name.Named;
 import com.ibm.icu.impl.Pair;
 
 import cz.incad.kramerius.SolrAccess;
+import cz.incad.kramerius.security.impl.RightsIndex;
 import cz.incad.kramerius.security.licenses.License;
 import cz.incad.kramerius.security.licenses.LicensesManager;
 import cz.incad.kramerius.security.licenses.LicensesManagerException;
@@ -43,6 +44,10 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
     
     private ExclusiveLockMaps maps;
     
+    /** rights index contains licenses of rights' criteriums */
+    @Inject
+    RightsIndex rightsIndex;
+
     @Inject
     public DatabaseLicensesManagerImpl(@Named("kramerius4") Provider<Connection> provider,
             @Named("new-index") SolrAccess solrAccess, ExclusiveLockMaps maps) {
@@ -52,6 +57,12 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
         this.maps = maps;
     }
 
+    private void licensesChanged() {
+        if (rightsIndex != null) {
+            rightsIndex.invalidateAll();
+        }
+    }
+
     @Override
     public int getMinPriority() throws LicensesManagerException {
         List<Integer> priorities = new JDBCQueryTemplate<Integer>(this.provider.get(), true) {
@@ -197,6 +208,7 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
         } catch (SQLException e) {
             throw new LicensesManagerException(e.getMessage(), e);
         }
+        licensesChanged();
     }
 
     
@@ -380,6 +392,7 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
         } catch (SQLException e) {
             throw new LicensesManagerException(e.getMessage(), e);
         }
+        licensesChanged();
     }
     
     
@@ -394,6 +407,7 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
         } catch (SQLException e) {
             throw new LicensesManagerException(e.getMessage(), e);
         }
+        licensesChanged();
     }
 
     @Override
@@ -420,6 +434,7 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
                 } catch (SQLException e) {
                     throw new LicensesManagerException(e.getMessage(), e);
                 }
+                licensesChanged();
             }
         } else
             throw new LicensesManagerException("cannot increase the priority for " + license);
@@ -446,6 +461,7 @@ public class DatabaseLicensesManagerImpl implements LicensesManager {
                 } catch (SQLException e) {
                     throw new LicensesManagerException(e.getMessage(), e);
                 }
+                licensesChanged();
             }
         } else
             throw new LicensesManagerException("cannot increase the priority for " + license);
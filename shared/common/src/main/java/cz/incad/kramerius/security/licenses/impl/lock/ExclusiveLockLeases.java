@@ -0,0 +1,114 @@
+package cz.incad.kramerius.security.licenses.impl.lock;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMapItem;
+
+/**
+ * Value of the cluster map of exclusive locks: header of one lock map and its leases (items by token id, in order of registration)
+ */
+class ExclusiveLockLeases implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String pid;
+    private final String formattedName;
+    private final String licenseName;
+    private final LinkedHashMap<String, ExclusiveLockMapItemImpl> items = new LinkedHashMap<>();
+
+    ExclusiveLockLeases(String pid, String formattedName, String licenseName) {
+        this.pid = pid;
+        this.formattedName = formattedName;
+        this.licenseName = licenseName;
+    }
+
+    String getPid() {
+        return pid;
+    }
+
+    String getFormattedName() {
+        return formattedName;
+    }
+
+    String getLicenseName() {
+        return licenseName;
+    }
+
+    ExclusiveLockMapItemImpl get(String tokenId) {
+        return items.get(tokenId);
+    }
+
+    void put(ExclusiveLockMapItem item) {
+        if (item instanceof ExclusiveLockMapItemImpl) {
+            items.put(item.getTokenId(), (ExclusiveLockMapItemImpl) item);
+        } else {
+            items.put(item.getTokenId(), new ExclusiveLockMapItemImpl(item.getTokenId(), item.getRefreshInterval(), item.getCreatedTime(),
+                    item.getRefreshedTime(), item.getMaxTime(), item.getUserId()));
+        }
+    }
+
+    boolean remove(String tokenId) {
+        return items.remove(tokenId) != null;
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * Drops leases which were not refreshed in time or are after max time
+     */
+    void prune(Instant now) {
+        items.values().removeIf(item -> !item.isValid(now));
+    }
+
+    /**
+     * Drops the latest leases over the limit (max readers of the license lowered)
+     */
+    void trim(int maxItems) {
+        int over = items.size() - Math.max(0, maxItems);
+        if (over > 0) {
+            List<String> tokens = new ArrayList<>(items.keySet());
+            for (int i = tokens.size() - over; i < tokens.size(); i++) {
+                items.remove(tokens.get(i));
+            }
+        }
+    }
+
+    int countValid(Instant now) {
+        int count = 0;
+        for (ExclusiveLockMapItemImpl item : items.values()) {
+            if (item.isValid(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    List<ExclusiveLockMapItem> validItems(Instant now) {
+        List<ExclusiveLockMapItem> valid = new ArrayList<>();
+        for (ExclusiveLockMapItemImpl item : items.values()) {
+            if (item.isValid(now)) {
+                valid.add(item);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @return time (epoch millis) when the last lease expires, 0 if there is no lease
+     */
+    long expiresAt() {
+        long expires = 0;
+        for (ExclusiveLockMapItemImpl item : items.values()) {
+            Instant threshold = item.getRefreshedTime().plusSeconds(item.getRefreshInterval());
+            Instant end = threshold.isBefore(item.getMaxTime()) ? threshold : item.getMaxTime();
+            expires = Math.max(expires, end.toEpochMilli());
+        }
+        return expires;
+    }
+}
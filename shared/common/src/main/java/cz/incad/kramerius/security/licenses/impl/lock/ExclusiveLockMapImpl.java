@@ -100,6 +100,15 @@ public class ExclusiveLockMapImpl implements ExclusiveLockMap {
         this.items.add(item);
     }
 
+    @Override
+    public synchronized boolean tryRegisterItem(ExclusiveLockMapItem item) {
+        if (checkAvailabitlity()) {
+            registerItem(item);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public synchronized void deregisterItem(ExclusiveLockMapItem item) {
         this.itemsMap.remove(item.getTokenId());
@@ -110,12 +119,12 @@ public class ExclusiveLockMapImpl implements ExclusiveLockMap {
     
 
     @Override
-    public ExclusiveLockMapItem findByTokenId(String tokenId) {
+    public synchronized ExclusiveLockMapItem findByTokenId(String tokenId) {
         return this.itemsMap.get(tokenId);
     }
 
     @Override
-    public void checkItems(Instant now) {
+    public synchronized void checkItems(Instant now) {
         //check validity 
         List<ExclusiveLockMapItem> nitems = new ArrayList<>(this.items);
         for (ExclusiveLockMapItem nitem : nitems) {
@@ -131,13 +140,13 @@ public class ExclusiveLockMapImpl implements ExclusiveLockMap {
     
 
     @Override
-    public boolean checkAvailabitlity() {
+    public synchronized boolean checkAvailabitlity() {
         this.checkItems(Instant.now());
         return (this.items.size() < this.maxItemsForPid);
     }
 
     @Override
-    public void refresh(String tokenid)  throws ExclusiveMapException {
+    public synchronized void refresh(String tokenid)  throws ExclusiveMapException {
         ExclusiveLockMapItem exclusiveLockMapItem = this.itemsMap.get(tokenid);
         if (exclusiveLockMapItem != null) {
             Instant now = Instant.now();
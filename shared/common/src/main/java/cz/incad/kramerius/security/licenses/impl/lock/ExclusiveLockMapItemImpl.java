@@ -16,6 +16,7 @@
  */
 package cz.incad.kramerius.security.licenses.impl.lock;
 
+import java.io.Serializable;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.Objects;
@@ -28,7 +29,9 @@ import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMapItemRefreshIter
 import cz.incad.kramerius.security.licenses.lock.ExclusiveMapException;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveMapItemAfterMaxTimeExcepion;
 
-public class ExclusiveLockMapItemImpl implements ExclusiveLockMapItem {
+public class ExclusiveLockMapItemImpl implements ExclusiveLockMapItem, Serializable {
+
+    private static final long serialVersionUID = 1L;
     
     public static final Logger LOGGER = Logger.getLogger(ExclusiveLockMapItemImpl.class.getName());
     
@@ -17,9 +17,9 @@
 package cz.incad.kramerius.security.licenses.impl.lock;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import cz.incad.kramerius.security.licenses.License;
 import cz.incad.kramerius.security.licenses.lock.ExclusiveLock;
@@ -28,20 +28,17 @@ import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMaps;
 
 public class ExclusiveLockMapsImpl implements ExclusiveLockMaps {
 
-    private Map<String, ExclusiveLockMap> maps = new HashMap<>();
+    private Map<String, ExclusiveLockMap> maps = new ConcurrentHashMap<>();
     
     
     @Override
-    public synchronized ExclusiveLockMap findOrCreateByHash(String hash, License l, String pid, String fmtName) {
-        if (!this.maps.containsKey(hash)) {
-            this.maps.put(hash, new ExclusiveLockMapImpl(l,pid, hash, fmtName));
-        }
-        return this.maps.get(hash);
+    public ExclusiveLockMap findOrCreateByHash(String hash, License l, String pid, String fmtName) {
+        return this.maps.computeIfAbsent(hash, h -> new ExclusiveLockMapImpl(l, pid, h, fmtName));
     }
 
 
     @Override
-    public synchronized ExclusiveLockMap findHash(String hash) {
+    public ExclusiveLockMap findHash(String hash) {
         return this.maps.get(hash);
     }
 
@@ -54,8 +51,8 @@ public class ExclusiveLockMapsImpl implements ExclusiveLockMaps {
 
     @Override
     public void refreshLicense(License license) {
-        maps.keySet().forEach(key-> {
-            maps.get(key).refereshLicense(license);
+        maps.values().forEach(map-> {
+            map.refereshLicense(license);
         });
     }
 }
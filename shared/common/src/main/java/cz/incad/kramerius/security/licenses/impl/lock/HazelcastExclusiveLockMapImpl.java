@@ -0,0 +1,226 @@
+package cz.incad.kramerius.security.licenses.impl.lock;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.hazelcast.core.IMap;
+
+import cz.incad.kramerius.security.licenses.License;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLock;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLock.ExclusiveLockType;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMap;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMapItem;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveMapException;
+import cz.incad.kramerius.security.licenses.utils.LicenseTOJSONSupport;
+
+/**
+ * Lock map stored in the cluster map of {@link HazelcastExclusiveLockMapsImpl}; this object is only a node local view.
+ * <p>
+ * Reads take no lock, changes hold the cluster lock of this map's key only (different copies never wait for each other).
+ * Expired leases are dropped on every change; the key itself expires when its leases do (but not sooner than the max interval
+ * of the license lock, so that the header survives between the rights check and the first refresh).
+ */
+class HazelcastExclusiveLockMapImpl implements ExclusiveLockMap {
+
+    /** Lease of the key lock, released even if the holder dies in the middle of a change */
+    private static final long KEY_LOCK_LEASE_SECONDS = 10;
+
+    /** Life of a map without leases when the license has no lock anymore */
+    private static final long DEFAULT_HEADER_TTL_SECONDS = 3600;
+
+    private final IMap<String, ExclusiveLockLeases> leases;
+    private final String hash;
+    private final String pid;
+    private final String formattedName;
+    private volatile License license;
+
+    HazelcastExclusiveLockMapImpl(IMap<String, ExclusiveLockLeases> leases, License license, String pid, String hash, String formattedName) {
+        this.leases = leases;
+        this.license = license;
+        this.pid = pid;
+        this.hash = hash;
+        this.formattedName = formattedName;
+    }
+
+    /**
+     * Creates the cluster entry of this map if it doesn't exist yet
+     */
+    void publish() {
+        leases.putIfAbsent(hash, new ExclusiveLockLeases(pid, formattedName, license.getName()), headerTtlSeconds(), TimeUnit.SECONDS);
+    }
+
+    private long headerTtlSeconds() {
+        License l = this.license;
+        return l.exclusiveLockPresent() ? Math.max(l.getExclusiveLock().getMaxInterval(), 1) : DEFAULT_HEADER_TTL_SECONDS;
+    }
+
+    /**
+     * Runs the change on the current leases under the key lock and stores the result
+     */
+    private <T> T update(Function<ExclusiveLockLeases, T> change) {
+        leases.lock(hash, KEY_LOCK_LEASE_SECONDS, TimeUnit.SECONDS);
+        try {
+            ExclusiveLockLeases current = leases.get(hash);
+            if (current == null) {
+                current = new ExclusiveLockLeases(pid, formattedName, license.getName());
+            }
+            T result = change.apply(current);
+            long ttl = Math.max(current.expiresAt() - System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(headerTtlSeconds()));
+            leases.set(hash, current, ttl, TimeUnit.MILLISECONDS);
+            return result;
+        } finally {
+            leases.unlock(hash);
+        }
+    }
+
+    @Override
+    public String getFormatedName() {
+        return this.formattedName;
+    }
+
+    @Override
+    public String getPid() {
+        return this.pid;
+    }
+
+    @Override
+    public License getAssociatedLicense() {
+        return this.license;
+    }
+
+    @Override
+    public ExclusiveLock getAssociatedExcelusiveLock() {
+        return this.license.getExclusiveLock();
+    }
+
+    @Override
+    public String getIdenityHash() {
+        return this.hash;
+    }
+
+    @Override
+    public int getMaximumItems() {
+        License l = this.license;
+        return l.exclusiveLockPresent() ? l.getExclusiveLock().getMaxReaders() : 0;
+    }
+
+    @Override
+    public ExclusiveLockType getLockType() {
+        License l = this.license;
+        return l.exclusiveLockPresent() ? l.getExclusiveLock().getType() : null;
+    }
+
+    @Override
+    public List<ExclusiveLockMapItem> getLockItems() {
+        ExclusiveLockLeases current = leases.get(hash);
+        return current != null ? current.validItems(Instant.now()) : Collections.emptyList();
+    }
+
+    @Override
+    public ExclusiveLockMapItem findByTokenId(String tokenId) {
+        ExclusiveLockLeases current = leases.get(hash);
+        return current != null ? current.get(tokenId) : null;
+    }
+
+    @Override
+    public void registerItem(ExclusiveLockMapItem item) {
+        update(current -> {
+            current.prune(Instant.now());
+            current.put(item);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean tryRegisterItem(ExclusiveLockMapItem item) {
+        int max = getMaximumItems();
+        return update(current -> {
+            current.prune(Instant.now());
+            if (current.get(item.getTokenId()) != null || current.size() < max) {
+                current.put(item);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public void deregisterItem(ExclusiveLockMapItem item) {
+        update(current -> {
+            current.remove(item.getTokenId());
+            current.prune(Instant.now());
+            return null;
+        });
+    }
+
+    @Override
+    public void checkItems(Instant now) {
+        int max = getMaximumItems();
+        update(current -> {
+            current.prune(now);
+            current.trim(max);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean checkAvailabitlity() {
+        ExclusiveLockLeases current = leases.get(hash);
+        return (current != null ? current.countValid(Instant.now()) : 0) < getMaximumItems();
+    }
+
+    @Override
+    public void refresh(String tokenid) throws ExclusiveMapException {
+        boolean found = update(current -> {
+            Instant now = Instant.now();
+            ExclusiveLockMapItemImpl item = current.get(tokenid);
+            if (item != null && item.isValid(now)) {
+                item.refresh(now);
+            }
+            current.prune(now);
+            return item != null;
+        });
+        if (!found) {
+            throw new ExclusiveMapException(String.format("cannot find item by token %s", tokenid));
+        }
+    }
+
+    @Override
+    public void refereshLicense(License l) {
+        if (l.getName().equals(this.license.getName())) {
+            this.license = l;
+            this.checkItems(Instant.now());
+        }
+    }
+
+    @Override
+    public JSONObject toJSONHeaderObject() {
+        JSONObject obj = new JSONObject();
+        obj.put("formattedName", this.formattedName);
+        obj.put("hash", this.hash);
+        obj.put("pid", this.pid);
+        obj.put("maxItems", this.getMaximumItems());
+        if (this.getAssociatedLicense() != null) {
+            JSONObject licJSON = LicenseTOJSONSupport.licenseToJSON(this.getAssociatedLicense());
+            obj.put("license", licJSON);
+        }
+        return obj;
+    }
+
+    @Override
+    public JSONObject toJSONObject() {
+        JSONObject obj = toJSONHeaderObject();
+        JSONArray jsonArray = new JSONArray();
+        getLockItems().forEach(li -> {
+            jsonArray.put(li.toJSONObject());
+        });
+        obj.put("items", jsonArray);
+        return obj;
+    }
+}
@@ -0,0 +1,122 @@
+package cz.incad.kramerius.security.licenses.impl.lock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.hazelcast.core.IMap;
+
+import cz.incad.kramerius.fedora.om.impl.AkubraDOManager;
+import cz.incad.kramerius.security.licenses.License;
+import cz.incad.kramerius.security.licenses.LicensesManager;
+import cz.incad.kramerius.security.licenses.LicensesManagerException;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMap;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMaps;
+
+/**
+ * Exclusive lock maps shared by all nodes of the cluster (Hazelcast map {@value #MAP_NAME} of the cluster used by {@link AkubraDOManager}),
+ * so that a copy can't be lent out once per node behind a load balancer.
+ * <p>
+ * Views of lock maps are kept per node; a map created on another node is found by its hash and its license is resolved by name.
+ */
+public class HazelcastExclusiveLockMapsImpl implements ExclusiveLockMaps {
+
+    public static final Logger LOGGER = Logger.getLogger(HazelcastExclusiveLockMapsImpl.class.getName());
+
+    public static final String MAP_NAME = "exclusiveLocks";
+
+    private final Provider<LicensesManager> licensesManager;
+    private volatile IMap<String, ExclusiveLockLeases> leases;
+
+    private final Cache<String, HazelcastExclusiveLockMapImpl> views = CacheBuilder.newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+    private final ConcurrentHashMap<String, License> licenses = new ConcurrentHashMap<>();
+
+    @Inject
+    public HazelcastExclusiveLockMapsImpl(Provider<LicensesManager> licensesManager) {
+        this.licensesManager = licensesManager;
+    }
+
+    HazelcastExclusiveLockMapsImpl(IMap<String, ExclusiveLockLeases> leases, Provider<LicensesManager> licensesManager) {
+        this.leases = leases;
+        this.licensesManager = licensesManager;
+    }
+
+    // connected lazily, creating the bindings must not connect to the cluster
+    private IMap<String, ExclusiveLockLeases> leases() {
+        IMap<String, ExclusiveLockLeases> map = this.leases;
+        if (map == null) {
+            synchronized (this) {
+                if (this.leases == null) {
+                    this.leases = AkubraDOManager.getMap(MAP_NAME);
+                }
+                map = this.leases;
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public ExclusiveLockMap findOrCreateByHash(String hash, License l, String pid, String fmtName) {
+        this.licenses.putIfAbsent(l.getName(), l);
+        return this.views.asMap().computeIfAbsent(hash, h -> {
+            HazelcastExclusiveLockMapImpl view = new HazelcastExclusiveLockMapImpl(leases(), l, pid, h, fmtName);
+            view.publish();
+            return view;
+        });
+    }
+
+    @Override
+    public ExclusiveLockMap findHash(String hash) {
+        HazelcastExclusiveLockMapImpl view = this.views.getIfPresent(hash);
+        if (view != null) {
+            return view;
+        }
+        ExclusiveLockLeases current = leases().get(hash);
+        if (current == null) {
+            return null;
+        }
+        License license = license(current.getLicenseName());
+        if (license == null) {
+            return null;
+        }
+        return this.views.asMap().computeIfAbsent(hash,
+                h -> new HazelcastExclusiveLockMapImpl(leases(), license, current.getPid(), h, current.getFormattedName()));
+    }
+
+    private License license(String name) {
+        License license = this.licenses.get(name);
+        if (license == null) {
+            try {
+                license = this.licensesManager.get().getLicenseByName(name);
+                if (license != null) {
+                    this.licenses.putIfAbsent(name, license);
+                }
+            } catch (LicensesManagerException e) {
+                LOGGER.log(Level.SEVERE, String.format("Cannot find license %s: %s", name, e.getMessage()), e);
+            }
+        }
+        return license;
+    }
+
+    @Override
+    public List<String> getAllHashes() {
+        return new ArrayList<>(leases().keySet());
+    }
+
+    @Override
+    public void refreshLicense(License license) {
+        this.licenses.put(license.getName(), license);
+        this.views.asMap().values().forEach(view -> {
+            view.refereshLicense(license);
+        });
+    }
+}
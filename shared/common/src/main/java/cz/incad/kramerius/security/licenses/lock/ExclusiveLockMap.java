@@ -51,12 +51,21 @@ public interface ExclusiveLockMap {
     public ExclusiveLockMapItem findByTokenId(String tokenId);
     
     public void registerItem(ExclusiveLockMapItem item);
+
+    /**
+     * Registers the item only if there is a free place (check and register are atomic)
+     * @return true if the item has been registered
+     */
+    public boolean tryRegisterItem(ExclusiveLockMapItem item);
     
     public void deregisterItem(ExclusiveLockMapItem item);
     
 
     public void checkItems(Instant now);
     
+    /**
+     * Refreshes the item of given token; items must be refreshed through the map (item itself could be a copy)
+     */
     public void refresh(String tokenid) throws ExclusiveMapException;
     
     public void refereshLicense(License l);
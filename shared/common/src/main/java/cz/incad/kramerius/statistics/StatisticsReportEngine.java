@@ -0,0 +1,266 @@
+package cz.incad.kramerius.statistics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Singleton;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+
+/**
+ * Runs exports of statistics reports.
+ * <p>
+ * Reports of different types run concurrently, at most <code>statistics.reports.concurrency</code> exports of one report type
+ * at once (<code>statistics.reports.concurrency.&lt;report id&gt;</code> per report). Results are cached by the query
+ * (report, action, filters, format) and concurrent identical queries share one execution.
+ * <p>
+ * Results of closed date ranges (ending more than <code>statistics.reports.closedAfterDays</code> days before today;
+ * delayed access log records, e.g. resent from the spill file, can still arrive for recent days) don't change any more: they are stored in
+ * <code>statistics.reports.cacheDirectory</code> as they are computed and served from there for
+ * <code>statistics.reports.closedCacheTTL</code> hours, even after restart. Results of open ranges expire after
+ * <code>statistics.reports.cacheTTL</code> seconds. Cleaning of the access log invalidates everything.
+ */
+@Singleton
+public class StatisticsReportEngine {
+
+    public static final Logger LOGGER = Logger.getLogger(StatisticsReportEngine.class.getName());
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+
+    /**
+     * Writes formatted report
+     */
+    @FunctionalInterface
+    public interface Execution {
+        void execute(OutputStream out) throws IOException, StatisticsReportException;
+    }
+
+    private final Configuration conf;
+    private final int defaultConcurrency;
+    private final File cacheDir;
+    private final long closedTTLMillis;
+    private final int closedAfterDays;
+
+    private final Cache<String, byte[]> openResults;
+    private final Cache<String, byte[]> closedResults;
+    private final Map<String, Semaphore> running = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<byte[]>> inProgress = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    public StatisticsReportEngine() {
+        this(KConfiguration.getInstance().getConfiguration());
+    }
+
+    StatisticsReportEngine(Configuration conf) {
+        this.conf = conf;
+        this.defaultConcurrency = Math.max(1, conf.getInt("statistics.reports.concurrency", 2));
+        this.cacheDir = new File(conf.getString("statistics.reports.cacheDirectory",
+                System.getProperty("user.home") + File.separator + ".kramerius4" + File.separator + "statistics-cache"));
+        this.closedTTLMillis = TimeUnit.HOURS.toMillis(conf.getLong("statistics.reports.closedCacheTTL", 720));
+        this.closedAfterDays = Math.max(1, conf.getInt("statistics.reports.closedAfterDays", 7));
+        long maxWeight = conf.getLong("statistics.reports.cacheSize", 32) * 1024L * 1024L;
+        this.openResults = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, byte[] value) -> value.length)
+                .expireAfterWrite(conf.getLong("statistics.reports.cacheTTL", 300), TimeUnit.SECONDS)
+                .build();
+        this.closedResults = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String key, byte[] value) -> value.length)
+                .expireAfterWrite(closedTTLMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the report, computes it if it is not cached
+     * @param reportId Report id
+     * @param parameters Everything what determines the result (action, filters, format)
+     * @param closed True if the result cannot change anymore (see {@link #isClosed(String, String)})
+     * @param execution Computes the report; called at most once for concurrent identical queries
+     */
+    public byte[] export(String reportId, List<String> parameters, boolean closed, Execution execution) throws IOException, StatisticsReportException {
+        String key = key(reportId, parameters);
+        byte[] cached = closed ? closedResults.getIfPresent(key) : openResults.getIfPresent(key);
+        if (cached == null && closed) {
+            cached = readStored(key);
+        }
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> executing = inProgress.putIfAbsent(key, created);
+        if (executing != null) {
+            return await(executing);
+        }
+        try {
+            created.complete(execute(reportId, key, closed, execution));
+        } catch (IOException | StatisticsReportException | RuntimeException e) {
+            created.completeExceptionally(e);
+        } finally {
+            inProgress.remove(key, created);
+        }
+        return await(created);
+    }
+
+    private byte[] execute(String reportId, String key, boolean closed, Execution execution) throws IOException, StatisticsReportException {
+        Semaphore permits = running.computeIfAbsent(reportId,
+                id -> new Semaphore(Math.max(1, conf.getInt("statistics.reports.concurrency." + id, defaultConcurrency)), true));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        try {
+            long gen = generation.get();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            execution.execute(bos);
+            byte[] result = bos.toByteArray();
+            // the log has been cleaned in the meantime
+            if (gen == generation.get()) {
+                if (closed) {
+                    closedResults.put(key, result);
+                    store(key, result);
+                } else {
+                    openResults.put(key, result);
+                }
+            }
+            return result;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Drops all cached results (the access log has been changed)
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        openResults.invalidateAll();
+        closedResults.invalidateAll();
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".report"));
+        if (files != null) {
+            for (File f : files) {
+                if (!f.delete() && f.exists()) {
+                    LOGGER.warning("cannot delete cached report " + f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param dateTo End of the range (<code>yyyy.MM.dd</code>) or null
+     * @param annualYear Year of the annual report or null
+     * @return true if the range ended at least <code>statistics.reports.closedAfterDays</code> days ago
+     */
+    public boolean isClosed(String dateTo, String annualYear) {
+        LocalDate lastOpenDay = LocalDate.now().minusDays(closedAfterDays);
+        try {
+            if (dateTo != null && !dateTo.trim().isEmpty()) {
+                return LocalDate.parse(dateTo.trim(), DATE_FORMAT).isBefore(lastOpenDay);
+            }
+            if (annualYear != null && !annualYear.trim().isEmpty()) {
+                return LocalDate.of(Integer.parseInt(annualYear.trim()), 12, 31).isBefore(lastOpenDay);
+            }
+        } catch (DateTimeException | NumberFormatException e) {
+            // invalid filter, not cached for long
+        }
+        return false;
+    }
+
+    private byte[] readStored(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        if (file.lastModified() + closedTTLMillis < System.currentTimeMillis()) {
+            file.delete();
+            return null;
+        }
+        try {
+            byte[] result = Files.readAllBytes(file.toPath());
+            closedResults.put(key, result);
+            return result;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot read cached report " + file.getAbsolutePath() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(String key, byte[] result) {
+        File file = file(key);
+        try {
+            cacheDir.mkdirs();
+            File tmp = File.createTempFile(file.getName(), ".tmp", cacheDir);
+            try {
+                Files.write(tmp.toPath(), result);
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot store report " + file.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    private File file(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new File(cacheDir, Hex.encodeHexString(digest.digest(key.getBytes(StandardCharsets.UTF_8))) + ".report");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String key(String reportId, List<String> parameters) {
+        StringBuilder builder = new StringBuilder(reportId);
+        for (String p : parameters) {
+            builder.append('\u0000').append(p != null ? p : "");
+        }
+        return builder.toString();
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws IOException, StatisticsReportException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof StatisticsReportException) {
+                throw (StatisticsReportException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
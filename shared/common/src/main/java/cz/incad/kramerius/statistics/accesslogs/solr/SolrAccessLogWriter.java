@@ -0,0 +1,358 @@
+package cz.incad.kramerius.statistics.accesslogs.solr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Element;
+
+import com.sun.jersey.api.client.Client;
+
+import cz.incad.kramerius.statistics.accesslogs.LogRecord;
+import cz.incad.kramerius.utils.solr.SolrUpdateException;
+import cz.incad.kramerius.utils.solr.SolrUpdateUtils;
+
+/**
+ * Asynchronous writer of access log records into solr logs core.
+ * <p>
+ * {@link #submit(LogRecord)} only enqueues the record into a bounded queue; when the queue is full the record is dropped
+ * and counted. Background thread enriches records (solr, DC, MODS lookups), collects them into batches of <code>batchSize</code>
+ * and sends a batch when it is full or every <code>flushInterval</code> ms.
+ * Batches which cannot be sent (solr unavailable, 5xx) are appended to the spill file (one solr <code>doc</code> per line)
+ * and resent after the next successful send or after restart.
+ * Batch rejected by solr (4xx) is resent document by document; rejected documents are never retried,
+ * they are logged and moved to the <code>.rejected</code> file next to the spill file.
+ */
+public class SolrAccessLogWriter {
+
+    public static final Logger LOGGER = Logger.getLogger(SolrAccessLogWriter.class.getName());
+
+    /**
+     * Fills part of the record which doesn't depend on request (runs in writer thread)
+     */
+    @FunctionalInterface
+    public interface Enricher {
+        void enrich(LogRecord record) throws Exception;
+    }
+
+    private final Client client;
+    private final String updateUrl;
+    private final Enricher enricher;
+    private final int batchSize;
+    private final long flushInterval;
+    private final File spillFile;
+
+    private final BlockingQueue<LogRecord> queue;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private long reportedDropped = 0;
+
+    private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    private Transformer transformer;
+
+    public SolrAccessLogWriter(Client client, String updateUrl, Enricher enricher, int queueSize, int batchSize, long flushInterval, File spillFile) {
+        this.client = client;
+        this.updateUrl = updateUrl;
+        this.enricher = enricher;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.spillFile = spillFile != null ? spillFile.getAbsoluteFile() : null;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.worker = new Thread(this::run, "access-log-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "access-log-writer-shutdown"));
+    }
+
+    /**
+     * Enqueues record, never blocks
+     * @return false if the queue is full and the record was dropped
+     */
+    public boolean submit(LogRecord record) {
+        if (running && queue.offer(record)) {
+            submitted.incrementAndGet();
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void run() {
+        resendSpilled();
+        List<String> batch = new ArrayList<>(batchSize);
+        long deadline = System.currentTimeMillis() + flushInterval;
+        while (running || !queue.isEmpty()) {
+            try {
+                LogRecord record = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    String doc = toSolrDoc(record);
+                    if (doc != null) {
+                        batch.add(doc);
+                    }
+                }
+                if (batch.size() >= batchSize || System.currentTimeMillis() >= deadline) {
+                    flush(batch);
+                    batch = new ArrayList<>(batchSize);
+                    deadline = System.currentTimeMillis() + flushInterval;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+        //remaining records (close)
+        List<LogRecord> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        for (LogRecord record : rest) {
+            String doc = toSolrDoc(record);
+            if (doc != null) {
+                batch.add(doc);
+            }
+        }
+        flush(batch);
+    }
+
+    private String toSolrDoc(LogRecord record) {
+        try {
+            enricher.enrich(record);
+        } catch (Exception e) {
+            //record is logged with data it has
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+        }
+        try {
+            Element doc = (Element) record.toSolrBatch(documentBuilderFactory).getDocumentElement().getFirstChild();
+            if (transformer == null) {
+                transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            }
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(doc), new StreamResult(writer));
+            //one document per line in spill file
+            return writer.toString().replace("\r", "&#13;").replace("\n", "&#10;");
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private void flush(List<String> batch) {
+        long droppedNow = dropped.get();
+        if (droppedNow != reportedDropped) {
+            LOGGER.warning(String.format("access log queue full, %d records dropped so far", droppedNow));
+            reportedDropped = droppedNow;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> undelivered = deliver(batch);
+        if (undelivered.isEmpty()) {
+            resendSpilled();
+        } else {
+            spill(undelivered);
+        }
+    }
+
+    /**
+     * Sends the batch; when solr rejects it, sends documents one by one and quarantines rejected ones
+     * @return documents which were not sent because solr is not available (to be spilled)
+     */
+    private List<String> deliver(List<String> docs) {
+        try {
+            send(docs);
+            return Collections.emptyList();
+        } catch (SolrUpdateException e) {
+            if (!e.isRejected()) {
+                LOGGER.log(Level.WARNING, String.format("cannot send %d access log records: %s", docs.size(), e.getMessage()));
+                return docs;
+            }
+            if (docs.size() == 1) {
+                reject(docs.get(0), e);
+                return Collections.emptyList();
+            }
+            LOGGER.log(Level.WARNING, String.format("solr rejected batch of %d access log records, sending them one by one", docs.size()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("cannot send %d access log records: %s", docs.size(), e.getMessage()));
+            return docs;
+        }
+        for (int i = 0; i < docs.size(); i++) {
+            String doc = docs.get(i);
+            try {
+                send(Collections.singletonList(doc));
+            } catch (SolrUpdateException e) {
+                if (!e.isRejected()) {
+                    LOGGER.log(Level.WARNING, String.format("cannot send %d access log records: %s", docs.size() - i, e.getMessage()));
+                    return docs.subList(i, docs.size());
+                }
+                reject(doc, e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("cannot send %d access log records: %s", docs.size() - i, e.getMessage()));
+                return docs.subList(i, docs.size());
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private void send(List<String> docs) throws IOException {
+        StringBuilder builder = new StringBuilder("<add>");
+        for (String doc : docs) {
+            builder.append(doc);
+        }
+        builder.append("</add>");
+        SolrUpdateUtils.sendXmlToDest(this.client, builder.toString(), this.updateUrl);
+        sent.addAndGet(docs.size());
+    }
+
+    /**
+     * Document solr refuses to accept; it is not retried
+     */
+    private synchronized void reject(String doc, SolrUpdateException e) {
+        rejected.incrementAndGet();
+        LOGGER.log(Level.SEVERE, String.format("solr rejected access log record (%s): %s", e.getMessage(), doc));
+        if (spillFile == null) {
+            return;
+        }
+        File rejectedFile = new File(spillFile.getParentFile(), spillFile.getName() + ".rejected");
+        try (BufferedWriter writer = Files.newBufferedWriter(rejectedFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(doc);
+            writer.newLine();
+        } catch (IOException ioe) {
+            LOGGER.log(Level.SEVERE, String.format("cannot store rejected access log record: %s", ioe.getMessage()), ioe);
+        }
+    }
+
+    private synchronized void spill(List<String> docs) {
+        if (spillFile == null) {
+            LOGGER.severe(String.format("%d access log records lost (no spill file)", docs.size()));
+            return;
+        }
+        spillFile.getParentFile().mkdirs();
+        try (BufferedWriter writer = Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String doc : docs) {
+                writer.write(doc);
+                writer.newLine();
+            }
+            spilled.addAndGet(docs.size());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, String.format("%d access log records lost: %s", docs.size(), e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Sends records from spill file; records that fail again are spilled again, rejected records are quarantined
+     */
+    private synchronized void resendSpilled() {
+        if (spillFile == null || !spillFile.isFile() || spillFile.length() == 0) {
+            return;
+        }
+        File resending = new File(spillFile.getParentFile(), spillFile.getName() + ".resend");
+        try {
+            if (!resending.exists()) {
+                Files.move(spillFile.toPath(), resending.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            boolean failed = false;
+            List<String> batch = new ArrayList<>(batchSize);
+            try (BufferedReader reader = Files.newBufferedReader(resending.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    batch.add(line);
+                    if (batch.size() >= batchSize) {
+                        failed = sendOrSpill(batch, failed);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            sendOrSpill(batch, failed);
+            Files.delete(resending.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * After first failure the rest of spilled records is only copied back to spill file
+     * @return true if sending failed
+     */
+    private boolean sendOrSpill(List<String> batch, boolean failed) {
+        if (batch.isEmpty()) {
+            return failed;
+        }
+        List<String> undelivered = failed ? batch : deliver(batch);
+        if (undelivered.isEmpty()) {
+            return false;
+        }
+        spill(undelivered);
+        return true;
+    }
+
+    /**
+     * Stops accepting records, sends queued records (spills them if solr is not available)
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package cz.incad.kramerius.statistics.accesslogs.solr;
 
 import static org.apache.http.HttpStatus.SC_OK;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
@@ -27,6 +28,7 @@ import javax.xml.xpath.XPathFactory;
 import cz.incad.kramerius.utils.IPAddressUtils;
 import cz.incad.kramerius.utils.XMLUtils;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.HttpResponseException;
@@ -43,6 +45,7 @@ import com.google.inject.Provider;
 import com.google.inject.name.Named;
 import com.sun.jersey.api.client.Client;
 
+import cz.incad.kramerius.Constants;
 import cz.incad.kramerius.FedoraAccess;
 import cz.incad.kramerius.ObjectModelsPath;
 import cz.incad.kramerius.ObjectPidsPath;
@@ -64,6 +67,7 @@ import cz.incad.kramerius.statistics.accesslogs.database.DatabaseStatisticsAcces
 import cz.incad.kramerius.statistics.accesslogs.utils.SElemUtils;
 import cz.incad.kramerius.users.LoggedUsersSingleton;
 import cz.incad.kramerius.utils.DCUtils;
+import cz.incad.kramerius.utils.StringUtils;
 import cz.incad.kramerius.utils.conf.KConfiguration;
 import cz.incad.kramerius.utils.solr.SolrUpdateUtils;
 import cz.incad.kramerius.utils.solr.SolrUtils;
@@ -104,6 +108,11 @@ public class SolrStatisticsAccessLogImpl extends AbstractStatisticsAccessLog {
     @Inject
     VersionService versionService;
 
+    /** Records are enriched and sent to solr in background, see {@link SolrAccessLogWriter} */
+    private static final boolean ASYNC = KConfiguration.getInstance().getConfiguration().getBoolean("statistics.accesslog.async", true);
+
+    private volatile SolrAccessLogWriter writer;
+
     private XPathFactory xpfactory;
     private Client client;
     private DocumentBuilderFactory documentBuilderFactory;
@@ -120,21 +129,80 @@ public class SolrStatisticsAccessLogImpl extends AbstractStatisticsAccessLog {
 
     @Override
     public void reportAccess(final String pid, final String streamName) throws IOException {
-        Document solrDoc = this.solrAccess.getSolrDataByPid(pid);
-        
-        ObjectPidsPath[] paths = this.solrAccess.getPidPaths(solrDoc);
-        ObjectModelsPath[] mpaths = this.solrAccess.getModelPaths(solrDoc);
-        ObjectPidsPath[] ownPidPaths = this.solrAccess.getOwnPidPaths(solrDoc);
-
         LogRecord logRecord = LogRecord.buildRecord(pid);
-
-        // jestlize je uzivatel, pak tokenid, pokud ne, pak session id
-        if (userProvider.get() != null) {
-            String sessionId = requestProvider.get().getSession().getId();
-            logRecord.setSessionToken(sessionId);
+        fillFromRequest(logRecord);
+        SolrAccessLogWriter writer = getWriter();
+        if (writer != null) {
+            writer.submit(logRecord);
         } else {
-            // user store token id 
+            try {
+                enrich(logRecord);
+            } catch (SQLException | XPathExpressionException e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            } finally {
+                send(logRecord);
+            }
         }
+    }
+
+    /**
+     * Asynchronous writer, null if access log is written synchronously (<code>statistics.accesslog.async=false</code>)
+     */
+    private SolrAccessLogWriter getWriter() {
+        if (!ASYNC) {
+            return null;
+        }
+        SolrAccessLogWriter w = this.writer;
+        if (w == null) {
+            synchronized (this) {
+                w = this.writer;
+                if (w == null) {
+                    Configuration conf = KConfiguration.getInstance().getConfiguration();
+                    String spillFile = conf.getString("statistics.accesslog.spillFile", Constants.WORKING_DIR + File.separator + "accesslog-spill.log");
+                    w = new SolrAccessLogWriter(this.client, updateUrl(), this::enrich,
+                            conf.getInt("statistics.accesslog.queueSize", 10000),
+                            conf.getInt("statistics.accesslog.batchSize", 100),
+                            conf.getLong("statistics.accesslog.flushInterval", 5000),
+                            StringUtils.isAnyString(spillFile) ? new File(spillFile) : null);
+                    this.writer = w;
+                }
+            }
+        }
+        return w;
+    }
+
+    private static String updateUrl() {
+        String loggerPoint = KConfiguration.getInstance().getProperty(SOLR_POINT,"http://localhost:8983/solr/logs");
+        return loggerPoint+(loggerPoint.endsWith("/") ?  "" : "/")+"update";
+    }
+
+    private void send(LogRecord logRecord) {
+        try {
+            LOGGER.fine("Log record is "+logRecord.toString());
+            Document batch = logRecord.toSolrBatch(this.documentBuilderFactory);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                try {
+                    StringWriter writer = new StringWriter();
+                    XMLUtils.print(batch, writer);
+                    LOGGER.fine("Update doc  => "+writer.toString());
+                } catch (TransformerException e1) {
+                    LOGGER.log(Level.SEVERE,e1.getMessage(),e1);
+                }
+            }
+            SolrUpdateUtils.sendToDest(this.client, batch, updateUrl());
+        } catch (ParserConfigurationException e) {
+            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Part of the record taken from current request, user and thread (must run in request thread)
+     */
+    private void fillFromRequest(LogRecord logRecord) {
+        // jestlize je uzivatel, pak tokenid, pokud ne, pak session id
+        User user = this.userProvider.get();
+        String sessionId = requestProvider.get().getSession().getId();
+        logRecord.setSessionToken(sessionId);
 
         String requestedUrl = requestProvider.get().getRequestURL().toString();
         logRecord.setRequestedUrl(requestedUrl);
@@ -145,7 +213,51 @@ public class SolrStatisticsAccessLogImpl extends AbstractStatisticsAccessLog {
             String remoteIp = requestProvider.get().getHeader("X-Forwarded-For");
             logRecord.setIpAddress(remoteIp);
         }*/
+
+        if (user != null) {
+            logRecord.setUser(user.getLoginname());
+        }
+
+        RightsReturnObject rightsReturnObject = CriteriaLicenseUtils.currentThreadReturnObject.get();
+        Map<String, String> evaluateInfoMap = rightsReturnObject != null ? rightsReturnObject.getEvaluateInfoMap() : new HashMap<>();
+        if (evaluateInfoMap != null) {
+            try {
+                JSONObject evaluateMap =   new JSONObject(evaluateInfoMap);
+                logRecord.setEvaluatedMap(evaluateMap.toString());
+                String providedByLicense = null;
+                if (evaluateMap.has(ReadDNNTLabels.PROVIDED_BY_LICENSE)) {
+                    providedByLicense = evaluateMap.getString(ReadDNNTLabels.PROVIDED_BY_LICENSE);
+                } else if (evaluateMap.has(ReadDNNTLabels.PROVIDED_BY_LABEL)) {
+                    providedByLicense = evaluateMap.getString(ReadDNNTLabels.PROVIDED_BY_LABEL);
+                }
+                if (providedByLicense != null) {
+                    logRecord.setProvidedByLicense(providedByLicense);
+                }
+            } catch(Exception e) {
+                LOGGER.log(Level.SEVERE, e.getMessage(),e);
+            }
+            // provided 
+        }
+
+        if (user != null && user.getSessionAttributes() != null) {
+            logRecord.setUserSessionAttributes(new JSONObject(user.getSessionAttributes()).toString());
+        }
+
+        logRecord.setReportedAction(this.reportedAction != null  && this.reportedAction.get() != null ?  this.reportedAction.get().name() : ReportedAction.READ.name());
+        logRecord.setFieldsFromHttpRequestHeaders(extractFieldsFromHttpRequestHeaders());
+    }
+
+    /**
+     * Part of the record taken from index and repository (doesn't need request, can run in background)
+     */
+    private void enrich(LogRecord logRecord) throws IOException, SQLException, XPathExpressionException {
+        String pid = logRecord.getPid();
+        Document solrDoc = this.solrAccess.getSolrDataByPid(pid);
         
+        ObjectPidsPath[] paths = this.solrAccess.getPidPaths(solrDoc);
+        ObjectModelsPath[] mpaths = this.solrAccess.getModelPaths(solrDoc);
+        ObjectPidsPath[] ownPidPaths = this.solrAccess.getOwnPidPaths(solrDoc);
+
         logRecord.setPidsPaths(Arrays.stream(paths).map(ObjectPidsPath::getPathFromRootToLeaf).map(array-> {
             return Arrays.stream(array).collect(Collectors.joining("/"));
         }).collect(Collectors.toSet()));
@@ -158,164 +270,101 @@ public class SolrStatisticsAccessLogImpl extends AbstractStatisticsAccessLog {
         if (ownPidPaths.length > 0) {
             logRecord.setOwnPidpath(Arrays.stream(ownPidPaths[0].getPathFromRootToLeaf()).collect(Collectors.joining("/")));
         }
-        try {
-            String rootTitle = SolrUtils.rootTitle(solrDoc);
-            logRecord.setRootTitle(rootTitle);
-            
-            String rootModel = SolrUtils.rootModel(solrDoc);
-            logRecord.setRootModel(rootModel);
-            
-            String rootPid = SolrUtils.rootPid(solrDoc);
-            logRecord.setRootPid(rootPid);
-            
-            logRecord.setLicenses(new LinkedHashSet<>(SolrUtils.disectLicenses(solrDoc.getDocumentElement())));
-            User user = this.userProvider.get();
-            logRecord.setUser(user.getLoginname());
-            
-            RightsReturnObject rightsReturnObject = CriteriaLicenseUtils.currentThreadReturnObject.get();
-            Map<String, String> evaluateInfoMap = rightsReturnObject != null ? rightsReturnObject.getEvaluateInfoMap() : new HashMap<>();
-            if (evaluateInfoMap != null) {
-                try {
-                    JSONObject evaluateMap =   new JSONObject(evaluateInfoMap);
-                    logRecord.setEvaluatedMap(evaluateMap.toString());
-                    String providedByLicense = null;
-                    if (evaluateMap.has(ReadDNNTLabels.PROVIDED_BY_LICENSE)) {
-                        providedByLicense = evaluateMap.getString(ReadDNNTLabels.PROVIDED_BY_LICENSE);
-                    } else if (evaluateMap.has(ReadDNNTLabels.PROVIDED_BY_LABEL)) {
-                        providedByLicense = evaluateMap.getString(ReadDNNTLabels.PROVIDED_BY_LABEL);
-                    }
-                    if (providedByLicense != null) {
-                        logRecord.setProvidedByLicense(providedByLicense);
-                    }
-                } catch(Exception e) {
-                    LOGGER.log(Level.SEVERE, e.getMessage(),e);
-                }
-                // provided 
-            }
-            
-            if (user.getSessionAttributes() != null) {
-                logRecord.setUserSessionAttributes(new JSONObject(user.getSessionAttributes()).toString());
-            }
-            
-            logRecord.setReportedAction(this.reportedAction != null  && this.reportedAction.get() != null ?  this.reportedAction.get().name() : ReportedAction.READ.name());
-            logRecord.setDbVersion(versionService.getVersion());
-            // pokud je user != null -> tokenid
-            // jinak sessionid
-            if (user != null) {
-                //user.get
-            } else {
-                String sessionId = requestProvider.get().getSession().getId();
-                logRecord.setSessionToken(sessionId);
+        String rootTitle = SolrUtils.rootTitle(solrDoc);
+        logRecord.setRootTitle(rootTitle);
+        
+        String rootModel = SolrUtils.rootModel(solrDoc);
+        logRecord.setRootModel(rootModel);
+        
+        String rootPid = SolrUtils.rootPid(solrDoc);
+        logRecord.setRootPid(rootPid);
+        
+        logRecord.setLicenses(new LinkedHashSet<>(SolrUtils.disectLicenses(solrDoc.getDocumentElement())));
+        logRecord.setDbVersion(versionService.getVersion());
+
+        // Issue #1046
+        Object dateFromSolr = SElemUtils.selem("str", DATE_STR_FIELD, solrDoc);
+        if (dateFromSolr!= null) logRecord.setDateStr(dateFromSolr.toString());
+        else LOGGER.fine("No "+DATE_STR_FIELD);
+        
+        Object dateRangeEnd = SElemUtils.selem("int", DATE_RANGE_END_YEAR_FIELD, solrDoc);
+        if (dateRangeEnd != null) logRecord.setDateRangeEnd(dateRangeEnd.toString());
+        else LOGGER.fine("No "+DATE_RANGE_END_YEAR_FIELD);
+        
+        Object dateRangeStart = SElemUtils.selem("int", DATE_RANGE_START_YEAR_FIELD, solrDoc);
+        if (dateRangeStart != null) logRecord.setDateRangeStart(dateRangeStart.toString());
+        else LOGGER.fine("No "+DATE_RANGE_START_YEAR_FIELD);
+        
+        for (int i = 0, ll = paths.length; i < ll; i++) {
+            if (paths[i].contains(SpecialObjects.REPOSITORY.getPid())) {
+                paths[i] = paths[i].cutHead(0);
             }
+            String[] pathFromLeafToRoot = paths[i].getPathFromLeafToRoot();
+            for (int j = 0; j < pathFromLeafToRoot.length; j++) {
+                final String detailPid = pathFromLeafToRoot[j];
+                String detailModel = fedoraAccess.getKrameriusModelName(detailPid);
+                LogRecordDetail logDetail = LogRecordDetail.buildDetail(detailPid, detailModel);
 
-            // Issue #1046
-            Object dateFromSolr = SElemUtils.selem("str", DATE_STR_FIELD, solrDoc);
-            if (dateFromSolr!= null) logRecord.setDateStr(dateFromSolr.toString());
-            else LOGGER.fine("No "+DATE_STR_FIELD);
-            
-            Object dateRangeEnd = SElemUtils.selem("int", DATE_RANGE_END_YEAR_FIELD, solrDoc);
-            if (dateRangeEnd != null) logRecord.setDateRangeEnd(dateRangeEnd.toString());
-            else LOGGER.fine("No "+DATE_RANGE_END_YEAR_FIELD);
-            
-            Object dateRangeStart = SElemUtils.selem("int", DATE_RANGE_START_YEAR_FIELD, solrDoc);
-            if (dateRangeStart != null) logRecord.setDateRangeStart(dateRangeStart.toString());
-            else LOGGER.fine("No "+DATE_RANGE_START_YEAR_FIELD);
-            
-            logRecord.setFieldsFromHttpRequestHeaders(extractFieldsFromHttpRequestHeaders());
-            
-            for (int i = 0, ll = paths.length; i < ll; i++) {
-                if (paths[i].contains(SpecialObjects.REPOSITORY.getPid())) {
-                    paths[i] = paths[i].cutHead(0);
+                Document dc = null;
+                try {
+                    dc = fedoraAccess.getDC(detailPid);
+                } catch (IOException e) {
+                    LOGGER.fine("datastream DC not found for " + detailPid + ", ignoring statistics");
                 }
-                String[] pathFromLeafToRoot = paths[i].getPathFromLeafToRoot();
-                for (int j = 0; j < pathFromLeafToRoot.length; j++) {
-                    final String detailPid = pathFromLeafToRoot[j];
-                    String detailModel = fedoraAccess.getKrameriusModelName(detailPid);
-                    LogRecordDetail logDetail = LogRecordDetail.buildDetail(detailPid, detailModel);
-
-                    Document dc = null;
-                    try {
-                        dc = fedoraAccess.getDC(detailPid);
-                    } catch (IOException e) {
-                        LOGGER.fine("datastream DC not found for " + detailPid + ", ignoring statistics");
+                if (dc != null) {
+                    Object dateFromDC = DCUtils.dateFromDC(dc);
+                    if (dateFromDC != null) {
+                        logRecord.addIssueDate(dateFromDC.toString());
                     }
-                    if (dc != null) {
-                        Object dateFromDC = DCUtils.dateFromDC(dc);
-                        if (dateFromDC != null) {
-                            logRecord.addIssueDate(dateFromDC.toString());
-                        }
-                        
-                        
-                        Object languageFromDc = DCUtils.languageFromDC(dc);
-                        if (languageFromDc != null) {
-                            logRecord.addLang(languageFromDc.toString());
-                        }
-                        
-                        Object title = DCUtils.titleFromDC(dc);
-                        if (title != null) {
-                            logRecord.addTitle(title.toString());
-                            logDetail.setTitle(title.toString());
-                        }
-                        Document mods = fedoraAccess.getBiblioMods(detailPid);
-                        Map<String, List<String>> identifiers = null;
-                        try {
-                            identifiers = ModsUtils.identifiersFromMods(mods);
-                            for (String key : identifiers.keySet()) {
-                                if (key.equals(ISBN_MODS_KEY)) {
-                                    identifiers.get(ISBN_MODS_KEY).stream().forEach(isbn-> {
-                                        logRecord.addISBN(isbn);
-                                    });
-                                }
-                                if (key.equals(ISSN_MODS_KEY)) {
-                                    identifiers.get(ISSN_MODS_KEY).stream().forEach(issn -> {
-                                        logRecord.addISSN(issn);
-                                    });
-                                }
-                                if (key.equals(CCNB_MODS_KEY)) {
-                                    identifiers.get(CCNB_MODS_KEY).stream().forEach(ccnb-> {
-                                        logRecord.addCCNB(ccnb);
-                                    });
-                                }
-                                
+                    
+                    
+                    Object languageFromDc = DCUtils.languageFromDC(dc);
+                    if (languageFromDc != null) {
+                        logRecord.addLang(languageFromDc.toString());
+                    }
+                    
+                    Object title = DCUtils.titleFromDC(dc);
+                    if (title != null) {
+                        logRecord.addTitle(title.toString());
+                        logDetail.setTitle(title.toString());
+                    }
+                    Document mods = fedoraAccess.getBiblioMods(detailPid);
+                    Map<String, List<String>> identifiers = null;
+                    try {
+                        identifiers = ModsUtils.identifiersFromMods(mods);
+                        for (String key : identifiers.keySet()) {
+                            if (key.equals(ISBN_MODS_KEY)) {
+                                identifiers.get(ISBN_MODS_KEY).stream().forEach(isbn-> {
+                                    logRecord.addISBN(isbn);
+                                });
                             }
-                        } catch (XPathExpressionException e) {
-                            Logger.getLogger(SolrStatisticsAccessLogImpl.class.getName()).log(Level.SEVERE, e.getMessage(), e);
-                        }
-                        
-                        String[] creatorsFromDC = DCUtils.creatorsFromDC(dc);
-                        for (String cr : creatorsFromDC) {
-                            logRecord.addAuthor(cr);
+                            if (key.equals(ISSN_MODS_KEY)) {
+                                identifiers.get(ISSN_MODS_KEY).stream().forEach(issn -> {
+                                    logRecord.addISSN(issn);
+                                });
+                            }
+                            if (key.equals(CCNB_MODS_KEY)) {
+                                identifiers.get(CCNB_MODS_KEY).stream().forEach(ccnb-> {
+                                    logRecord.addCCNB(ccnb);
+                                });
+                            }
+                            
                         }
+                    } catch (XPathExpressionException e) {
+                        Logger.getLogger(SolrStatisticsAccessLogImpl.class.getName()).log(Level.SEVERE, e.getMessage(), e);
+                    }
+                    
+                    String[] creatorsFromDC = DCUtils.creatorsFromDC(dc);
+                    for (String cr : creatorsFromDC) {
+                        logRecord.addAuthor(cr);
+                    }
 
-                        String[] publishersFromDC = DCUtils.publishersFromDC(dc);
-                        for (String p : publishersFromDC) {
-                            logRecord.addPublisher(p);
-                        }
+                    String[] publishersFromDC = DCUtils.publishersFromDC(dc);
+                    for (String p : publishersFromDC) {
+                        logRecord.addPublisher(p);
                     }
-                    logRecord.addDetail(logDetail);
-                }
-            }
-        } catch (SQLException | XPathExpressionException e) {
-            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-        } finally {
-            try {
-                String loggerPoint = KConfiguration.getInstance().getProperty(SOLR_POINT,"http://localhost:8983/solr/logs");
-                String updateUrl = loggerPoint+(loggerPoint.endsWith("/") ?  "" : "/")+"update";
-                
-                LOGGER.fine("Log record is "+logRecord.toString());
-                
-                Document batch = logRecord.toSolrBatch(this.documentBuilderFactory);
-                try {
-                    StringWriter writer = new StringWriter();
-                    XMLUtils.print(batch, writer);
-                    LOGGER.fine("Update doc  => "+writer.toString());
-                } catch (TransformerException e1) {
-                    LOGGER.log(Level.SEVERE,e1.getMessage(),e1);
                 }
-                
-                SolrUpdateUtils.sendToDest(this.client, logRecord.toSolrBatch(this.documentBuilderFactory), updateUrl);
-            } catch (ParserConfigurationException e) {
-                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+                logRecord.addDetail(logDetail);
             }
         }
     }
@@ -1,64 +1,66 @@
 package cz.incad.kramerius.statistics.impl;
 
-import static cz.incad.kramerius.database.cond.ConditionsInterpretHelper.versionCondition;
-
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-
-import javax.ws.rs.core.MediaType;
-import javax.xml.parsers.ParserConfigurationException;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+import org.json.JSONTokener;
 
-import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
-import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.WebResource;
 
 import cz.incad.kramerius.FedoraAccess;
-import cz.incad.kramerius.ObjectPidsPath;
 import cz.incad.kramerius.SolrAccess;
 import cz.incad.kramerius.database.VersionService;
-import cz.incad.kramerius.solr.SolrFieldsMapping;
 import cz.incad.kramerius.statistics.ReportedAction;
 import cz.incad.kramerius.statistics.StatisticReport;
 import cz.incad.kramerius.statistics.StatisticsReportException;
 import cz.incad.kramerius.statistics.StatisticsReportSupport;
 import cz.incad.kramerius.statistics.accesslogs.dnnt.DNNTStatisticsAccessLogImpl;
-import cz.incad.kramerius.statistics.accesslogs.dnnt.date.YearLogFormat;
-import cz.incad.kramerius.statistics.accesslogs.utils.SElemUtils;
 import cz.incad.kramerius.statistics.filters.DateFilter;
 import cz.incad.kramerius.statistics.filters.StatisticsFiltersContainer;
-import cz.incad.kramerius.statistics.utils.ReportUtils;
-import cz.incad.kramerius.utils.IterationUtils;
-import cz.incad.kramerius.utils.XMLUtils;
-import cz.incad.kramerius.utils.IterationUtils.IterationCallback;
-import cz.incad.kramerius.utils.IterationUtils.IterationEndCallback;
 import cz.incad.kramerius.utils.conf.KConfiguration;
 import cz.incad.kramerius.utils.database.Offset;
-import cz.incad.kramerius.utils.solr.SolrUtils;
+import cz.incad.kramerius.utils.solr.SolrHttpClient;
 
 /**
- * NKP Logy 
+ * NKP Logy
+ * <p>
+ * Logs are read from the logs core by cursor pages of <code>nkp.logs.pageSize</code> documents, parsed from the
+ * response stream and passed to the report support one by one. Longer ranges are split into calendar months exported
+ * by <code>nkp.logs.partitionThreads</code> threads shared by all reports. The logs core is committed before export
+ * only if <code>nkp.logs.commit</code> is set.
  */
 public class NKPLogReport extends AbstractStatisticsReport implements StatisticReport {
 
@@ -70,6 +72,23 @@ public class NKPLogReport extends AbstractStatisticsReport implements StatisticR
 
     public static final String REPORT_ID = "nkp";
 
+    private static final DateTimeFormatter INPUT_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+    private static final DateTimeFormatter SOLR_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    private static final int PARTITION_THREADS = Math.max(1, KConfiguration.getInstance().getConfiguration()
+            .getInt("nkp.logs.partitionThreads", 2));
+
+    private static final ExecutorService PARTITIONS = Executors.newFixedThreadPool(PARTITION_THREADS, new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "nkp-logs-partition-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
 
     @Inject
     @Named("new-index")
@@ -102,125 +121,141 @@ public class NKPLogReport extends AbstractStatisticsReport implements StatisticR
     @Override
     public void processAccessLog(ReportedAction action, StatisticsReportSupport sup, StatisticsFiltersContainer filters)
             throws StatisticsReportException {
-        
-        
+        DateFilter dateFilter = filters.getFilter(DateFilter.class);
+        if (dateFilter.getRawFromDate() == null || dateFilter.getRawToDate() == null) {
+            throw new UnsupportedOperationException(
+                    "Full report is not supported. Please, use dateFrom and dateTo");
+        }
         try {
-            DateFilter dateFilter = filters.getFilter(DateFilter.class);
-            if (dateFilter.getFromDate() != null && dateFilter.getToDate() != null) {
-                dateFilter.setInputFormat(DATE_FORMAT);
-                dateFilter.setOutputFormat(SOLR_DATE_FORMAT);
-                
-                StringBuilder builder = new StringBuilder("*");
-                ReportUtils.enhanceDateFilter(builder, dateFilter);
-                
-                String selectEndpoint = logsEndpoint();
-                Client client = Client.create();
-                // commit 
-                commit(client, selectEndpoint);
-                logsCursorIteration(client, selectEndpoint, builder.toString(), (elm, i) -> {
-
-                    Element result = XMLUtils.findElement(elm, new XMLUtils.ElementsFilter() {
-                        @Override
-                        public boolean acceptElement(Element element) {
-                            String nodeName = element.getNodeName();
-                            return nodeName.equals("result");
-                        }
-                    });
-                    if (result != null) {
-                        List<Element> elements = XMLUtils.getElements(result, new XMLUtils.ElementsFilter() {
-                            @Override
-                            public boolean acceptElement(Element element) {
-                                String nodeName = element.getNodeName();
-                                return nodeName.equals("doc");
-                            }
-                        });
+            LocalDate from = LocalDate.parse(dateFilter.getRawFromDate().trim(), INPUT_DATE_FORMAT);
+            LocalDate to = LocalDate.parse(dateFilter.getRawToDate().trim(), INPUT_DATE_FORMAT);
 
-                        List<String> idents = elements.stream().map(item -> {
-                                    Element str = XMLUtils.findElement(item, new XMLUtils.ElementsFilter() {
-                                                @Override
-                                                public boolean acceptElement(Element element) {
-                                                    return element.getNodeName().equals("str");
-                                                }
-                                            }
-                                    );
-                                    return str.getTextContent();
-                                }
-                        ).collect(Collectors.toList());
-
-                        reportIdents(idents, sup);
-                    } 
-                }, ()->{});
-                
+            String selectEndpoint = logsEndpoint();
+            Configuration conf = KConfiguration.getInstance().getConfiguration();
+            if (conf.getBoolean("nkp.logs.commit", false)) {
+                commit(selectEndpoint);
+            }
+            int rows = Math.max(1, conf.getInt("nkp.logs.pageSize", 1000));
+            List<String> partitions = partitions(from, to);
+            if (partitions.size() == 1 || PARTITION_THREADS <= 1) {
+                for (String partition : partitions) {
+                    logsCursorIteration(selectEndpoint, partition, rows, doc -> logReport(toMap(doc), sup));
+                }
             } else {
-                throw new UnsupportedOperationException(
-                        "Full report is not supported. Please, use dateFrom and dateTo");
+                exportPartitions(selectEndpoint, partitions, rows, sup);
             }
-
-        } catch (ParserConfigurationException e) {
-            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-        } catch (SAXException e) {
-            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-        } catch (IOException e) {
+        } catch (DateTimeParseException | JSONException | IOException e) {
             LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            throw new StatisticsReportException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The first month is streamed directly into the report, following months are spooled in parallel into temporary
+     * files and appended in their order
+     */
+    private void exportPartitions(String selectEndpoint, List<String> partitions, int rows, StatisticsReportSupport sup) throws IOException, StatisticsReportException {
+        List<File> spools = new ArrayList<>();
+        List<Future<?>> spooling = new ArrayList<>();
+        try {
+            for (String partition : partitions.subList(1, partitions.size())) {
+                File spool = File.createTempFile("nkp-logs", ".jsonl");
+                spools.add(spool);
+                spooling.add(PARTITIONS.submit(() -> {
+                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), StandardCharsets.UTF_8))) {
+                        logsCursorIteration(selectEndpoint, partition, rows, doc -> {
+                            writer.write(doc.toString());
+                            writer.write('\n');
+                        });
+                    }
+                    return null;
+                }));
+            }
+            logsCursorIteration(selectEndpoint, partitions.get(0), rows, doc -> logReport(toMap(doc), sup));
+            for (int i = 0; i < spools.size(); i++) {
+                spooling.get(i).get();
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spools.get(i)), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        logReport(toMap(new JSONObject(line)), sup);
+                    }
+                }
+                spools.get(i).delete();
+            }
         } catch (InterruptedException e) {
-            LOGGER.log(Level.SEVERE, e.getMessage(), e);
-        } catch (BrokenBarrierException e) {
-            LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            throw new StatisticsReportException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new StatisticsReportException(cause.getMessage(), cause);
+        } finally {
+            spooling.forEach(f -> f.cancel(true));
+            spools.forEach(File::delete);
         }
     }
 
-    
-    private static void commit(Client client, String logsindex) {
-        String updateCommit = "update?commit=true";
-        WebResource r = client.resource(logsindex + (logsindex.endsWith("/") ? "" : "/") + updateCommit);
-        String t = r.accept(MediaType.APPLICATION_JSON).get(String.class);
-        LOGGER.fine(String.format("Committing, %s; response %s ", r.toString(), t));
+    /**
+     * Splits the range into calendar months; returns filter queries, the last one includes the end of the range
+     */
+    static List<String> partitions(LocalDate from, LocalDate to) {
+        List<String> partitions = new ArrayList<>();
+        LocalDate start = from;
+        LocalDate next = from.withDayOfMonth(1).plusMonths(1);
+        while (next.isBefore(to)) {
+            partitions.add(String.format("date:[%s TO %s}", SOLR_DATE.format(start.atStartOfDay()), SOLR_DATE.format(next.atStartOfDay())));
+            start = next;
+            next = next.plusMonths(1);
+        }
+        partitions.add(String.format("date:[%s TO %s]", SOLR_DATE.format(start.atStartOfDay()), SOLR_DATE.format(to.atStartOfDay())));
+        return partitions;
     }
 
-    public static void logsCursorIteration(Client client,String address, String masterQuery,IterationCallback callback, IterationEndCallback endCallback) throws ParserConfigurationException,  SAXException, IOException, InterruptedException, BrokenBarrierException {
-        String cursorMark = null;
-        String queryCursorMark = null;
-        do {
-            Element element = pidsCursorQuery(client, address, masterQuery, cursorMark);
-            cursorMark =  IterationUtils.findCursorMark(element);
-            queryCursorMark = IterationUtils.findQueryCursorMark(element);
-            callback.call(element, cursorMark);
-        } while((cursorMark != null && queryCursorMark != null) && !cursorMark.equals(queryCursorMark));
-        endCallback.end();
+    private static void commit(String logsindex) throws IOException {
+        String updateCommit = "update?commit=true";
+        String url = logsindex + (logsindex.endsWith("/") ? "" : "/") + updateCommit;
+        String t = SolrHttpClient.get(url, in -> IOUtils.toString(in, "UTF-8"));
+        LOGGER.fine(String.format("Committing, %s; response %s ", url, t));
     }
 
-    static Element pidsCursorQuery(Client client, String url, String mq,  String cursor)  throws ParserConfigurationException, SAXException, IOException{
-        int rows = 1000;
-        String query = "select" + "?q="+mq + (cursor!= null ? String.format("&rows=%d&cursorMark=%s", rows, cursor) : String.format("&rows=%d&cursorMark=*", rows))+"&sort=" + URLEncoder.encode("id desc", "UTF-8")+"&fl=id";
-        return IterationUtils.executeQuery(client, url, query);
+    /**
+     * Receives log documents of one cursor page
+     */
+    @FunctionalInterface
+    interface LogDocumentConsumer {
+        void accept(JSONObject doc) throws IOException;
     }
 
-    
-    private void reportIdents(List<String> idents, StatisticsReportSupport sup) {
-        String selectEndpoint = super.logsEndpoint();
-        Lists.partition(idents, 10).stream().forEach(it->{
-            try {
-                StringBuilder builder = new StringBuilder("q=*");
-                String joinedIds = it.stream().map(oneIdent-> {
-                    return '"'+ oneIdent+'"';
-                }).collect(Collectors.joining(" OR "));
-                
-                builder.append("&fq="+URLEncoder.encode("id:("+joinedIds+")", "UTF-8"));
-
-                InputStream iStream = cz.incad.kramerius.utils.solr.SolrUtils.requestWithSelectReturningStream(selectEndpoint, builder.toString(), "json");
-                String string = IOUtils.toString(iStream, "UTF-8");
-                JSONObject result = new JSONObject(string);
-                JSONObject response = result.getJSONObject("response");
-                JSONArray docs = response.getJSONArray("docs");
-                for (int i = 0; i < docs.length(); i++) {
-                    JSONObject jsonObject = docs.getJSONObject(i);
-                    Map map = toMap(jsonObject);
-                    logReport(map, sup);
-                }
-            } catch (JSONException | IOException e) {
-                LOGGER.log(Level.SEVERE,e.getMessage(),e);
+    /**
+     * Iterates all log documents matching the filter query; pages are parsed directly from the response stream
+     * (pooled connection), one page in memory at once
+     */
+    static void logsCursorIteration(String address, String filterQuery, int rows, LogDocumentConsumer consumer) throws IOException {
+        String cursorMark = "*";
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("interrupted");
             }
-        });
+            String query = "q=*:*&fq=" + URLEncoder.encode(filterQuery, "UTF-8") + "&rows=" + rows
+                    + "&sort=" + URLEncoder.encode("id desc", "UTF-8") + "&cursorMark=" + URLEncoder.encode(cursorMark, "UTF-8");
+            String nextCursorMark = SolrHttpClient.select(address, query, "json", in -> page(in, consumer));
+            if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+    }
+
+    /**
+     * Passes documents of one json page to the consumer
+     * @return next cursor mark
+     */
+    static String page(InputStream content, LogDocumentConsumer consumer) throws IOException {
+        JSONObject result = new JSONObject(new JSONTokener(new InputStreamReader(content, StandardCharsets.UTF_8)));
+        JSONArray docs = result.getJSONObject("response").getJSONArray("docs");
+        for (int i = 0; i < docs.length(); i++) {
+            consumer.accept(docs.getJSONObject(i));
+        }
+        return result.optString("nextCursorMark", null);
     }
 
 
@@ -318,7 +353,7 @@ public class NKPLogReport extends AbstractStatisticsReport implements StatisticR
         return list;
     }
 
-    private static Map toMap(JSONObject obj) {
+    static Map toMap(JSONObject obj) {
         Map map = new HashMap();
         map.put("pid", obj.optString("pid"));
         map.put("date", obj.optString("date"));
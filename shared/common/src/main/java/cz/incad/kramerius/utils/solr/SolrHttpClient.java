@@ -0,0 +1,126 @@
+package cz.incad.kramerius.utils.solr;
+
+import cz.incad.kramerius.utils.conf.KConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.apache.http.HttpStatus.SC_OK;
+
+/**
+ * Shared, pooled keep-alive http client for solr requests.
+ * <p>
+ * Configuration:
+ * <ul>
+ *     <li><code>solr.http.maxConnections</code> - max connections in pool</li>
+ *     <li><code>solr.http.maxConnectionsPerRoute</code> - max connections per one solr host</li>
+ *     <li><code>solr.http.connectTimeout</code>, <code>solr.http.socketTimeout</code> - timeouts in ms; socket timeout 0 (default) = no timeout</li>
+ * </ul>
+ */
+public final class SolrHttpClient {
+
+    public static final Logger LOGGER = Logger.getLogger(SolrHttpClient.class.getName());
+
+    private static volatile CloseableHttpClient client;
+
+    private SolrHttpClient() {
+    }
+
+    /**
+     * Handles content of successful response; stream is closed after handler returns
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface StreamHandler<T> {
+        T handle(InputStream content) throws IOException;
+    }
+
+    public static CloseableHttpClient getClient() {
+        CloseableHttpClient c = client;
+        if (c == null) {
+            synchronized (SolrHttpClient.class) {
+                c = client;
+                if (c == null) {
+                    Configuration conf = KConfiguration.getInstance().getConfiguration();
+                    PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+                    cm.setMaxTotal(conf.getInt("solr.http.maxConnections", 200));
+                    cm.setDefaultMaxPerRoute(conf.getInt("solr.http.maxConnectionsPerRoute", 50));
+                    cm.setValidateAfterInactivity(conf.getInt("solr.http.validateAfterInactivity", 2000));
+                    RequestConfig requestConfig = RequestConfig.custom()
+                            .setConnectTimeout(conf.getInt("solr.http.connectTimeout", 10000))
+                            .setConnectionRequestTimeout(conf.getInt("solr.http.connectionRequestTimeout", 10000))
+                            .setSocketTimeout(conf.getInt("solr.http.socketTimeout", 0))
+                            .build();
+                    c = HttpClients.custom()
+                            .setConnectionManager(cm)
+                            .setDefaultRequestConfig(requestConfig)
+                            .evictExpiredConnections()
+                            .evictIdleConnections(60, TimeUnit.SECONDS)
+                            .build();
+                    client = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Executes GET request and passes content of response to handler. Connection is returned to the pool
+     * after handler finishes.
+     * @param url full url
+     * @param handler content handler
+     * @return handler's result
+     * @throws IOException error or non 200 status
+     */
+    public static <T> T get(String url, StreamHandler<T> handler) throws IOException {
+        HttpGet httpGet = new HttpGet(url);
+        ResponseHandler<T> responseHandler = response -> {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() == SC_OK) {
+                try (InputStream content = entity.getContent()) {
+                    return handler.handle(content);
+                }
+            } else {
+                if (entity != null) {
+                    try (InputStream content = entity.getContent()) {
+                        LOGGER.log(Level.SEVERE, String.format("Error entity %s", IOUtils.toString(content, "UTF-8")));
+                    }
+                }
+                throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+            }
+        };
+        return getClient().execute(httpGet, responseHandler);
+    }
+
+    public static <T> T select(String solrHost, String query, String type, StreamHandler<T> handler) throws IOException {
+        return get(String.format("%s/select?%s&wt=%s", solrHost, query, type), handler);
+    }
+
+    public static <T> T terms(String solrHost, String query, String type, StreamHandler<T> handler) throws IOException {
+        return get(String.format("%s/terms?%s&wt=%s", solrHost, query, type), handler);
+    }
+
+    public static synchronized void shutdown() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e.getMessage(), e);
+            }
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cz.incad.kramerius.utils.solr;
+
+import java.io.IOException;
+
+/**
+ * Solr responded to an update request with other status than 200
+ */
+public class SolrUpdateException extends IOException {
+
+    private final int status;
+
+    public SolrUpdateException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if solr rejected the request itself (4xx); sending the same request again fails again
+     */
+    public boolean isRejected() {
+        return status >= 400 && status < 500;
+    }
+}
@@ -21,6 +21,29 @@ public class SolrUpdateUtils {
     private SolrUpdateUtils() {
     }
 
+    /**
+     * Posts update xml to solr
+     * @throws SolrUpdateException if solr doesn't respond with status 200
+     * @throws IOException if the request fails
+     */
+    public static void sendXmlToDest(Client client, String xml, String updateUrl) throws IOException {
+        try {
+            WebResource r = client.resource(updateUrl);
+            ClientResponse resp = r.accept(MediaType.TEXT_XML).type(MediaType.TEXT_XML).entity(xml, MediaType.TEXT_XML).post(ClientResponse.class);
+            try {
+                if (resp.getStatus() != ClientResponse.Status.OK.getStatusCode()) {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    IOUtils.copyStreams(resp.getEntityInputStream(), bos);
+                    throw new SolrUpdateException(resp.getStatus(), String.format("solr responded %d: %s", resp.getStatus(), new String(bos.toByteArray())));
+                }
+            } finally {
+                resp.close();
+            }
+        } catch (UniformInterfaceException | ClientHandlerException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
     public static void sendToDest(Client client, Document batchDoc, String updateUrl) {
         try {
             StringWriter writer = new StringWriter();
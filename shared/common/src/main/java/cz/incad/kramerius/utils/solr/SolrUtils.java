@@ -500,16 +500,7 @@ public class SolrUtils   {
         } else {
         	uri = uri+"wt="+format;
         }
-        HttpGet httpGet = new HttpGet(uri);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return response.getEntity().getContent();
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
-        }
+        return SolrHttpClient.get(uri, SolrUtils::bufferContent);
     }
 
     public static InputStream getSolrTermsInternal(String query, String format) throws IOException, ParserConfigurationException, SAXException {
@@ -595,44 +586,41 @@ public class SolrUtils   {
         }
     }
 
+    //reads whole stream to memory
+    public static InputStream bufferContent(InputStream src) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        IOUtils.copy(src, bos);
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
+
     /**
+     * Whole response is read into memory before the method returns (the connection goes back to the pool immediately,
+     * callers don't have to close the stream); for large responses use {@link SolrHttpClient#terms(String, String, String, SolrHttpClient.StreamHandler)}
      * @param query for example: q=model%3Amonograph&fl=pid%2Ctitle.search&start=0&sort=created+desc&fq=model%3Aperiodical+OR+model%3Amonograph&rows=24&hl.fragsize=20
      *              i.e. url encoded and without query param wt
      */
     public static InputStream requestWithTermsReturningStream(String solrHost, String query, String type) throws IOException {
-        String url = String.format("%s/terms?%s&wt=%s", solrHost, query, type);
-        HttpGet httpGet = new HttpGet(url);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
-        }
+        return SolrHttpClient.terms(solrHost, query, type, SolrUtils::bufferContent);
     }
 
     /**
+     * Whole response is read into memory before the method returns (the connection goes back to the pool immediately,
+     * callers don't have to close the stream); for large responses use {@link SolrHttpClient#select(String, String, String, SolrHttpClient.StreamHandler)}
      * @param query for example: q=model%3Amonograph&fl=pid%2Ctitle.search&start=0&sort=created+desc&fq=model%3Aperiodical+OR+model%3Amonograph&rows=24&hl.fragsize=20
      *              i.e. url encoded and without query param wt
      */
     public static InputStream requestWithSelectReturningStream(String solrHost, String query, String type) throws IOException {
-        String url = String.format("%s/select?%s&wt=%s", solrHost, query, type);
-        HttpGet httpGet = new HttpGet(url);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
-        }
+        return SolrHttpClient.select(solrHost, query, type, SolrUtils::bufferContent);
     }
 
     public static String requestWithSelectReturningString(String solrHost, String query, String type) throws IOException {
-        InputStream in = requestWithSelectReturningStream(solrHost, query, type);
+        return SolrHttpClient.select(solrHost, query, type, SolrUtils::readLines);
+    }
+
+    /**
+     * Reads stream as UTF-8 text; lines are joined without line separators
+     */
+    public static String readLines(InputStream in) throws IOException {
         BufferedReader streamReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
         StringBuilder responseStrBuilder = new StringBuilder();
         String inputStr;
@@ -642,35 +630,28 @@ public class SolrUtils   {
         return responseStrBuilder.toString();
     }
 
+    /**
+     * Parses stream to DOM directly, without buffering it first
+     */
+    public static Document parseDocument(InputStream in) throws IOException {
+        try {
+            return XMLUtils.parseDocument(in);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e);
+        }
+    }
+
     //http://localhost:8983/solr/logs/schema
     //http://localhost:8983/solr/logs/schema/fields
 
     public static InputStream schema(String hostWithCollection) throws IOException {
         String url = String.format("%s/schema", hostWithCollection);
-        HttpGet httpGet = new HttpGet(url);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
-        }
+        return SolrHttpClient.get(url, SolrUtils::bufferContent);
     }
 
     public static InputStream fields(String hostWithCollection) throws IOException {
         String url = String.format("%s/schema/fields", hostWithCollection);
-        HttpGet httpGet = new HttpGet(url);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            try (CloseableHttpResponse response = client.execute(httpGet)) {
-                if (response.getStatusLine().getStatusCode() == SC_OK) {
-                    return readContentAndProvideThroughBufferedStream(response.getEntity());
-                } else {
-                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
-                }
-            }
-        }
+        return SolrHttpClient.get(url, SolrUtils::bufferContent);
     }
 
     
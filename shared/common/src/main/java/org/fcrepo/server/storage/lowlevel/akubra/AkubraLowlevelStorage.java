@@ -576,7 +576,7 @@ public class AkubraLowlevelStorage
      * @throws IllegalArgumentException if the token is not a well-formed
      *         pid or datastream token.
      */
-    private static URI getBlobId(String token) {
+    public static URI getBlobId(String token) {
         try {
             int i = token.indexOf('+');
             if (i == -1) {
@@ -0,0 +1,69 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DigitalObjectCodecTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("foxml-store");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testRewrittenFileKeepsPermissions() throws IOException {
+        Assume.assumeTrue(Files.getFileStore(dir).supportsFileAttributeView("posix"));
+        File file = dir.resolve("object.xml").toFile();
+        DigitalObjectCodec.copyToFile(content("first"), file);
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        Files.setPosixFilePermissions(file.toPath(), permissions);
+
+        DigitalObjectCodec.copyToFile(content("second"), file);
+
+        Assert.assertEquals("second", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Assert.assertEquals(permissions, Files.getPosixFilePermissions(file.toPath()));
+        Assert.assertEquals(1, dir.toFile().list().length);
+    }
+
+    @Test
+    public void testNewFileIsNotOwnerOnly() throws IOException {
+        Assume.assumeTrue(Files.getFileStore(dir).supportsFileAttributeView("posix"));
+        File reference = Files.createFile(dir.resolve("reference")).toFile();
+        File file = dir.resolve("object.xml").toFile();
+
+        DigitalObjectCodec.copyToFile(content("first"), file);
+
+        // same permissions as any other file created by the process (umask)
+        Assert.assertEquals(Files.getPosixFilePermissions(reference.toPath()), Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    private static ByteArrayInputStream content(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
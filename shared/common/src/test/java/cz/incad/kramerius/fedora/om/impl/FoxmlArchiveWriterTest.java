@@ -0,0 +1,164 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.qbizm.kramerius.imp.jaxb.ContentLocationType;
+import com.qbizm.kramerius.imp.jaxb.DatastreamType;
+import com.qbizm.kramerius.imp.jaxb.DatastreamVersionType;
+import com.qbizm.kramerius.imp.jaxb.DigitalObject;
+
+public class FoxmlArchiveWriterTest {
+
+    private static final String FOXML = "/cz/incad/kramerius/fedora/om/5035a48a-5e2e-486c-8127-2fa650842e46.xml";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testManagedContentIsInlined() throws IOException, JAXBException {
+        DigitalObject object;
+        try (InputStream is = FoxmlArchiveWriterTest.class.getResourceAsStream(FOXML)) {
+            object = DigitalObjectCodec.unmarshal(is);
+        }
+        int xmlStreams = object.getDatastream().size();
+        // not a multiple of the chunk size nor of 3
+        byte[] content = new byte[3 * 16 * 1024 * 2 + 7];
+        new Random(1).nextBytes(content);
+        object.getDatastream().add(managedDatastream("IMG_FULL", "uuid:test+IMG_FULL+IMG_FULL.0"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FoxmlArchiveWriter.write(object, ref -> {
+            Assert.assertEquals("uuid:test+IMG_FULL+IMG_FULL.0", ref);
+            return new ByteArrayInputStream(content);
+        }, out);
+
+        DigitalObject exported = DigitalObjectCodec.unmarshal(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(xmlStreams + 1, exported.getDatastream().size());
+        DatastreamVersionType version = exported.getDatastream().get(xmlStreams).getDatastreamVersion().get(0);
+        Assert.assertNull(version.getContentLocation());
+        Assert.assertArrayEquals(content, version.getBinaryContent());
+        // inline XML datastreams are untouched
+        Assert.assertNotNull(exported.getDatastream().get(0).getDatastreamVersion().get(0).getXmlContent());
+    }
+
+    @Test
+    public void testFailingContentIsReportedToReader() throws IOException, JAXBException {
+        DigitalObject object = objectWithManagedStream();
+        byte[] head = new byte[3 * 16 * 1024 * 3];
+        IOException failure = readFailure(FoxmlArchiveWriter.openStream("uuid:test", object, ref -> new InputStream() {
+            private int read = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (read >= head.length) {
+                    throw new IOException("storage failure");
+                }
+                return head[read++] & 0xff;
+            }
+        }, executor, 10000));
+        Assert.assertNotNull("truncated export must fail", failure);
+    }
+
+    @Test
+    public void testRuntimeFailureIsReportedToReader() throws IOException, JAXBException {
+        DigitalObject object = objectWithManagedStream();
+        IOException failure = readFailure(FoxmlArchiveWriter.openStream("uuid:test", object, ref -> new InputStream() {
+            @Override
+            public int read() {
+                throw new IllegalStateException("no store");
+            }
+        }, executor, 10000));
+        Assert.assertNotNull("failed export must fail", failure);
+    }
+
+    @Test
+    public void testMissingContentIsSkipped() throws IOException, JAXBException {
+        DigitalObject object = objectWithManagedStream();
+        int streams = object.getDatastream().size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = FoxmlArchiveWriter.openStream("uuid:test", object, ref -> {
+            throw new IOException("missing");
+        }, executor, 10000)) {
+            IOUtils.copy(in, out);
+        }
+
+        DigitalObject exported = DigitalObjectCodec.unmarshal(new ByteArrayInputStream(out.toByteArray()));
+        DatastreamVersionType version = exported.getDatastream().get(streams - 1).getDatastreamVersion().get(0);
+        Assert.assertNull(version.getBinaryContent());
+        Assert.assertEquals("uuid:test+IMG_FULL+IMG_FULL.0", version.getContentLocation().getREF());
+    }
+
+    @Test
+    public void testWriterStopsWhenReaderClosesStream() throws Exception {
+        DigitalObject object = objectWithManagedStream();
+        InputStream in = FoxmlArchiveWriter.openStream("uuid:test", object, ref -> new ByteArrayInputStream(new byte[1024 * 1024]), executor, 60000);
+        in.read();
+        in.close();
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWriterStopsWhenReaderAbandonsStream() throws Exception {
+        DigitalObject object = objectWithManagedStream();
+        InputStream in = FoxmlArchiveWriter.openStream("uuid:test", object, ref -> new ByteArrayInputStream(new byte[1024 * 1024]), executor, 200);
+        in.read();
+        // never read again nor closed
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static DigitalObject objectWithManagedStream() throws IOException, JAXBException {
+        DigitalObject object;
+        try (InputStream is = FoxmlArchiveWriterTest.class.getResourceAsStream(FOXML)) {
+            object = DigitalObjectCodec.unmarshal(is);
+        }
+        object.getDatastream().add(managedDatastream("IMG_FULL", "uuid:test+IMG_FULL+IMG_FULL.0"));
+        return object;
+    }
+
+    private static IOException readFailure(InputStream stream) {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = stream) {
+            while (in.read(buffer) >= 0) {
+                // drain
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private static DatastreamType managedDatastream(String id, String ref) {
+        DatastreamType datastream = new DatastreamType();
+        datastream.setID(id);
+        datastream.setCONTROLGROUP("M");
+        DatastreamVersionType version = new DatastreamVersionType();
+        version.setID(id + ".0");
+        version.setMIMETYPE("image/jpeg");
+        ContentLocationType location = new ContentLocationType();
+        location.setTYPE("INTERNAL_ID");
+        location.setREF(ref);
+        version.setContentLocation(location);
+        datastream.getDatastreamVersion().add(version);
+        return datastream;
+    }
+}
@@ -0,0 +1,77 @@
+package cz.incad.kramerius.fedora.om.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HybridPidLockTest {
+
+    @Test
+    public void testReacquireAndUnlock() {
+        ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+        ReentrantReadWriteLock cluster = new ReentrantReadWriteLock();
+        local.writeLock().lock();
+        cluster.writeLock().lock();
+        HybridPidLock lock = new HybridPidLock(local, local.writeLock(), cluster.writeLock(), null);
+
+        lock.lock();
+        Assert.assertTrue(lock.tryLock());
+        Assert.assertEquals(3, local.getWriteHoldCount());
+        Assert.assertEquals(3, cluster.getWriteHoldCount());
+
+        lock.unlock();
+        lock.unlock();
+        lock.unlock();
+        Assert.assertFalse(local.isWriteLocked());
+        Assert.assertFalse(cluster.isWriteLocked());
+    }
+
+    @Test
+    public void testTryLockReleasesLocalLockWhenClusterLockIsBusy() throws InterruptedException {
+        ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+        ReentrantReadWriteLock cluster = new ReentrantReadWriteLock();
+        HybridPidLock lock = new HybridPidLock(local, local.writeLock(), cluster.writeLock(), null);
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            cluster.writeLock().lock();
+            try {
+                locked.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                cluster.writeLock().unlock();
+            }
+        });
+        other.start();
+        try {
+            locked.await();
+            Assert.assertFalse(lock.tryLock());
+            Assert.assertFalse(lock.tryLock(50, TimeUnit.MILLISECONDS));
+            Assert.assertFalse(local.isWriteLocked());
+        } finally {
+            release.countDown();
+            other.join();
+        }
+        Assert.assertTrue(lock.tryLock(1, TimeUnit.SECONDS));
+        lock.unlock();
+        Assert.assertFalse(local.isWriteLocked());
+    }
+
+    @Test
+    public void testAfterUnlockIsCalled() {
+        ReentrantReadWriteLock local = new ReentrantReadWriteLock();
+        int[] unlocked = new int[1];
+        local.writeLock().lock();
+        HybridPidLock lock = new HybridPidLock(local, local.writeLock(), null, () -> unlocked[0]++);
+        Assert.assertNotNull(lock.newCondition());
+        lock.unlock();
+        Assert.assertEquals(1, unlocked[0]);
+        Assert.assertFalse(local.isWriteLocked());
+    }
+}
@@ -0,0 +1,78 @@
+package cz.incad.kramerius.pdf.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lowagie.text.Jpeg;
+
+import cz.incad.kramerius.document.model.AbstractPage;
+import cz.incad.kramerius.document.model.ImagePage;
+import cz.incad.kramerius.document.model.TextPage;
+import cz.incad.kramerius.pdf.impl.PageImagePipeline.PageImage;
+import cz.incad.kramerius.utils.imgs.ImageMimeType;
+
+public class PageImagePipelineTest {
+
+    @Test
+    public void testJpegPassthrough() throws IOException {
+        byte[] jpeg = image("jpeg", 40, 30);
+        PageImage pageImage = PageImage.prepare("uuid:page", jpeg, ImageMimeType.JPEG, null);
+        Assert.assertTrue(pageImage.getImage() instanceof Jpeg);
+        Assert.assertArrayEquals(jpeg, pageImage.getImage().getRawData());
+    }
+
+    @Test
+    public void testPngIsReencoded() throws IOException {
+        PageImage pageImage = PageImage.prepare("uuid:page", image("png", 40, 30), ImageMimeType.PNG, null);
+        Assert.assertTrue(pageImage.getImage() instanceof Jpeg);
+        Assert.assertEquals(40f, pageImage.getImage().getWidth(), 0.0f);
+        Assert.assertEquals(30f, pageImage.getImage().getHeight(), 0.0f);
+    }
+
+    @Test
+    public void testPageOrder() throws IOException {
+        List<AbstractPage> pages = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            pages.add(i % 5 == 0 ? new TextPage("page", "uuid:" + i) : new ImagePage("page", "uuid:" + i));
+        }
+        Random random = new Random(1);
+        try (PageImagePipeline pipeline = new PageImagePipeline(pages, page -> {
+            int width = Integer.parseInt(page.getUuid().substring("uuid:".length()));
+            byte[] png = image("png", width, 10);
+            long delay = random.nextInt(20);
+            return () -> {
+                // pages finish out of order
+                Thread.sleep(delay);
+                return PageImage.prepare(page.getUuid(), png, ImageMimeType.PNG, null);
+            };
+        })) {
+            for (int i = 1; i <= 20; i++) {
+                PageImage pageImage = pipeline.take();
+                if (i % 5 == 0) {
+                    Assert.assertNull(pageImage);
+                } else {
+                    Assert.assertEquals((float) i, pageImage.getImage().getWidth(), 0.0f);
+                }
+            }
+        }
+    }
+
+    private static byte[] image(String format, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            image.setRGB(x, x % height, 0xff0000);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, format, bos);
+        return bos.toByteArray();
+    }
+}
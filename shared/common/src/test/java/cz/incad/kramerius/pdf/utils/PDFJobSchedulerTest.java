@@ -0,0 +1,85 @@
+package cz.incad.kramerius.pdf.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PDFJobSchedulerTest {
+
+    @Test
+    public void testShortJobOvertakesLongOne() throws PDFExlusiveGenerateSupportNotReadyException {
+        PDFJobScheduler scheduler = new PDFJobScheduler(1, 10, 2, 1000, 1000, 1000);
+        PDFJobScheduler.Ticket first = scheduler.enqueue("a", 1);
+        PDFJobScheduler.Ticket large = scheduler.enqueue("b", 800);
+        PDFJobScheduler.Ticket small = scheduler.enqueue("c", 5);
+        Assert.assertTrue(first.isRunning());
+        Assert.assertEquals(2, large.getPosition());
+        Assert.assertEquals(1, small.getPosition());
+
+        first.close();
+        Assert.assertTrue(small.isRunning());
+        Assert.assertEquals(1, large.getPosition());
+        small.close();
+        Assert.assertTrue(large.isRunning());
+        large.close();
+        Assert.assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void testClientsAreInterleaved() throws PDFExlusiveGenerateSupportNotReadyException {
+        PDFJobScheduler scheduler = new PDFJobScheduler(1, 10, 3, 1000, 1000, 1000);
+        PDFJobScheduler.Ticket holder = scheduler.enqueue("h", 1);
+        PDFJobScheduler.Ticket x1 = scheduler.enqueue("x", 5);
+        PDFJobScheduler.Ticket x2 = scheduler.enqueue("x", 5);
+        PDFJobScheduler.Ticket y = scheduler.enqueue("y", 5);
+        Assert.assertEquals(1, x1.getPosition());
+        Assert.assertEquals(2, y.getPosition());
+        Assert.assertEquals(3, x2.getPosition());
+        holder.close();
+        x1.close();
+        y.close();
+        x2.close();
+    }
+
+    @Test
+    public void testLimits() throws PDFExlusiveGenerateSupportNotReadyException {
+        PDFJobScheduler scheduler = new PDFJobScheduler(1, 1, 1, 1000, 1000, 1000);
+        PDFJobScheduler.Ticket running = scheduler.enqueue("a", 1);
+        try {
+            scheduler.enqueue("a", 1);
+            Assert.fail("client limit");
+        } catch (PDFExlusiveGenerateSupportNotReadyException e) {
+            Assert.assertEquals(1, scheduler.getRejectedClientLimit());
+        }
+        PDFJobScheduler.Ticket waiting = scheduler.enqueue("b", 1);
+        try {
+            scheduler.enqueue("c", 1);
+            Assert.fail("queue is full");
+        } catch (PDFExlusiveGenerateSupportNotReadyException e) {
+            Assert.assertEquals(1, scheduler.getRejectedQueueFull());
+        }
+        try {
+            scheduler.await(waiting, 10);
+            Assert.fail("timeout");
+        } catch (PDFExlusiveGenerateSupportNotReadyException e) {
+            Assert.assertEquals(1, scheduler.getTimedOut());
+            Assert.assertEquals(0, scheduler.getWaiting());
+        }
+        running.close();
+        Assert.assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void testLargeJobsLeaveSlotFree() throws PDFExlusiveGenerateSupportNotReadyException {
+        PDFJobScheduler scheduler = new PDFJobScheduler(2, 10, 2, 100, 1000, 1000);
+        PDFJobScheduler.Ticket large1 = scheduler.enqueue("a", 500);
+        PDFJobScheduler.Ticket large2 = scheduler.enqueue("b", 500);
+        PDFJobScheduler.Ticket small = scheduler.enqueue("c", 5);
+        Assert.assertTrue(large1.isRunning());
+        Assert.assertFalse(large2.isRunning());
+        Assert.assertTrue(small.isRunning());
+        large1.close();
+        Assert.assertTrue(large2.isRunning());
+        large2.close();
+        small.close();
+    }
+}
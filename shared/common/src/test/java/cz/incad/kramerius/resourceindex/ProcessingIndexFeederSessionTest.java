@@ -0,0 +1,109 @@
+package cz.incad.kramerius.resourceindex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProcessingIndexFeederSessionTest {
+
+    /** Records update requests instead of sending them */
+    static class RecordingSolrClient extends SolrClient {
+
+        final List<UpdateRequest> requests = new ArrayList<>();
+
+        @Override
+        public NamedList<Object> request(SolrRequest request, String collection) throws SolrServerException, IOException {
+            requests.add((UpdateRequest) request);
+            return new NamedList<>();
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    @Test
+    public void testOneRequestPerFlush() throws IOException, SolrServerException {
+        RecordingSolrClient client = new RecordingSolrClient();
+        ProcessingIndexFeeder feeder = new ProcessingIndexFeeder(client);
+
+        ProcessingIndexFeeder.Session session = feeder.session(1000);
+        session.feedDescriptionDocument("uuid:1", "page", "title", "ref", new Date());
+        for (int i = 0; i < 12; i++) {
+            session.feedRelationDocument("uuid:1", "hasPage", "uuid:child-" + i);
+        }
+        Assert.assertTrue(client.requests.isEmpty());
+        session.flush();
+
+        Assert.assertEquals(1, client.requests.size());
+        Assert.assertEquals(13, client.requests.get(0).getDocuments().size());
+        Assert.assertEquals(13, feeder.getStatistics().getDocuments());
+        Assert.assertEquals(1, feeder.getStatistics().getRequests());
+
+        session.flush();
+        Assert.assertEquals(1, client.requests.size());
+    }
+
+    @Test
+    public void testDeletesBeforeDocuments() throws IOException, SolrServerException {
+        RecordingSolrClient client = new RecordingSolrClient();
+        ProcessingIndexFeeder feeder = new ProcessingIndexFeeder(client);
+
+        ProcessingIndexFeeder.Session session = feeder.session(1000);
+        session.feedRelationDocument("uuid:1", "hasPage", "uuid:old");
+        session.feedRelationDocument("uuid:2", "hasPage", "uuid:other");
+        session.deleteByRelationsForPid("uuid:1");
+        session.feedRelationDocument("uuid:1", "hasPage", "uuid:new");
+        session.flush();
+
+        Assert.assertEquals(2, client.requests.size());
+        Assert.assertEquals(1, client.requests.get(0).getDeleteQuery().size());
+        Assert.assertEquals("source:\"uuid:1\" AND type:\"relation\"", client.requests.get(0).getDeleteQuery().get(0));
+
+        List<SolrInputDocument> docs = client.requests.get(1).getDocuments();
+        Assert.assertEquals(2, docs.size());
+        Assert.assertEquals("uuid:other", docs.get(0).getFieldValue("targetPid"));
+        Assert.assertEquals("uuid:new", docs.get(1).getFieldValue("targetPid"));
+    }
+
+    @Test
+    public void testSourceModifiedWatermark() throws IOException, SolrServerException {
+        RecordingSolrClient client = new RecordingSolrClient();
+        ProcessingIndexFeeder feeder = new ProcessingIndexFeeder(client);
+
+        ProcessingIndexFeeder.Session session = feeder.session(1000);
+        session.feedDescriptionDocument("uuid:1", "page", "title", "ref", new Date(), ProcessingIndexFeeder.TitleType.dc, 1234L);
+        session.feedDescriptionDocument("uuid:2", "page", "title", "ref", new Date());
+        session.flush();
+
+        List<SolrInputDocument> docs = client.requests.get(0).getDocuments();
+        Assert.assertEquals(1234L, docs.get(0).getFieldValue(ProcessingIndexFeeder.SOURCE_MODIFIED));
+        Assert.assertNull(docs.get(1).getFieldValue(ProcessingIndexFeeder.SOURCE_MODIFIED));
+    }
+
+    @Test
+    public void testAutomaticFlush() throws IOException, SolrServerException {
+        RecordingSolrClient client = new RecordingSolrClient();
+        ProcessingIndexFeeder feeder = new ProcessingIndexFeeder(client);
+
+        ProcessingIndexFeeder.Session session = feeder.session(5);
+        for (int i = 0; i < 12; i++) {
+            session.feedRelationDocument("uuid:1", "hasPage", "uuid:child-" + i);
+        }
+        Assert.assertEquals(2, client.requests.size());
+        Assert.assertEquals(2, session.getBufferedDocuments());
+        session.close();
+        Assert.assertEquals(3, client.requests.size());
+        Assert.assertEquals(12, feeder.getStatistics().getDocuments());
+    }
+}
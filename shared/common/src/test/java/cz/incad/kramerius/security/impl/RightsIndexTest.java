@@ -0,0 +1,148 @@
+package cz.incad.kramerius.security.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RightsIndexTest {
+
+    private static final String READ = "read";
+    private static final String ADMINISTRATE = "administrate";
+
+    /**
+     * Index reading rights from the list instead of the database
+     */
+    private static class TestRightsIndex extends RightsIndex {
+
+        private final List<RightRecord> database = new CopyOnWriteArrayList<>();
+        private final AtomicInteger fullLoads = new AtomicInteger();
+        private final AtomicInteger keyLoads = new AtomicInteger();
+        private volatile CountDownLatch keyLoadStarted = new CountDownLatch(0);
+        private volatile CountDownLatch keyLoadRelease = new CountDownLatch(0);
+
+        @Override
+        Snapshot loadAll() {
+            fullLoads.incrementAndGet();
+            return build(database, System.currentTimeMillis());
+        }
+
+        @Override
+        List<RightRecord> loadKey(String pid, String action) {
+            keyLoads.incrementAndGet();
+            keyLoadStarted.countDown();
+            try {
+                keyLoadRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<RightRecord> records = new ArrayList<>();
+            for (RightRecord record : database) {
+                if (record.pid.equals(pid) && record.action.equals(action)) {
+                    records.add(record);
+                }
+            }
+            return records;
+        }
+    }
+
+    private static RightsIndex.RightRecord record(int id, String pid, String action, String role, Integer userId) {
+        return new RightsIndex.RightRecord(id, pid, action, 0, role, userId,
+                null, 0, 0,
+                0, null, null, null,
+                0, null, null, null, 0,
+                false, 0, 0, 0, null);
+    }
+
+    private static List<Integer> ids(List<RightsIndex.RightRecord> records) {
+        List<Integer> ids = new ArrayList<>();
+        for (RightsIndex.RightRecord record : records) {
+            ids.add(record.rightId);
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void testFind() {
+        RightsIndex index = new TestRightsIndex();
+        index.setRecords(Arrays.asList(
+                record(1, "uuid:1", READ, "common_users", null),
+                record(2, "uuid:1", READ, null, 5),
+                record(3, "uuid:2", READ, "admins", null),
+                record(4, "uuid:1", ADMINISTRATE, "admins", null)));
+
+        String[] pids = {"uuid:1", "uuid:2", "uuid:3"};
+        Assert.assertEquals(Arrays.asList(1, 2), ids(index.find(pids, READ, 5, Arrays.asList("common_users"))));
+        Assert.assertEquals(Arrays.asList(3), ids(index.find(pids, READ, 7, Arrays.asList("admins"))));
+        Assert.assertEquals(Arrays.asList(4), ids(index.find(pids, ADMINISTRATE, 7, Arrays.asList("admins", "common_users"))));
+        Assert.assertTrue(index.find(pids, READ, 7, Arrays.asList("readers")).isEmpty());
+    }
+
+    @Test
+    public void testInvalidateAll() {
+        TestRightsIndex index = new TestRightsIndex();
+        index.setRecords(Collections.singletonList(record(1, "uuid:1", READ, "common_users", null)));
+        index.database.add(record(2, "uuid:1", READ, "common_users", null));
+        String[] pids = {"uuid:1"};
+        Assert.assertEquals(Arrays.asList(1), ids(index.find(pids, READ, 1, Arrays.asList("common_users"))));
+
+        index.invalidateAll();
+        Assert.assertEquals(Arrays.asList(2), ids(index.find(pids, READ, 1, Arrays.asList("common_users"))));
+        index.find(pids, READ, 1, Arrays.asList("common_users"));
+        Assert.assertEquals(1, index.fullLoads.get());
+    }
+
+    @Test
+    public void testRightChanged() {
+        TestRightsIndex index = new TestRightsIndex();
+        index.setRecords(Collections.singletonList(record(1, "uuid:1", READ, "common_users", null)));
+        // right moved to another object
+        index.database.add(record(1, "uuid:2", READ, "common_users", null));
+
+        index.rightChanged(1, "uuid:2", READ);
+        Assert.assertTrue(index.find(new String[]{"uuid:1"}, READ, 1, Arrays.asList("common_users")).isEmpty());
+        Assert.assertEquals(Arrays.asList(1), ids(index.find(new String[]{"uuid:2"}, READ, 1, Arrays.asList("common_users"))));
+        Assert.assertEquals(2, index.keyLoads.get());
+        Assert.assertEquals(0, index.fullLoads.get());
+    }
+
+    @Test
+    public void testClusterChangeIsReloadedInBackground() throws InterruptedException {
+        TestRightsIndex index = new TestRightsIndex();
+        index.setRecords(Collections.singletonList(record(1, "uuid:1", READ, "common_users", null)));
+        index.database.add(record(1, "uuid:1", READ, "common_users", null));
+        index.database.add(record(2, "uuid:1", READ, "admins", null));
+        index.keyLoadStarted = new CountDownLatch(1);
+        index.keyLoadRelease = new CountDownLatch(1);
+
+        String key = RightsIndex.key("uuid:1", READ);
+        // the listener thread doesn't wait for the database
+        index.onMessage(key);
+        Assert.assertTrue(index.keyLoadStarted.await(10, TimeUnit.SECONDS));
+        // announced during the running reload, reloaded once more
+        index.onMessage(key);
+        index.onMessage(key);
+        index.onMessage(key);
+        Assert.assertEquals(Arrays.asList(1), ids(index.find(new String[]{"uuid:1"}, READ, 1, Arrays.asList("common_users", "admins"))));
+        index.keyLoadRelease.countDown();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (index.find(new String[]{"uuid:1"}, READ, 1, Arrays.asList("common_users", "admins")).size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Arrays.asList(1, 2), ids(index.find(new String[]{"uuid:1"}, READ, 1, Arrays.asList("common_users", "admins"))));
+        while (index.keyLoads.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(2, index.keyLoads.get());
+    }
+}
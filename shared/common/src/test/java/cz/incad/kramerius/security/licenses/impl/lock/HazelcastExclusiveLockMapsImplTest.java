@@ -0,0 +1,176 @@
+package cz.incad.kramerius.security.licenses.impl.lock;
+
+import java.time.Instant;
+
+import org.easymock.EasyMock;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+import cz.incad.kramerius.security.licenses.LicensesManager;
+import cz.incad.kramerius.security.licenses.impl.LicenseImpl;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLock.ExclusiveLockType;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveLockMap;
+import cz.incad.kramerius.security.licenses.lock.ExclusiveMapException;
+
+/**
+ * Lock maps on an embedded cluster of two members
+ */
+public class HazelcastExclusiveLockMapsImplTest {
+
+    private static HazelcastInstance first;
+    private static HazelcastInstance second;
+
+    @BeforeClass
+    public static void startCluster() {
+        first = Hazelcast.newHazelcastInstance(config());
+        second = Hazelcast.newHazelcastInstance(config());
+    }
+
+    @AfterClass
+    public static void stopCluster() {
+        if (second != null) {
+            second.shutdown();
+        }
+        if (first != null) {
+            first.shutdown();
+        }
+    }
+
+    private static Config config() {
+        Config config = new Config();
+        config.getGroupConfig().setName("exclusive-lock-test");
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return config;
+    }
+
+    private static IMap<String, ExclusiveLockLeases> leases(HazelcastInstance instance) {
+        return instance.getMap(HazelcastExclusiveLockMapsImpl.MAP_NAME);
+    }
+
+    private static LicenseImpl license(int readers) {
+        LicenseImpl license = new LicenseImpl("license-" + readers, "", "local");
+        license.initExclusiveLock(60, 3600, readers, ExclusiveLockType.INSTANCE);
+        return license;
+    }
+
+    private static ExclusiveLockMapItemImpl item(String tokenId, int refreshInterval) {
+        Instant now = Instant.now();
+        return new ExclusiveLockMapItemImpl(tokenId, refreshInterval, now, now, now.plusSeconds(3600), "user");
+    }
+
+    private static ExclusiveLockMapItemImpl expiredItem(String tokenId) {
+        Instant past = Instant.now().minusSeconds(10);
+        return new ExclusiveLockMapItemImpl(tokenId, 1, past, past, past.plusSeconds(3600), "user");
+    }
+
+    @Test
+    public void testTryRegisterItemAtMaxReaders() {
+        HazelcastExclusiveLockMapsImpl maps = new HazelcastExclusiveLockMapsImpl(leases(first), () -> null);
+        ExclusiveLockMap map = maps.findOrCreateByHash("max-readers", license(2), "uuid:max-readers", "copy");
+
+        Assert.assertTrue(map.tryRegisterItem(item("a", 60)));
+        Assert.assertTrue(map.tryRegisterItem(item("b", 60)));
+        Assert.assertFalse(map.tryRegisterItem(item("c", 60)));
+        Assert.assertFalse(map.checkAvailabitlity());
+        // lease already held by the token
+        Assert.assertTrue(map.tryRegisterItem(item("a", 60)));
+        Assert.assertEquals(2, map.getLockItems().size());
+
+        map.deregisterItem(item("b", 60));
+        Assert.assertTrue(map.checkAvailabitlity());
+        Assert.assertTrue(map.tryRegisterItem(item("c", 60)));
+        Assert.assertNull(map.findByTokenId("b"));
+        Assert.assertNotNull(map.findByTokenId("c"));
+    }
+
+    @Test
+    public void testExpiredLeasesArePruned() throws InterruptedException {
+        HazelcastExclusiveLockMapsImpl maps = new HazelcastExclusiveLockMapsImpl(leases(first), () -> null);
+        ExclusiveLockMap map = maps.findOrCreateByHash("expiry", license(1), "uuid:expiry", "copy");
+
+        map.registerItem(item("short", 1));
+        Assert.assertEquals(1, map.getLockItems().size());
+        Assert.assertFalse(map.checkAvailabitlity());
+        Thread.sleep(1500);
+        Assert.assertTrue(map.getLockItems().isEmpty());
+        Assert.assertTrue(map.checkAvailabitlity());
+
+        // the lease which was not refreshed is dropped by the next change
+        map.registerItem(expiredItem("expired"));
+        Assert.assertEquals(1, leases(first).get("expiry").size());
+        Assert.assertNull(leases(first).get("expiry").get("short"));
+        // the only place is taken by leases that are not valid anymore
+        Assert.assertTrue(map.tryRegisterItem(item("next", 60)));
+        ExclusiveLockLeases stored = leases(first).get("expiry");
+        Assert.assertEquals(1, stored.size());
+        Assert.assertNotNull(stored.get("next"));
+    }
+
+    @Test
+    public void testRefreshOfUnknownOrExpiredToken() throws ExclusiveMapException {
+        HazelcastExclusiveLockMapsImpl maps = new HazelcastExclusiveLockMapsImpl(leases(first), () -> null);
+        ExclusiveLockMap map = maps.findOrCreateByHash("refresh", license(2), "uuid:refresh", "copy");
+
+        try {
+            map.refresh("unknown");
+            Assert.fail("unknown token must not be refreshed");
+        } catch (ExclusiveMapException e) {
+            // expected
+        }
+
+        map.registerItem(expiredItem("expired"));
+        // expired lease is dropped, not refreshed
+        map.refresh("expired");
+        Assert.assertNull(map.findByTokenId("expired"));
+        try {
+            map.refresh("expired");
+            Assert.fail("expired token must not be refreshed");
+        } catch (ExclusiveMapException e) {
+            // expected
+        }
+
+        ExclusiveLockMapItemImpl valid = item("valid", 60);
+        map.registerItem(valid);
+        map.refresh("valid");
+        Assert.assertFalse(map.findByTokenId("valid").getRefreshedTime().isBefore(valid.getRefreshedTime()));
+    }
+
+    @Test
+    public void testFindHashFromSecondNode() throws Exception {
+        LicenseImpl license = license(1);
+        LicensesManager licensesManager = EasyMock.createMock(LicensesManager.class);
+        EasyMock.expect(licensesManager.getLicenseByName(license.getName())).andReturn(license).anyTimes();
+        EasyMock.replay(licensesManager);
+
+        HazelcastExclusiveLockMapsImpl firstMaps = new HazelcastExclusiveLockMapsImpl(leases(first), () -> null);
+        HazelcastExclusiveLockMapsImpl secondMaps = new HazelcastExclusiveLockMapsImpl(leases(second), () -> licensesManager);
+        Assert.assertNull(secondMaps.findHash("second-node"));
+
+        ExclusiveLockMap firstMap = firstMaps.findOrCreateByHash("second-node", license, "uuid:second-node", "copy");
+        Assert.assertTrue(firstMap.tryRegisterItem(item("first", 60)));
+
+        ExclusiveLockMap secondMap = secondMaps.findHash("second-node");
+        Assert.assertNotNull(secondMap);
+        Assert.assertEquals("uuid:second-node", secondMap.getPid());
+        Assert.assertEquals("copy", secondMap.getFormatedName());
+        Assert.assertEquals(license.getName(), secondMap.getAssociatedLicense().getName());
+        Assert.assertTrue(secondMaps.getAllHashes().contains("second-node"));
+
+        // the copy is lent out on the first node
+        Assert.assertNotNull(secondMap.findByTokenId("first"));
+        Assert.assertFalse(secondMap.tryRegisterItem(item("second", 60)));
+        firstMap.deregisterItem(item("first", 60));
+        Assert.assertTrue(secondMap.tryRegisterItem(item("second", 60)));
+        Assert.assertFalse(firstMap.checkAvailabitlity());
+    }
+}
@@ -0,0 +1,234 @@
+package cz.incad.kramerius.statistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatisticsReportEngineTest {
+
+    private static final List<String> PARAMETERS = Arrays.asList("READ", "2020.01.01", "2020.12.31", "CSV");
+
+    private File cacheDir;
+    private BaseConfiguration conf;
+
+    @Before
+    public void setUp() throws IOException {
+        this.cacheDir = Files.createTempDirectory("statistics-cache").toFile();
+        this.conf = new BaseConfiguration();
+        this.conf.setProperty("statistics.reports.cacheDirectory", cacheDir.getAbsolutePath());
+        this.conf.setProperty("statistics.reports.concurrency", 4);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    @Test
+    public void testConcurrentIdenticalExportsRunOnce() throws Exception {
+        StatisticsReportEngine engine = new StatisticsReportEngine(conf);
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        StatisticsReportEngine.Execution execution = out -> {
+            executions.incrementAndGet();
+            await(release);
+            out.write("report".getBytes(StandardCharsets.UTF_8));
+        };
+
+        List<Future<byte[]>> results = exportConcurrently(4, () -> engine.export("lang", PARAMETERS, false, execution), release);
+
+        for (Future<byte[]> result : results) {
+            Assert.assertEquals("report", new String(result.get(), StandardCharsets.UTF_8));
+        }
+        Assert.assertEquals(1, executions.get());
+        // cached
+        engine.export("lang", PARAMETERS, false, execution);
+        Assert.assertEquals(1, executions.get());
+    }
+
+    @Test
+    public void testFailureIsPropagatedToAllWaitersAndNotCached() throws Exception {
+        StatisticsReportEngine engine = new StatisticsReportEngine(conf);
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        StatisticsReportEngine.Execution failing = out -> {
+            executions.incrementAndGet();
+            await(release);
+            throw new StatisticsReportException("failed");
+        };
+
+        List<Future<byte[]>> results = exportConcurrently(3, () -> engine.export("lang", PARAMETERS, true, failing), release);
+
+        for (Future<byte[]> result : results) {
+            try {
+                result.get();
+                Assert.fail("failure must be propagated");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof StatisticsReportException);
+            }
+        }
+        Assert.assertEquals(1, executions.get());
+
+        byte[] result = engine.export("lang", PARAMETERS, true, out -> {
+            executions.incrementAndGet();
+            out.write("report".getBytes(StandardCharsets.UTF_8));
+        });
+        Assert.assertEquals("report", new String(result, StandardCharsets.UTF_8));
+        Assert.assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void testClosedResultSurvivesNewEngine() throws Exception {
+        new StatisticsReportEngine(conf).export("lang", PARAMETERS, true, out -> out.write("closed".getBytes(StandardCharsets.UTF_8)));
+
+        byte[] result = new StatisticsReportEngine(conf).export("lang", PARAMETERS, true, out -> {
+            throw new StatisticsReportException("stored result expected");
+        });
+        Assert.assertEquals("closed", new String(result, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInvalidateDropsBothTiers() throws Exception {
+        StatisticsReportEngine engine = new StatisticsReportEngine(conf);
+        AtomicInteger executions = new AtomicInteger();
+        StatisticsReportEngine.Execution execution = out -> {
+            out.write(("report" + executions.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+        };
+        engine.export("lang", PARAMETERS, false, execution);
+        engine.export("lang", PARAMETERS, true, execution);
+        Assert.assertEquals(2, executions.get());
+
+        engine.invalidate();
+        Assert.assertEquals(0, cacheDir.listFiles((dir, name) -> name.endsWith(".report")).length);
+        Assert.assertEquals("report3", new String(engine.export("lang", PARAMETERS, false, execution), StandardCharsets.UTF_8));
+        Assert.assertEquals("report4", new String(engine.export("lang", PARAMETERS, true, execution), StandardCharsets.UTF_8));
+
+        engine.invalidate();
+        Assert.assertEquals("report5", new String(new StatisticsReportEngine(conf).export("lang", PARAMETERS, true, execution), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testResultComputedBeforeInvalidationIsNotStored() throws Exception {
+        StatisticsReportEngine engine = new StatisticsReportEngine(conf);
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StatisticsReportEngine.Execution execution = out -> {
+            int number = executions.incrementAndGet();
+            if (number == 1) {
+                started.countDown();
+                await(release);
+            }
+            out.write(("report" + number).getBytes(StandardCharsets.UTF_8));
+        };
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> stale = executor.submit(() -> engine.export("lang", PARAMETERS, true, execution));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            engine.invalidate();
+            release.countDown();
+            Assert.assertEquals("report1", new String(stale.get(), StandardCharsets.UTF_8));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(0, cacheDir.listFiles((dir, name) -> name.endsWith(".report")).length);
+        Assert.assertEquals("report2", new String(engine.export("lang", PARAMETERS, true, execution), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRangeIsClosedAfterGracePeriod() {
+        conf.setProperty("statistics.reports.closedAfterDays", 3);
+        StatisticsReportEngine engine = new StatisticsReportEngine(conf);
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+        LocalDate today = LocalDate.now();
+
+        Assert.assertFalse(engine.isClosed(today.format(format), null));
+        // delayed access log records can still arrive
+        Assert.assertFalse(engine.isClosed(today.minusDays(1).format(format), null));
+        Assert.assertFalse(engine.isClosed(today.minusDays(3).format(format), null));
+        Assert.assertTrue(engine.isClosed(today.minusDays(4).format(format), null));
+        Assert.assertTrue(engine.isClosed(null, "2020"));
+        Assert.assertEquals(today.getDayOfYear() > 3, engine.isClosed(null, String.valueOf(today.getYear() - 1)));
+        Assert.assertFalse(engine.isClosed(null, String.valueOf(today.getYear())));
+        Assert.assertFalse(engine.isClosed("invalid", null));
+    }
+
+    /**
+     * Runs the exports in separate threads; releases the execution when all of them are waiting
+     */
+    private static List<Future<byte[]>> exportConcurrently(int count, Callable<byte[]> export, CountDownLatch release) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        List<Thread> threads = new ArrayList<>();
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            results.add(executor.submit(() -> {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+                return export.call();
+            }));
+        }
+        try {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (!allWaiting(threads, count) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        return results;
+    }
+
+    private static boolean allWaiting(List<Thread> threads, int count) {
+        synchronized (threads) {
+            if (threads.size() < count) {
+                return false;
+            }
+            for (Thread thread : threads) {
+                if (thread.getState() != Thread.State.WAITING) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
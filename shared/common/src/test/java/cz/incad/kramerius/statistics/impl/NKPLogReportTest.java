@@ -9,12 +9,16 @@ import org.json.JSONObject;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
@@ -23,6 +27,28 @@ import java.util.logging.Level;
 
 public class NKPLogReportTest {
 
+    @Test
+    public void testMonthPartitions() {
+        List<String> partitions = NKPLogReport.partitions(LocalDate.of(2023, 1, 15), LocalDate.of(2023, 3, 10));
+        Assert.assertEquals(Arrays.asList(
+                "date:[2023-01-15T00:00:00Z TO 2023-02-01T00:00:00Z}",
+                "date:[2023-02-01T00:00:00Z TO 2023-03-01T00:00:00Z}",
+                "date:[2023-03-01T00:00:00Z TO 2023-03-10T00:00:00Z]"), partitions);
+
+        Assert.assertEquals(Arrays.asList("date:[2023-01-01T00:00:00Z TO 2023-02-01T00:00:00Z]"),
+                NKPLogReport.partitions(LocalDate.of(2023, 1, 1), LocalDate.of(2023, 2, 1)));
+    }
+
+    @Test
+    public void testCursorPage() throws IOException {
+        String page = "{\"response\":{\"numFound\":2,\"docs\":[{\"id\":\"1\",\"pid\":\"uuid:1\"},{\"id\":\"2\",\"pid\":\"uuid:2\"}]},\"nextCursorMark\":\"AoE\"}";
+        List<Object> pids = new ArrayList<>();
+        String next = NKPLogReport.page(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)),
+                doc -> pids.add(NKPLogReport.toMap(doc).get("pid")));
+        Assert.assertEquals("AoE", next);
+        Assert.assertEquals(Arrays.asList("uuid:1", "uuid:2"), pids);
+    }
+
 //    @Test
 //    public void testTemplate() {
 //        StringTemplate statRecord = DatabaseStatisticsAccessLogImpl.stGroup.getInstanceOf("nkpLogsReport");